@@ -0,0 +1,303 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of activities waiting to be routed, and the thread that routes them a
+ * batch at a time. When the queue is full {@link #offer(RoutingJob)} refuses the activity
+ * and the caller routes it itself, which slows down producers rather than letting the
+ * backlog grow.
+ * <p>
+ * Activities that fail to route are retried, with a delay doubling after each attempt,
+ * and only counted as failed once they have used up their attempts. Activities still
+ * waiting for a retry when the queue is stopped are retried straight away in the stopping
+ * thread.
+ */
+class ActivityRoutingQueue implements ActivityRoutingQueueMBean, Runnable {
+
+  /**
+   * Routes a batch of activities.
+   */
+  interface BatchRouter {
+    /**
+     * Route the jobs, marking each one that was routed successfully with
+     * {@link RoutingJob#routed()}.
+     */
+    void route(List<RoutingJob> jobs);
+  }
+
+  /**
+   * An activity that has been stored and now needs to be routed.
+   */
+  static class RoutingJob implements Delayed {
+    final String activityPath;
+    final String userId;
+    final long queued;
+    private boolean routed;
+    private int attempts;
+    private long retryAt;
+
+    RoutingJob(String activityPath, String userId) {
+      this.activityPath = activityPath;
+      this.userId = userId;
+      this.queued = System.currentTimeMillis();
+    }
+
+    void routed() {
+      routed = true;
+    }
+
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(retryAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public int compareTo(Delayed o) {
+      long d = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+      return d < 0 ? -1 : (d > 0 ? 1 : 0);
+    }
+  }
+
+  static final int DEFAULT_MAX_ATTEMPTS = 3;
+  static final long DEFAULT_RETRY_DELAY = 1000L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityRoutingQueue.class);
+
+  private final BlockingQueue<RoutingJob> queue;
+  private final int capacity;
+  private final int batchSize;
+  private final BatchRouter router;
+  private final int maxAttempts;
+  private final long retryDelay;
+  private final DelayQueue<RoutingJob> retries = new DelayQueue<RoutingJob>();
+
+  private volatile boolean running;
+  private Thread worker;
+
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong routedInline = new AtomicLong();
+  private final AtomicLong routedInBackground = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong retried = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+
+  ActivityRoutingQueue(int capacity, int batchSize, BatchRouter router) {
+    this(capacity, batchSize, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY, router);
+  }
+
+  /**
+   * @param maxAttempts
+   *          the number of times an activity is routed before it counts as failed.
+   * @param retryDelay
+   *          the delay, in ms, before the first retry.
+   */
+  ActivityRoutingQueue(int capacity, int batchSize, int maxAttempts, long retryDelay,
+      BatchRouter router) {
+    this.capacity = capacity;
+    this.queue = new ArrayBlockingQueue<RoutingJob>(capacity);
+    this.batchSize = Math.max(1, batchSize);
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.retryDelay = Math.max(0L, retryDelay);
+    this.router = router;
+  }
+
+  synchronized void start() {
+    if (worker == null) {
+      running = true;
+      worker = new Thread(this, "activity-routing");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /**
+   * Stop the worker and route whatever is still queued or waiting for a retry in the
+   * calling thread, so no activity is left without routes.
+   */
+  synchronized void stop() {
+    running = false;
+    if (worker != null) {
+      try {
+        worker.join(30000L);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      worker = null;
+    }
+    List<RoutingJob> pending = new ArrayList<RoutingJob>();
+    queue.drainTo(pending);
+    pending.addAll(retries);
+    retries.clear();
+    while (!pending.isEmpty()) {
+      List<RoutingJob> batch = pending.subList(0, Math.min(batchSize, pending.size()));
+      List<RoutingJob> retry = process(new ArrayList<RoutingJob>(batch));
+      batch.clear();
+      pending.addAll(retry);
+    }
+  }
+
+  /**
+   * @return true if the job was queued, false if the caller must route it.
+   */
+  boolean offer(RoutingJob job) {
+    if (running && queue.offer(job)) {
+      queued.incrementAndGet();
+      return true;
+    }
+    rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Count an activity routed by the caller.
+   */
+  void routedInline() {
+    routedInline.incrementAndGet();
+  }
+
+  public void run() {
+    List<RoutingJob> batch = new ArrayList<RoutingJob>(batchSize);
+    while (running) {
+      try {
+        retries.drainTo(batch, batchSize);
+        if (batch.isEmpty()) {
+          RoutingJob job = queue.poll(pollTimeout(), TimeUnit.MILLISECONDS);
+          if (job == null) {
+            continue;
+          }
+          batch.add(job);
+        }
+        queue.drainTo(batch, batchSize - batch.size());
+        for (RoutingJob job : process(batch)) {
+          // back off, doubling the delay after each failed attempt.
+          job.retryAt = System.currentTimeMillis() + (retryDelay << (job.attempts - 1));
+          retries.add(job);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (Throwable t) {
+        LOGGER.error("Failed to route activities ", t);
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * @return the ms to wait for a new activity before the next retry is due.
+   */
+  private long pollTimeout() {
+    RoutingJob next = retries.peek();
+    if (next == null) {
+      return 1000L;
+    }
+    return Math.max(1L, Math.min(1000L, next.getDelay(TimeUnit.MILLISECONDS)));
+  }
+
+  /**
+   * Route a batch.
+   *
+   * @return the jobs that were not routed but have attempts left.
+   */
+  private List<RoutingJob> process(List<RoutingJob> batch) {
+    try {
+      router.route(batch);
+    } catch (RuntimeException e) {
+      LOGGER.error("Failed to route a batch of activities ", e);
+    }
+    // jobs routed before a failure still count as routed.
+    List<RoutingJob> retry = new ArrayList<RoutingJob>();
+    int routed = 0;
+    int failures = 0;
+    long now = System.currentTimeMillis();
+    for (RoutingJob job : batch) {
+      job.attempts++;
+      if (job.routed) {
+        routed++;
+        latency.addAndGet(now - job.queued);
+      } else if (job.attempts < maxAttempts) {
+        retry.add(job);
+      } else {
+        LOGGER.warn("Giving up routing activity {} after {} attempts ", job.activityPath,
+            job.attempts);
+        failures++;
+        latency.addAndGet(now - job.queued);
+      }
+    }
+    batches.incrementAndGet();
+    routedInBackground.addAndGet(routed);
+    retried.addAndGet(retry.size());
+    failed.addAndGet(failures);
+    return retry;
+  }
+
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  public int getQueueCapacity() {
+    return capacity;
+  }
+
+  public long getQueued() {
+    return queued.get();
+  }
+
+  public long getRoutedInline() {
+    return routedInline.get();
+  }
+
+  public long getRoutedInBackground() {
+    return routedInBackground.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public long getRetried() {
+    return retried.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getAverageLatency() {
+    long n = routedInBackground.get() + failed.get();
+    return n == 0 ? 0 : latency.get() / n;
+  }
+}
@@ -0,0 +1,73 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+/**
+ * Statistics of the routing of activities.
+ */
+public interface ActivityRoutingQueueMBean {
+
+  /**
+   * @return the number of activities waiting to be routed.
+   */
+  int getQueueSize();
+
+  int getQueueCapacity();
+
+  /**
+   * @return the number of activities queued for routing in the background.
+   */
+  long getQueued();
+
+  /**
+   * @return the number of activities routed within the request, because their fan out
+   *         was small or the queue was full.
+   */
+  long getRoutedInline();
+
+  /**
+   * @return the number of activities routed in the background.
+   */
+  long getRoutedInBackground();
+
+  /**
+   * @return the number of activities that could not be queued because the queue was full.
+   */
+  long getRejected();
+
+  /**
+   * @return the number of times an activity that failed to route was scheduled to be
+   *         routed again.
+   */
+  long getRetried();
+
+  /**
+   * @return the number of activities that failed to route on every attempt.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of batches routed in the background, each with one session.
+   */
+  long getBatches();
+
+  /**
+   * @return the average time, in ms, from queueing an activity to it being routed.
+   */
+  long getAverageLatency();
+}
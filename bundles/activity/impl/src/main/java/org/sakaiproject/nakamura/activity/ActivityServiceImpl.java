@@ -25,15 +25,22 @@ import static org.sakaiproject.nakamura.api.activity.ActivityConstants.PARAM_ACT
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.activity.ActivityRoutingQueue.RoutingJob;
 import org.sakaiproject.nakamura.api.activity.ActivityConstants;
 import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.activity.ActivityUtils;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -48,31 +55,102 @@ import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.sakaiproject.nakamura.util.SparseUtils;
 import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Hashtable;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.management.ObjectName;
 import javax.servlet.ServletException;
 
-@Component
+/**
+ * Creates activities. An activity is stored within the request, routing it to feeds is
+ * done within the request only when the actor is known to have few connections,
+ * otherwise it is queued and routed in the background. The activity event, which indexes
+ * the activity with its routes, is sent once it has been routed.
+ * <p>
+ * Connections are only counted in the background, when an activity of the actor is
+ * routed there, and the result is kept for a while. Until then the actor's activities are
+ * queued, so requests never wait for the connections to be loaded.
+ */
+@Component(metatype = true)
 @Service(value=ActivityService.class)
-public class ActivityServiceImpl implements ActivityService {
+public class ActivityServiceImpl implements ActivityService, ActivityRoutingQueue.BatchRouter {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ActivityServiceImpl.class);
+
+  @Property(intValue = 25)
+  static final String SYNC_THRESHOLD = "sakai.activity.routing.sync_threshold";
+
+  @Property(intValue = 1000)
+  static final String QUEUE_SIZE = "sakai.activity.routing.queue_size";
+
+  @Property(intValue = 50)
+  static final String BATCH_SIZE = "sakai.activity.routing.batch_size";
+
+  /**
+   * How long, in ms, a count of the actor's connections is trusted.
+   */
+  static final long FAN_OUT_TTL = 300000L;
+
+  private static final int MAX_FAN_OUTS = 10000;
+
+  static final String JMX_NAME = "org.sakaiproject.nakamura:type=ActivityRouting";
 
   @Reference
-  private Repository repository;
-  
+  protected Repository repository;
+
   @Reference
-  private EventAdmin eventAdmin;
+  protected EventAdmin eventAdmin;
 
   @Reference
   protected ActivityRouterManager activityRouterManager;
-  
+
+  @Reference
+  protected ConnectionManager connectionManager;
+
+  private int syncThreshold = 25;
+
+  private ActivityRoutingQueue routingQueue;
+
+  /**
+   * The time until which each actor is known to have a small fan out, or the negated time
+   * until which it is known to have a large one.
+   */
+  private final ConcurrentMap<String, Long> fanOuts = new ConcurrentHashMap<String, Long>();
+
+  private ObjectName registeredName;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    syncThreshold = PropertiesUtil.toInteger(properties.get(SYNC_THRESHOLD), 25);
+    routingQueue = new ActivityRoutingQueue(PropertiesUtil.toInteger(
+        properties.get(QUEUE_SIZE), 1000), PropertiesUtil.toInteger(
+        properties.get(BATCH_SIZE), 50), this);
+    routingQueue.start();
+    registerStatistics();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    unregisterStatistics();
+    if (routingQueue != null) {
+      routingQueue.stop();
+    }
+  }
+
   public void createActivity(Session session, Content targetLocation,  String userId, ActivityServiceCallback callback) throws AccessDeniedException, StorageClientException, ServletException, IOException {
     if ( userId == null ) {
       userId = session.getUserId();
@@ -115,61 +193,156 @@ public class ActivityServiceImpl implements ActivityService {
     activtyNode.setProperty(PARAM_ACTOR_ID, userId);
     activtyNode.setProperty(ActivityConstants.PARAM_SOURCE, targetLocation.getPath());
 
-    Session adminSession = repository.loginAdministrative();
-    List<String> routesStr = new LinkedList<String>();
-    List<String> readers = new LinkedList<String>();
-    try {  
-      List<ActivityRoute> routes = activityRouterManager.getActivityRoutes(activtyNode,
-          adminSession);
-      if (routes != null) {
-        for (ActivityRoute route : routes) {
-          routesStr.add(route.getDestination());
-          if (route.getReaders() != null && route.getReaders().length > 0) {
-            readers.addAll(Arrays.asList(route.getReaders()));
-          }
-        }
+    // store the activity node
+    contentManager.update(activtyNode);
+
+    RoutingJob job = new RoutingJob(activityPath, userId);
+    if (isSmallFanOut(userId) || !routingQueue.offer(job)) {
+      Session adminSession = repository.loginAdministrative();
+      try {
+        route(adminSession, job);
+        routingQueue.routedInline();
+      } finally {
+        SparseUtils.logoutQuietly(adminSession);
       }
-  
-      // store the routes as child content of the activity so we may lock it down to admin. It's common for
-      // the activity to be stored within the context of the content to which it pertains (e.g., within the
-      // pooled content item on which the user performed the activity), therefore we could expose user
-      // activity routes there -- that is an exposure of potentially sensitive content such as who the user's
-      // connections are.
-      String routesPath = StorageClientUtils.newPath(activtyNode.getPath(), ActivityConstants.PARAM_ROUTES);
-      contentManager.update(new Content(routesPath, ImmutableMap.<String, Object>of(
-          ActivityConstants.PARAM_ROUTES, routesStr.toArray(new String[routesStr.size()]))));
-      adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, routesPath, new AclModification[] {
-              new AclModification(AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
-              new AclModification(AclModification.denyKey(Group.EVERYONE), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
-              new AclModification(AclModification.denyKey(userId), Permissions.ALL.getPermission(), Operation.OP_REPLACE)
-            });
-      
-      if (!readers.isEmpty()) {
-        AclModification[] readerAcls = new AclModification[readers.size()];
-        int i = 0;
-        for (String reader : readers) {
-          // ensure all the necessary readers/routes can read the activity
-          readerAcls[i] = new AclModification(AclModification.grantKey(reader), Permissions.CAN_READ.getPermission(),
-              Operation.OP_OR);
-          i++;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.activity.ActivityRoutingQueue.BatchRouter#route(java.util.List)
+   */
+  public void route(List<RoutingJob> jobs) {
+    Session adminSession = null;
+    try {
+      // one session for the whole batch.
+      adminSession = repository.loginAdministrative();
+      for (RoutingJob job : jobs) {
+        try {
+          route(adminSession, job);
+          job.routed();
+          countFanOut(adminSession, job.userId);
+        } catch (StorageClientException e) {
+          LOGGER.error("Failed to route activity " + job.activityPath, e);
+        } catch (AccessDeniedException e) {
+          LOGGER.error("Failed to route activity " + job.activityPath, e);
+        } catch (RuntimeException e) {
+          // eg a failing router, which shouldn't cost the rest of the batch.
+          LOGGER.error("Failed to route activity " + job.activityPath, e);
         }
-        
-        adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, activtyNode.getPath(), readerAcls);
       }
+    } catch (StorageClientException e) {
+      LOGGER.error("Failed to route activities ", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Failed to route activities ", e);
     } finally {
       SparseUtils.logoutQuietly(adminSession);
     }
-    
-    // store the activity node
-    contentManager.update(activtyNode);
-    
+  }
+
+  /**
+   * @return true if the actor is known to have few enough connections to route the
+   *         activity within the request.
+   */
+  private boolean isSmallFanOut(String userId) {
+    Long until = fanOuts.get(userId);
+    return until != null && until > System.currentTimeMillis();
+  }
+
+  /**
+   * Count the connections of the actor, unless a recent count is known, so that the next
+   * activity of the actor can be routed within the request if there are few.
+   */
+  private void countFanOut(Session adminSession, String userId) {
+    Long until = fanOuts.get(userId);
+    long now = System.currentTimeMillis();
+    if (until != null && Math.abs(until) > now) {
+      return;
+    }
+    try {
+      List<String> connections = connectionManager.getConnectedUsers(adminSession, userId,
+          ConnectionState.ACCEPTED);
+      boolean small = connections == null || connections.size() <= syncThreshold;
+      if (fanOuts.size() >= MAX_FAN_OUTS) {
+        fanOuts.clear();
+      }
+      fanOuts.put(userId, small ? now + FAN_OUT_TTL : -(now + FAN_OUT_TTL));
+    } catch (IllegalStateException e) {
+      LOGGER.debug("Unable to count the connections of {} {} ", userId, e.getMessage());
+    }
+  }
+
+  private void route(Session adminSession, RoutingJob job) throws StorageClientException,
+      AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    Content activtyNode = contentManager.get(job.activityPath);
+    if (activtyNode == null) {
+      LOGGER.debug("Activity {} was removed before it was routed ", job.activityPath);
+      return;
+    }
+    // the same destination may be reached by more than one router.
+    Set<String> routesStr = new LinkedHashSet<String>();
+    Set<String> readers = new LinkedHashSet<String>();
+    List<ActivityRoute> routes = activityRouterManager.getActivityRoutes(activtyNode,
+        adminSession);
+    if (routes != null) {
+      for (ActivityRoute route : routes) {
+        routesStr.add(route.getDestination());
+        if (route.getReaders() != null && route.getReaders().length > 0) {
+          readers.addAll(Arrays.asList(route.getReaders()));
+        }
+      }
+    }
+
+    // store the routes as child content of the activity so we may lock it down to admin. It's common for
+    // the activity to be stored within the context of the content to which it pertains (e.g., within the
+    // pooled content item on which the user performed the activity), therefore we could expose user
+    // activity routes there -- that is an exposure of potentially sensitive content such as who the user's
+    // connections are.
+    String routesPath = StorageClientUtils.newPath(activtyNode.getPath(), ActivityConstants.PARAM_ROUTES);
+    contentManager.update(new Content(routesPath, ImmutableMap.<String, Object>of(
+        ActivityConstants.PARAM_ROUTES, routesStr.toArray(new String[routesStr.size()]))));
+    adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, routesPath, new AclModification[] {
+            new AclModification(AclModification.denyKey(User.ANON_USER), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.denyKey(Group.EVERYONE), Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.denyKey(job.userId), Permissions.ALL.getPermission(), Operation.OP_REPLACE)
+          });
+
+    if (!readers.isEmpty()) {
+      AclModification[] readerAcls = new AclModification[readers.size()];
+      int i = 0;
+      for (String reader : readers) {
+        // ensure all the necessary readers/routes can read the activity
+        readerAcls[i] = new AclModification(AclModification.grantKey(reader), Permissions.CAN_READ.getPermission(),
+            Operation.OP_OR);
+        i++;
+      }
+
+      adminSession.getAccessControlManager().setAcl(Security.ZONE_CONTENT, activtyNode.getPath(), readerAcls);
+    }
+
     // post the asynchronous OSGi event
     final Dictionary<String, String> properties = new Hashtable<String, String>();
-    properties.put(UserConstants.EVENT_PROP_USERID, userId);
-    properties.put(ActivityConstants.EVENT_PROP_PATH, activityPath);
-    properties.put("path", activityPath);
+    properties.put(UserConstants.EVENT_PROP_USERID, job.userId);
+    properties.put(ActivityConstants.EVENT_PROP_PATH, job.activityPath);
+    properties.put("path", job.activityPath);
     properties.put("resourceType", ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
     EventUtils.sendOsgiEvent(properties, LITE_EVENT_TOPIC, eventAdmin);
   }
 
+  ActivityRoutingQueueMBean getRoutingStatistics() {
+    return routingQueue;
+  }
+
+  private void registerStatistics() {
+    registeredName = JmxUtils.register(JMX_NAME, routingQueue,
+        ActivityRoutingQueueMBean.class);
+  }
+
+  private void unregisterStatistics() {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+  }
+
 }
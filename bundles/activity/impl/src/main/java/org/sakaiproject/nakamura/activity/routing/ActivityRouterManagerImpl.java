@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.activity.routing;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -28,15 +30,22 @@ import org.sakaiproject.nakamura.api.activity.ActivityRoute;
 import org.sakaiproject.nakamura.api.activity.ActivityRouter;
 import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.util.JmxUtils;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
+import javax.management.ObjectName;
 
 @Component
 @Properties(value = {
@@ -44,11 +53,52 @@ import javax.jcr.Node;
     @Property(name = "servie.description", value = "The manager who will pass the activity to all the routers") })
 @Service(value = ActivityRouterManager.class)
 @Reference(name = "activityRouters", policy=ReferencePolicy.DYNAMIC, cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, referenceInterface = ActivityRouter.class, bind = "addActivityRouter", unbind = "removeActivityRouter")
-public class ActivityRouterManagerImpl implements ActivityRouterManager {
+public class ActivityRouterManagerImpl implements ActivityRouterManager,
+    ActivityRouterManagerMBean {
+
+  static final String JMX_NAME = "org.sakaiproject.nakamura:type=ActivityRouters";
 
   private List<ActivityRouter> routers = new ArrayList<ActivityRouter>();
   private Set<ActivityRouter> activityRouters = new HashSet<ActivityRouter>();
 
+  private final ConcurrentMap<String, RouterStatistics> statistics = new ConcurrentHashMap<String, RouterStatistics>();
+
+  private ObjectName registeredName;
+
+  /**
+   * The activities routed by a router, the routes it produced and the time it took.
+   */
+  static class RouterStatistics {
+    final AtomicLong activities = new AtomicLong();
+    final AtomicLong routes = new AtomicLong();
+    final AtomicLong nanos = new AtomicLong();
+
+    void record(int routeCount, long elapsed) {
+      activities.incrementAndGet();
+      routes.addAndGet(routeCount);
+      nanos.addAndGet(elapsed);
+    }
+
+    @Override
+    public String toString() {
+      long n = activities.get();
+      long millis = TimeUnit.NANOSECONDS.toMillis(nanos.get());
+      return "activities=" + n + " routes=" + routes.get() + " time=" + millis + "ms average="
+          + (n == 0 ? 0 : millis / n) + "ms";
+    }
+  }
+
+  @Activate
+  protected void activate() {
+    registeredName = JmxUtils.register(JMX_NAME, this, ActivityRouterManagerMBean.class);
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -66,11 +116,45 @@ public class ActivityRouterManagerImpl implements ActivityRouterManager {
   public List<ActivityRoute> getActivityRoutes(org.sakaiproject.nakamura.api.lite.content.Content activity, Session adminSession) {
     List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
     for (ActivityRouter router : routers) {
+      int before = routes.size();
+      long start = System.nanoTime();
       router.route(activity, routes, adminSession);
+      getStatistics(router).record(routes.size() - before, System.nanoTime() - start);
     }
     return routes;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.activity.routing.ActivityRouterManagerMBean#getRouterStatistics()
+   */
+  public String[] getRouterStatistics() {
+    List<String> result = new ArrayList<String>();
+    for (Entry<String, RouterStatistics> e : statistics.entrySet()) {
+      result.add(e.getKey() + " " + e.getValue());
+    }
+    Collections.sort(result);
+    return result.toArray(new String[result.size()]);
+  }
+
+  public void resetStatistics() {
+    statistics.clear();
+  }
+
+  RouterStatistics getStatistics(ActivityRouter router) {
+    String name = router.getClass().getName();
+    RouterStatistics routerStatistics = statistics.get(name);
+    if (routerStatistics == null) {
+      RouterStatistics created = new RouterStatistics();
+      routerStatistics = statistics.putIfAbsent(name, created);
+      if (routerStatistics == null) {
+        routerStatistics = created;
+      }
+    }
+    return routerStatistics;
+  }
+
   protected void addActivityRouter(ActivityRouter router) {
     activityRouters.add(router);
     routers = getSortedList();
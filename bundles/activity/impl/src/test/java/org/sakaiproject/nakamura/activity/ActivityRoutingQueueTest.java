@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.activity.ActivityRoutingQueue.RoutingJob;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ActivityRoutingQueueTest {
+
+  /**
+   * Records the batches it is given, holding the first one until released.
+   */
+  private static class RecordingRouter implements ActivityRoutingQueue.BatchRouter {
+    final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    int failEach;
+
+    public void route(List<RoutingJob> jobs) {
+      batches.add(jobs.size());
+      started.countDown();
+      try {
+        release.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      for (RoutingJob job : jobs.subList(0, jobs.size() - failEach)) {
+        route(job);
+      }
+    }
+
+    void route(RoutingJob job) {
+      job.routed();
+    }
+  }
+
+  private RoutingJob job(int i) {
+    return new RoutingJob("/activity/" + i, "user");
+  }
+
+  @Test
+  public void testRejectsWhenNotRunning() {
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(10, 5, new RecordingRouter());
+    assertFalse(queue.offer(job(0)));
+    assertEquals(1, queue.getRejected());
+  }
+
+  @Test
+  public void testBackPressureAndBatching() throws Exception {
+    RecordingRouter router = new RecordingRouter();
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(3, 10, router);
+    queue.start();
+    assertTrue(queue.offer(job(0)));
+    assertTrue(router.started.await(10, TimeUnit.SECONDS));
+
+    // the worker is busy with the first activity, so the queue fills up.
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(queue.offer(job(i)));
+    }
+    assertFalse(queue.offer(job(4)));
+    assertEquals(3, queue.getQueueSize());
+    assertEquals(1, queue.getRejected());
+
+    router.release.countDown();
+    queue.stop();
+    assertEquals(4, queue.getQueued());
+    assertEquals(4, queue.getRoutedInBackground());
+    assertEquals(0, queue.getFailed());
+    // the queued activities are routed together.
+    assertEquals(2, queue.getBatches());
+    assertEquals(1, router.batches.get(0).intValue());
+    assertEquals(3, router.batches.get(1).intValue());
+  }
+
+  @Test
+  public void testStopRoutesWhatIsLeft() throws Exception {
+    RecordingRouter router = new RecordingRouter();
+    router.release.countDown();
+    router.failEach = 1;
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(100, 2, 1, 0, router);
+    queue.start();
+    for (int i = 0; i < 20; i++) {
+      assertTrue(queue.offer(job(i)));
+    }
+    queue.stop();
+    assertEquals(0, queue.getQueueSize());
+    assertEquals(20, queue.getRoutedInBackground() + queue.getFailed());
+    assertEquals(queue.getBatches(), queue.getFailed());
+    assertFalse(queue.offer(job(21)));
+  }
+
+  @Test
+  public void testFailureOnlyCountsTheJobsNotRouted() throws Exception {
+    RecordingRouter router = new RecordingRouter() {
+      @Override
+      void route(RoutingJob job) {
+        if (job.activityPath.endsWith("/3")) {
+          throw new IllegalStateException("router failed");
+        }
+        super.route(job);
+      }
+    };
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(10, 5, 1, 0, router);
+    queue.start();
+    assertTrue(queue.offer(job(0)));
+    assertTrue(router.started.await(10, TimeUnit.SECONDS));
+    // queued while the worker is busy, so they are routed as one batch.
+    for (int i = 1; i <= 5; i++) {
+      assertTrue(queue.offer(job(i)));
+    }
+    router.release.countDown();
+    queue.stop();
+    assertEquals(2, queue.getBatches());
+    assertEquals(3, queue.getRoutedInBackground());
+    assertEquals(3, queue.getFailed());
+  }
+
+  @Test
+  public void testFailuresAreRetried() throws Exception {
+    final AtomicInteger failures = new AtomicInteger(2);
+    RecordingRouter router = new RecordingRouter() {
+      @Override
+      void route(RoutingJob job) {
+        if (job.activityPath.endsWith("/4") && failures.getAndDecrement() > 0) {
+          throw new IllegalStateException("router failed");
+        }
+        super.route(job);
+      }
+    };
+    router.release.countDown();
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(10, 5, 3, 10, router);
+    queue.start();
+    for (int i = 0; i < 5; i++) {
+      assertTrue(queue.offer(job(i)));
+    }
+    for (int i = 0; i < 100 && queue.getRoutedInBackground() < 5; i++) {
+      Thread.sleep(50);
+    }
+    queue.stop();
+    assertEquals(5, queue.getRoutedInBackground());
+    assertEquals(2, queue.getRetried());
+    assertEquals(0, queue.getFailed());
+  }
+
+  @Test
+  public void testStopRetriesWithoutWaiting() throws Exception {
+    RecordingRouter router = new RecordingRouter() {
+      @Override
+      void route(RoutingJob job) {
+        throw new IllegalStateException("router failed");
+      }
+    };
+    router.release.countDown();
+    ActivityRoutingQueue queue = new ActivityRoutingQueue(10, 5, 3, 60000, router);
+    queue.start();
+    assertTrue(queue.offer(job(0)));
+    for (int i = 0; i < 100 && queue.getRetried() == 0; i++) {
+      Thread.sleep(50);
+    }
+    long start = System.currentTimeMillis();
+    queue.stop();
+    assertTrue(System.currentTimeMillis() - start < 30000L);
+    assertEquals(2, queue.getRetried());
+    assertEquals(1, queue.getFailed());
+    assertEquals(3, queue.getBatches());
+  }
+}
@@ -0,0 +1,149 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionManager;
+import org.sakaiproject.nakamura.api.connections.ConnectionState;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ActivityServiceImplTest {
+
+  private ActivityServiceImpl activityService;
+  private Session session;
+  private Session adminSession;
+
+  @Before
+  public void setUp() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.exists(anyString())).thenReturn(true);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) {
+        return new Content((String) invocation.getArguments()[0],
+            ImmutableMap.<String, Object> of());
+      }
+    });
+    AccessControlManager accessControlManager = mock(AccessControlManager.class);
+    session = mock(Session.class);
+    when(session.getUserId()).thenReturn("alice");
+    when(session.getContentManager()).thenReturn(contentManager);
+    when(session.getAccessControlManager()).thenReturn(accessControlManager);
+    adminSession = mock(Session.class);
+    when(adminSession.getContentManager()).thenReturn(contentManager);
+    when(adminSession.getAccessControlManager()).thenReturn(accessControlManager);
+
+    activityService = new ActivityServiceImpl();
+    activityService.repository = mock(Repository.class);
+    when(activityService.repository.loginAdministrative()).thenReturn(adminSession);
+    activityService.eventAdmin = mock(EventAdmin.class);
+    activityService.activityRouterManager = mock(ActivityRouterManager.class);
+    when(
+        activityService.activityRouterManager.getActivityRoutes(any(Content.class),
+            eq(adminSession))).thenReturn(Collections.<ActivityRoute> emptyList());
+    activityService.connectionManager = mock(ConnectionManager.class);
+    activityService.activate(ImmutableMap.<String, Object> of(
+        ActivityServiceImpl.SYNC_THRESHOLD, 2));
+  }
+
+  @After
+  public void tearDown() {
+    activityService.deactivate();
+  }
+
+  private void connect(int connections) {
+    List<String> connected = new ArrayList<String>();
+    for (int i = 0; i < connections; i++) {
+      connected.add("user" + i);
+    }
+    when(
+        activityService.connectionManager.getConnectedUsers(any(Session.class),
+            eq("alice"), eq(ConnectionState.ACCEPTED))).thenReturn(connected);
+  }
+
+  private ActivityServiceCallback callback() {
+    return new ActivityServiceCallback() {
+      public void processRequest(Content activtyNode) {
+      }
+    };
+  }
+
+  @Test
+  public void testSmallFanOutIsRoutedInline() throws Exception {
+    connect(2);
+    // the connections are not known yet, so they are counted in the background.
+    activityService.createActivity(session, new Content("/p/item", null), null, callback());
+    ActivityRoutingQueueMBean statistics = activityService.getRoutingStatistics();
+    assertEquals(0, statistics.getRoutedInline());
+    assertEquals(1, statistics.getQueued());
+    for (int i = 0; i < 100 && statistics.getRoutedInBackground() == 0; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, statistics.getRoutedInBackground());
+    verify(activityService.eventAdmin).postEvent(any(Event.class));
+
+    activityService.createActivity(session, new Content("/p/item", null), null, callback());
+    assertEquals(1, statistics.getRoutedInline());
+    assertEquals(1, statistics.getQueued());
+    // routed, and so announced, before the request returns.
+    verify(activityService.eventAdmin, times(2)).postEvent(any(Event.class));
+    // the request thread never counts connections.
+    verify(activityService.connectionManager, never()).getConnectedUsers(eq(session),
+        anyString(), any(ConnectionState.class));
+  }
+
+  @Test
+  public void testLargeFanOutIsQueued() throws Exception {
+    connect(3);
+    activityService.createActivity(session, new Content("/p/item", null), null, callback());
+    ActivityRoutingQueueMBean statistics = activityService.getRoutingStatistics();
+    assertEquals(0, statistics.getRoutedInline());
+    assertEquals(1, statistics.getQueued());
+    // routed in the background, at the latest when the queue is stopped.
+    activityService.deactivate();
+    assertEquals(1, statistics.getRoutedInBackground());
+    verify(activityService.eventAdmin).postEvent(any(Event.class));
+  }
+}
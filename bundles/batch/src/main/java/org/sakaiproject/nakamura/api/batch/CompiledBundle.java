@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.batch;
+
+import org.sakaiproject.nakamura.util.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * JSON that has been serialized once so it can be written out as is. The ETag is a hash
+ * of the content, so it only changes when the content does.
+ */
+public class CompiledBundle implements Serializable {
+
+  private static final long serialVersionUID = 2916409524530318113L;
+
+  private final byte[] content;
+  private final String etag;
+
+  /**
+   * @param json
+   *          the serialized JSON.
+   */
+  public CompiledBundle(String json) {
+    try {
+      this.content = json.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+    this.etag = hash(content);
+  }
+
+  /**
+   * @return the JSON as UTF-8. The array is shared, do not modify it.
+   */
+  public byte[] getContent() {
+    return content;
+  }
+
+  /**
+   * @return a quoted ETag for the content.
+   */
+  public String getETag() {
+    return etag;
+  }
+
+  public int getLength() {
+    return content.length;
+  }
+
+  /**
+   * @return the JSON.
+   */
+  public String getJson() {
+    try {
+      return new String(content, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(content);
+  }
+
+  private static String hash(byte[] b) {
+    try {
+      return '"' + StringUtils.byteToHex(MessageDigest.getInstance("SHA-1").digest(b)) + '"';
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -55,6 +55,32 @@ public interface WidgetService {
    */
   public ValueMap getWidget(String path, Locale locale, ResourceResolver resolver);
 
+  /**
+   * @param resolver
+   *          A {@link ResourceResolver} that can be used to retrieve widgets.
+   * @return The widget configs serialized as a JSON object keyed by widget name, as
+   *         returned by {@link #getWidgetConfigs(ResourceResolver)}.
+   */
+  public CompiledBundle getCompiledWidgetConfigs(ResourceResolver resolver);
+
+  /**
+   * The widget files and locale bundles serialized as JSON, as returned by
+   * {@link #getWidget(String, Locale, ResourceResolver)}.
+   * 
+   * @param path
+   *          The path to the widget.
+   * @param locale
+   *          The locale that should be outputted. If this is null, the system's default
+   *          locale will be used.
+   * @param resolver
+   *          A ResourceResolver that can be used to retrieve all the widget files.
+   * @return The serialized widget.
+   * @throws IllegalArgumentException
+   *           if the path is not a valid widget.
+   */
+  public CompiledBundle getCompiledWidget(String path, Locale locale,
+      ResourceResolver resolver);
+
   /**
    * When a resource changes (either on disk or in JCR) this method should be called. This
    * will ensure that the cache is kept up to date.
@@ -17,19 +17,28 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceNotFoundException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.util.RequestInfo;
@@ -39,6 +48,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
@@ -47,22 +57,101 @@ import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
-@Component()
+/**
+ * Executes batched requests.
+ * <p>
+ * By default the requests are executed one after another and the whole result is
+ * written once they have all completed. A batch that only contains safe requests may
+ * instead be executed in parallel: the requests run concurrently on a shared, bounded
+ * pool of threads and each result is streamed to the client, in the order of the
+ * batch, as soon as it and all those before it are complete. In that mode the body of
+ * a result that is already JSON is embedded as JSON rather than as an escaped string.
+ */
+@Component(metatype = true)
 @Service(value = BatchHelper.class)
 public class BatchHelper {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(BatchHelper.class);
 
+  @Property(intValue = 16, description = "The number of threads shared by all batches executed in parallel, 0 to always execute batches one request at a time.")
+  static final String PARALLEL_THREADS = "sakai.batch.parallel.threads";
+
+  @Property(intValue = 4, description = "The maximum number of requests of a single batch that are executed at the same time.")
+  static final String PARALLEL_CONCURRENCY = "sakai.batch.parallel.concurrency";
+
   @Reference
   protected DynamicContentResponseCache dynamicContentResponseCache;
 
-    protected void batchRequest(SlingHttpServletRequest request,
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile SlingRequestProcessor slingRequestProcessor;
+
+  private ExecutorService executor;
+
+  private int concurrency;
+
+  @Activate @Modified
+  protected void activate(Map<?, ?> props) {
+    int threads = PropertiesUtil.toInteger(props.get(PARALLEL_THREADS), 16);
+    concurrency = Math.max(1, PropertiesUtil.toInteger(props.get(PARALLEL_CONCURRENCY), 4));
+    deactivate();
+    if (threads > 0) {
+      // no queue, when all the threads are busy the request thread runs the request itself.
+      executor = new ThreadPoolExecutor(0, threads, 60L, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+              Thread t = new Thread(r, "batch-" + count.incrementAndGet());
+              t.setDaemon(true);
+              return t;
+            }
+          }, new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+              // also when shut down, the request thread is waiting for the result.
+              r.run();
+            }
+          });
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  protected void batchRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, JSONArray requestsJSON, boolean allowModify, boolean useCache) throws IOException, ServletException {
+    batchRequest(request, response, requestsJSON, allowModify, useCache, false);
+  }
+
+  /**
+   * @param parallel
+   *          true if the batch may be executed in parallel, which is only done when all
+   *          the requests in it are safe.
+   */
+  protected void batchRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, JSONArray requestsJSON, boolean allowModify,
+      boolean useCache, boolean parallel) throws IOException, ServletException {
 
     // Grab the JSON block out of it and convert it to RequestData objects we can use.
 
@@ -74,6 +163,8 @@ public class BatchHelper {
         RequestInfo r = new RequestInfo(obj);
         if ( allowModify || r.isSafe() ) {
           batchedRequests.add(r);
+          // only batches that do not modify anything run in parallel
+          parallel = parallel && r.isSafe();
         } else {
           cacheEligible = false;
         }
@@ -101,6 +192,14 @@ public class BatchHelper {
       }
     }
 
+    ExecutorService parallelExecutor = executor;
+    SlingRequestProcessor processor = slingRequestProcessor;
+    if ( parallel && parallelExecutor != null && processor != null && batchedRequests.size() > 1 ) {
+      parallelBatchRequest(request, response, batchedRequests, cacheEligible,
+          parallelExecutor, processor);
+      return;
+    }
+
     // Loop over the requests and handle each one.
     try {
       StringWriter sw = new StringWriter();
@@ -127,6 +226,156 @@ public class BatchHelper {
     }
   }
 
+  private void parallelBatchRequest(SlingHttpServletRequest request,
+      SlingHttpServletResponse response, List<RequestInfo> batchedRequests,
+      boolean cacheEligible, ExecutorService parallelExecutor,
+      SlingRequestProcessor processor) throws IOException, ServletException {
+    // the headers, including the ETag, must be set before the first result is streamed.
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    if ( cacheEligible ) {
+      dynamicContentResponseCache.recordResponse("*", request, response);
+    }
+    int n = batchedRequests.size();
+    List<Future<ResponseWrapper>> results = new ArrayList<Future<ResponseWrapper>>(n);
+    int submitted = 0;
+    for (; submitted < n && submitted < concurrency; submitted++) {
+      results.add(submit(parallelExecutor, processor, request, response,
+          batchedRequests.get(submitted)));
+    }
+    PrintWriter writer = response.getWriter();
+    writer.write("{\"results\":[");
+    try {
+      for (int i = 0; i < n; i++) {
+        RequestInfo requestInfo = batchedRequests.get(i);
+        ResponseWrapper responseWrapper = null;
+        try {
+          responseWrapper = results.get(i).get();
+        } catch (ExecutionException e) {
+          LOGGER.warn("Batched request {} failed: {}", requestInfo.getUrl(), e.getCause()
+              .getMessage());
+        }
+        results.set(i, null);
+        // keep the batch at its concurrency limit.
+        if (submitted < n) {
+          results.add(submit(parallelExecutor, processor, request, response,
+              batchedRequests.get(submitted++)));
+        }
+        if (i > 0) {
+          writer.write(',');
+        }
+        if (responseWrapper == null) {
+          writeFailedRequest(new JSONWriter(writer), requestInfo);
+        } else {
+          streamResponse(writer, responseWrapper, requestInfo);
+        }
+        writer.flush();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (Future<ResponseWrapper> f : results) {
+        if (f != null) {
+          f.cancel(true);
+        }
+      }
+      throw new ServletException("Interrupted while executing batched requests", e);
+    } catch (JSONException e) {
+      LOGGER.warn("Failed to create a JSON response");
+      throw new ServletException("Failed to write JSON response", e);
+    }
+    writer.write("]}");
+    writer.flush();
+  }
+
+  private Future<ResponseWrapper> submit(ExecutorService parallelExecutor,
+      final SlingRequestProcessor processor, final SlingHttpServletRequest request,
+      final SlingHttpServletResponse response, final RequestInfo requestInfo) {
+    return parallelExecutor.submit(new Callable<ResponseWrapper>() {
+      public ResponseWrapper call() throws Exception {
+        return processRequest(processor, request, response, requestInfo);
+      }
+    });
+  }
+
+  /**
+   * Process a batched request as a request of its own, with its own resource resolver,
+   * so it can run concurrently with the other requests of the batch.
+   */
+  private ResponseWrapper processRequest(SlingRequestProcessor processor,
+      SlingHttpServletRequest request, SlingHttpServletResponse response,
+      RequestInfo requestInfo) throws IOException, ServletException {
+    if (User.ANON_USER.equals(request.getRemoteUser())) {
+      if (!"GET".equals(requestInfo.getMethod())) {
+        throw new ServletException("Anon Users may only perform GET operations");
+      }
+    }
+    ResponseWrapper responseWrapper = new ResponseWrapper(response);
+    ResourceResolver resourceResolver;
+    try {
+      resourceResolver = request.getResourceResolver().clone(null);
+    } catch (LoginException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+    try {
+      LOGGER.debug("Processing request path='{}' in parallel", requestInfo.getUrl());
+      processor.processRequest(new IsolatedRequestWrapper(request, requestInfo),
+          responseWrapper, resourceResolver);
+    } finally {
+      resourceResolver.close();
+    }
+    return responseWrapper;
+  }
+
+  private void streamResponse(PrintWriter writer, ResponseWrapper responseWrapper,
+      RequestInfo requestData) throws JSONException {
+    String body;
+    try {
+      body = responseWrapper.getDataAsString();
+    } catch (UnsupportedEncodingException e) {
+      writeFailedRequest(new JSONWriter(writer), requestData);
+      return;
+    }
+    writer.write("{\"url\":");
+    writer.write(JSONObject.quote(requestData.getUrl()));
+    writer.write(",\"success\":true,\"status\":");
+    writer.write(String.valueOf(responseWrapper.getResponseStatus()));
+    writer.write(",\"headers\":");
+    JSONWriter write = new JSONWriter(writer);
+    write.object();
+    Dictionary<String, String> headers = responseWrapper.getResponseHeaders();
+    Enumeration<String> keys = headers.keys();
+    while (keys.hasMoreElements()) {
+      String k = keys.nextElement();
+      write.key(k);
+      write.value(headers.get(k));
+    }
+    write.endObject();
+    writer.write(",\"body\":");
+    if (isJson(responseWrapper, body)) {
+      writer.write(body);
+    } else {
+      writer.write(JSONObject.quote(body));
+    }
+    writer.write('}');
+  }
+
+  /**
+   * @return true if the body is a JSON object or array, going by its content type.
+   */
+  private boolean isJson(ResponseWrapper responseWrapper, String body) {
+    String contentType = responseWrapper.getContentType();
+    if (contentType == null || !contentType.startsWith("application/json")) {
+      return false;
+    }
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        return c == '{' || c == '[';
+      }
+    }
+    return false;
+  }
+
   private void doRequest(SlingHttpServletRequest request,
       SlingHttpServletResponse response, RequestInfo requestInfo,
       JSONWriter write) throws JSONException, ServletException {
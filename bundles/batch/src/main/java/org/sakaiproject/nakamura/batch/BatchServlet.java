@@ -47,11 +47,19 @@ import javax.servlet.http.HttpServletResponse;
     methods = {
       @ServiceMethod(name = "POST",
         description = "Get multiple request responses into a single response. It can do GET, POST and DELETE everything is defined in the json block.",
-        parameters = @ServiceParameter(
-          name = "requests",
-          description = "A JSON string representing a request. <br />Example:" +
-            "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
-        ),
+        parameters = {
+          @ServiceParameter(
+            name = "requests",
+            description = "A JSON string representing a request. <br />Example:" +
+              "<pre>[{  \"url\" : \"/foo/bar\",  \"method\" : \"POST\",  \"parameters\" : {    \"val\" : 123,    \"val@TypeHint\" : \"Long\"  }},{  \"url\" : \"/~admin/public/authprofile.json\",  \"method\" : \"GET\"}]</pre>"
+          ),
+          @ServiceParameter(
+            name = "parallel",
+            description = "If true and all the requests are GET or HEAD requests, the requests are executed in parallel " +
+              "and the results are streamed as they complete, in the order of the requests. In this mode the body " +
+              "of a result with a content type of application/json is a JSON value rather than a string."
+          )
+        },
         response = {
           @ServiceResponse(code = 200,
             description = {
@@ -73,6 +81,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
   protected static final String REQUESTS_PARAMETER = "requests";
 
+  protected static final String PARALLEL_PARAMETER = "parallel";
+
   @Reference
   BatchHelper helper;
 
@@ -144,7 +154,8 @@ public class BatchServlet extends SlingAllMethodsServlet {
 
     try {
       JSONArray requests = new JSONArray(json);
-      helper.batchRequest(request, response, requests, allowModify, true);
+      boolean parallel = Boolean.parseBoolean(request.getParameter(PARALLEL_PARAMETER));
+      helper.batchRequest(request, response, requests, allowModify, true, parallel);
     } catch (JSONException e) {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,
           "Failed to parse the " + REQUESTS_PARAMETER + " parameter");
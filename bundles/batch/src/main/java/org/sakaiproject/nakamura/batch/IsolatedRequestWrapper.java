@@ -0,0 +1,99 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.batch;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.sakaiproject.nakamura.util.RequestInfo;
+import org.sakaiproject.nakamura.util.RequestWrapper;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A batched request that is processed as a request of its own rather than forwarded.
+ * It keeps its own request attributes, so batched requests that are processed
+ * concurrently do not write to the attributes of the batch request they share.
+ * Attributes of the batch request are still visible until they are overwritten.
+ */
+class IsolatedRequestWrapper extends RequestWrapper {
+
+  private static final Object REMOVED = new Object();
+  private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+  IsolatedRequestWrapper(SlingHttpServletRequest request, RequestInfo requestInfo) {
+    super(request, requestInfo);
+  }
+
+  /**
+   * {@inheritDoc}
+   * The path is resolved from the path info, which must not contain the query string.
+   *
+   * @see org.sakaiproject.nakamura.util.RequestWrapper#getPathInfo()
+   */
+  @Override
+  public String getPathInfo() {
+    return getPathTranslated();
+  }
+
+  @Override
+  public Object getAttribute(String name) {
+    Object value = attributes.get(name);
+    if (value == REMOVED) {
+      return null;
+    }
+    if (value == null) {
+      return super.getAttribute(name);
+    }
+    return value;
+  }
+
+  @Override
+  public void setAttribute(String name, Object o) {
+    if (o == null) {
+      removeAttribute(name);
+    } else {
+      attributes.put(name, o);
+    }
+  }
+
+  @Override
+  public void removeAttribute(String name) {
+    attributes.put(name, REMOVED);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Enumeration<String> getAttributeNames() {
+    Set<String> names = new HashSet<String>();
+    for (Enumeration<String> e = super.getAttributeNames(); e.hasMoreElements();) {
+      names.add(e.nextElement());
+    }
+    for (Map.Entry<String, Object> e : attributes.entrySet()) {
+      if (e.getValue() == REMOVED) {
+        names.remove(e.getKey());
+      } else {
+        names.add(e.getKey());
+      }
+    }
+    return Collections.enumeration(names);
+  }
+}
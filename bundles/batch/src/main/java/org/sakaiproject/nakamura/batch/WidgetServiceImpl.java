@@ -19,17 +19,23 @@ package org.sakaiproject.nakamura.batch;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.NonExistingResource;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.tika.metadata.Metadata;
+import org.sakaiproject.nakamura.api.batch.CompiledBundle;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
@@ -37,6 +43,7 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.tika.TikaService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.IOUtils;
+import org.sakaiproject.nakamura.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +57,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 @Component(metatype = true)
@@ -66,12 +81,18 @@ public class WidgetServiceImpl implements WidgetService {
   static final String WIDGET_FOLDERS = "sakai.batch.widgets.widget_folders";
   private List<String> widgetFolders;
 
+  @Property(intValue = 4, description = "The number of threads that compile all the widgets when the service starts, 0 compiles widgets when they are first requested.")
+  static final String WIDGET_WARM_THREADS = "sakai.batch.widgets.warm_threads";
+
   @Reference
   protected CacheManagerService cacheManagerService;
 
   @Reference
   protected TikaService tikaService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ResourceResolverFactory resourceResolverFactory;
+
   /**
    * The name for the cache that holds all the HTML, CSS, .. files for widgets
    */
@@ -84,11 +105,36 @@ public class WidgetServiceImpl implements WidgetService {
   static final String CACHE_NAME_WIDGET_CONFIGS = WidgetServiceImpl.class.getName()
       + "_configs";
 
+  /**
+   * The name for the cache that holds the serialized widgets, keyed by widget path and
+   * then by locale.
+   */
+  static final String CACHE_NAME_COMPILED_WIDGETS = WidgetServiceImpl.class.getName()
+      + "_compiled";
+
+  /**
+   * The name for the cache that holds the serialized widget configs.
+   */
+  static final String CACHE_NAME_COMPILED_CONFIGS = WidgetServiceImpl.class.getName()
+      + "_compiled_configs";
+
+  static final String COMPILED_CONFIGS_KEY = "widgets.json";
+
   private static final Logger LOGGER = LoggerFactory.getLogger(WidgetServiceImpl.class);
 
   private List<String> skipDirectories;
   private List<String> validMimetypes;
 
+  /**
+   * Paths of the widgets whose config changed since the configs were cached.
+   */
+  private final Set<String> staleWidgets = new ConcurrentSkipListSet<String>();
+  /**
+   * Incremented on every change, so a widget compiled while it changed is not kept.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private ExecutorService warmer;
+
   @Activate @Modified
   protected void activate(Map<?, ?> props) {
     String[] names = PropertiesUtil
@@ -97,13 +143,29 @@ public class WidgetServiceImpl implements WidgetService {
         new String[0]);
     String[] folders = PropertiesUtil.toStringArray(props.get(WIDGET_FOLDERS), new String[0]);
 
+    int warmThreads = PropertiesUtil.toInteger(props.get(WIDGET_WARM_THREADS), 4);
+
     skipDirectories = Arrays.asList(names);
     validMimetypes = Arrays.asList(types);
     widgetFolders = Arrays.asList(folders);
 
     // clear the cache so changes in widgetFolders et al are picked up
+    generation.incrementAndGet();
+    staleWidgets.clear();
     cacheManagerService.getCache(CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE).clear();
     cacheManagerService.getCache(CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE).clear();
+    cacheManagerService.getCache(CACHE_NAME_COMPILED_WIDGETS, CacheScope.INSTANCE).clear();
+    cacheManagerService.getCache(CACHE_NAME_COMPILED_CONFIGS, CacheScope.INSTANCE).clear();
+
+    stopWarming();
+    if (warmThreads > 0 && resourceResolverFactory != null) {
+      warmWidgets(warmThreads);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    stopWarming();
   }
 
   /**
@@ -153,25 +215,118 @@ public class WidgetServiceImpl implements WidgetService {
 
     try {
       // There is nothing in the cache, create it and put it in there.
+      ValueMap map = new JsonValueMap(getCompiledWidget(path, locale, resolver).getJson());
+
+      // Put the map in the cache.
+      widgetCache.put(locale.toString(), map);
+      cache.put(widgetName, widgetCache);
+
+      return map;
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse this widget to JSON.");
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getCompiledWidget(java.lang.String,
+   *      java.util.Locale, org.apache.sling.api.resource.ResourceResolver)
+   */
+  public CompiledBundle getCompiledWidget(String path, Locale locale,
+      ResourceResolver resolver) {
+    if (path == null) {
+      throw new IllegalArgumentException("The path cannot be null.");
+    }
+    if (resolver == null) {
+      throw new IllegalArgumentException("The resource resolver cannot be null.");
+    }
+    if (locale == null) {
+      locale = Locale.getDefault();
+    }
+
+    // Read before the cache, so an invalidation after the cached bundles were read
+    // stops them being put back below.
+    long compiledAt = generation.get();
+    // Only valid widgets are compiled, so a widget in the cache does not need to be
+    // checked again.
+    Cache<Map<String, CompiledBundle>> cache = cacheManagerService.getCache(
+        CACHE_NAME_COMPILED_WIDGETS, CacheScope.INSTANCE);
+    Map<String, CompiledBundle> bundles = cache.get(path);
+    if (bundles != null) {
+      CompiledBundle bundle = bundles.get(locale.toString());
+      if (bundle != null) {
+        return bundle;
+      }
+    }
+
+    Resource resource = resolver.getResource(path);
+    if (!checkValidWidget(resource)) {
+      throw new IllegalArgumentException(
+          "The provided path does not point to a valid widget.");
+    }
+
+    try {
       StringWriter sw = new StringWriter();
       ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
       writer.object();
       outputWidget(resource, writer, locale);
       writer.endObject();
       sw.flush();
-      String content = sw.toString();
-      ValueMap map = new JsonValueMap(content);
+      CompiledBundle bundle = new CompiledBundle(sw.toString());
 
-      // Put the map in the cache.
-      widgetCache.put(locale.toString(), map);
-      cache.put(widgetName, widgetCache);
-
-      return map;
+      // The map is replaced rather than modified as other threads may be reading it.
+      Map<String, CompiledBundle> updated = new HashMap<String, CompiledBundle>();
+      if (bundles != null) {
+        updated.putAll(bundles);
+      }
+      updated.put(locale.toString(), bundle);
+      cache.put(path, updated);
+      if (generation.get() != compiledAt) {
+        // The widget may have changed while it was compiled.
+        cache.remove(path);
+      }
+      return bundle;
     } catch (JSONException e) {
       throw new RuntimeException("Could not parse this widget to JSON.");
     }
   }
 
+  /**
+   * {@inheritDoc}
+   * 
+   * @see org.sakaiproject.nakamura.api.batch.WidgetService#getCompiledWidgetConfigs(org.apache.sling.api.resource.ResourceResolver)
+   */
+  public CompiledBundle getCompiledWidgetConfigs(ResourceResolver resolver) {
+    long compiledAt = generation.get();
+    Cache<CompiledBundle> cache = cacheManagerService.getCache(
+        CACHE_NAME_COMPILED_CONFIGS, CacheScope.INSTANCE);
+    CompiledBundle bundle = cache.get(COMPILED_CONFIGS_KEY);
+    if (bundle != null) {
+      return bundle;
+    }
+
+    try {
+      StringWriter sw = new StringWriter();
+      ExtendedJSONWriter writer = new ExtendedJSONWriter(sw);
+      writer.object();
+      for (Entry<String, ValueMap> entry : getWidgetConfigs(resolver).entrySet()) {
+        writer.key(entry.getKey());
+        writer.valueMap(entry.getValue());
+      }
+      writer.endObject();
+      sw.flush();
+      bundle = new CompiledBundle(sw.toString());
+      cache.put(COMPILED_CONFIGS_KEY, bundle);
+      if (generation.get() != compiledAt) {
+        cache.remove(COMPILED_CONFIGS_KEY);
+      }
+      return bundle;
+    } catch (JSONException e) {
+      throw new RuntimeException("Could not parse the widget configs to JSON.");
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -183,9 +338,13 @@ public class WidgetServiceImpl implements WidgetService {
         CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
     Map<String, ValueMap> configs = cache.get("configs");
     if (configs != null) {
-      // There is something in here, return it.
-      return configs;
+      if (staleWidgets.isEmpty()) {
+        // There is something in here, return it.
+        return configs;
+      }
+      return refreshWidgetConfigs(resolver, cache);
     }
+    staleWidgets.clear();
 
     // We will store all the found widgets in this map.
     // The key will be the name of widget.
@@ -218,8 +377,10 @@ public class WidgetServiceImpl implements WidgetService {
     // Invalidate the files cache.
     // Find the name of the widget.
     String widget = null;
+    String widgetFolder = null;
     for (String folder : getWidgetFolders()) {
       if (!path.equals(folder) && path.startsWith(folder)) {
+        widgetFolder = folder;
         widget = path.substring(folder.length() + 1);
         int lastIndex = widget.indexOf("/");
         if (lastIndex != -1) {
@@ -228,7 +389,16 @@ public class WidgetServiceImpl implements WidgetService {
         break;
       }
     }
+    generation.incrementAndGet();
+    cacheManagerService.getCache(CACHE_NAME_COMPILED_CONFIGS, CacheScope.INSTANCE).remove(
+        COMPILED_CONFIGS_KEY);
     if (widget != null) {
+      String widgetPath = widgetFolder + "/" + widget;
+      cacheManagerService.getCache(CACHE_NAME_COMPILED_WIDGETS, CacheScope.INSTANCE).remove(
+          widgetPath);
+      // Only the config of this widget needs to be read again.
+      staleWidgets.add(widgetPath);
+
       // Get the cache for this widget.
       Cache<Map<String, ValueMap>> cache = cacheManagerService.getCache(
           CACHE_NAME_WIDGET_FILES, CacheScope.INSTANCE);
@@ -242,12 +412,12 @@ public class WidgetServiceImpl implements WidgetService {
         }
         cache.remove(widget);
       }
+    } else {
+      // Invalidate the configs cache.
+      Cache<Map<String, ValueMap>> configCache = cacheManagerService.getCache(
+          CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
+      configCache.clear();
     }
-
-    // Invalidate the configs cache.
-    Cache<Map<String, ValueMap>> configCache = cacheManagerService.getCache(
-        CACHE_NAME_WIDGET_CONFIGS, CacheScope.INSTANCE);
-    configCache.clear();
   }
 
   // --- Implementation
@@ -477,23 +647,156 @@ public class WidgetServiceImpl implements WidgetService {
       // List all the subfolders (these should all be widgets.)
       Iterator<Resource> widgets = folderResource.listChildren();
       while (widgets.hasNext()) {
-        Resource widget = widgets.next();
-        String widgetName = widget.getName();
-        // Get the config for this widget.
-        // If none is found or isn't valid JSON then it is ignored.
-        String configPath = widget.getPath() + "/config.json";
-        Resource config = resolver.getResource(configPath);
-        if (config != null && !(config instanceof NonExistingResource)) {
-          // Try to parse it to JSON.
-          try {
-            InputStream stream = config.adaptTo(InputStream.class);
-            JsonValueMap map = new JsonValueMap(stream);
-            validWidgets.put(widgetName, map);
-          } catch (Exception e) {
-            LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
+        processWidget(widgets.next(), resolver, validWidgets);
+      }
+    }
+  }
+
+  /**
+   * Places the config of a widget in the validWidgets map, if it has a valid json config.
+   */
+  protected void processWidget(Resource widget, ResourceResolver resolver,
+      Map<String, ValueMap> validWidgets) {
+    String widgetName = widget.getName();
+    // Get the config for this widget.
+    // If none is found or isn't valid JSON then it is ignored.
+    String configPath = widget.getPath() + "/config.json";
+    Resource config = resolver.getResource(configPath);
+    if (config != null && !(config instanceof NonExistingResource)) {
+      // Try to parse it to JSON.
+      try {
+        InputStream stream = config.adaptTo(InputStream.class);
+        JsonValueMap map = new JsonValueMap(stream);
+        validWidgets.put(widgetName, map);
+      } catch (Exception e) {
+        LOGGER.warn("Exception when trying to parse the 'config.json' for {}, Error Message {} ", widgetName, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Reads the config of the widgets that changed again, rather than every widget.
+   */
+  private Map<String, ValueMap> refreshWidgetConfigs(ResourceResolver resolver,
+      Cache<Map<String, ValueMap>> cache) {
+    synchronized (staleWidgets) {
+      Map<String, ValueMap> configs = cache.get("configs");
+      if (configs == null) {
+        return getWidgetConfigs(resolver);
+      }
+      // The map is replaced rather than modified as other threads may be reading it.
+      Map<String, ValueMap> refreshed = new HashMap<String, ValueMap>(configs);
+      for (Iterator<String> i = staleWidgets.iterator(); i.hasNext();) {
+        String widgetPath = i.next();
+        i.remove();
+        refreshed.remove(widgetPath.substring(widgetPath.lastIndexOf('/') + 1));
+        Resource widget = resolver.getResource(widgetPath);
+        if (widget != null && !(widget instanceof NonExistingResource)) {
+          processWidget(widget, resolver, refreshed);
+        }
+      }
+      cache.put("configs", refreshed);
+      return refreshed;
+    }
+  }
+
+  /**
+   * Compiles the widget configs and every widget, in each of the locales it has a bundle
+   * for, in the background.
+   */
+  private synchronized void warmWidgets(int threads) {
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "widget-warmer-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    warmer = executor;
+    executor.execute(new Runnable() {
+      public void run() {
+        ResourceResolver resolver = null;
+        try {
+          resolver = getAdministrativeResourceResolver();
+          if (resolver == null) {
+            return;
+          }
+          getCompiledWidgetConfigs(resolver);
+          for (String folder : widgetFolders) {
+            Resource folderResource = resolver.getResource(folder);
+            if (folderResource == null || folderResource instanceof NonExistingResource) {
+              continue;
+            }
+            Iterator<Resource> widgets = folderResource.listChildren();
+            while (widgets.hasNext()) {
+              final String path = widgets.next().getPath();
+              executor.execute(new Runnable() {
+                public void run() {
+                  warmWidget(path);
+                }
+              });
+            }
           }
+        } catch (Exception e) {
+          LOGGER.warn("Failed to compile the widgets {} ", e.getMessage());
+        } finally {
+          if (resolver != null) {
+            resolver.close();
+          }
+          // the widgets queued so far are still compiled.
+          executor.shutdown();
         }
       }
+    });
+  }
+
+  private void warmWidget(String path) {
+    ResourceResolver resolver = null;
+    try {
+      resolver = getAdministrativeResourceResolver();
+      if (resolver == null) {
+        return;
+      }
+      Resource widget = resolver.getResource(path);
+      if (!checkValidWidget(widget)) {
+        return;
+      }
+      getCompiledWidget(path, null, resolver);
+      Resource bundles = resolver.getResource(path + "/bundles");
+      if (bundles == null || bundles instanceof NonExistingResource) {
+        return;
+      }
+      Iterator<Resource> children = bundles.listChildren();
+      while (children.hasNext()) {
+        String name = children.next().getName();
+        if (name.endsWith(".properties") && !name.startsWith("default.")) {
+          String[] l = StringUtils.split(name.substring(0, name.length()
+              - ".properties".length()), '_');
+          Locale locale = l.length > 1 ? new Locale(l[0], l[1]) : new Locale(l[0]);
+          getCompiledWidget(path, locale, resolver);
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.warn("Failed to compile the widget {} {} ", path, e.getMessage());
+    } finally {
+      if (resolver != null) {
+        resolver.close();
+      }
+    }
+  }
+
+  private ResourceResolver getAdministrativeResourceResolver() throws LoginException {
+    ResourceResolverFactory factory = resourceResolverFactory;
+    return factory == null ? null : factory.getAdministrativeResourceResolver(null);
+  }
+
+  private synchronized void stopWarming() {
+    if (warmer != null) {
+      warmer.shutdownNow();
+      warmer = null;
     }
   }
 
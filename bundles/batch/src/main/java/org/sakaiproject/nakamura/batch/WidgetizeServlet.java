@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.CompiledBundle;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -36,7 +35,6 @@ import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.io.IOException;
@@ -70,6 +68,7 @@ import javax.servlet.http.HttpServletResponse;
               "Widget files",
               "The servlet will walk down the tree and try to get the content of each resource. It will then try to get the mime type of this file. If the mime type is in the list of allowed mime types it will be outputted. This list can be modified in the Felix admin console."
             }),
+          @ServiceResponse(code = 304, description = "The client presented the current ETag of the widget in If-None-Match."),
           @ServiceResponse(code = 403, description = "The resource where this action is performed on is not a valid widget.")
         })
     })
@@ -103,9 +102,9 @@ public class WidgetizeServlet extends SlingSafeMethodsServlet {
     }
 
     // Get the values.
-    ValueMap map = null;
+    CompiledBundle bundle = null;
     try {
-      map = widgetService.getWidget(path, locale, resolver);
+      bundle = widgetService.getCompiledWidget(path, locale, resolver);
     } catch (IllegalArgumentException e) {
       response.sendError(HttpServletResponse.SC_FORBIDDEN,
           "The current resource is not a widget.");
@@ -115,13 +114,14 @@ public class WidgetizeServlet extends SlingSafeMethodsServlet {
     // Make sure that we're outputting proper json.
     response.setContentType("application/json");
     response.setCharacterEncoding("UTF-8");
-
-    // Output all the widget info.
-    try {
-      ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
-      writer.valueMap(map);
-    } catch (JSONException e) {
-      throw new ServletException("Could not output proper JSON.", e);
+    response.setHeader("ETag", bundle.getETag());
+    if (bundle.getETag().equals(request.getHeader("If-None-Match"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
     }
+
+    // Output all the widget info, it has already been serialized.
+    response.setContentLength(bundle.getLength());
+    bundle.writeTo(response.getOutputStream());
   }
 }
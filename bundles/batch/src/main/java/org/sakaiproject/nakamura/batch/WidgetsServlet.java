@@ -24,9 +24,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
-import org.apache.sling.commons.json.JSONException;
+import org.sakaiproject.nakamura.api.batch.CompiledBundle;
 import org.sakaiproject.nakamura.api.batch.WidgetService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
@@ -34,14 +33,11 @@ import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
 import org.sakaiproject.nakamura.api.doc.ServiceMethod;
 import org.sakaiproject.nakamura.api.doc.ServiceParameter;
 import org.sakaiproject.nakamura.api.doc.ServiceResponse;
-import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.io.OutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
@@ -64,6 +60,7 @@ import javax.servlet.http.HttpServletResponse;
               "This servlet will only check the pre-configured locations. These can be modified in the felix admin console panel. The folder should be the top level folder that contains the widgets. Each sub-folder should represent a widget and should contain a 'config.json' file.",
               "In the JSON response, each key represents a widget name and will have the content of the 'config.json' file outputted in it."
               }),
+          @ServiceResponse(code = 304, description = "The client presented the current ETag of the widget list in If-None-Match."),
           @ServiceResponse(code = 500, description = "The servlet is unable to produce a proper JSON output.")
           })
     })
@@ -89,41 +86,40 @@ public class WidgetsServlet extends SlingSafeMethodsServlet {
     // FsResource)
     ResourceResolver resolver = request.getResourceResolver();
 
-    // We will store all the found widgets in this map.
-    // The key will be the name of widget.
-    Map<String, ValueMap> validWidgets = widgetService.getWidgetConfigs(resolver);
+    // All the found widgets, serialized as an object keyed by the name of the widget.
+    CompiledBundle validWidgets;
+    try {
+      validWidgets = widgetService.getCompiledWidgetConfigs(resolver);
+    } catch (RuntimeException e) {
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to construct proper JSON.");
+      LOGGER.error("Failed to construct proper JSON.", e);
+      return;
+    }
 
     // Depending on the parameter 'callback' we send out json or json-p.
     RequestParameter callbackParam = request.getRequestParameter("callback");
 
     response.setCharacterEncoding("UTF-8");
-    PrintWriter printWriter = response.getWriter();
 
     if (callbackParam != null) {
       response.setContentType("application/javascript");
-      printWriter.append(callbackParam.getString("UTF-8"));
-      printWriter.append("(");
+      OutputStream out = response.getOutputStream();
+      out.write(callbackParam.getString("UTF-8").getBytes("UTF-8"));
+      out.write('(');
+      validWidgets.writeTo(out);
+      out.write(')');
+      out.write(';');
     } else {
       // Ensure that we're sending out proper json.
       response.setContentType("application/json");
-    }
-
-    // Write the whole map
-    ExtendedJSONWriter writer = new ExtendedJSONWriter(printWriter);
-    try {
-      writer.object();
-      for (Entry<String, ValueMap> entry : validWidgets.entrySet()) {
-        writer.key(entry.getKey());
-        writer.valueMap(entry.getValue());
-      }
-      writer.endObject();
-      if (callbackParam != null) {
-        printWriter.append(");");
+      response.setHeader("ETag", validWidgets.getETag());
+      if (validWidgets.getETag().equals(request.getHeader("If-None-Match"))) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
       }
-    } catch (JSONException e) {
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "Failed to construct proper JSON.");
-      LOGGER.error("Failed to construct proper JSON.", e);
+      response.setContentLength(validWidgets.getLength());
+      validWidgets.writeTo(response.getOutputStream());
     }
 
   }
@@ -31,6 +31,7 @@ import org.mockito.MockitoAnnotations;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.tika.TikaService;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -42,6 +43,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.servlet.ServletOutputStream;
+
 /**
  *
  */
@@ -61,6 +64,7 @@ public abstract class AbstractWidgetServletTest {
   protected String path;
   protected StringWriter stringWriter;
   protected PrintWriter printWriter;
+  protected ByteArrayOutputStream outputStream;
   protected WidgetServiceImpl widgetService;
 
   public void setUp() throws Exception {
@@ -89,12 +93,27 @@ public abstract class AbstractWidgetServletTest {
     stringWriter = new StringWriter();
     printWriter = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(printWriter);
+    outputStream = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        outputStream.write(b);
+      }
+    });
 
     // Mock all the test resources as "Sling Resources".
     File file = new File(getClass().getResource("/widgets").toURI());
     mockResource("/widgets", file);
   }
 
+  /**
+   * @return everything written to the response.
+   */
+  protected String getResponseContent() throws IOException {
+    printWriter.flush();
+    return stringWriter.toString() + outputStream.toString("UTF-8");
+  }
+
   /**
    *
    */
@@ -17,6 +17,10 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -26,13 +30,21 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.engine.SlingRequestProcessor;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashMap;
+
+import javax.servlet.http.HttpServletRequest;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
@@ -83,4 +95,55 @@ public class BatchServletTest {
     servlet.doPost(request, response);
   }
 
+  @Test
+  public void testParallelRequest() throws Exception {
+    String json = "[{\"url\" : \"/a.json\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/b.txt\",\"method\" : \"GET\"},"
+        + "{\"url\" : \"/c.json\",\"method\" : \"GET\"}]";
+    when(request.getParameter(REQUESTS_PARAMETER)).thenReturn(json);
+    when(request.getParameter("parallel")).thenReturn("true");
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(request.getResourceResolver()).thenReturn(resourceResolver);
+    when(resourceResolver.clone(null)).thenReturn(mock(ResourceResolver.class));
+
+    SlingRequestProcessor processor = mock(SlingRequestProcessor.class);
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        String path = ((HttpServletRequest) invocation.getArguments()[0]).getPathInfo();
+        SlingHttpServletResponse sub = (SlingHttpServletResponse) invocation
+            .getArguments()[1];
+        if (path.endsWith(".json")) {
+          // finish out of order
+          Thread.sleep(path.startsWith("/a") ? 50 : 0);
+          sub.setContentType("application/json");
+          sub.getWriter().write("{\"path\":\"" + path + "\"}");
+        } else {
+          sub.setContentType("text/plain");
+          sub.getWriter().write("plain");
+        }
+        return null;
+      }
+    }).when(processor).processRequest(any(HttpServletRequest.class),
+        any(SlingHttpServletResponse.class), any(ResourceResolver.class));
+    servlet.helper.slingRequestProcessor = processor;
+    servlet.helper.activate(new HashMap<String, Object>());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter writer = new PrintWriter(baos);
+    when(response.getWriter()).thenReturn(writer);
+    servlet.doPost(request, response);
+    servlet.helper.deactivate();
+    writer.flush();
+
+    JSONArray results = new JSONObject(baos.toString("UTF-8")).getJSONArray("results");
+    assertEquals(3, results.length());
+    assertEquals("/a.json", results.getJSONObject(0).getString("url"));
+    // JSON bodies are embedded, others are strings
+    assertEquals("/a.json", results.getJSONObject(0).getJSONObject("body").getString("path"));
+    assertEquals("plain", results.getJSONObject(1).getString("body"));
+    assertEquals("/c.json", results.getJSONObject(2).getJSONObject("body").getString("path"));
+    assertTrue(results.getJSONObject(2).getBoolean("success"));
+    verify(servlet.helper.dynamicContentResponseCache).recordResponse("*", request, response);
+  }
+
 }
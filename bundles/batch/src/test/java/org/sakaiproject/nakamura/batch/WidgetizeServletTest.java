@@ -18,20 +18,29 @@
 package org.sakaiproject.nakamura.batch;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.commons.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.sakaiproject.nakamura.api.batch.CompiledBundle;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
 import javax.servlet.http.HttpServletResponse;
@@ -68,8 +77,7 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
     
     servlet.doGet(request, response);
 
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseContent());
 
     // Assert the responses
     verify(response).setCharacterEncoding("UTF-8");
@@ -108,6 +116,63 @@ public class WidgetizeServletTest extends AbstractWidgetServletTest {
         "content"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testNotModified() throws Exception {
+    Cache<Object> cache = mock(Cache.class);
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
+        cache);
+    Map<String, CompiledBundle> bundles = new HashMap<String, CompiledBundle>();
+    CompiledBundle bundle = new CompiledBundle("{\"twitter.html\":{\"content\":false}}");
+    bundles.put("nl_NL", bundle);
+    when(cache.get("/widgets/twitter")).thenReturn(bundles);
+
+    Resource twitterResource = resolver.getResource("/widgets/twitter");
+    when(request.getResource()).thenReturn(twitterResource);
+    when(request.getHeader("If-None-Match")).thenReturn(bundle.getETag());
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("ETag", bundle.getETag());
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("", getResponseContent());
+  }
+
+  @Test
+  public void testUpdateWidgetOnlyInvalidatesThatWidget() throws Exception {
+    Cache<Object> compiled = new MapCacheImpl<Object>("compiled", CacheScope.INSTANCE);
+    Cache<Object> configs = new MapCacheImpl<Object>("configs", CacheScope.INSTANCE);
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
+        new MapCacheImpl<Object>("other", CacheScope.INSTANCE));
+    when(
+        cacheManagerService.getCache(WidgetServiceImpl.CACHE_NAME_COMPILED_WIDGETS,
+            CacheScope.INSTANCE)).thenReturn(compiled);
+    when(
+        cacheManagerService.getCache(WidgetServiceImpl.CACHE_NAME_WIDGET_CONFIGS,
+            CacheScope.INSTANCE)).thenReturn(configs);
+
+    CompiledBundle bundle = widgetService.getCompiledWidget("/widgets/twitter", null,
+        resolver);
+    assertSame(bundle, widgetService.getCompiledWidget("/widgets/twitter", null, resolver));
+    Map<String, ValueMap> configMap = new HashMap<String, ValueMap>();
+    configMap.put("twitter", new JsonValueMap("{}"));
+    configs.put("configs", configMap);
+
+    // A change to another widget leaves this widget and the other configs cached.
+    widgetService.updateWidget("/widgets/badwidget/config.json");
+    assertSame(bundle, widgetService.getCompiledWidget("/widgets/twitter", null, resolver));
+    Map<String, ValueMap> refreshed = widgetService.getWidgetConfigs(resolver);
+    assertTrue(refreshed.containsKey("twitter"));
+    assertFalse(refreshed.containsKey("badwidget"));
+
+    widgetService.updateWidget("/widgets/twitter/twitter.html");
+    assertNull(compiled.get("/widgets/twitter"));
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testBadWidget() throws Exception {
@@ -17,10 +17,12 @@
  */
 package org.sakaiproject.nakamura.batch;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import org.apache.sling.api.request.RequestParameter;
@@ -38,6 +40,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  *
@@ -66,8 +69,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
         cache);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseContent());
     assertNotNull(json.get("twitter"));
     assertNull(json.opt("badwidget"));
   }
@@ -88,12 +90,33 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(cache.get("configs")).thenReturn(map);
 
     servlet.doGet(request, response);
-    printWriter.flush();
-    JSONObject json = new JSONObject(stringWriter.toString());
+    JSONObject json = new JSONObject(getResponseContent());
     assertNotNull(json.get("foo"));
     assertTrue(json.getJSONObject("foo").getBoolean("bar"));
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testNotModified() throws ServletException, IOException, JSONException {
+    Cache<Object> cache = mock(Cache.class);
+
+    when(
+        cacheManagerService
+            .getCache(Mockito.anyString(), Mockito.eq(CacheScope.INSTANCE))).thenReturn(
+        cache);
+
+    Map<String, ValueMap> map = new HashMap<String, ValueMap>();
+    map.put("foo", new JsonValueMap("{'bar' : true}"));
+    when(cache.get("configs")).thenReturn(map);
+    String etag = widgetService.getCompiledWidgetConfigs(resolver).getETag();
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+
+    servlet.doGet(request, response);
+    verify(response).setHeader("ETag", etag);
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    assertEquals("", getResponseContent());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testJSONP() throws ServletException, IOException {
@@ -108,8 +131,7 @@ public class WidgetsServletTest extends AbstractWidgetServletTest {
     when(callbackParam.getString("UTF-8")).thenReturn("parseWidgets");
     when(request.getRequestParameter("callback")).thenReturn(callbackParam);
     servlet.doGet(request, response);
-    printWriter.flush();
-    String content = stringWriter.toString();
+    String content = getResponseContent();
     assertTrue(content.startsWith("parseWidgets("));
     assertTrue(content.endsWith(");"));
   }
@@ -0,0 +1,675 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
+import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.jms.Connection;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Sends OSGi events to JMS from a small number of sender threads. Each sender thread
+ * owns a bounded queue, a connection, a session and a producer that live as long as the
+ * thread, and sends the events in its queue in batches, committing each batch as one
+ * transaction. Events are given to a sender by the hash of their topic, so events on
+ * the same topic are sent in the order they were raised.
+ * <p>
+ * When a queue is full the {@link Overflow} policy decides what happens to the event.
+ * Only {@link Overflow#BLOCK} keeps the order of events on a topic when the queues are
+ * full, with the other policies ordering is best-effort. Events published after
+ * {@link #stop()} are sent by the thread that raised them and may arrive before the last
+ * of the queued events.
+ */
+class JmsEventPublisher implements JmsEventPublisherMBean {
+
+  /**
+   * What to do with an event when the queue of its sender is full.
+   */
+  enum Overflow {
+    /**
+     * Wait a short time for space in the queue, then send the event in the thread that
+     * raised it, with its own session. An event sent like that can arrive before earlier
+     * events on the same topic that are still queued.
+     */
+    CALLER,
+    /**
+     * Wait for space in the queue.
+     */
+    BLOCK,
+    /**
+     * Discard the event.
+     */
+    DROP;
+
+    static Overflow parse(String value) {
+      if (value != null) {
+        for (Overflow o : values()) {
+          if (o.name().equalsIgnoreCase(value.trim())) {
+            return o;
+          }
+        }
+      }
+      return CALLER;
+    }
+  }
+
+  /**
+   * The most destinations a sender remembers before it starts again.
+   */
+  private static final int MAX_DESTINATIONS = 1000;
+
+  /**
+   * How long, in ms, a {@link Overflow#CALLER} publish waits for space in a full queue
+   * before sending the event itself.
+   */
+  static final long CALLER_WAIT = 100L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmsEventPublisher.class);
+
+  private final ConnectionFactoryService connFactoryService;
+  private final String serverId;
+  private final int acknowledgeMode;
+  private final boolean transacted;
+  private final int batchSize;
+  private final int capacity;
+  private final Overflow overflow;
+  private final Sender[] senders;
+
+  private volatile boolean running;
+
+  /**
+   * Held for reading while an event is queued and for writing while the publisher is
+   * started or stopped, so nothing is queued once {@link #stop()} has begun to drain the
+   * queues.
+   */
+  private final ReadWriteLock lifecycle = new ReentrantReadWriteLock();
+
+  private final AtomicLong queued = new AtomicLong();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong sentInline = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong maxBatchSize = new AtomicLong();
+  private final AtomicLong latency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+  private final AtomicLong sendTime = new AtomicLong();
+
+  private volatile long lastMessage = System.currentTimeMillis();
+
+  /**
+   * @param connFactoryService
+   * @param serverId
+   *          the id of this server, added to every message.
+   * @param senderThreads
+   *          the number of sender threads.
+   * @param capacity
+   *          the number of events that can be waiting, over all sender threads.
+   * @param batchSize
+   *          the most events to send in one transaction.
+   * @param transacted
+   *          true if sessions should be transacted even if the batch size is 1.
+   * @param acknowledgeMode
+   *          the acknowledge mode of sessions that are not transacted.
+   * @param overflow
+   */
+  JmsEventPublisher(ConnectionFactoryService connFactoryService, String serverId,
+      int senderThreads, int capacity, int batchSize, boolean transacted,
+      int acknowledgeMode, Overflow overflow) {
+    this.connFactoryService = connFactoryService;
+    this.serverId = serverId;
+    this.batchSize = Math.max(1, batchSize);
+    this.transacted = transacted || this.batchSize > 1;
+    this.acknowledgeMode = acknowledgeMode;
+    this.overflow = overflow;
+    int n = Math.max(1, senderThreads);
+    int perSender = Math.max(1, capacity / n);
+    this.capacity = perSender * n;
+    senders = new Sender[n];
+    for (int i = 0; i < n; i++) {
+      senders[i] = new Sender(i, perSender);
+    }
+  }
+
+  synchronized void start() {
+    if (!running) {
+      setRunning(true);
+      for (Sender sender : senders) {
+        sender.start();
+      }
+    }
+  }
+
+  /**
+   * Stop accepting events, wait for the sender threads to send what they have queued
+   * and close their sessions. Events published after this are sent in the calling
+   * thread.
+   */
+  synchronized void stop() {
+    setRunning(false);
+    for (Sender sender : senders) {
+      sender.stop();
+    }
+  }
+
+  /**
+   * Send an event to JMS, normally by queueing it for a sender thread.
+   *
+   * @param event
+   */
+  void publish(Event event) {
+    Sender sender = senders[(event.getTopic().hashCode() & 0x7fffffff) % senders.length];
+    PendingEvent pending = new PendingEvent(event);
+    try {
+      if (enqueue(sender, pending, 0L)) {
+        return;
+      }
+      if (running) {
+        switch (overflow) {
+        case DROP:
+          dropped.incrementAndGet();
+          if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+            lastMessage = System.currentTimeMillis();
+            LOGGER.warn("JMS bridge queue is full, events are being dropped, {} so far ",
+                dropped.get());
+          }
+          return;
+        case BLOCK:
+          while (running) {
+            if (enqueue(sender, pending, 1000L)) {
+              return;
+            }
+          }
+          break;
+        case CALLER:
+        default:
+          // the sender is usually only a moment behind, waiting for it keeps the events
+          // on a topic in order far more often than sending this one straight away.
+          if (enqueue(sender, pending, CALLER_WAIT)) {
+            return;
+          }
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sendInline(event);
+  }
+
+  private void setRunning(boolean running) {
+    lifecycle.writeLock().lock();
+    try {
+      this.running = running;
+    } finally {
+      lifecycle.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Queue an event for its sender if the publisher is running.
+   *
+   * @param timeout
+   *          how long to wait for space in the queue, in ms.
+   * @return true if the event was queued.
+   */
+  private boolean enqueue(Sender sender, PendingEvent pending, long timeout)
+      throws InterruptedException {
+    lifecycle.readLock().lock();
+    try {
+      if (!running) {
+        return false;
+      }
+      boolean added;
+      if (timeout > 0) {
+        added = sender.queue.offer(pending, timeout, TimeUnit.MILLISECONDS);
+      } else {
+        added = sender.queue.offer(pending);
+      }
+      if (added) {
+        queued.incrementAndGet();
+      }
+      return added;
+    } finally {
+      lifecycle.readLock().unlock();
+    }
+  }
+
+  /**
+   * Send a single event with a session of its own, which is what the bridge did for
+   * every event before it had sender threads.
+   */
+  private void sendInline(Event event) {
+    Connection conn = null;
+    Session session = null;
+    try {
+      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
+      session = conn.createSession(false, acknowledgeMode);
+      MessageProducer producer = session.createProducer(null);
+      send(session, producer, null, event);
+      sentInline.incrementAndGet();
+    } catch (JMSException e) {
+      failed.incrementAndGet();
+      logFailure(e);
+    } finally {
+      close(session, conn);
+    }
+  }
+
+  /**
+   * Convert an event to a message and send it.
+   *
+   * @param destinations
+   *          destinations already created by the session, may be null.
+   */
+  private void send(Session session, MessageProducer producer,
+      Map<String, Destination> destinations, Event event) throws JMSException {
+    Destination destination = getDestination(session, destinations, event);
+    send(producer, destination, createMessage(session, event));
+  }
+
+  private void send(MessageProducer producer, Destination destination, Message msg)
+      throws JMSException {
+    LOGGER.debug("Sending Message {} to {}  ", msg, destination);
+    // the producer is shared by all destinations, so the delivery mode is given here,
+    // the producer would otherwise replace the one set on the message.
+    producer.send(destination, msg, msg.getJMSDeliveryMode(), Message.DEFAULT_PRIORITY,
+        Message.DEFAULT_TIME_TO_LIVE);
+  }
+
+  /**
+   * @param destinations
+   *          destinations already created by the session, may be null.
+   * @return the queue or topic the event goes to.
+   */
+  private Destination getDestination(Session session,
+      Map<String, Destination> destinations, Event event) throws JMSException {
+    EventDeliveryMode deliveryMode = (EventDeliveryMode) event
+        .getProperty(EventDeliveryConstants.DELIVERY_MODE);
+    boolean p2p = deliveryMode == EventDeliveryMode.P2P;
+    String key = (p2p ? "q:" : "t:") + event.getTopic();
+    Destination destination = destinations == null ? null : destinations.get(key);
+    if (destination == null) {
+      if (p2p) {
+        destination = session.createQueue(event.getTopic());
+      } else {
+        destination = session.createTopic(event.getTopic());
+      }
+      if (destinations != null) {
+        if (destinations.size() >= MAX_DESTINATIONS) {
+          destinations.clear();
+        }
+        destinations.put(key, destination);
+      }
+    }
+    return destination;
+  }
+
+  /**
+   * Convert an event to a message.
+   */
+  private Message createMessage(Session session, Event event) throws JMSException {
+    EventMessageMode messageMode = (EventMessageMode) event
+        .getProperty(EventDeliveryConstants.MESSAGE_MODE);
+
+    Message msg = session.createMessage();
+
+    // may need to set a delivery mode eg persistent for certain types of messages.
+    // this should be specified in the OSGi event.
+    int jmsDeliveryMode = DeliveryMode.NON_PERSISTENT;
+    if (messageMode == EventMessageMode.PERSISTENT) {
+      jmsDeliveryMode = DeliveryMode.PERSISTENT;
+    }
+    msg.setJMSDeliveryMode(jmsDeliveryMode);
+    msg.setJMSType(event.getTopic());
+
+    for (String name : event.getPropertyNames()) {
+      Object obj = event.getProperty(name);
+      // "Only objectified primitive objects, String, Map and List types are
+      // allowed" as stated by an exception when putting something into the
+      // message that was not of one of these types.
+      if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
+          || obj instanceof Number || obj instanceof Map || obj instanceof String
+          || obj instanceof List || obj instanceof Object[]) {
+        msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
+      }
+    }
+
+    msg.setStringProperty("clusterServerId", serverId);
+    return msg;
+  }
+
+  private void logFailure(JMSException e) {
+    Throwable t = e.getCause();
+    if (t != null
+        && t.getClass().getName()
+            .equals("org.apache.activemq.transport.TransportDisposedIOException")) {
+      if ((System.currentTimeMillis() - lastMessage) > 15000L) {
+        lastMessage = System.currentTimeMillis();
+        LOGGER.info(
+            "Transport disposed, probably on shutdown, use debug level logging to see more :{} ",
+            e.getMessage());
+      }
+      LOGGER.debug(e.getMessage(), e);
+    } else {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private static void close(Session session, Connection conn) {
+    try {
+      if (session != null) {
+        session.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+    try {
+      if (conn != null) {
+        conn.close();
+      }
+    } catch (Exception e) {
+      LOGGER.error(e.getMessage(), e);
+    }
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  /**
+   * An event waiting to be sent.
+   */
+  private static final class PendingEvent {
+    private final Event event;
+    private final long queued;
+
+    private PendingEvent(Event event) {
+      this.event = event;
+      this.queued = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * A sender thread, with the session it uses to send events. The session is created
+   * when it is first needed and recreated after a failure.
+   */
+  private final class Sender implements Runnable {
+    private final int id;
+    private final BlockingQueue<PendingEvent> queue;
+    private final Map<String, Destination> destinations = new HashMap<String, Destination>();
+    private Thread thread;
+    private Connection connection;
+    private Session session;
+    private MessageProducer producer;
+
+    private Sender(int id, int capacity) {
+      this.id = id;
+      this.queue = new ArrayBlockingQueue<PendingEvent>(capacity);
+    }
+
+    private void start() {
+      thread = new Thread(this, "osgi-jms-bridge-" + id);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void stop() {
+      if (thread != null) {
+        try {
+          thread.join(30000L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        thread = null;
+      }
+    }
+
+    public void run() {
+      List<PendingEvent> batch = new ArrayList<PendingEvent>(batchSize);
+      try {
+        // keep going once stopped until the queue is empty.
+        while (running || !queue.isEmpty()) {
+          try {
+            PendingEvent pending = queue.poll(1, TimeUnit.SECONDS);
+            if (pending == null) {
+              continue;
+            }
+            batch.add(pending);
+            queue.drainTo(batch, batchSize - 1);
+            send(batch);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+          } catch (Throwable t) {
+            LOGGER.error("Failed to send events to JMS ", t);
+          } finally {
+            batch.clear();
+          }
+        }
+      } finally {
+        closeSession();
+      }
+    }
+
+    /**
+     * Send a batch in one transaction. Events that can't be converted to a message are
+     * removed from the batch and counted as failed, if sending fails the transaction is
+     * rolled back and the batch resent once with a new session.
+     */
+    private void send(List<PendingEvent> batch) {
+      long start = System.currentTimeMillis();
+      for (int attempt = 1;; attempt++) {
+        boolean done = false;
+        boolean resend = false;
+        try {
+          sendBatch(batch);
+          done = true;
+        } catch (JMSException e) {
+          logFailure(e);
+          resend = attempt < 2;
+        } finally {
+          if (!done) {
+            // whatever the failure, nothing of this transaction must be committed later.
+            rollback();
+            // start again with a new session.
+            closeSession();
+            if (!resend) {
+              failed.addAndGet(batch.size());
+            }
+          }
+        }
+        if (done) {
+          break;
+        } else if (!resend) {
+          return;
+        }
+      }
+      long now = System.currentTimeMillis();
+      sendTime.addAndGet(now - start);
+      for (PendingEvent pending : batch) {
+        long l = now - pending.queued;
+        latency.addAndGet(l);
+        updateMax(maxLatency, l);
+      }
+      sent.addAndGet(batch.size());
+      batches.incrementAndGet();
+      updateMax(maxBatchSize, batch.size());
+    }
+
+    private void sendBatch(List<PendingEvent> batch) throws JMSException {
+      if (session == null) {
+        connection = connFactoryService.getDefaultPooledConnectionFactory()
+            .createConnection();
+        session = connection.createSession(transacted, acknowledgeMode);
+        producer = session.createProducer(null);
+      }
+      for (Iterator<PendingEvent> i = batch.iterator(); i.hasNext();) {
+        Event event = i.next().event;
+        Destination destination;
+        Message msg;
+        try {
+          destination = getDestination(session, destinations, event);
+          msg = createMessage(session, event);
+        } catch (JMSException e) {
+          skip(i, event, e);
+          continue;
+        } catch (RuntimeException e) {
+          skip(i, event, e);
+          continue;
+        }
+        JmsEventPublisher.this.send(producer, destination, msg);
+      }
+      if (transacted) {
+        session.commit();
+      }
+    }
+
+    /**
+     * Leave out an event that can't be sent, rather than failing the batch with it.
+     */
+    private void skip(Iterator<PendingEvent> i, Event event, Exception e) {
+      i.remove();
+      failed.incrementAndGet();
+      LOGGER.warn("Unable to convert event {} to a JMS message, skipping it: {} ",
+          event.getTopic(), e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+    }
+
+    private void rollback() {
+      if (transacted && session != null) {
+        try {
+          session.rollback();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+
+    private void closeSession() {
+      close(session, connection);
+      destinations.clear();
+      producer = null;
+      session = null;
+      connection = null;
+    }
+  }
+
+  public int getQueueSize() {
+    int n = 0;
+    for (Sender sender : senders) {
+      n += sender.queue.size();
+    }
+    return n;
+  }
+
+  public int getQueueCapacity() {
+    return capacity;
+  }
+
+  public int getSenderThreads() {
+    return senders.length;
+  }
+
+  public long getQueued() {
+    return queued.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  public long getSentInline() {
+    return sentInline.get();
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public long getFailed() {
+    return failed.get();
+  }
+
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getAverageBatchSize() {
+    long n = batches.get();
+    return n == 0 ? 0 : sent.get() / n;
+  }
+
+  public long getMaxBatchSize() {
+    return maxBatchSize.get();
+  }
+
+  public long getAverageLatency() {
+    long n = sent.get();
+    return n == 0 ? 0 : latency.get() / n;
+  }
+
+  public long getMaxLatency() {
+    return maxLatency.get();
+  }
+
+  public long getAverageSendTime() {
+    long n = batches.get();
+    return n == 0 ? 0 : sendTime.get() / n;
+  }
+
+  public void reset() {
+    queued.set(0);
+    sent.set(0);
+    sentInline.set(0);
+    dropped.set(0);
+    failed.set(0);
+    batches.set(0);
+    maxBatchSize.set(0);
+    latency.set(0);
+    maxLatency.set(0);
+    sendTime.set(0);
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.events;
+
+/**
+ * Statistics of the events sent to JMS by the bridge.
+ */
+public interface JmsEventPublisherMBean {
+
+  /**
+   * @return the number of events waiting to be sent, over all sender threads.
+   */
+  int getQueueSize();
+
+  int getQueueCapacity();
+
+  int getSenderThreads();
+
+  /**
+   * @return the number of events queued to be sent in the background.
+   */
+  long getQueued();
+
+  /**
+   * @return the number of events sent by the sender threads.
+   */
+  long getSent();
+
+  /**
+   * @return the number of events sent in the thread that raised them, because the queue
+   *         was full or the bridge was not running.
+   */
+  long getSentInline();
+
+  /**
+   * @return the number of events discarded because the queue was full.
+   */
+  long getDropped();
+
+  /**
+   * @return the number of events that could not be sent to JMS.
+   */
+  long getFailed();
+
+  /**
+   * @return the number of batches sent, each committed as one transaction.
+   */
+  long getBatches();
+
+  long getAverageBatchSize();
+
+  long getMaxBatchSize();
+
+  /**
+   * @return the average time, in ms, from an event being queued to it being sent.
+   */
+  long getAverageLatency();
+
+  long getMaxLatency();
+
+  /**
+   * @return the average time, in ms, taken to send and commit a batch.
+   */
+  long getAverageSendTime();
+
+  /**
+   * Reset the counters.
+   */
+  void reset();
+}
@@ -19,8 +19,10 @@ package org.sakaiproject.nakamura.events;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Modified;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
@@ -31,30 +33,21 @@ import org.osgi.service.event.EventHandler;
 import org.perf4j.aop.Profiled;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventAcknowledgeMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
-import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
-import org.sakaiproject.nakamura.util.osgi.EventUtils;
+import org.sakaiproject.nakamura.events.JmsEventPublisher.Overflow;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Dictionary;
 import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
-import javax.jms.Connection;
-import javax.jms.DeliveryMode;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.Message;
-import javax.jms.MessageProducer;
 import javax.jms.Session;
+import javax.management.ObjectName;
 
 /**
- * Bridge to send OSGi events onto a JMS topic.
+ * Bridge to send OSGi events onto a JMS topic. Events are queued and sent by a
+ * {@link JmsEventPublisher}, so the thread delivering the event does not wait for JMS.
  */
 @Component(label = "%bridge.name", description = "%bridge.description", metatype = true)
 @Service
@@ -76,6 +69,23 @@ public class OsgiJmsBridge implements EventHandler {
   @Property(value = {"org/osgi/service/log/LogEntry/LOG_DEBUG", "org/osgi/service/log/LogEntry/LOG_INFO", "org/osgi/service/log/LogEntry/LOG_TRACE"})
   private static final String IGNORE_EVENT_TOPICS = "bridge.ignore.event.topics";
 
+  @Property(intValue = 2)
+  static final String SENDER_THREADS = "bridge.senderThreads";
+
+  @Property(intValue = 10000)
+  static final String QUEUE_SIZE = "bridge.queueSize";
+
+  @Property(intValue = 50)
+  static final String BATCH_SIZE = "bridge.batchSize";
+
+  @Property(value = "caller", options = {
+      @PropertyOption(name = "caller", value = "Send the event in the thread that raised it."),
+      @PropertyOption(name = "block", value = "Wait for space in the queue."),
+      @PropertyOption(name = "drop", value = "Discard the event.") })
+  static final String OVERFLOW = "bridge.overflow";
+
+  static final String JMX_NAME = "org.sakaiproject.nakamura:type=OsgiJmsBridge";
+
   private Set<String> ignoreEventTopics = new HashSet<String>();
 
 
@@ -90,10 +100,12 @@ public class OsgiJmsBridge implements EventHandler {
   private String connectionClientId;
   private int acknowledgeMode;
 
-  private long lastMessage = System.currentTimeMillis();
-
   private String serverId;
 
+  private volatile JmsEventPublisher publisher;
+
+  private ObjectName registeredName;
+
   /**
    * Default constructor.
    */
@@ -138,8 +150,46 @@ public class OsgiJmsBridge implements EventHandler {
       }
     }
 
+    int senderThreads = PropertiesUtil.toInteger(props.get(SENDER_THREADS), 2);
+    int queueSize = PropertiesUtil.toInteger(props.get(QUEUE_SIZE), 10000);
+    int batchSize = PropertiesUtil.toInteger(props.get(BATCH_SIZE), 50);
+    Overflow overflow = Overflow.parse(PropertiesUtil.toString(props.get(OVERFLOW), "caller"));
+
     LOGGER.debug("Session Transacted: {}, Acknowledge Mode: {}, " + "Client ID: {}",
         new Object[] { transacted, acknowledgeMode, connectionClientId });
+    LOGGER.debug("Sender Threads: {}, Queue Size: {}, Batch Size: {}, Overflow: {} ",
+        new Object[] { senderThreads, queueSize, batchSize, overflow });
+
+    // on modification, the old publisher sends what it has queued before it stops.
+    JmsEventPublisher newPublisher = new JmsEventPublisher(connFactoryService, serverId,
+        senderThreads, queueSize, batchSize, transacted, acknowledgeMode, overflow);
+    newPublisher.start();
+    JmsEventPublisher oldPublisher = publisher;
+    publisher = newPublisher;
+    if (oldPublisher != null) {
+      oldPublisher.stop();
+    }
+    registerStatistics();
+  }
+
+  /**
+   * Called by the OSGi container to deactivate this component, sends any queued events
+   * before returning.
+   *
+   * @param ctx
+   */
+  @Deactivate
+  protected void deactivate(ComponentContext ctx) {
+    unregisterStatistics();
+    JmsEventPublisher oldPublisher = publisher;
+    publisher = null;
+    if (oldPublisher != null) {
+      oldPublisher.stop();
+    }
+  }
+
+  JmsEventPublisher getPublisher() {
+    return publisher;
   }
 
   /**
@@ -157,128 +207,29 @@ public class OsgiJmsBridge implements EventHandler {
     handleValidEvent(event);
   }
 
-  /** 
+  /**
    * Handles an event that is known not to be ignored.
-   * 
+   *
    * @param event
    * @see #handleEvent(Event)
    */
   @Profiled(tag="event:JMSBridge:{$0.topic}", el=true)
   private void handleValidEvent(Event event) {
-    Connection conn = null;
-    
     LOGGER.debug("Processing event {}", event);
-    Session clientSession = null;
-    try {
-      conn = connFactoryService.getDefaultPooledConnectionFactory().createConnection();
-      // conn.setClientID(connectionClientId);
-      // post to JMS
-      // Sessions are not thread safe, so we need to create and destroy a session, for
-      // sending.
-      EventDeliveryMode deliveryMode = (EventDeliveryMode) event
-          .getProperty(EventDeliveryConstants.DELIVERY_MODE);
-      EventMessageMode messageMode = (EventMessageMode) event
-          .getProperty(EventDeliveryConstants.MESSAGE_MODE);
-
-      EventAcknowledgeMode acknowledgeModeForEvent = (EventAcknowledgeMode) event
-          .getProperty(EventDeliveryConstants.ACKNOWLEDGE_MODE);
-
-      int clientAcknowledgeMode = acknowledgeMode;
-      if (acknowledgeModeForEvent != null) {
-        switch (acknowledgeModeForEvent) {
-        case AUTO_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.AUTO_ACKNOWLEDGE;
-          break;
-        case CLIENT_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.CLIENT_ACKNOWLEDGE;
-          break;
-        case DUPS_OK_ACKNOWLEDGE:
-          clientAcknowledgeMode = Session.DUPS_OK_ACKNOWLEDGE;
-          break;
-        }
-      }
-
-      clientSession = conn.createSession(transacted, clientAcknowledgeMode);
-
-      Message msg = clientSession.createMessage();
-
-      // may need to set a delivery mode eg persistent for certain types of messages.
-      // this should be specified in the OSGi event.
-      if (messageMode != null) {
-        switch (messageMode) {
-        case PERSISTENT:
-          msg.setJMSDeliveryMode(DeliveryMode.PERSISTENT);
-          break;
-        case NON_PERSISTENT:
-        default:
-          msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-          break;
-        }
-      } else {
-        msg.setJMSDeliveryMode(DeliveryMode.NON_PERSISTENT);
-      }
+    JmsEventPublisher p = publisher;
+    if (p == null) {
+      LOGGER.warn("JMS bridge is not active, event not sent {} ", event);
+      return;
+    }
+    p.publish(event);
+  }
 
-      Destination destination = null;
-      if (deliveryMode != null) {
-        switch (deliveryMode) {
-        case P2P:
-          destination = clientSession.createQueue(event.getTopic());
-          break;
-        case BROADCAST:
-        default:
-          destination = clientSession.createTopic(event.getTopic());
-          break;
-        }
-      } else {
-        destination = clientSession.createTopic(event.getTopic());
-      }
-      MessageProducer producer = clientSession.createProducer(destination);
-      msg.setJMSType(event.getTopic());
-
-      for (String name : event.getPropertyNames()) {
-        Object obj = event.getProperty(name);
-        // "Only objectified primitive objects, String, Map and List types are
-        // allowed" as stated by an exception when putting something into the
-        // message that was not of one of these types.
-        if (obj instanceof Byte || obj instanceof Boolean || obj instanceof Character
-            || obj instanceof Number || obj instanceof Map || obj instanceof String
-            || obj instanceof List || obj instanceof Object[]) {
-          msg.setObjectProperty(name, EventUtils.cleanProperty(obj));
-        }
-      }
+  private void registerStatistics() {
+    registeredName = JmxUtils.register(JMX_NAME, publisher, JmsEventPublisherMBean.class);
+  }
 
-      msg.setStringProperty("clusterServerId", serverId);
-
-      // add the current user
-
-      LOGGER.debug("Sending Message {} to {}  ",msg, destination);
-      producer.send(msg);
-    } catch (JMSException e) {
-      Throwable t = e.getCause();
-      if ( t != null && t.getClass().getName().equals("org.apache.activemq.transport.TransportDisposedIOException") ) {
-        if ( (System.currentTimeMillis() - lastMessage) > 15000L ) {
-          lastMessage = System.currentTimeMillis();
-          LOGGER.info("Transport disposed, probably on shutdown, use debug level logging to see more :{} ", e.getMessage());
-        }
-        LOGGER.debug(e.getMessage(), e);
-      } else {
-        LOGGER.error(e.getMessage(), e);
-      }
-    } finally {
-      try {
-        if (conn != null) {
-          conn.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
-      try {
-        if (clientSession != null) {
-          clientSession.close();
-        }
-      } catch (Exception e) {
-        LOGGER.error(e.getMessage(), e);
-      }
-    }
+  private void unregisterStatistics() {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
   }
 }
@@ -17,35 +17,50 @@
  */
 package org.sakaiproject.nakamura.events;
 
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
 import javax.jms.JMSException;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
 import javax.jms.MessageProducer;
 import javax.jms.Session;
 import javax.jms.Topic;
 
+import org.apache.activemq.ActiveMQConnectionFactory;
 import org.apache.activemq.command.ActiveMQMessage;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.Test;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.events.JmsEventPublisher.Overflow;
 
 /**
  * Unit test for bridging events from OSGi to JMS.
@@ -79,6 +94,9 @@ public class OsgiJmsBridgeTest {
     // mock a connection factory service
     connFactoryService = createMock(ConnectionFactoryService.class);
     expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(connFactory).anyTimes();
+
+    clusterTrackingService = createMock(ClusterTrackingService.class);
+    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
   }
 
   /**
@@ -96,33 +114,27 @@ public class OsgiJmsBridgeTest {
    *
    * @throws JMSException
    */
-  @SuppressWarnings("rawtypes")
   @Test
   public void testHandleEvent() throws Exception {
     // setup to do full processing
     setUpFullProcess(true);
-    
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
+
     // start the mocks
     replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, clusterTrackingService);
 
-    // construct and send the message
+    // construct and send the message, deactivating sends everything queued.
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
 
     // verify that all expected calls were made.
     verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
 
-    int namesCount = 0;
-    Enumeration names = message.getPropertyNames();
-    while (names.hasMoreElements()) {
-      names.nextElement();
-      namesCount++;
-    }
-
     // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 2, namesCount);
+    assertEquals(props.size() + 2, countProperties(message));
+    assertEquals(1, publisher.getSent());
+    assertEquals(1, publisher.getBatches());
   }
 
   /**
@@ -130,17 +142,12 @@ public class OsgiJmsBridgeTest {
    *
    * @throws JMSException
    */
-  @SuppressWarnings("rawtypes")
   @Test
   public void testHandleEventExceptionClosing() throws Exception {
     // setup to do full processing
     setUpFullProcess(false);
 
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
-    // expect to have exceptions when closing the session and connection
-    //sess.close();
-    //expectLastCall().andThrow(new JMSException("can't close session"));
+    // expect to have exceptions when closing the connection
     conn.close();
     expectLastCall().andThrow(new JMSException("can't close connection"));
 
@@ -150,34 +157,24 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
 
     // verify that all expected calls were made.
     verify(ctx, connFactory, conn, sess, topic, prod, clusterTrackingService);
 
-    int namesCount = 0;
-    Enumeration names = message.getPropertyNames();
-    while (names.hasMoreElements()) {
-      names.nextElement();
-      namesCount++;
-    }
-
     // there should be an entry for each property plus the name of the topics
-    assertEquals(props.size() + 2, namesCount);
+    assertEquals(props.size() + 2, countProperties(message));
+    assertEquals(1, publisher.getSent());
   }
 
   @Test
   public void testJmsExceptionWhenCreatingConnection() throws Exception {
     // expect the connection factory to thrown an exception. this is the
     // earliest an exception can be thrown and causes extra checks in the
-    // exception handling.
-    connFactory = createMock(ConnectionFactory.class);
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
-
-    connFactoryService = createMock(ConnectionFactoryService.class);
-    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(connFactory).anyTimes();
-
-    expect(connFactory.createConnection()).andThrow(new JMSException("can't create connection"));
+    // exception handling. the batch is resent once before it is given up.
+    expect(connFactory.createConnection()).andThrow(new JMSException("can't create connection"))
+        .times(2);
 
     // start the mocks
     replay(ctx, connFactoryService, connFactory, clusterTrackingService);
@@ -185,39 +182,263 @@ public class OsgiJmsBridgeTest {
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
     // should log the message, but not fail
     verify(ctx, connFactory, clusterTrackingService);
+    assertEquals(1, publisher.getFailed());
   }
 
 
   @Test
-  public void testJmsExceptionWhenCreatingTopic() throws JMSException {
+  public void testJmsExceptionWhenCreatingMessage() throws JMSException {
     setUpConnection(true);
-    clusterTrackingService = createMock(ClusterTrackingService.class);
-    expect(clusterTrackingService.getCurrentServerId()).andReturn("CurrentServerID");
 
     // mock a session to be returned by the connection and expect it to throw an
-    // exception. this causes extra checking to happen in the exception
-    // handling.
+    // exception. the event is left out and the rest of the batch committed.
     sess = createMock(Session.class);
-    expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
-    sess.run();
+    expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+    prod = createMock(MessageProducer.class);
+    expect(sess.createProducer(null)).andReturn(prod);
+    topic = createMock(Topic.class);
+    expect(sess.createTopic((String) anyObject())).andReturn(topic);
+    expect(sess.createMessage()).andThrow(new JMSException("can't create message"));
+    sess.commit();
     expectLastCall();
     sess.close();
     expectLastCall();
 
-    // mock a destination as a topic from the session and expect it
-    expect(sess.createMessage()).andThrow(new JMSException("can't create topic"));
-
     // start the mocks
-    replay(ctx, connFactoryService, connFactory, conn, sess, clusterTrackingService);
+    replay(ctx, connFactoryService, connFactory, conn, sess, topic, prod,
+        clusterTrackingService);
 
     // construct and send the message
     Dictionary<Object, Object> props = buildEventProperties();
     sendMessage(props);
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
 
     // verify that all expected calls were made.
-    verify(ctx, conn, connFactory, clusterTrackingService);
+    verify(ctx, conn, connFactory, sess, prod, clusterTrackingService);
+    assertEquals(1, publisher.getFailed());
+    assertEquals(0, publisher.getSent());
+  }
+
+  /**
+   * A failure to send rolls the batch back and sends it again with a new session.
+   */
+  @Test
+  public void testBatchIsResentAfterSendFails() throws Exception {
+    setUpFullProcess(true);
+    // the first session fails to send and is rolled back and closed.
+    Connection failedConn = createMock(Connection.class);
+    Session failedSess = createMock(Session.class);
+    MessageProducer failedProd = createMock(MessageProducer.class);
+    reset(connFactory);
+    expect(connFactory.createConnection()).andReturn(failedConn).andReturn(conn);
+    expect(failedConn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(failedSess);
+    expect(failedSess.createProducer(null)).andReturn(failedProd);
+    expect(failedSess.createTopic((String) anyObject())).andReturn(topic);
+    expect(failedSess.createMessage()).andReturn(new ActiveMQMessage());
+    failedProd.send((Destination) anyObject(), (Message) anyObject(), anyInt(), anyInt(),
+        anyLong());
+    expectLastCall().andThrow(new JMSException("connection lost"));
+    failedSess.rollback();
+    failedSess.close();
+    failedConn.close();
+
+    replay(ctx, connFactory, connFactoryService, conn, sess, topic, prod, failedConn,
+        failedSess, failedProd, clusterTrackingService);
+
+    Dictionary<Object, Object> props = buildEventProperties();
+    sendMessage(props);
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
+
+    verify(connFactory, conn, sess, prod, failedConn, failedSess, failedProd);
+    assertEquals(props.size() + 2, countProperties(message));
+    assertEquals(1, publisher.getSent());
+    assertEquals(0, publisher.getFailed());
+  }
+
+  /**
+   * An event that can't be converted is skipped, the events around it are still sent.
+   */
+  @Test
+  public void testBadEventIsSkipped() throws Exception {
+    ConnectionFactory factory = new ActiveMQConnectionFactory(
+        "vm://bridge-skip-test?broker.persistent=false&broker.useJmx=false");
+    connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(factory)
+        .anyTimes();
+    replay(connFactoryService);
+
+    Connection consumerConnection = factory.createConnection();
+    consumerConnection.start();
+    Session consumerSession = consumerConnection.createSession(false,
+        Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+        .createTopic("org/sakaiproject/nakamura/test"));
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, "server", 1,
+        100, 10, false, Session.AUTO_ACKNOWLEDGE, Overflow.CALLER);
+    publisher.start();
+    for (int i = 0; i < 3; i++) {
+      Dictionary<Object, Object> props = buildEventProperties();
+      props.put("n", i);
+      if (i == 1) {
+        // not an EventDeliveryMode.
+        props.put(EventDeliveryConstants.DELIVERY_MODE, "P2P");
+      }
+      publisher.publish(new Event("org/sakaiproject/nakamura/test", props));
+    }
+    publisher.stop();
+
+    assertEquals(0, consumer.receive(10000).getIntProperty("n"));
+    assertEquals(2, consumer.receive(10000).getIntProperty("n"));
+    consumerConnection.close();
+    assertEquals(2, publisher.getSent() + publisher.getSentInline());
+    assertEquals(1, publisher.getFailed());
+  }
+
+  /**
+   * When the queue is full and the overflow policy is drop, events are counted and
+   * discarded rather than blocking the thread that raised them.
+   */
+  @Test
+  public void testOverflowDrop() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    expect(connFactory.createConnection()).andAnswer(new IAnswer<Connection>() {
+      public Connection answer() throws Throwable {
+        sending.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        throw new JMSException("broker is down");
+      }
+    }).times(4);
+    replay(connFactoryService, connFactory);
+
+    JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService, "server", 1, 1,
+        1, false, Session.AUTO_ACKNOWLEDGE, Overflow.DROP);
+    publisher.start();
+    Dictionary<Object, Object> props = buildEventProperties();
+    // the sender takes the first event and waits for a connection
+    publisher.publish(new Event("test-event", props));
+    assertTrue(sending.await(10, TimeUnit.SECONDS));
+    // the second fills the queue, the third is dropped. each batch is tried twice.
+    publisher.publish(new Event("test-event", props));
+    publisher.publish(new Event("test-event", props));
+    assertEquals(1, publisher.getQueueSize());
+    assertEquals(1, publisher.getDropped());
+    release.countDown();
+    publisher.stop();
+
+    verify(connFactory);
+    assertEquals(2, publisher.getQueued());
+    assertEquals(2, publisher.getFailed());
+    assertEquals(0, publisher.getSentInline());
+  }
+
+  /**
+   * When the queue is full and the overflow policy is caller, the event waits a moment
+   * for space so it is sent after the events queued before it.
+   */
+  @Test
+  public void testOverflowCallerWaitsForSpace() throws Exception {
+    final CountDownLatch sending = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    expect(connFactory.createConnection()).andAnswer(new IAnswer<Connection>() {
+      public Connection answer() throws Throwable {
+        sending.countDown();
+        release.await(10, TimeUnit.SECONDS);
+        throw new JMSException("broker is down");
+      }
+    }).times(6);
+    replay(connFactoryService, connFactory);
+
+    final JmsEventPublisher publisher = new JmsEventPublisher(connFactoryService,
+        "server", 1, 1, 1, false, Session.AUTO_ACKNOWLEDGE, Overflow.CALLER);
+    publisher.start();
+    final Dictionary<Object, Object> props = buildEventProperties();
+    // the sender takes the first event and waits for a connection, the second fills
+    // the queue.
+    publisher.publish(new Event("test-event", props));
+    assertTrue(sending.await(10, TimeUnit.SECONDS));
+    publisher.publish(new Event("test-event", props));
+    Thread caller = new Thread() {
+      @Override
+      public void run() {
+        publisher.publish(new Event("test-event", props));
+      }
+    };
+    caller.start();
+    // let the third wait for space, then let the sender move on.
+    Thread.sleep(JmsEventPublisher.CALLER_WAIT / 5);
+    release.countDown();
+    caller.join(10000L);
+    publisher.stop();
+
+    verify(connFactory);
+    assertEquals(3, publisher.getQueued());
+    assertEquals(3, publisher.getFailed());
+    assertEquals(0, publisher.getSentInline());
+  }
+
+  /**
+   * Send events through an embedded broker and check they arrive in order, with their
+   * properties.
+   */
+  @Test
+  public void testEmbeddedBroker() throws Exception {
+    ConnectionFactory factory = new ActiveMQConnectionFactory(
+        "vm://bridge-test?broker.persistent=false&broker.useJmx=false");
+    connFactoryService = createMock(ConnectionFactoryService.class);
+    expect(connFactoryService.getDefaultPooledConnectionFactory()).andReturn(factory)
+        .anyTimes();
+    replay(ctx, connFactoryService, clusterTrackingService);
+
+    // keeps the vm broker up while the bridge connects and disconnects.
+    Connection consumerConnection = factory.createConnection();
+    consumerConnection.start();
+    Session consumerSession = consumerConnection.createSession(false,
+        Session.AUTO_ACKNOWLEDGE);
+    MessageConsumer consumer = consumerSession.createConsumer(consumerSession
+        .createTopic("org/sakaiproject/nakamura/test"));
+
+    bridge = new OsgiJmsBridge(connFactoryService);
+    bridge.clusterTrackingService = clusterTrackingService;
+    bridge.activate(ctx);
+    int n = 500;
+    for (int i = 0; i < n; i++) {
+      Dictionary<Object, Object> props = buildEventProperties();
+      props.put("n", i);
+      bridge.handleEvent(new Event("org/sakaiproject/nakamura/test", props));
+    }
+    for (int i = 0; i < n; i++) {
+      Message m = consumer.receive(10000);
+      assertNotNull(m);
+      assertEquals(i, m.getIntProperty("n"));
+      assertEquals("CurrentServerID", m.getStringProperty("clusterServerId"));
+      assertEquals(DeliveryMode.NON_PERSISTENT, m.getJMSDeliveryMode());
+    }
+    JmsEventPublisher publisher = bridge.getPublisher();
+    bridge.deactivate(ctx);
+    consumerConnection.close();
+
+    assertEquals(n, publisher.getSent() + publisher.getSentInline());
+    assertEquals(0, publisher.getFailed());
+    assertTrue(publisher.getBatches() <= publisher.getSent());
+  }
+
+  @SuppressWarnings("rawtypes")
+  private int countProperties(Message message) throws JMSException {
+    int namesCount = 0;
+    Enumeration names = message.getPropertyNames();
+    while (names.hasMoreElements()) {
+      names.nextElement();
+      namesCount++;
+    }
+    return namesCount;
   }
 
   /**
@@ -296,29 +517,27 @@ public class OsgiJmsBridgeTest {
       setUpConnection(closeConnection);
 
 
-      // mock a session to be returned by the connection and expect it
+      // mock a session to be returned by the connection and expect it, batches are
+      // sent in a transaction.
       sess = createMock(Session.class);
-      expect(conn.createSession(false, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
+      expect(conn.createSession(true, Session.AUTO_ACKNOWLEDGE)).andReturn(sess);
 
-      // expect the session to get run
-      //sess.run();
-      //expectLastCall();
+      // mock a producer for the session to create and expect it
+      prod = createMock(MessageProducer.class);
+      expect(sess.createProducer(null)).andReturn(prod);
 
       // mock a destination as a topic from the session and expect it
       topic = createMock(Topic.class);
       expect(sess.createTopic((String) anyObject())).andReturn(topic);
 
-      // mock a producer for the session to create and expect it
-      prod = createMock(MessageProducer.class);
-      expect(sess.createProducer(topic)).andReturn(prod);
-
       // mock the return of a mapped message
       message = new ActiveMQMessage();
       expect(sess.createMessage()).andReturn(message);
 
-      // expect the message to be sent
-      prod.send(message);
-      
+      // expect the message to be sent and the batch committed
+      prod.send(eq((Destination) topic), eq(message), eq(DeliveryMode.NON_PERSISTENT),
+          eq(Message.DEFAULT_PRIORITY), eq(Message.DEFAULT_TIME_TO_LIVE));
+      sess.commit();
 
       sess.close();
     } catch (JMSException e) {
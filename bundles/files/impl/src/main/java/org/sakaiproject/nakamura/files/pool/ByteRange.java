@@ -0,0 +1,165 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An inclusive range of bytes from a <code>Range: bytes=...</code> request header.
+ */
+final class ByteRange implements Comparable<ByteRange> {
+
+  /**
+   * More ranges than this in a single request are ignored and the whole body is sent,
+   * rather than seeking all over the body for a client that is probably misbehaving.
+   */
+  static final int MAX_RANGES = 32;
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  final long start;
+  final long end;
+
+  ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  long length() {
+    return end - start + 1;
+  }
+
+  /**
+   * @param total
+   *          the length of the whole body.
+   * @return the value of a <code>Content-Range</code> header for this range.
+   */
+  String toContentRange(long total) {
+    return "bytes " + start + "-" + end + "/" + total;
+  }
+
+  public int compareTo(ByteRange o) {
+    return start < o.start ? -1 : (start == o.start ? 0 : 1);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ByteRange)) {
+      return false;
+    }
+    ByteRange other = (ByteRange) obj;
+    return start == other.start && end == other.end;
+  }
+
+  @Override
+  public int hashCode() {
+    return (int) (start ^ (start >>> 32)) * 31 + (int) (end ^ (end >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return start + "-" + end;
+  }
+
+  /**
+   * Parse a <code>Range</code> header against a body of the given length. Satisfiable
+   * ranges are clipped to the body, sorted and overlapping or adjacent ranges are
+   * coalesced, so the ranges can be sent by reading forwards through the body.
+   *
+   * @param header
+   *          the value of the <code>Range</code> header, may be null.
+   * @param length
+   *          the length of the body.
+   * @return null if the header should be ignored and the whole body sent, an empty
+   *         list if none of the ranges can be satisfied, otherwise the ranges to send.
+   */
+  static List<ByteRange> parse(String header, long length) {
+    if (header == null || length <= 0) {
+      return null;
+    }
+    header = header.trim();
+    if (!header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())) {
+      return null;
+    }
+    String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+    if (specs.length > MAX_RANGES) {
+      return null;
+    }
+    List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash < 0) {
+        return null;
+      }
+      long start;
+      long end;
+      try {
+        if (dash == 0) {
+          // suffix range, the last n bytes.
+          long suffix = Long.parseLong(spec.substring(1));
+          if (suffix <= 0) {
+            continue;
+          }
+          start = Math.max(0, length - suffix);
+          end = length - 1;
+        } else {
+          start = Long.parseLong(spec.substring(0, dash).trim());
+          String last = spec.substring(dash + 1).trim();
+          if (last.length() == 0) {
+            end = length - 1;
+          } else {
+            long lastByte = Long.parseLong(last);
+            if (lastByte < start) {
+              // syntactically invalid, the whole header is ignored.
+              return null;
+            }
+            end = Math.min(lastByte, length - 1);
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+      if (start < 0) {
+        return null;
+      }
+      if (start < length) {
+        ranges.add(new ByteRange(start, end));
+      }
+    }
+    if (ranges.size() < 2) {
+      return ranges;
+    }
+    Collections.sort(ranges);
+    List<ByteRange> coalesced = new ArrayList<ByteRange>(ranges.size());
+    ByteRange current = ranges.get(0);
+    for (int i = 1; i < ranges.size(); i++) {
+      ByteRange next = ranges.get(i);
+      if (next.start <= current.end + 1) {
+        current = new ByteRange(current.start, Math.max(current.end, next.end));
+      } else {
+        coalesced.add(current);
+        current = next;
+      }
+    }
+    coalesced.add(current);
+    return coalesced;
+  }
+}
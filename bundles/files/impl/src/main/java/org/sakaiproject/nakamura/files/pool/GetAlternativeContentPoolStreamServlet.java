@@ -18,34 +18,44 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestPathInfo;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
 /**
- *
+ * Streams alternative streams of pooled content and, unless disabled, the body itself,
+ * so that both get entity tags and byte range support from {@link StreamHelper}.
  */
 @Service(value=DefaultServletDelegate.class)
-@Component
+@Component(metatype = true)
 public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServlet
     implements DefaultServletDelegate {
   /**
@@ -58,6 +68,32 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
     RESERVED_SELECTORS.add("selector-used-elsewhere");
   }
 
+  static final boolean DEFAULT_STREAM_BODY = true;
+  @Property(boolValue = DEFAULT_STREAM_BODY)
+  static final String STREAM_BODY = "sakai.files.stream.body";
+
+  static final String JMX_NAME = "org.sakaiproject.nakamura:type=ContentPoolStreams";
+
+  private final StreamStatistics statistics = new StreamStatistics();
+  private ObjectName registeredName;
+  private boolean streamBody = DEFAULT_STREAM_BODY;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    modified(properties);
+    registerStatistics();
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    streamBody = PropertiesUtil.toBoolean(properties.get(STREAM_BODY), DEFAULT_STREAM_BODY);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    unregisterStatistics();
+  }
+
   public void doDelegateGet(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException, IOException {
    doGet(request, response);
@@ -72,7 +108,7 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
       ContentManager contentManager = resource.adaptTo(ContentManager.class);
       String alternativeStream = getAlternativeStream(request);
       
-      StreamHelper streamHelper = new StreamHelper();
+      StreamHelper streamHelper = new StreamHelper(statistics);
       
       ServletContext sc = null;
       try {
@@ -118,15 +154,39 @@ public class GetAlternativeContentPoolStreamServlet extends SlingSafeMethodsServ
   }
 
   /**
-   * Do not interfere with the default servlet's handling of streaming data, which kicks
-   * in if no extension has been specified was specified in the request. (Sling servlet
-   * resolution uses a servlet's declared list of "extensions" for score weighing, not for
-   * filtering.)
+   * Take alternative streams, and plain requests for the body when enabled, which would
+   * otherwise be streamed by the default servlet. (Sling servlet resolution uses a
+   * servlet's declared list of "extensions" for score weighing, not for filtering.)
    *
    * @see org.apache.sling.api.servlets.OptingServlet#accepts(org.apache.sling.api.SlingHttpServletRequest)
    */
   public boolean accepts(SlingHttpServletRequest request) {
-    return getAlternativeStream(request) != null;
+    return getAlternativeStream(request) != null || acceptsBody(request);
+  }
+
+  private boolean acceptsBody(SlingHttpServletRequest request) {
+    if (!streamBody) {
+      return false;
+    }
+    RequestPathInfo rpi = request.getRequestPathInfo();
+    String[] selectors = rpi.getSelectors();
+    if ((selectors != null && selectors.length > 0) || rpi.getExtension() != null) {
+      return false;
+    }
+    Resource resource = request.getResource();
+    Content content = resource == null ? null : resource.adaptTo(Content.class);
+    // content without a body is rendered as json by the default servlet.
+    return content != null
+        && StorageClientUtils.toLong(content.getProperty(Content.LENGTH_FIELD)) > 0;
+  }
+
+  private void registerStatistics() {
+    registeredName = JmxUtils.register(JMX_NAME, statistics, StreamStatisticsMBean.class);
+  }
+
+  private void unregisterStatistics() {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
   }
 
   private String[] parseResourcePath(RequestPathInfo rpi, String fileName) {
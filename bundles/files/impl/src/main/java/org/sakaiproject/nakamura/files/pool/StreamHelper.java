@@ -18,6 +18,8 @@
 package org.sakaiproject.nakamura.files.pool;
 
 import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_IF_MODIFIED_SINCE;
 import static org.apache.sling.api.servlets.HttpConstants.HEADER_LAST_MODIFIED;
 
@@ -28,9 +30,21 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.util.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
 
 import javax.jcr.RepositoryException;
@@ -38,43 +52,199 @@ import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Streams the body, or an alternative stream, of a content item. Supports conditional
+ * requests on <code>ETag</code> and <code>Last-Modified</code>, and single and
+ * multipart byte ranges so that media can be seeked and downloads resumed without
+ * sending the whole body again.
+ * <p>
+ * Full responses for compressible types may be gzipped by the container's gzip filter,
+ * so they carry a separate entity tag for the gzip encoding. Ranged responses are always
+ * sent identity encoded, as byte offsets refer to the stored body.
+ */
 public class StreamHelper {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamHelper.class);
+
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_IF_RANGE = "If-Range";
+  private static final String HEADER_RANGE = "Range";
+  private static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+  private static final String HEADER_CONTENT_RANGE = "Content-Range";
+  private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+  private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+  private static final String HEADER_VARY = "Vary";
+  private static final String BODY_LOCATION_FIELD = "_bodyLocation";
+  private static final String MULTIPART_BOUNDARY = "NAKAMURA_BYTERANGE_BOUNDARY";
+
+  private final StreamStatistics statistics;
+
+  public StreamHelper() {
+    this(null);
+  }
+
+  StreamHelper(StreamStatistics statistics) {
+    this.statistics = statistics;
+  }
+
   public void stream(HttpServletRequest request, ContentManager contentManager, Content node, String alternativeStream, HttpServletResponse response, Resource resource, ServletContext servletContext) throws IOException, StorageClientException, AccessDeniedException {
+    Map<String, Object> properties = node.getProperties();
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+    String etag = getETag(node.getPath(), properties, alternativeStream, modifTime, length);
+    String contentType = getContentType(properties, resource, alternativeStream, servletContext);
+    boolean compressible = isCompressible(contentType);
+    // the entity tag of the full response, which the gzip filter may compress.
+    String fullEtag = compressible && acceptsGzip(request) ? gzipETag(etag) : etag;
+
+    // conditional requests are answered before the body is opened.
+    if (unmodified(request, fullEtag, modifTime)) {
+      if (fullEtag != null) {
+        response.setHeader(HEADER_ETAG, fullEtag);
+      }
+      if (compressible) {
+        response.setHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+      }
+      response.setStatus(SC_NOT_MODIFIED);
+      if (statistics != null) {
+        statistics.notModified();
+      }
+      return;
+    }
+
     InputStream dataStream = contentManager.getInputStream(node.getPath(), alternativeStream);
 
     if ( dataStream == null ) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
-    
-    Map<String, Object> properties = node.getProperties();
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (unmodified(request, modifTime)) {
-      response.setStatus(SC_NOT_MODIFIED);
-      return;
+
+    try {
+      setHeaders(properties, response, alternativeStream, contentType);
+      if (compressible) {
+        response.setHeader(HEADER_VARY, HEADER_ACCEPT_ENCODING);
+      }
+      if (length > 0) {
+        response.setHeader(HEADER_ACCEPT_RANGES, "bytes");
+      }
+
+      // byte ranges refer to the identity encoding, so If-Range names its entity tag.
+      List<ByteRange> ranges = null;
+      if (length > 0 && ifRange(request, etag, modifTime)) {
+        ranges = ByteRange.parse(request.getHeader(HEADER_RANGE), length);
+      }
+      if (ranges != null && !ranges.isEmpty()) {
+        // the gzip filter leaves responses that already have an encoding alone, this
+        // has to be set before the status.
+        response.setHeader(HEADER_CONTENT_ENCODING, "identity");
+        if (etag != null) {
+          response.setHeader(HEADER_ETAG, etag);
+        }
+      } else if (fullEtag != null) {
+        response.setHeader(HEADER_ETAG, fullEtag);
+      }
+
+      long start = System.nanoTime();
+      long sent;
+      if (ranges == null) {
+        setContentLength(response, length);
+        sent = copy(dataStream, response.getOutputStream(), 0, Long.MAX_VALUE, 0);
+      } else if (ranges.isEmpty()) {
+        response.setHeader(HEADER_CONTENT_RANGE, "bytes */" + length);
+        response.sendError(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      } else if (ranges.size() == 1) {
+        ByteRange range = ranges.get(0);
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setHeader(HEADER_CONTENT_RANGE, range.toContentRange(length));
+        setContentLength(response, range.length());
+        sent = copy(dataStream, response.getOutputStream(), range.start, range.length(), 0);
+      } else {
+        response.setStatus(SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+        sent = copyRanges(dataStream, response.getOutputStream(), ranges, length, contentType);
+      }
+      if (statistics != null) {
+        statistics.sent(sent, System.nanoTime() - start, ranges != null);
+      }
+    } finally {
+      dataStream.close();
+    }
+  }
+
+  /**
+   * A strong entity tag for the stream. Bodies are written to a new location each time
+   * they change, so the location, length and last modified time identify the bytes.
+   *
+   * @return the quoted entity tag or null if there is not enough to build one.
+   */
+  static String getETag(String path, Map<String, Object> properties,
+      String alternativeStream, long modifTime, long length) {
+    Object location = properties.get(StorageClientUtils.getAltField(BODY_LOCATION_FIELD,
+        alternativeStream));
+    if (location == null && modifTime <= 0) {
+      return null;
+    }
+    try {
+      return "\"" + StringUtils.sha1Hash(path + ":" + alternativeStream + ":" + location
+          + ":" + modifTime + ":" + length) + "\"";
+    } catch (UnsupportedEncodingException e) {
+      LOGGER.warn(e.getMessage(), e);
+    } catch (NoSuchAlgorithmException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+    return null;
+  }
+
+  /**
+   * @return the entity tag of the gzip encoding of the stream tagged etag, or null if
+   *         etag is null.
+   */
+  static String gzipETag(String etag) {
+    if (etag == null) {
+      return null;
+    }
+    return etag.substring(0, etag.length() - 1) + "-gzip\"";
+  }
+
+  /**
+   * @return true if the container's gzip filter may compress a full response of this
+   *         content type.
+   */
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
     }
+    String type = contentType.toLowerCase();
+    return type.startsWith("text/") || type.contains("javascript")
+        || type.contains("json") || type.contains("xml");
+  }
 
-    setHeaders(properties, resource, response, alternativeStream, servletContext);
-    setContentLength(properties, response, alternativeStream);
-    IOUtils.copyLarge(dataStream, response.getOutputStream());
-    dataStream.close();
+  private static boolean acceptsGzip(HttpServletRequest request) {
+    String acceptEncoding = request.getHeader(HEADER_ACCEPT_ENCODING);
+    return acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
   }
 
   /**
-   * Returns <code>true</code> if the request has a <code>If-Modified-Since</code> header
-   * whose date value is later than the last modification time given as
-   * <code>modifTime</code>.
+   * Returns <code>true</code> if the request has a <code>If-None-Match</code> header
+   * matching the current entity tag, or, when there is no <code>If-None-Match</code>
+   * header, a <code>If-Modified-Since</code> header whose date value is later than the
+   * last modification time given as <code>modifTime</code>.
    *
    * @param request
-   *          The <code>ComponentRequest</code> checked for the
-   *          <code>If-Modified-Since</code> header.
+   *          The <code>ComponentRequest</code> checked for the conditional headers.
+   * @param etag
+   *          The current entity tag, may be null.
    * @param modifTime
    *          The last modification time to compare the header to.
-   * @return <code>true</code> if the <code>modifTime</code> is less than or equal to the
-   *         time of the <code>If-Modified-Since</code> header.
+   * @return <code>true</code> if the client already has the current stream.
    */
-  private boolean unmodified(HttpServletRequest request, long modifTime) {
+  private boolean unmodified(HttpServletRequest request, String etag, long modifTime) {
+    String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+    if (ifNoneMatch != null) {
+      return etag != null && matches(ifNoneMatch, etag);
+    }
     if (modifTime > 0) {
       long modTime = modifTime / 1000; // seconds
       long ims = request.getDateHeader(HEADER_IF_MODIFIED_SINCE) / 1000;
@@ -86,19 +256,104 @@ public class StreamHelper {
   }
 
   /**
-   * @param resource
-   * @param request
-   * @param response
-   * @param servletContext 
-   * @throws RepositoryException
+   * @return true if the Range header should be honoured, ie there is no
+   *         <code>If-Range</code> header or it names the current stream.
    */
-  private void setHeaders(Map<String, Object> properties, Resource resource, HttpServletResponse response, String alternativeStream, ServletContext servletContext) {
+  private boolean ifRange(HttpServletRequest request, String etag, long modifTime) {
+    String ifRange = request.getHeader(HEADER_IF_RANGE);
+    if (ifRange == null) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(etag);
+    }
+    try {
+      long date = request.getDateHeader(HEADER_IF_RANGE);
+      return modifTime > 0 && date / 1000 == modifTime / 1000;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
 
-    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
-    if (modifTime > 0) {
-      response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+  static boolean matches(String ifNoneMatch, String etag) {
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if ("*".equals(candidate) || etag.equals(candidate)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Write each range as a part of a <code>multipart/byteranges</code> body.
+   *
+   * @return the number of body bytes written, not counting part headers.
+   */
+  static long copyRanges(InputStream in, OutputStream out, List<ByteRange> ranges,
+      long length, String contentType) throws IOException {
+    long sent = 0;
+    long position = 0;
+    for (ByteRange range : ranges) {
+      StringBuilder part = new StringBuilder();
+      part.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+      if (contentType != null) {
+        part.append("Content-Type: ").append(contentType).append("\r\n");
+      }
+      part.append("Content-Range: ").append(range.toContentRange(length)).append("\r\n\r\n");
+      out.write(part.toString().getBytes("ISO-8859-1"));
+      sent += copy(in, out, range.start, range.length(), position);
+      position = range.end + 1;
+    }
+    out.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("ISO-8859-1"));
+    return sent;
+  }
+
+  /**
+   * Copy count bytes starting at offset from the stream, or less if the stream ends
+   * first. File backed streams are transferred from their channel at the absolute
+   * offset, other streams are skipped forwards from position, which is where the
+   * previous copy left the stream.
+   *
+   * @return the number of bytes copied.
+   */
+  static long copy(InputStream in, OutputStream out, long offset, long count,
+      long position) throws IOException {
+    if (in instanceof FileInputStream) {
+      FileChannel channel = ((FileInputStream) in).getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long done = 0;
+      while (done < count) {
+        long n = channel.transferTo(offset + done, count - done, target);
+        if (n <= 0) {
+          break;
+        }
+        done += n;
+      }
+      return done;
     }
+    long toSkip = offset - position;
+    while (toSkip > 0) {
+      long skipped = in.skip(toSkip);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException("Range starts beyond the end of the stream");
+        }
+        skipped = 1;
+      }
+      toSkip -= skipped;
+    }
+    return IOUtils.copyLarge(new LimitedInputStream(in, count), out);
+  }
 
+  /**
+   * @return the content type of the stream, if known.
+   */
+  private String getContentType(Map<String, Object> properties, Resource resource, String alternativeStream, ServletContext servletContext) {
     String contentType = (String) properties.get(StorageClientUtils.getAltField(Content.MIMETYPE_FIELD, alternativeStream));
     if (contentType == null && servletContext != null) {
       final String ct = servletContext.getMimeType(resource.getPath());
@@ -106,6 +361,23 @@ public class StreamHelper {
         contentType = ct;
       }
     }
+    return contentType;
+  }
+
+  /**
+   * @param properties
+   * @param response
+   * @param alternativeStream
+   * @param contentType
+   * @throws RepositoryException
+   */
+  private void setHeaders(Map<String, Object> properties, HttpServletResponse response, String alternativeStream, String contentType) {
+
+    long modifTime = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LASTMODIFIED_FIELD, alternativeStream)));
+    if (modifTime > 0) {
+      response.setDateHeader(HEADER_LAST_MODIFIED, modifTime);
+    }
+
     if (contentType != null) {
       response.setContentType(contentType);
     }
@@ -128,8 +400,7 @@ public class StreamHelper {
    *          The content length to be set. If this value is equal to or less than zero,
    *          the header is not set.
    */
-  private void setContentLength(Map<String,Object> properties, HttpServletResponse response, String alternativeStream) {
-    long length = StorageClientUtils.toLong(properties.get(StorageClientUtils.getAltField(Content.LENGTH_FIELD, alternativeStream)));
+  private void setContentLength(HttpServletResponse response, long length) {
     if (length > 0) {
       if (length < Integer.MAX_VALUE) {
         response.setContentLength((int) length);
@@ -139,4 +410,41 @@ public class StreamHelper {
     }
   }
 
+  /**
+   * Reads at most limit bytes from the underlying stream, without closing it.
+   */
+  private static final class LimitedInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      this.in = in;
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b >= 0) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      }
+      return n;
+    }
+  }
+
 }
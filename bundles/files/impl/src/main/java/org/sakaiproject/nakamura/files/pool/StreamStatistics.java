@@ -0,0 +1,120 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for pooled content streaming. Only responses of at least
+ * {@link #LARGE_RESPONSE} bytes contribute to the timings, small bodies are dominated
+ * by request overhead and would hide what large downloads are doing.
+ */
+class StreamStatistics implements StreamStatisticsMBean {
+
+  static final long LARGE_RESPONSE = 1024L * 1024L;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong rangeRequests = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong largeRequests = new AtomicLong();
+  private final AtomicLong largeBytes = new AtomicLong();
+  private final AtomicLong largeNanos = new AtomicLong();
+  private final AtomicLong largeMaxNanos = new AtomicLong();
+
+  void notModified() {
+    requests.incrementAndGet();
+    notModified.incrementAndGet();
+  }
+
+  /**
+   * @param bytes
+   *          the number of body bytes written.
+   * @param nanos
+   *          the time taken to write them.
+   * @param partial
+   *          true if only ranges of the body were sent.
+   */
+  void sent(long bytes, long nanos, boolean partial) {
+    requests.incrementAndGet();
+    if (partial) {
+      rangeRequests.incrementAndGet();
+    }
+    bytesSent.addAndGet(bytes);
+    if (bytes >= LARGE_RESPONSE) {
+      largeRequests.incrementAndGet();
+      largeBytes.addAndGet(bytes);
+      largeNanos.addAndGet(nanos);
+      long max = largeMaxNanos.get();
+      while (nanos > max && !largeMaxNanos.compareAndSet(max, nanos)) {
+        max = largeMaxNanos.get();
+      }
+    }
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getRangeRequests() {
+    return rangeRequests.get();
+  }
+
+  public long getNotModified() {
+    return notModified.get();
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  public long getLargeRequests() {
+    return largeRequests.get();
+  }
+
+  public long getLargeThroughput() {
+    long nanos = largeNanos.get();
+    if (nanos == 0) {
+      return 0;
+    }
+    return (long) (largeBytes.get() * 1000000000.0 / nanos);
+  }
+
+  public double getLargeAverageTime() {
+    long n = largeRequests.get();
+    if (n == 0) {
+      return 0;
+    }
+    return largeNanos.get() / 1000000.0 / n;
+  }
+
+  public long getLargeMaxTime() {
+    return largeMaxNanos.get() / 1000000L;
+  }
+
+  public void reset() {
+    requests.set(0);
+    rangeRequests.set(0);
+    notModified.set(0);
+    bytesSent.set(0);
+    largeRequests.set(0);
+    largeBytes.set(0);
+    largeNanos.set(0);
+    largeMaxNanos.set(0);
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+/**
+ * JMX view of pooled content streaming, registered as
+ * <code>org.sakaiproject.nakamura:type=ContentPoolStreams</code>.
+ */
+public interface StreamStatisticsMBean {
+
+  long getRequests();
+
+  /**
+   * @return the number of requests answered with 206 Partial Content.
+   */
+  long getRangeRequests();
+
+  /**
+   * @return the number of requests answered with 304 Not Modified.
+   */
+  long getNotModified();
+
+  long getBytesSent();
+
+  /**
+   * @return the number of responses that sent at least
+   *         {@link StreamStatistics#LARGE_RESPONSE} bytes.
+   */
+  long getLargeRequests();
+
+  /**
+   * @return the average throughput of large responses in bytes per second.
+   */
+  long getLargeThroughput();
+
+  /**
+   * @return the average time taken to send a large response in milliseconds.
+   */
+  double getLargeAverageTime();
+
+  /**
+   * @return the longest time taken to send a large response in milliseconds.
+   */
+  long getLargeMaxTime();
+
+  void reset();
+}
@@ -0,0 +1,246 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.pool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class StreamHelperTest {
+
+  private static final byte[] BODY = new byte[1000];
+  static {
+    for (int i = 0; i < BODY.length; i++) {
+      BODY[i] = (byte) i;
+    }
+  }
+
+  @Test
+  public void testParseRanges() {
+    assertNull(ByteRange.parse(null, 1000));
+    assertNull(ByteRange.parse("items=0-10", 1000));
+    assertNull(ByteRange.parse("bytes=abc", 1000));
+    assertNull(ByteRange.parse("bytes=10-5", 1000));
+
+    assertEquals(Arrays.asList(new ByteRange(0, 499)), ByteRange.parse("bytes=0-499", 1000));
+    assertEquals(Arrays.asList(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", 1000));
+    assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", 1000));
+    assertEquals(Arrays.asList(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", 1000));
+    assertEquals(Arrays.asList(new ByteRange(990, 999)), ByteRange.parse("bytes=990-2000", 1000));
+
+    // unsatisfiable
+    List<ByteRange> none = ByteRange.parse("bytes=1000-", 1000);
+    assertNotNull(none);
+    assertTrue(none.isEmpty());
+
+    // sorted and coalesced
+    assertEquals(Arrays.asList(new ByteRange(0, 20), new ByteRange(50, 59)),
+        ByteRange.parse("bytes=50-59, 10-20, 0-9, 15-18", 1000));
+
+    StringBuilder many = new StringBuilder("bytes=0-0");
+    for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+      many.append(",").append(i * 2).append("-").append(i * 2);
+    }
+    assertNull(ByteRange.parse(many.toString(), 1000));
+  }
+
+  @Test
+  public void testCopyFromStream() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    assertEquals(100, StreamHelper.copy(new ByteArrayInputStream(BODY), out, 100, 100, 0));
+    assertArrayEquals(Arrays.copyOfRange(BODY, 100, 200), out.toByteArray());
+
+    out = new ByteArrayOutputStream();
+    assertEquals(BODY.length, StreamHelper.copy(new ByteArrayInputStream(BODY), out, 0,
+        Long.MAX_VALUE, 0));
+    assertArrayEquals(BODY, out.toByteArray());
+  }
+
+  @Test
+  public void testCopyFromFile() throws Exception {
+    File f = File.createTempFile("streamhelper", ".bin");
+    f.deleteOnExit();
+    FileOutputStream fos = new FileOutputStream(f);
+    fos.write(BODY);
+    fos.close();
+
+    FileInputStream in = new FileInputStream(f);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      assertEquals(100, StreamHelper.copy(in, out, 900, 100, 0));
+      // positional, so an earlier range can still be read from the same stream
+      assertEquals(10, StreamHelper.copy(in, out, 0, 10, 1000));
+      byte[] expected = new byte[110];
+      System.arraycopy(BODY, 900, expected, 0, 100);
+      System.arraycopy(BODY, 0, expected, 100, 10);
+      assertArrayEquals(expected, out.toByteArray());
+
+      out = new ByteArrayOutputStream();
+      assertEquals(BODY.length, StreamHelper.copy(in, out, 0, Long.MAX_VALUE, 0));
+      assertArrayEquals(BODY, out.toByteArray());
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testMultipartRanges() throws Exception {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-1,998-", 1000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] body = new byte[1000];
+    body[0] = 'a';
+    body[1] = 'b';
+    body[998] = 'y';
+    body[999] = 'z';
+    InputStream in = new ByteArrayInputStream(body);
+    assertEquals(4, StreamHelper.copyRanges(in, out, ranges, 1000, "text/plain"));
+    String multipart = out.toString("ISO-8859-1");
+    assertTrue(multipart.contains("Content-Range: bytes 0-1/1000\r\n\r\nab\r\n--"));
+    assertTrue(multipart.contains("Content-Range: bytes 998-999/1000\r\n\r\nyz\r\n--"));
+    assertTrue(multipart.contains("Content-Type: text/plain\r\n"));
+    assertTrue(multipart.endsWith("--\r\n"));
+  }
+
+  @Test
+  public void testETag() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    assertNull(StreamHelper.getETag("/p/a", props, null, 0, 10));
+    props.put("_bodyLocation", "2011/5/-V/7P");
+    String etag = StreamHelper.getETag("/p/a", props, null, 1000, 10);
+    assertNotNull(etag);
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    assertEquals(etag, StreamHelper.getETag("/p/a", props, null, 1000, 10));
+    assertFalse(etag.equals(StreamHelper.getETag("/p/a", props, null, 2000, 10)));
+
+    assertTrue(StreamHelper.matches(etag, etag));
+    assertTrue(StreamHelper.matches("\"x\", " + etag, etag));
+    assertTrue(StreamHelper.matches("W/" + etag, etag));
+    assertTrue(StreamHelper.matches("*", etag));
+    assertFalse(StreamHelper.matches("\"x\"", etag));
+  }
+
+  @Test
+  public void testGzipVariantETag() {
+    assertNull(StreamHelper.gzipETag(null));
+    assertEquals("\"abc-gzip\"", StreamHelper.gzipETag("\"abc\""));
+    assertTrue(StreamHelper.isCompressible("text/plain"));
+    assertTrue(StreamHelper.isCompressible("application/json"));
+    assertFalse(StreamHelper.isCompressible("video/mp4"));
+    assertFalse(StreamHelper.isCompressible(null));
+  }
+
+  @Test
+  public void testRangeWithGzipIsIdentityEncoded() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeader("Range")).thenReturn("bytes=100-199");
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(body);
+
+    Map<String, Object> props = textProperties();
+    String etag = StreamHelper.getETag("/p/a", props, null, 1000, BODY.length);
+    new StreamHelper().stream(request, mockContentManager(), mockContent(props), null,
+        response, null, null);
+
+    verify(response).setHeader("Content-Encoding", "identity");
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 100-199/1000");
+    verify(response).setHeader("ETag", etag);
+    verify(response, never()).setHeader("ETag", StreamHelper.gzipETag(etag));
+    assertArrayEquals(Arrays.copyOfRange(BODY, 100, 200), body.toByteArray());
+  }
+
+  @Test
+  public void testFullResponseWithGzipHasGzipETag() throws Exception {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getHeader("Accept-Encoding")).thenReturn("gzip");
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    HttpServletResponse response = mockResponse(body);
+
+    Map<String, Object> props = textProperties();
+    String etag = StreamHelper.getETag("/p/a", props, null, 1000, BODY.length);
+    new StreamHelper().stream(request, mockContentManager(), mockContent(props), null,
+        response, null, null);
+
+    verify(response).setHeader("ETag", StreamHelper.gzipETag(etag));
+    verify(response).setHeader("Vary", "Accept-Encoding");
+    verify(response, never()).setHeader("Content-Encoding", "identity");
+    assertArrayEquals(BODY, body.toByteArray());
+  }
+
+  private Map<String, Object> textProperties() {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("_bodyLocation", "2011/5/-V/7P");
+    props.put(Content.MIMETYPE_FIELD, "text/plain");
+    props.put(Content.LASTMODIFIED_FIELD, 1000L);
+    props.put(Content.LENGTH_FIELD, (long) BODY.length);
+    return props;
+  }
+
+  private Content mockContent(Map<String, Object> props) {
+    Content content = mock(Content.class);
+    when(content.getPath()).thenReturn("/p/a");
+    when(content.getProperties()).thenReturn(props);
+    return content;
+  }
+
+  private ContentManager mockContentManager() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.getInputStream("/p/a", null)).thenReturn(
+        new ByteArrayInputStream(BODY));
+    return contentManager;
+  }
+
+  private HttpServletResponse mockResponse(final ByteArrayOutputStream body)
+      throws Exception {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        body.write(b);
+      }
+    });
+    return response;
+  }
+}
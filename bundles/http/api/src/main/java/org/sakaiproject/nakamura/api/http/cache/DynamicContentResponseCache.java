@@ -25,6 +25,10 @@ import javax.servlet.http.HttpServletResponse;
  * Use this to cache http response that are for dynamic, user-specific content.
  * The caching mechanism is ETag validation. If the client presents a fresh ETag
  * in the http If-None-Match header, the server will return http 304 Not Modified.
+ * <p>
+ * A response may declare the authorizables and content it was built from. Its ETag is
+ * then derived from the versions of those dependencies and stays the same, on every
+ * server in the cluster, until one of them changes.
  */
 public interface DynamicContentResponseCache {
 
@@ -39,6 +43,25 @@ public interface DynamicContentResponseCache {
    */
   void recordResponse(String cacheCategory, HttpServletRequest request, HttpServletResponse response);
 
+  /**
+   * Declare that the response to this request is built from an authorizable. Call this
+   * before reading the authorizable, so that a change made while the response is being
+   * built invalidates the response.
+   *
+   * @param request         The request being responded to
+   * @param authorizableId  The id of the authorizable
+   */
+  void addAuthorizableDependency(HttpServletRequest request, String authorizableId);
+
+  /**
+   * Declare that the response to this request is built from the content at a path or
+   * below it. Call this before reading the content.
+   *
+   * @param request The request being responded to
+   * @param path    The content path
+   */
+  void addContentDependency(HttpServletRequest request, String path);
+
   /**
    * Invalidates all cache entries for a particular user in a particular cache category.
    *
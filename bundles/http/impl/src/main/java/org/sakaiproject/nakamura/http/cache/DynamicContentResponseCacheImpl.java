@@ -26,6 +26,8 @@ import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.perf4j.aop.Profiled;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -35,19 +37,42 @@ import org.sakaiproject.nakamura.util.StringUtils;
 
 import java.io.UnsupportedEncodingException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Dictionary;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * ETags are derived from the versions of the dependencies of a response rather than
+ * generated at random, so they survive cache evictions and are the same on every server.
+ * <p>
+ * Both caches are replicated in the cluster. The versions cache holds a version for every
+ * dependency some response has declared; a dependency that has no version is not being
+ * tracked, so store events for it cost a single lookup. The entries cache holds, for each
+ * user and category, the dependencies of the last response recorded, which is what a
+ * conditional request is validated against. Every entry also depends on its user and
+ * category, which is what {@link #invalidate(String, String)} changes.
+ * <p>
+ * Batch responses are recorded under the "*" category. They depend on whatever their
+ * batched requests declared before the response was recorded, and invalidating any
+ * category of a user also invalidates the user's "*" entry.
+ */
 @Component(metatype = true, label = "%dynamiccontentresponsecache.name",
     description = "%dynamiccontentresponsecache.description")
 @Properties(value = {
     @Property(name = "service.description", value = "Nakamura Dynamic Response Cache"),
-    @Property(name = "service.vendor", value = "The Sakai Foundation")})
-@Service
-public class DynamicContentResponseCacheImpl implements DynamicContentResponseCache {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/*",
+        "org/sakaiproject/nakamura/lite/content/*" })})
+@Service(value = { DynamicContentResponseCache.class, EventHandler.class })
+public class DynamicContentResponseCacheImpl implements DynamicContentResponseCache, EventHandler {
 
   @Property(boolValue = false)
   static final String DISABLE_CACHE_FOR_UI_DEV = "disable.cache.for.dev.mode";
@@ -55,23 +80,44 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
   @Property(boolValue = true)
   static final String BYPASS_CACHE_FOR_LOCALHOST = "bypass.cache.for.localhost";
 
+  static final String ENTRIES_CACHE = DynamicContentResponseCache.class.getName() + "-entries";
+  static final String VERSIONS_CACHE = DynamicContentResponseCache.class.getName() + "-versions";
+
+  /**
+   * The dependencies declared while handling a request, with the version of each at the
+   * time it was declared.
+   */
+  static final String DEPENDENCIES_ATTRIBUTE = DynamicContentResponseCache.class.getName()
+      + ".dependencies";
+
+  private static final String EPOCH = "epoch";
+  private static final String AUTHORIZABLE = "authorizable:";
+  private static final String CONTENT = "content:";
+  private static final String RESPONSE = "response:";
+  private static final String AUTHORIZABLE_TOPIC = "org/sakaiproject/nakamura/lite/authorizables/";
+  private static final String CONTENT_TOPIC = "org/sakaiproject/nakamura/lite/content/";
+
   @Reference
   protected CacheManagerService cacheManagerService;
 
-  private Cache<String> cache;
+  private Cache<String> entries;
+
+  private Cache<String> versions;
 
   private boolean disableForDevMode;
 
   private boolean bypassForLocalhost;
 
+  private final Random random = new SecureRandom();
+
   @SuppressWarnings("UnusedParameters")
   @Activate
   protected void activate(ComponentContext componentContext) throws ServletException {
     @SuppressWarnings("unchecked")
     Dictionary<String, Object> properties = componentContext.getProperties();
 
-    cache = cacheManagerService.getCache(DynamicContentResponseCache.class.getName() + "-cache",
-        CacheScope.INSTANCE);
+    entries = cacheManagerService.getCache(ENTRIES_CACHE, CacheScope.CLUSTERREPLICATED);
+    versions = cacheManagerService.getCache(VERSIONS_CACHE, CacheScope.CLUSTERREPLICATED);
 
     disableForDevMode = PropertiesUtil.toBoolean(properties.get(DISABLE_CACHE_FOR_UI_DEV), false);
     bypassForLocalhost = PropertiesUtil.toBoolean(properties.get(BYPASS_CACHE_FOR_LOCALHOST), true);
@@ -79,7 +125,7 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
 
   @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
   public void deactivate(ComponentContext componentContext) {
-    cache.clear();
+    clear();
   }
 
   @Override
@@ -88,12 +134,26 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
       return;
     }
     String key = buildCacheKey(cacheCategory, request.getRemoteUser());
-    String etag = cache.get(key);
-    if (etag == null) {
-      etag = buildETag(request);
-      saveEntry(cacheCategory, key, etag);
+    Map<String, String> dependencies = getDependencies(request);
+    String responseDependency = buildResponseDependency(cacheCategory, request.getRemoteUser());
+    if (!dependencies.containsKey(responseDependency)) {
+      dependencies.put(responseDependency, getVersion(responseDependency, true));
+    }
+    String dependencyList = StringUtils.join(dependencies.keySet().toArray(new String[0]), 0, '\n');
+    if (!dependencyList.equals(entries.get(key))) {
+      saveEntry(cacheCategory, key, dependencyList);
     }
-    setHeaders(response, etag);
+    setHeaders(response, buildETag(key, dependencies));
+  }
+
+  @Override
+  public void addAuthorizableDependency(HttpServletRequest request, String authorizableId) {
+    addDependency(request, AUTHORIZABLE + authorizableId);
+  }
+
+  @Override
+  public void addContentDependency(HttpServletRequest request, String path) {
+    addDependency(request, CONTENT + path);
   }
 
   @Override
@@ -101,14 +161,9 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
     if (disableForDevMode) {
       return;
     }
-    String key = buildCacheKey(cacheCategory, userID);
-    if (cache.containsKey(key)) {
-      invalidateEntry(cacheCategory, key);
-    }
-    String wildcardKey = buildCacheKey("*", userID);
-    if (cache.containsKey(wildcardKey)) {
-      invalidateEntry("*", wildcardKey);
-    }
+    invalidateEntry(cacheCategory, buildResponseDependency(cacheCategory, userID));
+    // batch responses are cached under "*" and may include any category.
+    invalidateEntry("*", buildResponseDependency("*", userID));
   }
 
   @Override
@@ -116,10 +171,33 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
     if (isDisabled(request)) {
       return false;
     }
+    // capture the version the response is built from.
+    String responseDependency = buildResponseDependency(cacheCategory, request.getRemoteUser());
+    Map<String, String> requestDependencies = getDependencies(request);
+    if (!requestDependencies.containsKey(responseDependency)) {
+      requestDependencies.put(responseDependency, getVersion(responseDependency, true));
+    }
     // examine client request for If-None-Match http header. compare that against the etag.
     String clientEtag = request.getHeader("If-None-Match");
-    String serverEtag = cache.get(buildCacheKey(cacheCategory, request.getRemoteUser()));
-    if (clientEtag != null && clientEtag.equals(serverEtag)) {
+    if (clientEtag == null) {
+      return false;
+    }
+    String key = buildCacheKey(cacheCategory, request.getRemoteUser());
+    String dependencyList = entries.get(key);
+    if (dependencyList == null) {
+      return false;
+    }
+    Map<String, String> dependencies = new TreeMap<String, String>();
+    for (String dependency : StringUtils.split(dependencyList, '\n')) {
+      String version = getVersion(dependency, false);
+      if (version == null) {
+        // no longer tracked, so it may have changed.
+        return false;
+      }
+      dependencies.put(dependency, version);
+    }
+    String serverEtag = buildETag(key, dependencies);
+    if (clientEtag.equals(serverEtag)) {
       hitEntry(cacheCategory, response);
       setHeaders(response, serverEtag);
       return true;
@@ -129,37 +207,137 @@ public class DynamicContentResponseCacheImpl implements DynamicContentResponseCa
 
   @Override
   public void clear() {
-    if (cache != null) {
-      cache.clear();
+    if (entries != null) {
+      entries.clear();
+    }
+    if (versions != null) {
+      // a new epoch, so no ETag issued so far can match.
+      versions.clear();
     }
   }
 
-  private String buildETag(HttpServletRequest request) {
-    String rawTag = request.getRemoteUser() + ':' + request.getPathInfo() + ':' + request.getQueryString()
-        + ':' + System.nanoTime();
+  /**
+   * Change the version of the authorizable or content, and of every parent of the
+   * content, that an event is for. Dependencies that are not tracked are ignored.
+   *
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  @Override
+  public void handleEvent(Event event) {
+    Object path = event.getProperty("path");
+    if (path == null || versions == null) {
+      return;
+    }
+    String topic = event.getTopic();
+    if (topic.startsWith(AUTHORIZABLE_TOPIC)) {
+      changed(AUTHORIZABLE + path);
+    } else if (topic.startsWith(CONTENT_TOPIC)) {
+      String p = String.valueOf(path);
+      changed(CONTENT + p);
+      for (int i = p.lastIndexOf('/'); i > 0; i = p.lastIndexOf('/', i - 1)) {
+        changed(CONTENT + p.substring(0, i));
+      }
+      if (p.startsWith("/")) {
+        changed(CONTENT + "/");
+      }
+    }
+  }
+
+  private void addDependency(HttpServletRequest request, String dependency) {
+    if (isDisabled(request)) {
+      return;
+    }
+    Map<String, String> dependencies = getDependencies(request);
+    if (!dependencies.containsKey(dependency)) {
+      dependencies.put(dependency, getVersion(dependency, true));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, String> getDependencies(HttpServletRequest request) {
+    Map<String, String> dependencies = (Map<String, String>) request
+        .getAttribute(DEPENDENCIES_ATTRIBUTE);
+    if (dependencies == null) {
+      // sorted, so the ETag does not depend on the order dependencies are declared in.
+      // Batched requests run in parallel see the map of their batch and may add to it
+      // concurrently.
+      dependencies = new ConcurrentSkipListMap<String, String>();
+      request.setAttribute(DEPENDENCIES_ATTRIBUTE, dependencies);
+    }
+    return dependencies;
+  }
+
+  /**
+   * @param create
+   *          if true a dependency that is not tracked yet is given a new version.
+   * @return the version of a dependency, or null if it is not tracked.
+   */
+  private String getVersion(String dependency, boolean create) {
+    String version = versions.get(dependency);
+    if (version == null && create) {
+      version = nextVersion();
+      versions.put(dependency, version);
+    }
+    return version;
+  }
+
+  private void changed(String dependency) {
+    if (versions.containsKey(dependency)) {
+      versions.put(dependency, nextVersion());
+    }
+  }
+
+  /**
+   * Versions are random rather than taken from a clock, since any server may change a
+   * dependency and their clocks are not in step, so a new version could otherwise repeat
+   * one an old ETag was built from.
+   */
+  private String nextVersion() {
+    return Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+  }
+
+  private String getEpoch() {
+    String epoch = versions.get(EPOCH);
+    if (epoch == null) {
+      epoch = nextVersion();
+      versions.put(EPOCH, epoch);
+    }
+    return epoch;
+  }
+
+  private String buildETag(String key, Map<String, String> dependencies) {
+    StringBuilder rawTag = new StringBuilder(key).append(':').append(getEpoch());
+    for (Map.Entry<String, String> e : dependencies.entrySet()) {
+      rawTag.append('\n').append(e.getKey()).append('=').append(e.getValue());
+    }
     try {
-      return StringUtils.sha1Hash(rawTag);
+      return StringUtils.sha1Hash(rawTag.toString());
     } catch (UnsupportedEncodingException e) {
-      return rawTag;
+      return rawTag.toString();
     } catch (NoSuchAlgorithmException e) {
-      return rawTag;
+      return rawTag.toString();
     }
   }
 
   String buildCacheKey(String cacheCategory, String userID) {
     return userID + ':' + cacheCategory;
   }
-  
+
+  private String buildResponseDependency(String cacheCategory, String userID) {
+    return RESPONSE + buildCacheKey(cacheCategory, userID);
+  }
+
   @Profiled(tag="http:DynamicContentResponseCache:save:{$0}", el=true)
   private void saveEntry(String cacheCategory, String key, String value) {
-    cache.put(key, value);
+    entries.put(key, value);
   }
-  
+
   @Profiled(tag="http:DynamicResponseCache:invalidation:{$0}", el=true)
-  private void invalidateEntry(String cacheCategory, String key) {
-    cache.remove(key);
+  private void invalidateEntry(String cacheCategory, String dependency) {
+    changed(dependency);
   }
-  
+
   @Profiled(tag="http:DynamicResponseCache:hit:{$0}")
   private void hitEntry(String cacheCategory, HttpServletResponse response) {
     response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
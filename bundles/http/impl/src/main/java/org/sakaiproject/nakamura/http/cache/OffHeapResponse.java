@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A cached response whose body is held in direct buffers, off the heap. Bodies of a
+ * compressible content type are also held gzipped, so a client that accepts gzip is sent
+ * the compressed body without compressing it again.
+ */
+public class OffHeapResponse {
+
+  /**
+   * Bodies smaller than this are not worth compressing.
+   */
+  static final int MIN_GZIP_SIZE = 256;
+  /**
+   * The largest body written from a per thread buffer in a single write.
+   */
+  private static final int MAX_WRITE_BUFFER = 1024 * 1024;
+  private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
+  private static final ThreadLocal<byte[]> WRITE_BUFFER = new ThreadLocal<byte[]>();
+
+  private final long expires;
+  private final Operation[] operations;
+  private final ByteBuffer identity;
+  private final ByteBuffer gzip;
+
+  private OffHeapResponse(long expires, Operation[] operations, ByteBuffer identity,
+      ByteBuffer gzip) {
+    this.expires = expires;
+    this.operations = operations;
+    this.identity = identity;
+    this.gzip = gzip;
+  }
+
+  /**
+   * @return the response captured, or null if the body could not be encoded.
+   * @throws IOException
+   */
+  public static OffHeapResponse create(OperationResponseCapture responseOperation,
+      int cacheAge) throws IOException {
+    long expires = System.currentTimeMillis() + cacheAge * 1000L;
+    responseOperation.setDateHeader("X-Nakamura-Cache", System.currentTimeMillis());
+    String contentType = null;
+    String charset = null;
+    boolean encoded = false;
+    // the content length is set when the response is replayed.
+    List<Operation> operations = new ArrayList<Operation>();
+    for (Operation o : responseOperation.getRedoLog()) {
+      switch (o.getOperation()) {
+      case OperationResponseCapture.SET_CONTENT_LENGTH:
+        continue;
+      case OperationResponseCapture.SET_CONTENT_TYPE:
+        contentType = o.get(0);
+        break;
+      case OperationResponseCapture.SET_CHARACTER_ENCODING:
+        charset = o.get(0);
+        break;
+      case OperationResponseCapture.ADD_HEADER:
+      case OperationResponseCapture.SET_HEADER:
+      case OperationResponseCapture.ADD_INT_HEADER:
+      case OperationResponseCapture.SET_INT_HEADER:
+        String name = o.get(0);
+        if ("content-length".equalsIgnoreCase(name)) {
+          continue;
+        }
+        if ("content-encoding".equalsIgnoreCase(name)) {
+          encoded = true;
+        }
+        break;
+      }
+      operations.add(o);
+    }
+
+    byte[] body = responseOperation.getByteContent();
+    if (body == null) {
+      String stringContent = responseOperation.getStringContent();
+      if (stringContent == null) {
+        body = new byte[0];
+      } else {
+        try {
+          body = stringContent.getBytes(getCharset(contentType, charset));
+        } catch (UnsupportedEncodingException e) {
+          return null;
+        }
+      }
+    }
+
+    ByteBuffer gzip = null;
+    if (!encoded && body.length >= MIN_GZIP_SIZE && isCompressible(contentType)) {
+      byte[] compressed = gzip(body);
+      if (compressed.length < body.length) {
+        gzip = toDirect(compressed);
+      }
+    }
+    return new OffHeapResponse(expires, operations.toArray(new Operation[operations.size()]),
+        toDirect(body), gzip);
+  }
+
+  public boolean isValid() {
+    return expires > System.currentTimeMillis();
+  }
+
+  /**
+   * @return the number of bytes held off heap.
+   */
+  public int getSize() {
+    return identity.capacity() + (gzip == null ? 0 : gzip.capacity());
+  }
+
+  /**
+   * Replay the headers and write the body.
+   *
+   * @param response
+   * @param acceptsGzip
+   *          true if the gzipped body may be sent.
+   * @return the number of body bytes written.
+   * @throws IOException
+   */
+  public int replay(HttpServletResponse response, boolean acceptsGzip) throws IOException {
+    new OperationResponseReplay(operations, null, null).replay(response);
+    ByteBuffer body = identity;
+    if (gzip != null) {
+      response.addHeader("Vary", "Accept-Encoding");
+      if (acceptsGzip) {
+        response.setHeader("Content-Encoding", "gzip");
+        body = gzip;
+      }
+    }
+    int length = body.capacity();
+    response.setContentLength(length);
+    write(body, response.getOutputStream());
+    return length;
+  }
+
+  /**
+   * Write a body in one write when it fits the per thread buffer, in chunks of that
+   * buffer when it does not.
+   */
+  private static void write(ByteBuffer body, OutputStream out) throws IOException {
+    ByteBuffer source = body.duplicate();
+    source.clear();
+    int remaining = source.remaining();
+    if (remaining == 0) {
+      return;
+    }
+    byte[] buffer = WRITE_BUFFER.get();
+    if (buffer == null || (buffer.length < remaining && buffer.length < MAX_WRITE_BUFFER)) {
+      buffer = new byte[Math.min(Math.max(remaining, 8192), MAX_WRITE_BUFFER)];
+      WRITE_BUFFER.set(buffer);
+    }
+    while (remaining > 0) {
+      int n = Math.min(remaining, buffer.length);
+      source.get(buffer, 0, n);
+      out.write(buffer, 0, n);
+      remaining -= n;
+    }
+  }
+
+  private static ByteBuffer toDirect(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+    buffer.put(bytes);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static byte[] gzip(byte[] body) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(body.length / 2);
+    // compressed once and served many times, so use the best compression.
+    GZIPOutputStream out = new GZIPOutputStream(baos) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    };
+    out.write(body);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * @return the charset the string content of a response is encoded with.
+   */
+  static String getCharset(String contentType, String characterEncoding)
+      throws UnsupportedEncodingException {
+    String charset = characterEncoding;
+    if (charset == null && contentType != null) {
+      int i = contentType.toLowerCase().indexOf("charset=");
+      if (i >= 0) {
+        charset = contentType.substring(i + "charset=".length());
+        int end = charset.indexOf(';');
+        if (end >= 0) {
+          charset = charset.substring(0, end);
+        }
+        charset = charset.trim();
+      }
+    }
+    if (charset == null) {
+      return DEFAULT_CHARSET;
+    }
+    try {
+      if (Charset.isSupported(charset)) {
+        return charset;
+      }
+    } catch (IllegalCharsetNameException e) {
+      // unsupported
+    } catch (UnsupportedCharsetException e) {
+      // unsupported
+    }
+    throw new UnsupportedEncodingException(charset);
+  }
+
+  static boolean isCompressible(String contentType) {
+    if (contentType == null) {
+      return false;
+    }
+    String ct = contentType.toLowerCase();
+    return ct.startsWith("text/") || ct.contains("javascript") || ct.contains("json")
+        || ct.contains("xml");
+  }
+
+  /**
+   * @return true if an Accept-Encoding header allows a gzipped response.
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        for (int i = 1; i < parts.length; i++) {
+          String param = parts[i].trim();
+          if (param.startsWith("q=")) {
+            try {
+              return Float.parseFloat(param.substring(2)) > 0.0f;
+            } catch (NumberFormatException e) {
+              return false;
+            }
+          }
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds cached responses, whose bodies are off heap, within a budget of bytes. When
+ * the budget is exceeded the least recently used responses are evicted.
+ */
+public class OffHeapResponseStore implements OffHeapResponseStoreMBean {
+
+  private final long maxBytes;
+
+  // guarded by this
+  private final LinkedHashMap<String, OffHeapResponse> responses = new LinkedHashMap<String, OffHeapResponse>(
+      64, 0.75f, true);
+  private long bytesResident;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong bytesServed = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public OffHeapResponseStore(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the response, or null if there is no valid response for the key.
+   */
+  public OffHeapResponse get(String key) {
+    OffHeapResponse response;
+    synchronized (this) {
+      response = responses.get(key);
+      if (response != null && !response.isValid()) {
+        remove(key);
+        response = null;
+      }
+    }
+    if (response == null) {
+      misses.incrementAndGet();
+    } else {
+      hits.incrementAndGet();
+    }
+    return response;
+  }
+
+  /**
+   * Store a response, evicting the least recently used responses to stay within the
+   * budget. A response larger than a quarter of the budget is not stored.
+   *
+   * @return true if the response was stored.
+   */
+  public synchronized boolean put(String key, OffHeapResponse response) {
+    long size = response.getSize();
+    if (size > maxBytes / 4) {
+      return false;
+    }
+    remove(key);
+    responses.put(key, response);
+    bytesResident += size;
+    Iterator<Entry<String, OffHeapResponse>> eldest = responses.entrySet().iterator();
+    while (bytesResident > maxBytes && eldest.hasNext()) {
+      OffHeapResponse evicted = eldest.next().getValue();
+      eldest.remove();
+      bytesResident -= evicted.getSize();
+      evictions.incrementAndGet();
+    }
+    return true;
+  }
+
+  /**
+   * Count bytes written from the cache.
+   */
+  public void served(long bytes) {
+    bytesServed.addAndGet(bytes);
+  }
+
+  public synchronized void clear() {
+    responses.clear();
+    bytesResident = 0;
+  }
+
+  private void remove(String key) {
+    OffHeapResponse removed = responses.remove(key);
+    if (removed != null) {
+      bytesResident -= removed.getSize();
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  public long getBytesServed() {
+    return bytesServed.get();
+  }
+
+  public synchronized long getBytesResident() {
+    return bytesResident;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public synchronized int getSize() {
+    return responses.size();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+}
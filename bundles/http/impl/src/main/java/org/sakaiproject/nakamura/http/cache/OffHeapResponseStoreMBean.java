@@ -0,0 +1,49 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+/**
+ * JMX view of the off heap static content cache, registered as
+ * <code>org.sakaiproject.nakamura:type=StaticContentResponseCache</code>.
+ */
+public interface OffHeapResponseStoreMBean {
+
+  long getHits();
+
+  long getMisses();
+
+  double getHitRatio();
+
+  /**
+   * @return the number of body bytes written from the cache.
+   */
+  long getBytesServed();
+
+  /**
+   * @return the number of bytes of response bodies held off heap.
+   */
+  long getBytesResident();
+
+  long getMaxBytes();
+
+  int getSize();
+
+  long getEvictions();
+
+  void clear();
+}
@@ -35,6 +35,7 @@ import org.sakaiproject.nakamura.api.http.cache.StaticContentResponseCache;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.regex.Pattern;
 
+import javax.management.ObjectName;
 import javax.servlet.Filter;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -86,6 +88,15 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
   @Property(boolValue = true)
   static final String BYPASS_CACHE_FOR_LOCALHOST = "bypass.cache.for.localhost";
 
+  /**
+   * The budget for response bodies held off heap, in MB. 0 keeps the responses in the
+   * heap cache instead.
+   */
+  @Property(intValue = 64)
+  static final String OFF_HEAP_SIZE = "sakai.cache.offheap.size";
+
+  static final String JMX_NAME = "org.sakaiproject.nakamura:type=StaticContentResponseCache";
+
   @Reference
   protected ExtHttpService extHttpService;
 
@@ -100,6 +111,10 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
 
   private Cache<CachedResponse> cache;
 
+  private OffHeapResponseStore offHeapStore;
+
+  private ObjectName registeredName;
+
   private boolean bypassForLocalhost;
 
   /**
@@ -223,6 +238,14 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
 
     cache = cacheManagerService.getCache(StaticContentResponseCache.class.getName() + "-cache",
         CacheScope.INSTANCE);
+    long offHeapSize = PropertiesUtil.toLong(properties.get(OFF_HEAP_SIZE), 64L);
+    unregisterStatistics();
+    if (offHeapSize > 0) {
+      offHeapStore = new OffHeapResponseStore(offHeapSize * 1024L * 1024L);
+      registerStatistics();
+    } else {
+      offHeapStore = null;
+    }
 
     if (disableForDevMode) {
       extHttpService.unregisterFilter(this);
@@ -237,13 +260,27 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
     if (cache != null) {
       cache.clear();
     }
+    if (offHeapStore != null) {
+      offHeapStore.clear();
+    }
   }
 
   @SuppressWarnings({"UnusedParameters", "UnusedDeclaration"})
   @Deactivate
   public void deactivate(ComponentContext componentContext) {
     extHttpService.unregisterFilter(this);
-    cache.clear();
+    unregisterStatistics();
+    clear();
+  }
+
+  private void registerStatistics() {
+    registeredName = JmxUtils.register(JMX_NAME, offHeapStore,
+        OffHeapResponseStoreMBean.class);
+  }
+
+  private void unregisterStatistics() {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
   }
 
   private boolean responseWasFiltered(HttpServletRequest request, HttpServletResponse response,
@@ -253,7 +290,17 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
       return false; // only GET is ever cacheable, and cacheConfig must exist and have a nonzero maxAge
     }
 
-    CachedResponse cachedResponse = getCachedResponse(request);
+    OffHeapResponseStore store = offHeapStore;
+    if (store != null) {
+      OffHeapResponse offHeapResponse = store.get(getCacheKey(request));
+      if (offHeapResponse != null) {
+        hitEntry(getCacheKey(request), response, offHeapResponse, store,
+            OffHeapResponse.acceptsGzip(request.getHeader("Accept-Encoding")));
+        return true;
+      }
+    }
+
+    CachedResponse cachedResponse = store == null ? getCachedResponse(request) : null;
 
     if (cachedResponse != null && cachedResponse.isValid()) {
       String key = getCacheKey(request);
@@ -266,7 +313,12 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
     FilterResponseWrapper filterResponseWrapper = new FilterResponseWrapper(response, false, false, true);
     filterChain.doFilter(request, filterResponseWrapper);
     filterResponseWrapper.setDateHeader("Expires", expires);
-    saveCachedResponse(request, filterResponseWrapper.getResponseOperation(), cacheConfig);
+    if (store != null) {
+      saveOffHeapResponse(request, filterResponseWrapper.getResponseOperation(), cacheConfig,
+          store);
+    } else {
+      saveCachedResponse(request, filterResponseWrapper.getResponseOperation(), cacheConfig);
+    }
     return true;
   }
 
@@ -297,6 +349,34 @@ public class StaticContentResponseCacheImpl implements Filter, StaticContentResp
     }
   }
   
+  private void saveOffHeapResponse(HttpServletRequest request,
+      OperationResponseCapture responseOperation, CacheConfig cacheConfig,
+      OffHeapResponseStore store) {
+    try {
+      if (responseOperation.canCache()) {
+        OffHeapResponse offHeapResponse = OffHeapResponse.create(responseOperation,
+            cacheConfig.getMaxAge());
+        if (offHeapResponse != null) {
+          saveEntry(getCacheKey(request), offHeapResponse, store);
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.info("Failed to save response in cache ", e);
+    }
+  }
+
+  @Profiled(tag="http:StaticContentResponseCacheImpl:hit:{$0}")
+  private void hitEntry(String key, HttpServletResponse response,
+      OffHeapResponse offHeapResponse, OffHeapResponseStore store, boolean acceptsGzip)
+      throws IOException {
+    store.served(offHeapResponse.replay(response, acceptsGzip));
+  }
+
+  @Profiled(tag="http:StaticContentResponseCacheImpl:save:{$0}")
+  private void saveEntry(String key, OffHeapResponse value, OffHeapResponseStore store) {
+    store.put(key, value);
+  }
+
   @Profiled(tag="http:StaticContentResponseCacheImpl:hit:{$0}")
   private void hitEntry(String key, HttpServletResponse response, CachedResponse cachedResponse)
       throws IOException {
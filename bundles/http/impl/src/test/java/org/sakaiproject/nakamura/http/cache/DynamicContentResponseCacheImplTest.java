@@ -18,11 +18,12 @@
 
 package org.sakaiproject.nakamura.http.cache;
 
+import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.anyString;
-import static org.mockito.Mockito.atMost;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -30,16 +31,22 @@ import junit.framework.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentContext;
-import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
+import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
 import java.util.Dictionary;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -47,80 +54,148 @@ import javax.servlet.http.HttpServletResponse;
 @RunWith(MockitoJUnitRunner.class)
 public class DynamicContentResponseCacheImplTest {
 
-  @Mock
-  private HttpServletRequest request;
-
-  @Mock
-  private HttpServletResponse response;
-
   @Mock
   private ComponentContext componentContext;
 
-  @Mock
-  private Cache<Object> cache;
+  private Cache<Object> entries;
+
+  private Cache<Object> versions;
 
   private DynamicContentResponseCacheImpl dynamicContentResponseCache;
 
   @Before
   public void setup() throws ServletException {
-    dynamicContentResponseCache = new DynamicContentResponseCacheImpl();
-    dynamicContentResponseCache.cacheManagerService = mock(CacheManagerService.class);
-    when(dynamicContentResponseCache.cacheManagerService.getCache(DynamicContentResponseCache.class.getName() + "-cache", CacheScope.INSTANCE)).thenReturn(cache);
+    entries = new MapCacheImpl<Object>("entries", CacheScope.CLUSTERREPLICATED);
+    versions = new MapCacheImpl<Object>("versions", CacheScope.CLUSTERREPLICATED);
+    dynamicContentResponseCache = newCache();
+  }
 
+  private DynamicContentResponseCacheImpl newCache() throws ServletException {
+    DynamicContentResponseCacheImpl cache = new DynamicContentResponseCacheImpl();
+    cache.cacheManagerService = mock(CacheManagerService.class);
+    when(cache.cacheManagerService.getCache(DynamicContentResponseCacheImpl.ENTRIES_CACHE,
+        CacheScope.CLUSTERREPLICATED)).thenReturn(entries);
+    when(cache.cacheManagerService.getCache(DynamicContentResponseCacheImpl.VERSIONS_CACHE,
+        CacheScope.CLUSTERREPLICATED)).thenReturn(versions);
 
     Dictionary<String, Object> properties = new Hashtable<String, Object>();
     when(componentContext.getProperties()).thenReturn(properties);
 
-    dynamicContentResponseCache.activate(componentContext);
+    cache.activate(componentContext);
+    return cache;
+  }
+
+  private HttpServletRequest request(String user, String etag) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn(user);
+    when(request.getPathInfo()).thenReturn("/foo/bar/baz");
+    when(request.getHeader("If-None-Match")).thenReturn(etag);
+    // request attributes
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return attributes.get(invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(request).setAttribute(anyString(), anyObject());
+    return request;
+  }
+
+  /**
+   * Handle a request the way a caching servlet does.
+   *
+   * @return the ETag sent with the response, or null if a 304 was sent.
+   */
+  private String get(DynamicContentResponseCacheImpl cache, String cat, String user,
+      String etag, String... contentDependencies) {
+    HttpServletRequest request = request(user, etag);
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    if (cache.send304WhenClientHasFreshETag(cat, request, response)) {
+      verify(response).setStatus(304);
+      return null;
+    }
+    cache.addAuthorizableDependency(request, user);
+    for (String path : contentDependencies) {
+      cache.addContentDependency(request, path);
+    }
+    cache.recordResponse(cat, request, response);
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(response).setHeader(eq("ETag"), captor.capture());
+    verify(response, never()).setStatus(304);
+    return captor.getValue();
   }
 
   @Test
   public void recordResponseAndInvalidate() {
     String cat = "TestCat";
     String user = "joe";
-    when(request.getPathInfo()).thenReturn("/foo/bar/baz");
-    when(request.getRemoteUser()).thenReturn(user);
-
-    when(cache.containsKey(dynamicContentResponseCache.buildCacheKey(cat, user))).thenReturn(false);
-    dynamicContentResponseCache.recordResponse(cat, request, response);
-    when(cache.get(dynamicContentResponseCache.buildCacheKey(cat, user))).thenReturn("foo");
-    dynamicContentResponseCache.recordResponse(cat, request, response);
-    verify(cache, times(2)).get(anyString());
-    verify(cache, atMost(1)).put(anyString(), anyString());
-    verify(response, times(4)).setHeader(anyString(), anyString());
-    when(cache.containsKey(dynamicContentResponseCache.buildCacheKey(cat, user))).thenReturn(true);
+    String etag = get(dynamicContentResponseCache, cat, user, null);
+    Assert.assertNotNull(etag);
+    Assert.assertNull(get(dynamicContentResponseCache, cat, user, etag));
     dynamicContentResponseCache.invalidate(cat, user);
-    verify(cache).remove(anyString());
+    String newEtag = get(dynamicContentResponseCache, cat, user, etag);
+    Assert.assertNotNull(newEtag);
+    Assert.assertFalse(etag.equals(newEtag));
+    // invalidating a category also invalidates everything cached for the user.
+    String batchEtag = get(dynamicContentResponseCache, "*", user, null);
+    dynamicContentResponseCache.invalidate(cat, user);
+    Assert.assertNotNull(get(dynamicContentResponseCache, "*", user, batchEtag));
   }
 
   @Test
-  public void clientHasFreshETag() {
-    when(request.getHeader("If-None-Match")).thenReturn("myetag");
-    when(cache.get(anyString())).thenReturn("myetag");
-    Assert.assertTrue(dynamicContentResponseCache.send304WhenClientHasFreshETag("cat", request, response));
-    verify(response).setStatus(304);
+  public void sameETagOnEveryServer() throws ServletException {
+    String etag = get(dynamicContentResponseCache, "cat", "joe", null);
+    DynamicContentResponseCacheImpl other = newCache();
+    Assert.assertNull(get(other, "cat", "joe", etag));
+  }
+
+  @Test
+  public void dependencyChanged() {
+    String etag = get(dynamicContentResponseCache, "cat", "joe", null, "a:joe");
+    // untracked content does not change the ETag, nor is it tracked.
+    dynamicContentResponseCache.handleEvent(event("content/UPDATED", "a:fred/private"));
+    Assert.assertFalse(versions.containsKey("content:a:fred"));
+    Assert.assertNull(get(dynamicContentResponseCache, "cat", "joe", etag, "a:joe"));
+
+    // content below a dependency does.
+    dynamicContentResponseCache.handleEvent(event("content/ADDED", "a:joe/message/1"));
+    String newEtag = get(dynamicContentResponseCache, "cat", "joe", etag, "a:joe");
+    Assert.assertNotNull(newEtag);
+    Assert.assertNull(get(dynamicContentResponseCache, "cat", "joe", newEtag, "a:joe"));
+
+    // as does the authorizable.
+    dynamicContentResponseCache.handleEvent(event("authorizables/UPDATED", "joe"));
+    Assert.assertNotNull(get(dynamicContentResponseCache, "cat", "joe", newEtag, "a:joe"));
   }
 
   @Test
   public void clientLacksETag() {
-    when(request.getHeader("If-None-Match")).thenReturn(null);
-    when(cache.get(anyString())).thenReturn("myetag");
-    Assert.assertFalse(dynamicContentResponseCache.send304WhenClientHasFreshETag("cat", request, response));
-    verify(response, never()).setStatus(304);
+    get(dynamicContentResponseCache, "cat", "joe", null);
+    Assert.assertNotNull(get(dynamicContentResponseCache, "cat", "joe", null));
   }
 
   @Test
   public void clientHasOldETag() {
-    when(request.getHeader("If-None-Match")).thenReturn("oldetag");
-    when(cache.get(anyString())).thenReturn("myetag");
-    Assert.assertFalse(dynamicContentResponseCache.send304WhenClientHasFreshETag("cat", request, response));
-    verify(response, never()).setStatus(304);
+    get(dynamicContentResponseCache, "cat", "joe", null);
+    Assert.assertNotNull(get(dynamicContentResponseCache, "cat", "joe", "oldetag"));
   }
 
   @Test
   public void clear() {
+    String etag = get(dynamicContentResponseCache, "cat", "joe", null);
     dynamicContentResponseCache.clear();
-    verify(cache).clear();
+    Assert.assertNotNull(get(dynamicContentResponseCache, "cat", "joe", etag));
+  }
+
+  private Event event(String topic, String path) {
+    Dictionary<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    return new Event("org/sakaiproject/nakamura/lite/" + topic, properties);
   }
 
 }
@@ -0,0 +1,164 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.http.cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+@RunWith(MockitoJUnitRunner.class)
+public class OffHeapResponseTest {
+
+  @Mock
+  private HttpServletResponse response;
+
+  private ByteArrayOutputStream written;
+
+  @Before
+  public void setup() throws IOException {
+    written = new ByteArrayOutputStream();
+    when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        written.write(b);
+      }
+    });
+  }
+
+  private OffHeapResponse capture(String contentType, String body) throws IOException {
+    OperationResponseCapture capture = new OperationResponseCapture();
+    capture.setContentType(contentType);
+    capture.setContentLength(body.length());
+    PrintWriter writer = capture.getWriter(new PrintWriter(new StringWriter()));
+    writer.write(body);
+    return OffHeapResponse.create(capture, 60);
+  }
+
+  private String text(int length) {
+    StringBuilder sb = new StringBuilder(length);
+    while (sb.length() < length) {
+      sb.append("var x = 'some repetitive javascript';\n");
+    }
+    return sb.substring(0, length);
+  }
+
+  @Test
+  public void testReplaysIdentity() throws IOException {
+    String body = text(1000);
+    OffHeapResponse offHeapResponse = capture("application/javascript", body);
+    assertTrue(offHeapResponse.isValid());
+    int n = offHeapResponse.replay(response, false);
+    assertEquals(1000, n);
+    assertEquals(body, written.toString("ISO-8859-1"));
+    verify(response).setContentType("application/javascript");
+    verify(response).setContentLength(1000);
+    verify(response).addHeader("Vary", "Accept-Encoding");
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+  }
+
+  @Test
+  public void testReplaysGzip() throws IOException {
+    String body = text(1000);
+    OffHeapResponse offHeapResponse = capture("text/css; charset=UTF-8", body);
+    int n = offHeapResponse.replay(response, true);
+    assertTrue(n < 1000);
+    verify(response).setHeader("Content-Encoding", "gzip");
+    verify(response).setContentLength(n);
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(written.toByteArray()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] b = new byte[1024];
+    for (int i = in.read(b); i >= 0; i = in.read(b)) {
+      out.write(b, 0, i);
+    }
+    assertArrayEquals(body.getBytes("UTF-8"), out.toByteArray());
+  }
+
+  @Test
+  public void testNoGzipForSmallOrBinary() throws IOException {
+    OffHeapResponse small = capture("text/html", "<p>small</p>");
+    small.replay(response, true);
+    OffHeapResponse binary = capture("image/png", text(1000));
+    binary.replay(response, true);
+    verify(response, never()).setHeader("Content-Encoding", "gzip");
+    verify(response, never()).addHeader("Vary", "Accept-Encoding");
+    assertEquals(12, small.getSize());
+    assertEquals(1000, binary.getSize());
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(OffHeapResponse.acceptsGzip("gzip, deflate"));
+    assertTrue(OffHeapResponse.acceptsGzip("deflate;q=1.0, gzip;q=0.5"));
+    assertTrue(OffHeapResponse.acceptsGzip("x-gzip"));
+    assertFalse(OffHeapResponse.acceptsGzip("gzip;q=0"));
+    assertFalse(OffHeapResponse.acceptsGzip("identity"));
+    assertFalse(OffHeapResponse.acceptsGzip(null));
+  }
+
+  @Test
+  public void testCharset() throws IOException {
+    assertEquals("UTF-8", OffHeapResponse.getCharset("text/html; charset=UTF-8; x=y", null));
+    assertEquals("UTF-16", OffHeapResponse.getCharset("text/html; charset=UTF-8", "UTF-16"));
+    assertEquals("ISO-8859-1", OffHeapResponse.getCharset("text/html", null));
+    assertNull(capture("text/html; charset=nonesuch", "x"));
+  }
+
+  @Test
+  public void testStoreEvictsLeastRecentlyUsed() throws IOException {
+    OffHeapResponseStore store = new OffHeapResponseStore(4000);
+    assertFalse(store.put("big", capture("image/png", text(1001))));
+    for (int i = 0; i < 4; i++) {
+      assertTrue(store.put("/" + i, capture("image/png", text(1000))));
+    }
+    assertEquals(4000, store.getBytesResident());
+    // touch the eldest so the next is evicted instead.
+    assertNotNull(store.get("/0"));
+    store.put("/4", capture("image/png", text(1000)));
+    assertEquals(1, store.getEvictions());
+    assertNull(store.get("/1"));
+    assertNotNull(store.get("/0"));
+    assertEquals(4, store.getSize());
+    assertEquals(2, store.getHits());
+    assertEquals(1, store.getMisses());
+    store.clear();
+    assertEquals(0, store.getBytesResident());
+    assertEquals(0, store.getSize());
+  }
+}
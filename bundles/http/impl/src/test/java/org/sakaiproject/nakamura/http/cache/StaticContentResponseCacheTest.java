@@ -102,6 +102,8 @@ public class StaticContentResponseCacheTest {
         "dev;3456000",
         "devwidgets;3456000",
         "cacheable;3456000"});
+    // these tests cover the heap cache.
+    properties.put(StaticContentResponseCacheImpl.OFF_HEAP_SIZE, 0);
     when(componentContext.getProperties()).thenReturn(properties);
     staticContentResponseCache.extHttpService = extHttpService;
     staticContentResponseCache.activate(componentContext);
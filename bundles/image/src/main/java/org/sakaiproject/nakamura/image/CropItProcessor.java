@@ -24,7 +24,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -35,18 +34,30 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.image.DerivativeCache.Derivative;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.jcr.Binary;
@@ -59,6 +70,65 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * Property on a saved derivative recording the source, crop box and size it was made
+   * from, so the same crop is not made and written again.
+   */
+  static final String CROP_KEY = "sakai:cropKey";
+
+  static final DerivativeCache DERIVATIVES = new DerivativeCache(
+      DerivativeCache.DEFAULT_MAX_BYTES);
+
+  /**
+   * Scales the sizes of a crop in parallel, between {@link #startScaling()} and
+   * {@link #stopScaling()}. The pool is small and when its queue is full, or it has been
+   * stopped, the requesting thread does the work itself, so a burst of crops can't take
+   * over the server. Idle threads time out.
+   */
+  private static ThreadPoolExecutor scalingExecutor;
+
+  /**
+   * Start the threads that scale the sizes of a crop in parallel, called when the crop
+   * servlet is activated.
+   */
+  static synchronized void startScaling() {
+    if (scalingExecutor != null) {
+      return;
+    }
+    int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    final AtomicInteger threadNumber = new AtomicInteger();
+    scalingExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(64), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "CropIt-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        }, new RejectedExecutionHandler() {
+          public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            // unlike CallerRunsPolicy this also runs the task once the pool is shut
+            // down, so nobody waits for a task that was dropped.
+            r.run();
+          }
+        });
+    scalingExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Stop the scaling threads, called when the crop servlet is deactivated. Crops in
+   * progress finish, later crops are scaled in the requesting thread.
+   */
+  static synchronized void stopScaling() {
+    if (scalingExecutor != null) {
+      scalingExecutor.shutdown();
+      scalingExecutor = null;
+    }
+  }
+
+  private static synchronized ThreadPoolExecutor getScalingExecutor() {
+    return scalingExecutor;
+  }
+
   /**
    *
    * @param session
@@ -99,6 +169,8 @@ public class CropItProcessor {
     try {
       String mimeType = "unknown";
       String imgName = "";
+      // Identifies the bytes of the image, null if we can't tell when they change.
+      String sourceId = null;
       Resource imgResource = resourceResolver.getResource(img);
       if (imgResource instanceof SparseContentResource) {
       Content imgContent = imgResource.adaptTo(Content.class);
@@ -112,6 +184,8 @@ public class CropItProcessor {
         if (!imgContent.hasProperty("_bodyLocation")) {
           throw new ImageException(500, "Invalid image");
         }
+        // bodies are written to a new location each time they change.
+        sourceId = imgPath + ":" + imgContent.getProperty("_bodyLocation");
         in = contentManager.getInputStream(imgPath);
       } else {
         Node imgNode = imgResource.adaptTo(Node.class);
@@ -120,75 +194,110 @@ public class CropItProcessor {
         }
         imgName = imgNode.getName();
         Node imgDataNode = imgNode.getNode(JCRConstants.JCR_CONTENT);
+        if (imgDataNode.hasProperty(JCRConstants.JCR_LASTMODIFIED)) {
+          sourceId = imgDataNode.getPath() + ":"
+              + imgDataNode.getProperty(JCRConstants.JCR_LASTMODIFIED).getLong();
+        }
         Binary content = imgDataNode.getProperty(JCRConstants.JCR_DATA).getBinary();
         in = content.getStream();
 
+      }
+      if (in == null) {
+        throw new ImageException(500, "Unable to read image in order to crop it.");
       }
 
-        if ( in.available() > 100L*1024L*1024L ) {
-          throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
-        }
         try {
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
+          SourceImage source = SourceImage.open(in);
+          try {
+            int imgWidth = source.getWidth();
+            int imgHeight = source.getHeight();
 
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
-
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
+            // Set the correct width & height.
+            width = (width <= 0) ? imgWidth : width;
+            height = (height <= 0) ? imgHeight : height;
 
-          // Loop the dimensions and create and save an image for each
-          // one.
-          for (int i = 0; i < dimensions.size(); i++) {
-
-            Dimension d = dimensions.get(i);
+            if (x + width > imgWidth) {
+              width = imgWidth - x;
+            }
+            if (y + height > imgHeight) {
+              height = imgHeight - y;
+            }
+            if (width <= 0 || height <= 0) {
+              throw new ImageException(400, "The area to crop lies outside image " + img);
+            }
+            String cropBox = x + "," + y + "," + width + "x" + height;
 
-            // get dimension size
-            int iWidth = d.width;
-            int iHeight = d.height;
+            // Work out which sizes still have to be made, derivatives that have already
+            // been saved or are in the cache are not scaled again.
+            List<Integer> pending = new ArrayList<Integer>();
+            List<Dimension> targets = new ArrayList<Dimension>();
+            String[] keys = new String[dimensions.size()];
+            int maxWidth = 0;
+            int maxHeight = 0;
+            for (int i = 0; i < dimensions.size(); i++) {
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
+              Dimension d = dimensions.get(i);
 
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+              // get dimension size
+              int iWidth = d.width;
+              int iHeight = d.height;
 
-            if ( image != null ) {
+              iWidth = (iWidth <= 0) ? imgWidth : iWidth;
+              iHeight = (iHeight <= 0) ? imgHeight : iHeight;
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
-              // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
-
               arrFiles[i] = sPath;
-            } else {
-              LOGGER.warn("Failed to scale image "+img+" to "+iWidth+" by "+iHeight+" defaulting to full size");
-              arrFiles[i] = img;
+              if (sourceId != null) {
+                keys[i] = sourceId + "|" + cropBox + "|" + iWidth + "x" + iHeight;
+                if (isSaved(contentManager, sPath, keys[i])) {
+                  continue;
+                }
+                Derivative cached = DERIVATIVES.get(keys[i]);
+                if (cached != null) {
+                  saveImageToContentStore(sPath, cached.mimeType, cached.data, keys[i],
+                      session);
+                  continue;
+                }
+              }
+              pending.add(i);
+              targets.add(new Dimension(iWidth, iHeight));
+              maxWidth = Math.max(maxWidth, iWidth);
+              maxHeight = Math.max(maxHeight, iHeight);
+            }
+
+            if (!pending.isEmpty()) {
+              // Cut the desired piece out of the image.
+              BufferedImage subImage = source.read(new Rectangle(x, y, width, height),
+                  getSubsampling(width, height, maxWidth, maxHeight));
+
+              // Create an image for each size and save it.
+              List<Derivative> images = scaleAndWriteToByteArrays(targets, subImage, source);
+              for (int j = 0; j < pending.size(); j++) {
+                int i = pending.get(j);
+                Derivative image = images.get(j);
+                if ( image != null ) {
+                  if (keys[i] != null) {
+                    DERIVATIVES.put(keys[i], image);
+                  }
+                  // Save new image to JCR.
+                  saveImageToContentStore(arrFiles[i], image.mimeType, image.data, keys[i],
+                      session);
+                } else {
+                  Dimension d = targets.get(j);
+                  LOGGER.warn("Failed to scale image "+img+" to "+d.width+" by "+d.height+" defaulting to full size");
+                  arrFiles[i] = img;
+                }
+              }
             }
+          } finally {
+            source.close();
           }
         } catch (ImageReadException e) {
           // This is not a valid image.
           LOGGER.error("Can't parse this format. Image {}, mime Type {} :{}", new Object[]{img, mimeType, e.getMessage()});
           LOGGER.debug("Cause: ", e);
           throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
-        } catch (ImageWriteException e) {
-          LOGGER.error("Can't crop this Image {}, mime Type {}  :{} ", new Object[]{img, mimeType, e.getMessage()});
-          LOGGER.debug("Cause: ", e);
-          throw new ImageException(406, "Can't crop this Image "+img+", mime Type "+mimeType);
         }
 
     } catch (IOException e) {
@@ -256,11 +365,13 @@ public class CropItProcessor {
    *          The Mime type of the node that will be saved.
    * @param out
    *          The stream you wish to save.
+   * @param key
+   *          The key of the crop the image was made from, may be null.
    * @throws ImageException
    * @throws StorageClientException
    */
   protected static void saveImageToContentStore(String path, String mimetype,
-      byte[] image, Session session) throws ImageException, StorageClientException {
+      byte[] image, String key, Session session) throws ImageException, StorageClientException {
     ContentManager contentManager = session.getContentManager();
 
     ByteArrayInputStream bais = null;
@@ -268,6 +379,9 @@ public class CropItProcessor {
       Content node = contentManager.get(path);
       if (node != null) {
         node.setProperty("mimeType", mimetype);
+        if (node.hasProperty(CROP_KEY)) {
+          node.removeProperty(CROP_KEY);
+        }
         contentManager.update(node);
       } else {
         contentManager.update(new Content(path, ImmutableMap.of("mimeType", (Object)mimetype)));
@@ -275,6 +389,12 @@ public class CropItProcessor {
       // convert stream to inputstream
       bais = new ByteArrayInputStream(image);
       contentManager.writeBody(path, bais);
+      if (key != null) {
+        // only record the key once the body is written.
+        node = contentManager.get(path);
+        node.setProperty(CROP_KEY, key);
+        contentManager.update(node);
+      }
 
     } catch (Exception e) {
       LOGGER.warn("Repository exception: " + e.getMessage());
@@ -291,51 +411,107 @@ public class CropItProcessor {
   }
 
   /**
-   * This method will scale an image to a desired width and height and shall output the
-   * stream of that scaled image.
+   * Scale an image to a desired width and height and encode it in the format of the
+   * source image, or as png if it can't be encoded in that format.
    *
-   * @param width
-   *          The desired width of the scaled image.
-   * @param height
-   *          The desired height of the scaled image.
-   * @param img
-   *          The image that you want to scale
-   * @param imgName
-   *          Filename of the image
-   * @param info
-   *          The {@link ImageInfo info} for this image.
-   * @return Returns an {@link ByteArrayOutputStream ByteArrayOutputStream} of the scaled
-   *         image.
-   * @throws IOException
-   * @throws ImageWriteException
-   *           Failed to write the cropped image to the stream.
+   * @return the encoded image or null if it could not be scaled.
    */
-  protected static byte[] scaleAndWriteToByteArray(int width, int height,
-      BufferedImage img, String imgName, ImageInfo info) throws IOException,
-      ImageWriteException {
+  static Derivative scaleAndWriteToByteArray(int width, int height, BufferedImage img,
+      SourceImage source) {
     try {
-      // Get a scaled image.
       BufferedImage imgScaled = getScaledInstance(img, width, height);
-
-      // Convert image to a stream
-      ByteArrayOutputStream out = new ByteArrayOutputStream();
-
-      // Write to stream.
-      if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
-        ImageIO.write(imgScaled, "jpg", out);
-      } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
-        ImageIO.write(imgScaled, "png", out);
-      } else {
-        Sanselan.writeImage(imgScaled, out, info.getFormat(), null);
-      }
-      out.close();
-      return out.toByteArray();
+      return source.encode(imgScaled);
     } catch (Exception e) {
       LOGGER.error("Failed to process image "+e.getMessage(), e);
     }
     return null;
   }
 
+  /**
+   * Scale an image to each of the sizes, in parallel when there is more than one.
+   *
+   * @return the encoded images in the order of the sizes, null where an image could not
+   *         be scaled.
+   * @throws ImageException
+   *           if interrupted while waiting for the images.
+   */
+  static List<Derivative> scaleAndWriteToByteArrays(List<Dimension> sizes,
+      final BufferedImage img, final SourceImage source) throws ImageException {
+    ThreadPoolExecutor executor = getScalingExecutor();
+    if (sizes.size() == 1 || executor == null) {
+      List<Derivative> images = new ArrayList<Derivative>(sizes.size());
+      for (Dimension d : sizes) {
+        images.add(scaleAndWriteToByteArray(d.width, d.height, img, source));
+      }
+      return images;
+    }
+    List<Future<Derivative>> futures = new ArrayList<Future<Derivative>>(sizes.size());
+    for (final Dimension d : sizes) {
+      futures.add(executor.submit(new Callable<Derivative>() {
+        public Derivative call() throws Exception {
+          return scaleAndWriteToByteArray(d.width, d.height, img, source);
+        }
+      }));
+    }
+    List<Derivative> images = new ArrayList<Derivative>(sizes.size());
+    for (Future<Derivative> future : futures) {
+      try {
+        images.add(future.get());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        for (Future<Derivative> f : futures) {
+          f.cancel(true);
+        }
+        throw new ImageException(500, "Interrupted while scaling image.");
+      } catch (ExecutionException e) {
+        LOGGER.error("Failed to process image " + e.getMessage(), e.getCause());
+        images.add(null);
+      }
+    }
+    return images;
+  }
+
+  /**
+   * Write an image in the format described by info.
+   */
+  protected static void writeImage(BufferedImage img, ImageInfo info, OutputStream out)
+      throws IOException, ImageWriteException {
+    if (info.getFormat() == ImageFormat.IMAGE_FORMAT_JPEG) {
+      if (!ImageIO.write(img, "jpg", out)) {
+        throw new ImageWriteException("No jpg writer for this image");
+      }
+    } else if (info.getFormat() == ImageFormat.IMAGE_FORMAT_PNG) {
+      if (!ImageIO.write(img, "png", out)) {
+        throw new ImageWriteException("No png writer for this image");
+      }
+    } else {
+      Sanselan.writeImage(img, out, info.getFormat(), null);
+    }
+  }
+
+  /**
+   * Work out how much of the crop box has to be decoded. The box is subsampled while it
+   * stays at least twice the largest target, leaving the final passes to
+   * {@link #getScaledInstance(BufferedImage, int, int)} for quality.
+   *
+   * @return the subsampling factor, 1 for none.
+   */
+  static int getSubsampling(int width, int height, int targetWidth, int targetHeight) {
+    if (targetWidth <= 0 || targetHeight <= 0) {
+      return 1;
+    }
+    return Math.max(1, Math.min(width / (2 * targetWidth), height / (2 * targetHeight)));
+  }
+
+  /**
+   * @return true if the derivative at path was made from the crop with this key.
+   */
+  private static boolean isSaved(ContentManager contentManager, String path, String key)
+      throws StorageClientException, AccessDeniedException {
+    Content content = contentManager.get(path);
+    return content != null && key.equals(content.getProperty(CROP_KEY));
+  }
+
 
   /**
    * Image scaling routine as prescribed by
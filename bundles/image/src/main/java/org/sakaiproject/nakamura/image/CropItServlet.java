@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
@@ -78,6 +80,16 @@ public class CropItServlet extends SlingAllMethodsServlet {
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Activate
+  protected void activate() {
+    CropItProcessor.startScaling();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    CropItProcessor.stopScaling();
+  }
+
   /**
    * {@inheritDoc}
    * 
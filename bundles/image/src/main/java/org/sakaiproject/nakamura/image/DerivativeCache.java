@@ -0,0 +1,101 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * A least recently used cache of encoded image derivatives, bounded by the number of
+ * bytes it holds. Keys identify the source body, the crop box and the target size, so
+ * entries never need invalidating, a changed source gets a new key.
+ */
+class DerivativeCache {
+
+  static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+
+  static class Derivative {
+    final byte[] data;
+    final String mimeType;
+
+    Derivative(byte[] data, String mimeType) {
+      this.data = data;
+      this.mimeType = mimeType;
+    }
+  }
+
+  private final long maxBytes;
+  private final LinkedHashMap<String, Derivative> entries = new LinkedHashMap<String, Derivative>(
+      16, 0.75f, true);
+  private long bytes;
+  private long hits;
+  private long misses;
+
+  DerivativeCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  synchronized Derivative get(String key) {
+    Derivative d = entries.get(key);
+    if (d == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return d;
+  }
+
+  synchronized void put(String key, Derivative derivative) {
+    if (derivative.data.length > maxBytes / 4) {
+      // a single large image would flush everything else.
+      return;
+    }
+    Derivative previous = entries.put(key, derivative);
+    if (previous != null) {
+      bytes -= previous.data.length;
+    }
+    bytes += derivative.data.length;
+    Iterator<Entry<String, Derivative>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().getValue().data.length;
+      eldest.remove();
+    }
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import org.apache.sanselan.ImageInfo;
+import org.apache.sanselan.ImageReadException;
+import org.apache.sanselan.ImageWriteException;
+import org.apache.sanselan.Sanselan;
+import org.sakaiproject.nakamura.image.DerivativeCache.Derivative;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * The image being cropped. Formats ImageIO can read are decoded from the stream, only
+ * the crop box is decoded and it is subsampled when the targets are much smaller than
+ * the box. Other formats fall back to decoding the whole image with Sanselan.
+ */
+class SourceImage {
+
+  /**
+   * Images that would decode to more pixels than this, about 100MB of ARGB, are
+   * rejected rather than risk running the server out of heap.
+   */
+  static final long MAX_DECODED_PIXELS = 25L * 1024L * 1024L;
+
+  /**
+   * Limit on the encoded size of images that have to be read into memory for Sanselan.
+   */
+  static final long MAX_ENCODED_BYTES = 100L * 1024L * 1024L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SourceImage.class);
+
+  private final ImageInputStream iis;
+  private final ImageReader reader;
+  private final String writerFormat;
+  private final byte[] bytes;
+  private final ImageInfo info;
+  private final int width;
+  private final int height;
+  private final String mimeType;
+
+  private SourceImage(ImageInputStream iis, ImageReader reader) throws IOException {
+    this.iis = iis;
+    this.reader = reader;
+    this.bytes = null;
+    this.info = null;
+    this.width = reader.getWidth(0);
+    this.height = reader.getHeight(0);
+    String format = reader.getFormatName().toLowerCase();
+    String type = null;
+    ImageReaderSpi provider = reader.getOriginatingProvider();
+    if (provider != null && provider.getMIMETypes() != null
+        && provider.getMIMETypes().length > 0) {
+      type = provider.getMIMETypes()[0];
+    }
+    if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+      format = "png";
+      type = "image/png";
+    }
+    this.writerFormat = format;
+    this.mimeType = type == null ? "image/" + format : type;
+  }
+
+  private SourceImage(byte[] bytes) throws ImageReadException, IOException {
+    this.iis = null;
+    this.reader = null;
+    this.writerFormat = null;
+    this.bytes = bytes;
+    this.info = Sanselan.getImageInfo(bytes);
+    this.width = info.getWidth();
+    this.height = info.getHeight();
+    this.mimeType = info.getMimeType();
+  }
+
+  /**
+   * Read the header of the image. Only the dimensions and format are known after this,
+   * the pixels are decoded by {@link #read(Rectangle, int)}.
+   */
+  static SourceImage open(InputStream in) throws IOException, ImageReadException,
+      ImageException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis != null) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+      if (readers.hasNext()) {
+        ImageReader reader = readers.next();
+        reader.setInput(iis, true, true);
+        try {
+          return new SourceImage(iis, reader);
+        } catch (IOException e) {
+          LOGGER.debug("ImageIO could not read the header, trying Sanselan {} ",
+              e.getMessage());
+          reader.dispose();
+        }
+      }
+      // the stream caches what has been read, so go back and read the lot.
+      iis.seek(0);
+      byte[] bytes = readAll(iis);
+      iis.close();
+      return new SourceImage(bytes);
+    }
+    return new SourceImage(readAll(in));
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Decode a region of the image.
+   *
+   * @param region
+   *          the region to decode, which must lie within the image.
+   * @param subsampling
+   *          keep every nth pixel of every nth row, 1 to keep all of them. Ignored for
+   *          images that are not read through ImageIO.
+   * @return the decoded region.
+   * @throws ImageException
+   *           if the decoded image would be too large.
+   */
+  BufferedImage read(Rectangle region, int subsampling) throws IOException,
+      ImageReadException, ImageException {
+    if (reader == null) {
+      checkSize((long) width * height);
+      return CropItProcessor.getBufferedImage(bytes, info).getSubimage(region.x,
+          region.y, region.width, region.height);
+    }
+    long decodedWidth = (region.width + subsampling - 1) / subsampling;
+    long decodedHeight = (region.height + subsampling - 1) / subsampling;
+    checkSize(decodedWidth * decodedHeight);
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(region);
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    BufferedImage image = reader.read(0, param);
+    if (image.getType() == BufferedImage.TYPE_CUSTOM) {
+      // the scaling code needs a type it can create copies of.
+      BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(),
+          image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+              : BufferedImage.TYPE_INT_RGB);
+      Graphics2D g2 = converted.createGraphics();
+      g2.drawImage(image, 0, 0, null);
+      g2.dispose();
+      image = converted;
+    }
+    return image;
+  }
+
+  /**
+   * Encode an image in the format of the source, or as png when there is no writer for
+   * that format and this image, e.g. a jpeg with an alpha channel.
+   *
+   * @return the encoded image and the mime type it was actually encoded as.
+   * @throws ImageWriteException
+   *           if the image could not be encoded at all.
+   */
+  Derivative encode(BufferedImage image) throws IOException, ImageWriteException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (reader == null) {
+      try {
+        CropItProcessor.writeImage(image, info, out);
+        if (out.size() > 0) {
+          return new Derivative(out.toByteArray(), mimeType);
+        }
+      } catch (ImageWriteException e) {
+        LOGGER.debug("Unable to write {}, writing png {} ", mimeType, e.getMessage());
+      }
+    } else if (ImageIO.write(image, writerFormat, out) && out.size() > 0) {
+      return new Derivative(out.toByteArray(), mimeType);
+    }
+    out.reset();
+    if (!ImageIO.write(image, "png", out) || out.size() == 0) {
+      throw new ImageWriteException("Unable to encode image as " + mimeType + " or png");
+    }
+    return new Derivative(out.toByteArray(), "image/png");
+  }
+
+  void close() {
+    if (reader != null) {
+      reader.dispose();
+      try {
+        iis.close();
+      } catch (IOException e) {
+        LOGGER.debug("Exception closing image stream.");
+      }
+    }
+  }
+
+  private void checkSize(long pixels) throws ImageException {
+    if (pixels > MAX_DECODED_PIXELS) {
+      throw new ImageException(406, "Image too large to crop, " + width + "x" + height);
+    }
+  }
+
+  private static byte[] readAll(ImageInputStream iis) throws IOException, ImageException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+      checkEncodedSize(out.size());
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException, ImageException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+      checkEncodedSize(out.size());
+    }
+    return out.toByteArray();
+  }
+
+  private static void checkEncodedSize(long size) throws ImageException {
+    if (size > MAX_ENCODED_BYTES) {
+      throw new ImageException(406, "Image too large to crop > 100MB");
+    }
+  }
+}
@@ -18,16 +18,16 @@
 package org.sakaiproject.nakamura.image;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.apache.jackrabbit.api.JackrabbitSession;
-import org.apache.sanselan.ImageFormat;
-import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
-import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.junit.Before;
@@ -42,11 +42,14 @@ import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.imageio.ImageIO;
@@ -134,19 +137,119 @@ public class CropItProcessorTest {
   }
 
   @Test
-  public void testscaleAndWriteToStream() throws IOException, ImageWriteException,
-      ImageReadException {
+  public void testscaleAndWriteToStream() throws Exception {
     InputStream is = getClass().getResourceAsStream("people.png");
-    BufferedImage imgBuf = Sanselan.getBufferedImage(is);
-    BufferedImage subImage = imgBuf.getSubimage(0, 0, 100, 100);
-    ImageInfo info = new ImageInfo("PNG", 8, null, ImageFormat.IMAGE_FORMAT_PNG, "PNG",
-        256, "image/png", 1, 76, 76, 76, 76, 256, true, true, false, 2, "ZIP");
-    byte[] image = CropItProcessor.scaleAndWriteToByteArray(50, 50, subImage,
-        "people.png", info);
-    InputStream scaledIs = new ByteArrayInputStream(image);
-    BufferedImage scaledImage = ImageIO.read(scaledIs);
-    assertEquals(scaledImage.getWidth(), 50);
-    assertEquals(scaledImage.getHeight(), 50);
+    SourceImage source = SourceImage.open(is);
+    CropItProcessor.startScaling();
+    try {
+      BufferedImage subImage = source.read(new Rectangle(0, 0, 100, 100), 1);
+      List<DerivativeCache.Derivative> images = CropItProcessor.scaleAndWriteToByteArrays(
+          Arrays.asList(new Dimension(50, 50), new Dimension(25, 25)), subImage, source);
+      assertEquals(2, images.size());
+      BufferedImage scaledImage = ImageIO.read(new ByteArrayInputStream(images.get(0).data));
+      assertEquals(scaledImage.getWidth(), 50);
+      assertEquals(scaledImage.getHeight(), 50);
+      scaledImage = ImageIO.read(new ByteArrayInputStream(images.get(1).data));
+      assertEquals(scaledImage.getWidth(), 25);
+
+      // once stopped the sizes are scaled in the calling thread.
+      CropItProcessor.stopScaling();
+      images = CropItProcessor.scaleAndWriteToByteArrays(
+          Arrays.asList(new Dimension(50, 50), new Dimension(25, 25)), subImage, source);
+      assertEquals(2, images.size());
+      assertEquals(50, ImageIO.read(new ByteArrayInputStream(images.get(0).data)).getWidth());
+    } finally {
+      CropItProcessor.stopScaling();
+      source.close();
+      is.close();
+    }
+  }
+
+  @Test
+  public void testSubsampledRead() throws Exception {
+    InputStream is = getClass().getResourceAsStream("people.png");
+    SourceImage source = SourceImage.open(is);
+    try {
+      assertEquals("image/png", source.getMimeType());
+      assertEquals(1, CropItProcessor.getSubsampling(100, 100, 50, 50));
+      assertEquals(2, CropItProcessor.getSubsampling(100, 100, 25, 25));
+      assertEquals(3, CropItProcessor.getSubsampling(100, 100, 16, 16));
+      BufferedImage region = source.read(new Rectangle(0, 0, 100, 100), 2);
+      assertEquals(50, region.getWidth());
+      assertEquals(50, region.getHeight());
+      DerivativeCache.Derivative image = CropItProcessor.scaleAndWriteToByteArray(16, 16,
+          region, source);
+      assertEquals("image/png", image.mimeType);
+      BufferedImage scaledImage = ImageIO.read(new ByteArrayInputStream(image.data));
+      assertEquals(16, scaledImage.getWidth());
+      assertEquals(16, scaledImage.getHeight());
+    } finally {
+      source.close();
+      is.close();
+    }
+  }
+
+  @Test
+  public void testEncodeFallsBackToPng() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(32, 32, BufferedImage.TYPE_INT_RGB), "jpg", baos);
+    SourceImage source = SourceImage.open(new ByteArrayInputStream(baos.toByteArray()));
+    try {
+      assertEquals("image/jpeg", source.getMimeType());
+      // there is no jpeg writer for images with an alpha channel.
+      BufferedImage alpha = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+      DerivativeCache.Derivative image = source.encode(alpha);
+      assertTrue(image.data.length > 0);
+      BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image.data));
+      assertEquals(16, decoded.getWidth());
+      if (!ImageIO.write(alpha, "jpg", new ByteArrayOutputStream())) {
+        assertEquals("image/png", image.mimeType);
+      }
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testTooLargeToDecode() throws Exception {
+    // 1 bit per pixel, so small to create but large once decoded.
+    BufferedImage big = new BufferedImage(8000, 6000, BufferedImage.TYPE_BYTE_BINARY);
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ImageIO.write(big, "png", baos);
+    SourceImage source = SourceImage.open(new ByteArrayInputStream(baos.toByteArray()));
+    try {
+      Rectangle all = new Rectangle(0, 0, 8000, 6000);
+      try {
+        source.read(all, 1);
+        fail("The image should have been too large to decode.");
+      } catch (ImageException e) {
+        assertEquals(406, e.getCode());
+      }
+      int subsampling = CropItProcessor.getSubsampling(8000, 6000, 32, 32);
+      BufferedImage thumb = source.read(all, subsampling);
+      assertEquals(true, thumb.getWidth() >= 64 && thumb.getHeight() >= 64);
+    } finally {
+      source.close();
+    }
+  }
+
+  @Test
+  public void testDerivativeCache() {
+    DerivativeCache cache = new DerivativeCache(1000);
+    cache.put("a", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    cache.put("b", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    // larger than a quarter of the cache, not kept.
+    cache.put("big", new DerivativeCache.Derivative(new byte[300], "image/png"));
+    assertNull(cache.get("big"));
+    assertNotNull(cache.get("a"));
+    cache.put("c", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    cache.put("d", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    cache.put("e", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    cache.put("f", new DerivativeCache.Derivative(new byte[200], "image/png"));
+    // b was the least recently used.
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("a"));
+    assertEquals(1000, cache.getBytes());
   }
 
 }
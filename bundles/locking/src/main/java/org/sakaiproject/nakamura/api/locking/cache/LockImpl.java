@@ -150,7 +150,7 @@ public class LockImpl implements Lock, ThreadBound {
    * @see org.sakaiproject.nakamura.api.memory.ThreadBound#unbind()
    */
   public void unbind() {
-    unlock();
+    currentLockManger.unlock(this, true);
   }
 
   /**
@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.locking;
 
 import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
@@ -31,16 +33,33 @@ import org.sakaiproject.nakamura.api.locking.cache.LockImpl;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 /**
- * A lock manager that uses a cluster replicated cache to manage the locks
+ * A lock manager that uses a cluster replicated cache to manage the locks.
+ * <p>
+ * Threads in this JVM waiting for the same lock id queue fairly on a per id
+ * semaphore, and unlocking hands the lock straight to the next waiter rather
+ * than waiters polling. Locks taken on other nodes in the cluster are only
+ * visible through the replicated cache, so a waiter at the head of the local
+ * queue re-checks the cache every {@link #CLUSTER_POLL_INTERVAL} ms while the
+ * lock is held elsewhere. A thread that already holds a lock may take it again,
+ * the lock is released when it has been unlocked as many times as it was taken,
+ * or when the request ends.
  */
-@Component
+@Component(metatype = true)
 @Service
 @SuppressWarnings(justification="Circular dependency noted ", value={"CD_CIRCULAR_DEPENDENCY"})
 public class LockManagerImpl implements LockManager {
@@ -63,6 +82,18 @@ public class LockManagerImpl implements LockManager {
    * debug flag set at service creation.
    */
   private static final boolean debug = LOGGER.isDebugEnabled();
+  /**
+   * How often, in ms, the head of the local queue re-checks a lock held by another
+   * node in the cluster.
+   */
+  static final long CLUSTER_POLL_INTERVAL = 50;
+  /**
+   * The default time waitForLock waits, roughly what the old backoff loop of 300
+   * sleeps came to.
+   */
+  static final long DEFAULT_LOCK_TIMEOUT = 140000;
+
+  private static final String JMX_NAME = "org.sakaiproject.nakamura:type=LockManager";
 
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
@@ -70,6 +101,9 @@ public class LockManagerImpl implements LockManager {
   @Property(value = "In JVM Lock Manager")
   static final String SERVICE_DESCRIPTION = "service.description";
 
+  @Property(longValue = DEFAULT_LOCK_TIMEOUT)
+  static final String LOCK_TIMEOUT = "lock.timeout";
+
   /**
    * Service dependency, the Cache Manager
    */
@@ -101,7 +135,49 @@ public class LockManagerImpl implements LockManager {
       return random.nextLong();
     }
   };
-  private Object monitor = new Object();
+  /**
+   * The lock ids that threads in this JVM hold or are waiting for.
+   */
+  private ConcurrentMap<String, LocalLock> localLocks = new ConcurrentHashMap<String, LocalLock>();
+
+  private LockStatistics statistics = new LockStatistics();
+
+  private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+  private ObjectName registeredName;
+
+  /**
+   * The local state of a lock id, the queue of threads waiting for it and the
+   * thread holding it. Removed from localLocks once no thread is using it.
+   */
+  static final class LocalLock {
+    final String id;
+    final Semaphore permit = new Semaphore(1, true);
+    /**
+     * The thread id of the holder, only meaningful while holder is true.
+     */
+    volatile long owner;
+    volatile boolean holder;
+    /**
+     * The number of times the holder has taken the lock, only accessed by the
+     * holder.
+     */
+    int holds;
+    long acquiredAt;
+    /**
+     * threads holding or waiting, guarded by this.
+     */
+    int users;
+    boolean retired;
+
+    LocalLock(String id) {
+      this.id = id;
+    }
+
+    boolean isHeldBy(long threadId) {
+      return holder && owner == threadId;
+    }
+  }
 
   /**
    * @throws NoSuchAlgorithmException
@@ -113,6 +189,21 @@ public class LockManagerImpl implements LockManager {
     instanceId = random.nextLong();
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    Object timeout = properties.get(LOCK_TIMEOUT);
+    if (timeout != null) {
+      lockTimeout = Long.parseLong(String.valueOf(timeout));
+    }
+    registeredName = JmxUtils.register(JMX_NAME, statistics, LockStatisticsMBean.class);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+  }
+
   public Lock getLock(String id) {
     return getLock(id, true);
   }
@@ -122,26 +213,232 @@ public class LockManagerImpl implements LockManager {
    * @return
    */
   public Lock getLock(String id, boolean create) {
-    LockImpl lock = lockMap.get(id);
-    if (create) {
-      if (lock == null || !lock.isLocked()) {
-        synchronized (monitor) {
-          lock = lockMap.get(id);
-          if (lock == null || !lock.isLocked()) {
-            Cache<LockImpl> requestLocks = getRequestLocks();
-            lock = new LockImpl(id, random.nextLong(), threadId.get(), instanceId);
-            lockMap.put(id, lock);
-            requestLocks.put(id, lock);
+    if (!create) {
+      LockImpl lock = lockMap.get(id);
+      if (lock != null) {
+        lock.bind(this);
+      }
+      return lock;
+    }
+    long me = threadId.get();
+    LocalLock local = useLocalLock(id);
+    if (local.isHeldBy(me)) {
+      releaseLocalLock(local);
+      return reenter(local);
+    }
+    while (true) {
+      // a timed acquire respects the fairness of the permit, tryAcquire() would not.
+      if (acquirePermit(local, 0)) {
+        return takeClusterLock(local, me);
+      }
+      // another thread in this JVM holds or is taking the lock, return its lock.
+      LockImpl lock = lockMap.get(id);
+      if (lock != null && lock.isLocked()) {
+        releaseLocalLock(local);
+        lock.bind(this);
+        return lock;
+      }
+      if (local.holder) {
+        // held here, but the entry has gone from the cluster cache, either evicted or
+        // being removed by unlock. Describe the lock from the local state rather than
+        // waiting for an entry that may never come back.
+        lock = new LockImpl(id, random.nextLong(), local.owner, instanceId);
+        releaseLocalLock(local);
+        lock.bind(this);
+        return lock;
+      }
+      // the holder has the permit but has not published its lock yet, or has just
+      // removed it and is about to release the permit. Wait on the permit rather than
+      // spinning.
+      if (acquirePermit(local, CLUSTER_POLL_INTERVAL)) {
+        return takeClusterLock(local, me);
+      }
+    }
+  }
+
+  /**
+   * Take the cluster lock once the local permit is held, giving the permit back if
+   * the lock is held by another node.
+   */
+  private LockImpl takeClusterLock(LocalLock local, long me) {
+    LockImpl lock = acquireClusterLock(local, me, System.nanoTime(), false);
+    if (!lock.isOwner()) {
+      // held by another node, return its lock as we always have.
+      local.permit.release();
+      releaseLocalLock(local);
+    }
+    return lock;
+  }
+
+  /**
+   * Wait for the local permit in turn with the other waiters. getLock can't throw
+   * InterruptedException, so an interrupt is remembered and the thread interrupted
+   * again once the permit has been taken or the wait has timed out.
+   *
+   * @param timeout
+   *          ms to wait, 0 to take the permit only if no other thread is waiting.
+   */
+  private boolean acquirePermit(LocalLock local, long timeout) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return local.permit.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Wait for a lock, queueing behind any other thread in this JVM waiting for the
+   * same id.
+   *
+   * @param id
+   *          the id to lock.
+   * @param timeout
+   * @param unit
+   * @return the lock, owned by this thread, or null if the lock could not be taken
+   *         in time.
+   * @throws InterruptedException
+   */
+  public Lock tryLock(String id, long timeout, TimeUnit unit) throws InterruptedException {
+    long start = System.nanoTime();
+    long deadline = start + unit.toNanos(timeout);
+    long me = threadId.get();
+    if (debug) {
+      LOGGER.debug(Thread.currentThread() + " locking " + id);
+    }
+    LocalLock local = useLocalLock(id);
+    if (local.isHeldBy(me)) {
+      releaseLocalLock(local);
+      return reenter(local);
+    }
+    boolean acquired = false;
+    try {
+      // queue behind threads already waiting rather than barging in with tryAcquire().
+      boolean contended = !local.permit.tryAcquire(0, TimeUnit.NANOSECONDS);
+      if (contended) {
+        statistics.waiting();
+        try {
+          if (!local.permit.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            statistics.timedOut(id);
+            return null;
           }
+        } finally {
+          statistics.doneWaiting();
         }
       }
+      // at the head of the local queue, now wait for the rest of the cluster.
+      while (true) {
+        LockImpl lock = acquireClusterLock(local, me, start, contended);
+        if (lock.isOwner()) {
+          acquired = true;
+          if (debug) {
+            LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
+          }
+          return lock;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          local.permit.release();
+          statistics.timedOut(id);
+          return null;
+        }
+        contended = true;
+        try {
+          Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(remaining) + 1,
+              CLUSTER_POLL_INTERVAL));
+        } catch (InterruptedException e) {
+          local.permit.release();
+          throw e;
+        }
+      }
+    } finally {
+      if (!acquired) {
+        releaseLocalLock(local);
+      }
     }
+  }
+
+  /**
+   * Take the lock in the cluster cache, with the local permit held.
+   *
+   * @return the lock, which is owned by this thread if it was free.
+   */
+  private LockImpl acquireClusterLock(LocalLock local, long me, long start,
+      boolean contended) {
+    LockImpl lock = lockMap.get(local.id);
     if (lock != null) {
       lock.bind(this);
     }
+    if (lock == null || !lock.isLocked() || lock.isOwner()) {
+      if (lock == null || !lock.isOwner()) {
+        lock = new LockImpl(local.id, random.nextLong(), me, instanceId);
+        lock.bind(this);
+        lockMap.put(local.id, lock);
+      }
+      local.owner = me;
+      local.holder = true;
+      local.holds = 1;
+      local.acquiredAt = System.nanoTime();
+      getRequestLocks().put(local.id, lock);
+      statistics.acquired(local.id, local.acquiredAt - start, contended);
+    }
+    return lock;
+  }
+
+  private LockImpl reenter(LocalLock local) {
+    LockImpl lock = lockMap.get(local.id);
+    if (lock == null) {
+      // evicted from the cache while held, put it back.
+      lock = new LockImpl(local.id, random.nextLong(), local.owner, instanceId);
+      lockMap.put(local.id, lock);
+      getRequestLocks().put(local.id, lock);
+    }
+    local.holds++;
+    lock.bind(this);
     return lock;
   }
 
+  /**
+   * Register this thread as a user of the local lock for id, creating it if
+   * needed.
+   */
+  private LocalLock useLocalLock(String id) {
+    while (true) {
+      LocalLock local = localLocks.get(id);
+      if (local == null) {
+        local = new LocalLock(id);
+        LocalLock existing = localLocks.putIfAbsent(id, local);
+        if (existing != null) {
+          local = existing;
+        }
+      }
+      synchronized (local) {
+        if (!local.retired) {
+          local.users++;
+          return local;
+        }
+      }
+    }
+  }
+
+  private void releaseLocalLock(LocalLock local) {
+    synchronized (local) {
+      local.users--;
+      if (local.users == 0) {
+        local.retired = true;
+        localLocks.remove(local.id, local);
+      }
+    }
+  }
+
   /**
    * @return
    */
@@ -150,18 +447,43 @@ public class LockManagerImpl implements LockManager {
   }
 
   /**
-   * Unlock only if the current thread is the owner.
+   * Unlock only if the current thread is the owner. If the lock has been taken more
+   * than once by this thread it stays locked until the last unlock.
    *
    * @param lock
    */
   public void unlock(LockImpl lock) {
+    unlock(lock, false);
+  }
+
+  /**
+   * Unlock only if the current thread is the owner.
+   *
+   * @param lock
+   * @param all
+   *          release every hold this thread has on the lock, used when the request
+   *          ends.
+   */
+  public void unlock(LockImpl lock, boolean all) {
     if (lock.isOwner() && lock.isLocked()) {
+      String id = lock.getLocked();
+      LocalLock local = localLocks.get(id);
+      boolean held = local != null && local.isHeldBy(threadId.get());
+      if (held && !all && --local.holds > 0) {
+        return;
+      }
       if (debug) {
         LOGGER.debug(Thread.currentThread() + " unlocked " + lock.getLocked());
       }
+      // mark unlocked before removing, removal may unbind the lock again.
       lock.setLocked(false);
-      synchronized (monitor) {
-        lockMap.remove(lock.getLocked());
+      lockMap.remove(id);
+      if (held) {
+        statistics.released(id, System.nanoTime() - local.acquiredAt);
+        local.holds = 0;
+        local.holder = false;
+        local.permit.release();
+        releaseLocalLock(local);
       }
     }
   }
@@ -180,41 +502,30 @@ public class LockManagerImpl implements LockManager {
     return threadId.get();
   }
 
+  /**
+   * @return the statistics for this lock manager.
+   */
+  public LockStatisticsMBean getStatistics() {
+    return statistics;
+  }
+
   /**
    * {@inheritDoc}
    *
    * @see org.sakaiproject.nakamura.api.locking.LockManager#lock(java.lang.String)
    */
   public Lock waitForLock(String id) throws LockTimeoutException {
-    long sleepTime = 100;
-    int tries = 0;
-    if (debug) {
-      LOGGER.debug(Thread.currentThread() + " locking " + id);
-    }
-    while (tries++ < 300) {
-      Lock lock = getLock(id);
-      if (lock != null && lock.isOwner()) {
-        if (debug) {
-          LOGGER.debug(Thread.currentThread() + " lock Granted " + lock.getLocked());
-        }
+    try {
+      Lock lock = tryLock(id, lockTimeout, TimeUnit.MILLISECONDS);
+      if (lock != null) {
         return lock;
       }
-      if (sleepTime < 500) {
-        sleepTime = sleepTime + 10;
-      }
-      try {
-       
-        if (debug && tries % 5 == 0) {
-          LOGGER.debug(Thread.currentThread() + " locking " + id);
-        }
-        if (tries % 100 == 0) {
-          LOGGER.warn(Thread.currentThread() + " Waiting for " + sleepTime
-              + " ms " + tries);
-        }
-        Thread.sleep(sleepTime);
-      } catch (InterruptedException e) {
-      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LockTimeoutException("Interrupted waiting to lock node " + id, e);
     }
+    LOGGER.warn(Thread.currentThread() + " Failed to lock " + id + " after " + lockTimeout
+        + " ms");
     throw new LockTimeoutException("Failed to lock node " + id);
   }
 
@@ -0,0 +1,191 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.locking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wait time, hold time and contention for the locks of a {@link LockManagerImpl},
+ * kept in total and per lock id prefix. The prefix is the first
+ * {@link #PREFIX_DEPTH} path elements of the lock id; once {@link #MAX_PREFIXES}
+ * prefixes have been seen the rest are counted under {@link #OTHER}.
+ */
+public class LockStatistics implements LockStatisticsMBean {
+
+  static final int PREFIX_DEPTH = 2;
+  static final int MAX_PREFIXES = 256;
+  static final String OTHER = "(other)";
+
+  /**
+   * Counters for one prefix.
+   */
+  static class Counters {
+    final AtomicLong acquisitions = new AtomicLong();
+    final AtomicLong contended = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong waitNanos = new AtomicLong();
+    final AtomicLong maxWaitNanos = new AtomicLong();
+    final AtomicLong holds = new AtomicLong();
+    final AtomicLong holdNanos = new AtomicLong();
+
+    void acquired(long waited, boolean wasContended) {
+      acquisitions.incrementAndGet();
+      if (wasContended) {
+        contended.incrementAndGet();
+      }
+      waitNanos.addAndGet(waited);
+      long max = maxWaitNanos.get();
+      while (waited > max && !maxWaitNanos.compareAndSet(max, waited)) {
+        max = maxWaitNanos.get();
+      }
+    }
+
+    void released(long held) {
+      holds.incrementAndGet();
+      holdNanos.addAndGet(held);
+    }
+  }
+
+  private final Counters total = new Counters();
+  private final ConcurrentMap<String, Counters> prefixes = new ConcurrentHashMap<String, Counters>();
+  private final AtomicInteger held = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  void waiting() {
+    waiting.incrementAndGet();
+  }
+
+  void doneWaiting() {
+    waiting.decrementAndGet();
+  }
+
+  void acquired(String id, long waitNanos, boolean contended) {
+    held.incrementAndGet();
+    total.acquired(waitNanos, contended);
+    getCounters(id).acquired(waitNanos, contended);
+  }
+
+  void released(String id, long holdNanos) {
+    held.decrementAndGet();
+    total.released(holdNanos);
+    getCounters(id).released(holdNanos);
+  }
+
+  void timedOut(String id) {
+    total.timeouts.incrementAndGet();
+    getCounters(id).timeouts.incrementAndGet();
+  }
+
+  private Counters getCounters(String id) {
+    String prefix = prefix(id);
+    Counters c = prefixes.get(prefix);
+    if (c == null) {
+      if (prefixes.size() >= MAX_PREFIXES) {
+        prefix = OTHER;
+      }
+      c = new Counters();
+      Counters existing = prefixes.putIfAbsent(prefix, c);
+      if (existing != null) {
+        c = existing;
+      }
+    }
+    return c;
+  }
+
+  static String prefix(String id) {
+    int start = id.startsWith("/") ? 1 : 0;
+    int end = start;
+    for (int i = 0; i < PREFIX_DEPTH; i++) {
+      end = id.indexOf('/', end + 1);
+      if (end < 0) {
+        return id;
+      }
+    }
+    return id.substring(0, end);
+  }
+
+  private static double millis(long nanos, long n) {
+    if (n == 0) {
+      return 0.0;
+    }
+    return ((double) nanos / n) / 1000000.0;
+  }
+
+  public long getAcquisitions() {
+    return total.acquisitions.get();
+  }
+
+  public long getContendedAcquisitions() {
+    return total.contended.get();
+  }
+
+  public long getTimeouts() {
+    return total.timeouts.get();
+  }
+
+  public double getAverageWaitTime() {
+    return millis(total.waitNanos.get(), total.acquisitions.get());
+  }
+
+  public double getAverageHoldTime() {
+    return millis(total.holdNanos.get(), total.holds.get());
+  }
+
+  public long getMaxWaitTime() {
+    return TimeUnit.NANOSECONDS.toMillis(total.maxWaitNanos.get());
+  }
+
+  public int getLocksHeld() {
+    return held.get();
+  }
+
+  public int getThreadsWaiting() {
+    return waiting.get();
+  }
+
+  public String[] getPrefixStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Entry<String, Counters> e : prefixes.entrySet()) {
+      Counters c = e.getValue();
+      lines.add(e.getKey() + " acquisitions=" + c.acquisitions.get() + " contended="
+          + c.contended.get() + " timeouts=" + c.timeouts.get() + " avgWaitMs="
+          + millis(c.waitNanos.get(), c.acquisitions.get()) + " maxWaitMs="
+          + TimeUnit.NANOSECONDS.toMillis(c.maxWaitNanos.get()) + " avgHoldMs="
+          + millis(c.holdNanos.get(), c.holds.get()));
+    }
+    return lines.toArray(new String[lines.size()]);
+  }
+
+  public void reset() {
+    prefixes.clear();
+    total.acquisitions.set(0);
+    total.contended.set(0);
+    total.timeouts.set(0);
+    total.waitNanos.set(0);
+    total.maxWaitNanos.set(0);
+    total.holds.set(0);
+    total.holdNanos.set(0);
+  }
+}
@@ -22,6 +22,9 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,6 +36,9 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.memory.MapCacheImpl;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  *
  */
@@ -99,4 +105,100 @@ public class LockManagerImplTest {
     assertEquals(null, lock);
   }
 
+  @Test
+  public void testReentrantLock() throws Exception {
+    Lock outer = lockManager.waitForLock("foo");
+    Lock inner = lockManager.waitForLock("foo");
+    assertEquals(true, inner.isOwner());
+    inner.unlock();
+    // still held by the outer acquisition
+    assertEquals(true, outer.isLocked());
+    assertNotNull(lockManager.getLock("foo", false));
+    outer.unlock();
+    assertNull(lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testClearLocksReleasesReentrantHolds() throws Exception {
+    lockManager.waitForLock("foo");
+    lockManager.waitForLock("foo");
+    lockManager.clearLocks();
+    assertNull(lockManager.getLock("foo", false));
+  }
+
+  @Test
+  public void testTryLockTimesOut() throws Exception {
+    lockManager.waitForLock("foo");
+    final Lock[] other = new Lock[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other[0] = lockManager.tryLock("foo", 100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    t.start();
+    t.join();
+    assertNull(other[0]);
+    assertEquals(1, lockManager.getStatistics().getTimeouts());
+  }
+
+  @Test
+  public void testUnlockWakesWaiter() throws Exception {
+    final Lock held = lockManager.waitForLock("foo");
+    final CountDownLatch waiting = new CountDownLatch(1);
+    final Lock[] other = new Lock[1];
+    final boolean[] owner = new boolean[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waiting.countDown();
+          other[0] = lockManager.tryLock("foo", 10, TimeUnit.SECONDS);
+          owner[0] = other[0] != null && other[0].isOwner();
+          other[0].unlock();
+        } catch (InterruptedException e) {
+        }
+      }
+    };
+    t.start();
+    waiting.await();
+    Thread.sleep(50);
+    long start = System.currentTimeMillis();
+    held.unlock();
+    t.join();
+    assertTrue(owner[0]);
+    // handed over directly rather than after a backoff sleep
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(1, lockManager.getStatistics().getContendedAcquisitions());
+    assertEquals(0, lockManager.getStatistics().getLocksHeld());
+  }
+
+  @Test
+  public void testGetLockWhenHeldEntryIsEvicted() throws Exception {
+    final Lock held = lockManager.waitForLock("foo");
+    // the cluster cache evicts the entry while it is still held here. Eviction does
+    // not unbind the lock, so bypass Cache.remove.
+    ((MapCacheImpl<Object>) lockCache).remove((Object) "foo");
+    final Lock[] other = new Lock[1];
+    final boolean[] owner = new boolean[1];
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        other[0] = lockManager.getLock("foo");
+        owner[0] = other[0].isOwner();
+      }
+    };
+    t.start();
+    t.join(5000);
+    assertTrue(!t.isAlive());
+    assertNotNull(other[0]);
+    assertTrue(!owner[0]);
+    assertTrue(other[0].isLocked());
+    held.unlock();
+    assertEquals(0, lockManager.getStatistics().getLocksHeld());
+  }
+
 }
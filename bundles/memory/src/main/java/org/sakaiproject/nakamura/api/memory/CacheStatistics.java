@@ -0,0 +1,82 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+/**
+ * Usage statistics for a named cache. Also used as the JMX interface of each
+ * cache, registered as <code>org.sakaiproject.nakamura:type=Cache,name=...</code>.
+ * Latencies are in microseconds.
+ */
+public interface CacheStatistics {
+
+  /**
+   * @return the name of the cache.
+   */
+  String getName();
+
+  /**
+   * @return the scope the cache was created with.
+   */
+  String getScope();
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return hits / (hits + misses), or 0 if there have been no gets.
+   */
+  double getHitRatio();
+
+  long getPuts();
+
+  long getRemovals();
+
+  /**
+   * @return the number of entries evicted or expired by the underlying cache.
+   */
+  long getEvictions();
+
+  /**
+   * @return the number of entries currently in the cache.
+   */
+  long getSize();
+
+  /**
+   * @return an estimate of the heap used by the entries held in memory, in bytes.
+   *         This walks the cache so it is expensive, don't call it on a hot path.
+   */
+  long getEstimatedHeapSize();
+
+  long getGetLatency50();
+
+  long getGetLatency95();
+
+  long getGetLatency99();
+
+  long getPutLatency50();
+
+  long getPutLatency95();
+
+  long getPutLatency99();
+
+  /**
+   * Reset the counters and latencies.
+   */
+  void reset();
+}
@@ -0,0 +1,48 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.memory;
+
+import java.util.Collection;
+
+/**
+ * Gives access to the statistics of the instance and cluster scoped caches, so
+ * that cache regions can be sized from real usage.
+ */
+public interface CacheStatisticsService {
+
+  /**
+   * @return the statistics of every named INSTANCE, CLUSTERINVALIDATED and
+   *         CLUSTERREPLICATED cache created so far.
+   */
+  Collection<CacheStatistics> getCacheStatistics();
+
+  /**
+   * @return the number of REQUEST and THREAD scoped caches that have been
+   *         allocated. Caches are reused between requests on the same thread, so
+   *         this should level off once the request threads have warmed up.
+   */
+  long getScopedCacheAllocations();
+
+  /**
+   * @return the number of times REQUEST and THREAD scopes have been unbound,
+   *         which together with {@link #getScopedCacheAllocations()} gives the
+   *         cache allocations per request.
+   */
+  long getScopedCacheResets();
+
+}
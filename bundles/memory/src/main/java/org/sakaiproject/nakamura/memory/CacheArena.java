@@ -0,0 +1,146 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+/**
+ * The REQUEST or THREAD scoped caches of one thread. The arena is reset at the
+ * end of each request and handed back to its {@link ThreadLocalCacheMap}, so
+ * the next request reuses the same caches rather than allocating them again.
+ * <p>
+ * Caches are held in a small open addressed table keyed by cache name. Names
+ * are interned when a cache is first created, and callers almost always pass
+ * constants, so most lookups succeed on an identity comparison. The cache with
+ * a null name is held apart from the table.
+ * <p>
+ * Not thread safe, an arena is only ever used by its own thread.
+ */
+public class CacheArena {
+
+  private static final int INITIAL_CAPACITY = 32;
+
+  private final CacheScope scope;
+  private String[] names = new String[INITIAL_CAPACITY];
+  private MapCacheImpl<?>[] caches = new MapCacheImpl<?>[INITIAL_CAPACITY];
+  private MapCacheImpl<?> nullNameCache;
+  private int size;
+  /**
+   * Caches allocated since the arena was last reset.
+   */
+  private int allocations;
+
+  public CacheArena(CacheScope scope) {
+    this.scope = scope;
+  }
+
+  /**
+   * @param name
+   * @return the cache with that name, created if this is the first time the
+   *         thread has used it.
+   */
+  @SuppressWarnings("unchecked")
+  public <V> Cache<V> get(String name) {
+    if (name == null) {
+      if (nullNameCache == null) {
+        nullNameCache = new MapCacheImpl<V>(null, scope);
+        allocations++;
+      }
+      return (Cache<V>) nullNameCache;
+    }
+    int mask = names.length - 1;
+    int i = hash(name) & mask;
+    while (true) {
+      String n = names[i];
+      if (n == null) {
+        break;
+      }
+      if (n == name || n.equals(name)) {
+        return (Cache<V>) caches[i];
+      }
+      i = (i + 1) & mask;
+    }
+    MapCacheImpl<V> cache = new MapCacheImpl<V>(name, scope);
+    allocations++;
+    if ((size + 1) * 2 > names.length) {
+      grow();
+      insert(name.intern(), cache);
+    } else {
+      names[i] = name.intern();
+      caches[i] = cache;
+      size++;
+    }
+    return cache;
+  }
+
+  /**
+   * Clear every cache, keeping the caches themselves for the next request.
+   *
+   * @return the number of caches that were allocated since the last reset.
+   */
+  public int reset() {
+    for (MapCacheImpl<?> cache : caches) {
+      if (cache != null && !cache.isEmpty()) {
+        cache.clear();
+      }
+    }
+    if (nullNameCache != null && !nullNameCache.isEmpty()) {
+      nullNameCache.clear();
+    }
+    int n = allocations;
+    allocations = 0;
+    return n;
+  }
+
+  /**
+   * @return the number of caches held by the arena.
+   */
+  public int size() {
+    return nullNameCache == null ? size : size + 1;
+  }
+
+  private void grow() {
+    String[] oldNames = names;
+    MapCacheImpl<?>[] oldCaches = caches;
+    names = new String[oldNames.length * 2];
+    caches = new MapCacheImpl<?>[oldNames.length * 2];
+    size = 0;
+    for (int i = 0; i < oldNames.length; i++) {
+      if (oldNames[i] != null) {
+        insert(oldNames[i], oldCaches[i]);
+      }
+    }
+  }
+
+  private void insert(String name, MapCacheImpl<?> cache) {
+    int mask = names.length - 1;
+    int i = hash(name) & mask;
+    while (names[i] != null) {
+      i = (i + 1) & mask;
+    }
+    names[i] = name;
+    caches[i] = cache;
+    size++;
+  }
+
+  private static int hash(String name) {
+    int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+}
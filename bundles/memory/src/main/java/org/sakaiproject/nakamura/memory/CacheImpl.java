@@ -22,6 +22,7 @@ import com.google.common.collect.Sets;
 import net.sf.ehcache.CacheManager;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.event.CacheEventListener;
 
 import org.perf4j.aop.Profiled;
 import org.sakaiproject.nakamura.api.memory.Cache;
@@ -49,6 +50,7 @@ public class CacheImpl<V> implements Cache<V> {
   private CacheScope scope;
   private boolean checkPayloadClasses;
   private Set<String> loadedClasses = Sets.newHashSet();
+  private CacheStatisticsImpl statistics;
 
   /**
    * @param cacheManager
@@ -79,6 +81,33 @@ public class CacheImpl<V> implements Cache<V> {
     }
     // this isn't really checking to see if the cache is configured to replicate payloads, but there doesn't appear to be
     // a way of finding that out from the Cache Configuration object.
+    if (name == null) {
+      // unnamed caches are created per call and never released, so they must not leave
+      // an eviction listener on the shared default cache.
+      statistics = new CacheStatisticsImpl(cacheName, scope);
+    } else {
+      statistics = new CacheStatisticsImpl(cacheName, scope, cache);
+    }
+  }
+
+  /**
+   * @return the statistics collected for this cache.
+   */
+  public CacheStatisticsImpl getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * @param listener
+   *          a listener to be notified of changes to the underlying ehcache,
+   *          including those made by other cluster members.
+   */
+  void registerListener(CacheEventListener listener) {
+    cache.getCacheEventNotificationService().registerListener(listener);
+  }
+
+  void unregisterListener(CacheEventListener listener) {
+    cache.getCacheEventNotificationService().unregisterListener(listener);
   }
 
   /**
@@ -106,7 +135,9 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V get(String key) {
+    long start = System.nanoTime();
     Element e = cache.get(key);
+    statistics.recordGet(e != null, System.nanoTime() - start);
     stats(e);
     if (e == null) {
       return null;
@@ -139,6 +170,7 @@ public class CacheImpl<V> implements Cache<V> {
    */
   @SuppressWarnings("unchecked")
   public V put(String key, V payload) {
+    long start = System.nanoTime();
     V previous = null;
     if (cache.isKeyInCache(key)) {
       Element e = cache.get(key);
@@ -183,6 +215,7 @@ public class CacheImpl<V> implements Cache<V> {
       }
     }
     cache.put(new Element(key, payload));
+    statistics.recordPut(System.nanoTime() - start);
     return previous;
   }
 
@@ -192,7 +225,9 @@ public class CacheImpl<V> implements Cache<V> {
    * @see org.sakaiproject.nakamura.api.memory.Cache#remove(java.lang.String)
    */
   public void remove(String key) {
-    cache.remove(key);
+    if (cache.remove(key)) {
+      statistics.recordRemove();
+    }
   }
 
   /**
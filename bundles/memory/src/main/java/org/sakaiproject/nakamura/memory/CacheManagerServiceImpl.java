@@ -30,6 +30,9 @@ import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.api.memory.CacheStatisticsService;
+import org.sakaiproject.nakamura.util.JmxUtils;
 import org.sakaiproject.nakamura.util.ResourceLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,20 +43,26 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * The <code>CacheManagerServiceImpl</code>
  */
 @Component(metatype=true)
-@Service(value=CacheManagerService.class)
-public class CacheManagerServiceImpl implements CacheManagerService {
+@Service(value={CacheManagerService.class, CacheStatisticsService.class})
+public class CacheManagerServiceImpl implements CacheManagerService, CacheStatisticsService {
 
   public static final String DEFAULT_CACHE_CONFIG = "sling/ehcacheConfig.xml";
   public static final String DEFAULT_BIND_ADDRESS = "127.0.0.1";
@@ -75,11 +84,14 @@ public class CacheManagerServiceImpl implements CacheManagerService {
   static final String SERVICE_DESCRIPTION = "service.description";
 
   private static final String CONFIG_PATH = "res://org/sakaiproject/nakamura/memory/ehcacheConfig.xml";
+  private static final String MBEAN_DOMAIN = "org.sakaiproject.nakamura";
   private static final Logger LOGGER = LoggerFactory.getLogger(CacheManagerServiceImpl.class);
   private CacheManager cacheManager;
-  private Map<String, Cache<?>> caches = new HashMap<String, Cache<?>>();
-  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap();
-  private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap();
+  private ConcurrentMap<String, CacheImpl<?>> caches = new ConcurrentHashMap<String, CacheImpl<?>>();
+  private ThreadLocalCacheMap requestCacheMapHolder = new ThreadLocalCacheMap(CacheScope.REQUEST);
+  private ThreadLocalCacheMap threadCacheMapHolder = new ThreadLocalCacheMap(CacheScope.THREAD);
+  private final AtomicLong scopedCacheAllocations = new AtomicLong();
+  private final AtomicLong scopedCacheResets = new AtomicLong();
 
   public CacheManagerServiceImpl() throws IOException {
     create();
@@ -183,7 +195,12 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * perform a shutdown
    */
   public void stop() {
+    for (CacheImpl<?> cache : caches.values()) {
+      unregisterStatistics(cache.getStatistics());
+    }
     cacheManager.shutdown();
+    requestCacheMapHolder.clear();
+    threadCacheMapHolder.clear();
     // we really want to notify all threads that have maps
   }
 
@@ -215,15 +232,8 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getThreadCache(String name) {
-    Map<String, Cache<?>> threadCacheMap = threadCacheMapHolder.get();
-    Cache<V> threadCache = (Cache<V>) threadCacheMap.get(name);
-    if (threadCache == null) {
-      threadCache = new MapCacheImpl<V>(name, CacheScope.THREAD);
-      threadCacheMap.put(name, threadCache);
-    }
-    return threadCache;
+    return threadCacheMapHolder.get().get(name);
   }
 
   /**
@@ -232,18 +242,15 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    * @param name
    * @return
    */
-  @SuppressWarnings("unchecked")
   private <V> Cache<V> getRequestCache(String name) {
-    Map<String, Cache<?>> requestCacheMap = requestCacheMapHolder.get();
-    Cache<V> requestCache = (Cache<V>) requestCacheMap.get(name);
-    if (requestCache == null) {
-      requestCache = new MapCacheImpl<V>(name, CacheScope.REQUEST);
-      requestCacheMap.put(name, requestCache);
-    }
-    return requestCache;
+    return requestCacheMapHolder.get().get(name);
   }
 
   /**
+   * Named caches are created once and shared, lookups of an existing cache do
+   * not lock. If two threads race to create the same cache the loser is
+   * discarded.
+   *
    * @param name
    * @return
    */
@@ -252,15 +259,46 @@ public class CacheManagerServiceImpl implements CacheManagerService {
     if (name == null) {
       return new CacheImpl<V>(cacheManager, null, scope);
     } else {
-      Cache<V> c = (Cache<V>) caches.get(name);
+      CacheImpl<V> c = (CacheImpl<V>) caches.get(name);
       if (c == null) {
-        c = new CacheImpl<V>(cacheManager, name, scope);
-        caches.put(name, c);
+        CacheImpl<V> created = new CacheImpl<V>(cacheManager, name, scope);
+        c = (CacheImpl<V>) caches.putIfAbsent(name, created);
+        if (c == null) {
+          c = created;
+          registerStatistics(c.getStatistics());
+        } else {
+          created.getStatistics().dispose();
+        }
       }
       return c;
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatisticsService#getCacheStatistics()
+   */
+  public Collection<CacheStatistics> getCacheStatistics() {
+    List<CacheStatistics> statistics = new ArrayList<CacheStatistics>();
+    for (CacheImpl<?> cache : caches.values()) {
+      statistics.add(cache.getStatistics());
+    }
+    return statistics;
+  }
+
+  private static String getObjectName(CacheStatistics statistics) {
+    return MBEAN_DOMAIN + ":type=Cache,name=" + ObjectName.quote(statistics.getName());
+  }
+
+  static void registerStatistics(CacheStatistics statistics) {
+    JmxUtils.register(getObjectName(statistics), statistics, CacheStatistics.class);
+  }
+
+  static void unregisterStatistics(CacheStatistics statistics) {
+    JmxUtils.unregister(getObjectName(statistics));
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -281,22 +319,46 @@ public class CacheManagerServiceImpl implements CacheManagerService {
    *
    */
   private void unbindThread() {
-    Map<String, Cache<?>> threadCache = threadCacheMapHolder.get();
-    for (Cache<?> cache : threadCache.values()) {
-      cache.clear();
-    }
-    threadCacheMapHolder.remove();
+    release(threadCacheMapHolder);
   }
 
   /**
    *
    */
   private void unbindRequest() {
-    Map<String, Cache<?>> requestCache = requestCacheMapHolder.get();
-    for (Cache<?> cache : requestCache.values()) {
-      cache.clear();
+    release(requestCacheMapHolder);
+  }
+
+  /**
+   * Clear the caches and remove the arena from the thread, handing it back to the holder
+   * so the next request doesn't have to create them again.
+   */
+  private void release(ThreadLocalCacheMap holder) {
+    CacheArena arena = holder.get();
+    int allocations = arena.reset();
+    if (allocations > 0) {
+      scopedCacheAllocations.addAndGet(allocations);
     }
-    requestCacheMapHolder.remove();
+    scopedCacheResets.incrementAndGet();
+    holder.release(arena);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatisticsService#getScopedCacheAllocations()
+   */
+  public long getScopedCacheAllocations() {
+    return scopedCacheAllocations.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.memory.CacheStatisticsService#getScopedCacheResets()
+   */
+  public long getScopedCacheResets() {
+    return scopedCacheResets.get();
   }
 
 }
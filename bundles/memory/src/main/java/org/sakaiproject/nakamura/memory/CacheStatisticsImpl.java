@@ -0,0 +1,187 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.util.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the statistics of a single {@link CacheImpl}. Counters are updated
+ * by the cache on every operation so they are all lock free, evictions and
+ * expiries are picked up from the ehcache event notifications.
+ */
+public class CacheStatisticsImpl implements CacheStatistics {
+
+  private final String name;
+  private final CacheScope scope;
+  private final Ehcache cache;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong puts = new AtomicLong();
+  private final AtomicLong removals = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final LatencyHistogram getLatency = new LatencyHistogram();
+  private final LatencyHistogram putLatency = new LatencyHistogram();
+  private final CacheEventListener evictionListener = new CacheEventListenerAdapter() {
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+      evictions.incrementAndGet();
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+      evictions.incrementAndGet();
+    }
+  };
+
+  public CacheStatisticsImpl(String name, CacheScope scope, Ehcache cache) {
+    this.name = name;
+    this.scope = scope;
+    this.cache = cache;
+    cache.getCacheEventNotificationService().registerListener(evictionListener);
+  }
+
+  /**
+   * Statistics for a cache that isn't held in ehcache, subclasses should
+   * override {@link #getSize()}.
+   */
+  protected CacheStatisticsImpl(String name, CacheScope scope) {
+    this.name = name;
+    this.scope = scope;
+    this.cache = null;
+  }
+
+  /**
+   * Stop listening to the underlying cache, used when a cache loses the race to
+   * be registered.
+   */
+  void dispose() {
+    if (cache != null) {
+      cache.getCacheEventNotificationService().unregisterListener(evictionListener);
+    }
+  }
+
+  void recordGet(boolean hit, long nanos) {
+    if (hit) {
+      hits.incrementAndGet();
+    } else {
+      misses.incrementAndGet();
+    }
+    getLatency.record(nanos);
+  }
+
+  void recordPut(long nanos) {
+    puts.incrementAndGet();
+    putLatency.record(nanos);
+  }
+
+  void recordRemove() {
+    removals.incrementAndGet();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getScope() {
+    return String.valueOf(scope);
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public double getHitRatio() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / (double) total;
+  }
+
+  public long getPuts() {
+    return puts.get();
+  }
+
+  public long getRemovals() {
+    return removals.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public long getSize() {
+    return cache == null ? 0 : cache.getSize();
+  }
+
+  public long getEstimatedHeapSize() {
+    return cache == null ? 0 : cache.calculateInMemorySize();
+  }
+
+  public long getGetLatency50() {
+    return micros(getLatency.getPercentile(50));
+  }
+
+  public long getGetLatency95() {
+    return micros(getLatency.getPercentile(95));
+  }
+
+  public long getGetLatency99() {
+    return micros(getLatency.getPercentile(99));
+  }
+
+  public long getPutLatency50() {
+    return micros(putLatency.getPercentile(50));
+  }
+
+  public long getPutLatency95() {
+    return micros(putLatency.getPercentile(95));
+  }
+
+  public long getPutLatency99() {
+    return micros(putLatency.getPercentile(99));
+  }
+
+  /**
+   * @return the percentile of a histogram of nanoseconds, in microseconds.
+   */
+  private static long micros(long nanos) {
+    return nanos < 0 ? 0 : nanos / 1000L;
+  }
+
+  public void reset() {
+    hits.set(0);
+    misses.set(0);
+    puts.set(0);
+    removals.set(0);
+    evictions.set(0);
+    getLatency.reset();
+    putLatency.reset();
+  }
+}
@@ -0,0 +1,352 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.memory;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
+
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded on heap cache in front of a {@link CacheImpl}, so that hot entries are
+ * served without going through ehcache.
+ * <p>
+ * The near cache is split into lock striped segments, each of which is a
+ * segmented LRU: new entries go into a probation area and are promoted to a
+ * protected area when they are hit again, so a scan of one off keys can't flush
+ * the hot entries. Entries optionally expire after a TTL.
+ * <p>
+ * The near cache is kept coherent by listening to the ehcache event
+ * notifications of the backing cache, so anything that removes or replaces an
+ * element there, including cluster invalidations, drops it from the near cache.
+ */
+public class NearCache<V> implements Cache<V> {
+
+  private static final int STRIPES = 16;
+  /**
+   * Share of each segment used by the protected area.
+   */
+  private static final double PROTECTED_RATIO = 0.8;
+
+  private final CacheImpl<V> backing;
+  private final Segment<V>[] segments;
+  private final long ttl;
+  private final CacheStatisticsImpl statistics;
+  private final CacheEventListener invalidationListener = new CacheEventListenerAdapter() {
+    @Override
+    public void notifyElementRemoved(Ehcache cache, Element element) {
+      invalidate(element);
+    }
+
+    @Override
+    public void notifyElementUpdated(Ehcache cache, Element element) {
+      invalidate(element);
+    }
+
+    @Override
+    public void notifyElementExpired(Ehcache cache, Element element) {
+      invalidate(element);
+    }
+
+    @Override
+    public void notifyElementEvicted(Ehcache cache, Element element) {
+      invalidate(element);
+    }
+
+    @Override
+    public void notifyRemoveAll(Ehcache cache) {
+      invalidateAll();
+    }
+  };
+
+  /**
+   * @param backing
+   *          the cache to put the near cache in front of.
+   * @param name
+   *          the name the statistics are reported under.
+   * @param maxSize
+   *          the maximum number of entries held on heap.
+   * @param ttl
+   *          time to live of an entry in ms, 0 to keep entries until they are
+   *          invalidated or evicted.
+   */
+  @SuppressWarnings("unchecked")
+  public NearCache(CacheImpl<V> backing, String name, int maxSize, long ttl) {
+    this.backing = backing;
+    this.ttl = ttl;
+    int segmentSize = Math.max(1, (maxSize + STRIPES - 1) / STRIPES);
+    segments = new Segment[STRIPES];
+    for (int i = 0; i < STRIPES; i++) {
+      segments[i] = new Segment<V>(segmentSize);
+    }
+    statistics = new CacheStatisticsImpl(name, CacheScope.INSTANCE) {
+      @Override
+      public long getSize() {
+        return size();
+      }
+    };
+    backing.registerListener(invalidationListener);
+  }
+
+  /**
+   * Stop listening to the backing cache and drop everything held on heap.
+   */
+  public void dispose() {
+    backing.unregisterListener(invalidationListener);
+    invalidateAll();
+  }
+
+  public CacheStatisticsImpl getStatistics() {
+    return statistics;
+  }
+
+  public V get(String key) {
+    long start = System.nanoTime();
+    Segment<V> segment = segmentFor(key);
+    long generation;
+    synchronized (segment) {
+      V value = segment.get(key, System.currentTimeMillis());
+      if (value != null) {
+        statistics.recordGet(true, System.nanoTime() - start);
+        return value;
+      }
+      generation = segment.generation;
+    }
+    V value = backing.get(key);
+    statistics.recordGet(false, System.nanoTime() - start);
+    if (value != null) {
+      synchronized (segment) {
+        // only populate if nothing was invalidated while we were reading the
+        // backing cache, otherwise we might hold a stale value.
+        if (segment.generation == generation) {
+          segment.put(key, value, expiry());
+        }
+      }
+    }
+    return value;
+  }
+
+  public V put(String key, V payload) {
+    long start = System.nanoTime();
+    V previous = backing.put(key, payload);
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.generation++;
+      segment.put(key, payload, expiry());
+    }
+    statistics.recordPut(System.nanoTime() - start);
+    return previous;
+  }
+
+  public boolean containsKey(String key) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      if (segment.get(key, System.currentTimeMillis()) != null) {
+        return true;
+      }
+    }
+    return backing.containsKey(key);
+  }
+
+  public void remove(String key) {
+    backing.remove(key);
+    invalidate(key);
+    statistics.recordRemove();
+  }
+
+  public void removeChildren(String key) {
+    backing.removeChildren(key);
+    invalidate(key);
+    String prefix = key.endsWith("/") ? key : key + "/";
+    for (Segment<V> segment : segments) {
+      synchronized (segment) {
+        segment.generation++;
+        segment.removePrefix(prefix);
+      }
+    }
+  }
+
+  public void clear() {
+    backing.clear();
+    invalidateAll();
+  }
+
+  public List<V> list() {
+    return backing.list();
+  }
+
+  public void checkCompatableScope(CacheScope scope) {
+    backing.checkCompatableScope(scope);
+  }
+
+  int size() {
+    int size = 0;
+    for (Segment<V> segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  private void invalidate(Element element) {
+    if (element != null && element.getObjectKey() instanceof String) {
+      invalidate((String) element.getObjectKey());
+    }
+  }
+
+  private void invalidate(String key) {
+    Segment<V> segment = segmentFor(key);
+    synchronized (segment) {
+      segment.generation++;
+      segment.remove(key);
+    }
+  }
+
+  private void invalidateAll() {
+    for (Segment<V> segment : segments) {
+      synchronized (segment) {
+        segment.generation++;
+        segment.clear();
+      }
+    }
+  }
+
+  private long expiry() {
+    return ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+  }
+
+  private Segment<V> segmentFor(String key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return segments[h & (STRIPES - 1)];
+  }
+
+  private static final class Entry<V> {
+    private final V value;
+    private final long expires;
+
+    private Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * One stripe of the near cache, a segmented LRU. All access is synchronized on
+   * the segment.
+   */
+  private static final class Segment<V> {
+    private final LinkedHashMap<String, Entry<V>> probation;
+    private final LinkedHashMap<String, Entry<V>> protectedArea;
+    private final int maxProtected;
+    private final int maxProbation;
+    /**
+     * Incremented on every invalidation, so a reader that missed can tell the
+     * value it loaded may already be out of date.
+     */
+    private long generation;
+
+    private Segment(int maxSize) {
+      maxProtected = Math.max(1, (int) (maxSize * PROTECTED_RATIO));
+      maxProbation = Math.max(1, maxSize - maxProtected);
+      probation = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+          return size() > maxProbation;
+        }
+      };
+      protectedArea = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+    }
+
+    private V get(String key, long now) {
+      Entry<V> e = protectedArea.get(key);
+      if (e == null) {
+        e = probation.remove(key);
+        if (e == null) {
+          return null;
+        }
+        if (e.expires > now) {
+          promote(key, e);
+        }
+      }
+      if (e.expires <= now) {
+        protectedArea.remove(key);
+        return null;
+      }
+      return e.value;
+    }
+
+    private void promote(String key, Entry<V> e) {
+      protectedArea.put(key, e);
+      if (protectedArea.size() > maxProtected) {
+        // demote the least recently used protected entry back to probation.
+        Iterator<Map.Entry<String, Entry<V>>> i = protectedArea.entrySet().iterator();
+        Map.Entry<String, Entry<V>> eldest = i.next();
+        i.remove();
+        probation.put(eldest.getKey(), eldest.getValue());
+      }
+    }
+
+    private void put(String key, V value, long expires) {
+      Entry<V> e = new Entry<V>(value, expires);
+      if (protectedArea.containsKey(key)) {
+        protectedArea.put(key, e);
+      } else {
+        probation.put(key, e);
+      }
+    }
+
+    private void remove(String key) {
+      probation.remove(key);
+      protectedArea.remove(key);
+    }
+
+    private void removePrefix(String prefix) {
+      removePrefix(probation, prefix);
+      removePrefix(protectedArea, prefix);
+    }
+
+    private void removePrefix(Map<String, Entry<V>> map, String prefix) {
+      for (Iterator<String> i = map.keySet().iterator(); i.hasNext();) {
+        if (i.next().startsWith(prefix)) {
+          i.remove();
+        }
+      }
+    }
+
+    private void clear() {
+      probation.clear();
+      protectedArea.clear();
+    }
+
+    private int size() {
+      return probation.size() + protectedArea.size();
+    }
+  }
+}
@@ -20,39 +20,111 @@ package org.sakaiproject.nakamura.memory;
 import com.google.common.collect.ImmutableMap;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.sakaiproject.nakamura.api.lite.CacheHolder;
 import org.sakaiproject.nakamura.api.lite.StorageCacheManager;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
-@Component
+@Component(metatype = true)
 @Service(value = StorageCacheManager.class)
 public class StorageCacheManagerImpl implements StorageCacheManager {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(StorageCacheManagerImpl.class);
+
+  /**
+   * Near caches to put in front of the sparse caches, as
+   * <code>cache=maxEntries:ttlSeconds</code> where cache is one of ac, au, cn or
+   * sparseQueryCache. A ttl of 0 keeps entries until they are invalidated or
+   * evicted. Caches not listed go straight to ehcache.
+   */
+  @Property(value = { "ac=2000:300", "au=2000:300", "cn=10000:300" })
+  static final String NEAR_CACHES = "near-caches";
+
   private Map<String, Map<String, CacheHolder>> knownCaches;
 
+  private List<NearCache<CacheHolder>> nearCaches = new ArrayList<NearCache<CacheHolder>>();
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Activate
   public void activate(Map<String, Object> props) {
+    Map<String, String> nearCacheConfig = new HashMap<String, String>();
+    for (String config : PropertiesUtil.toStringArray(props.get(NEAR_CACHES), new String[0])) {
+      String[] kv = config.split("=", 2);
+      if (kv.length == 2) {
+        nearCacheConfig.put(kv[0].trim(), kv[1].trim());
+      }
+    }
     ImmutableMap.Builder<String, Map<String, CacheHolder>> b = ImmutableMap.builder();
     Cache<CacheHolder> accesssControlCacheCache = cacheManagerService.getCache("accessControlCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> authorizableCacheCache = cacheManagerService.getCache("authorizableCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> contentCacheCache = cacheManagerService.getCache("contentCache", CacheScope.CLUSTERINVALIDATED);
     Cache<CacheHolder> queryCache = cacheManagerService.getCache("queryCache", CacheScope.CLUSTERINVALIDATED);
-    b.put("ac", new MapDeligate<String, CacheHolder>(accesssControlCacheCache));
-    b.put("au", new MapDeligate<String, CacheHolder>(authorizableCacheCache));
-    b.put("cn", new MapDeligate<String, CacheHolder>(contentCacheCache));
-    b.put("sparseQueryCache", new MapDeligate<String, CacheHolder>(queryCache));
+    b.put("ac", new MapDeligate<String, CacheHolder>(near("ac", accesssControlCacheCache, nearCacheConfig)));
+    b.put("au", new MapDeligate<String, CacheHolder>(near("au", authorizableCacheCache, nearCacheConfig)));
+    b.put("cn", new MapDeligate<String, CacheHolder>(near("cn", contentCacheCache, nearCacheConfig)));
+    b.put("sparseQueryCache", new MapDeligate<String, CacheHolder>(near("sparseQueryCache", queryCache, nearCacheConfig)));
     knownCaches = b.build();
   }
 
+  @Deactivate
+  public void deactivate(Map<String, Object> props) {
+    for (NearCache<CacheHolder> nearCache : nearCaches) {
+      CacheManagerServiceImpl.unregisterStatistics(nearCache.getStatistics());
+      nearCache.dispose();
+    }
+    nearCaches.clear();
+  }
+
+  /**
+   * Put a near cache in front of cache if one is configured for it.
+   */
+  private Cache<CacheHolder> near(String name, Cache<CacheHolder> cache,
+      Map<String, String> nearCacheConfig) {
+    String config = nearCacheConfig.get(name);
+    if (config == null) {
+      return cache;
+    }
+    if (!(cache instanceof CacheImpl)) {
+      // without the ehcache notifications we can't keep a near cache coherent.
+      LOGGER.warn("Not adding a near cache to {}, it is not backed by ehcache ", name);
+      return cache;
+    }
+    String[] sizeTtl = config.split(":");
+    int size;
+    long ttl;
+    try {
+      size = Integer.parseInt(sizeTtl[0].trim());
+      ttl = sizeTtl.length > 1 ? Long.parseLong(sizeTtl[1].trim()) * 1000L : 0L;
+    } catch (NumberFormatException e) {
+      LOGGER.warn("Invalid near cache configuration {}={}, ignored ", name, config);
+      return cache;
+    }
+    if (size <= 0) {
+      return cache;
+    }
+    NearCache<CacheHolder> nearCache = new NearCache<CacheHolder>(
+        (CacheImpl<CacheHolder>) cache, name + ".near", size, ttl);
+    CacheManagerServiceImpl.registerStatistics(nearCache.getStatistics());
+    nearCaches.add(nearCache);
+    LOGGER.info("Near cache for {} holds {} entries, ttl {} ms ", new Object[] { name,
+        size, ttl });
+    return nearCache;
+  }
   public Map<String, CacheHolder> getAccessControlCache() {
     return getCache("ac");
   }
@@ -17,24 +17,56 @@
  */
 package org.sakaiproject.nakamura.memory;
 
-import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * Represents a Cache stored on the thread, used in the request thread and in other threads.
  * When used in Threads there is a potential for memory leaks as perm space is not cleaned up.
  * This will be caused by references to classloaders being in the Map, and keeping the classloaders
- * open.
+ * open. When the scope is unbound the caches are cleared and the arena is removed from the
+ * thread, so nothing is left on threads that outlive this bundle. Released arenas are kept
+ * in a small pool for the next thread to bind one.
  */
-public class ThreadLocalCacheMap extends ThreadLocal<Map<String,Cache<?>>> {
+public class ThreadLocalCacheMap extends ThreadLocal<CacheArena> {
+
+  private static final int MAX_FREE_ARENAS = 256;
+
+  private final CacheScope scope;
+  private final BlockingQueue<CacheArena> free = new ArrayBlockingQueue<CacheArena>(
+      MAX_FREE_ARENAS);
+
+  public ThreadLocalCacheMap(CacheScope scope) {
+    this.scope = scope;
+  }
+
   /**
    * {@inheritDoc}
    * @see java.lang.ThreadLocal#initialValue()
    */
   @Override
-  protected Map<String, Cache<?>> initialValue() {
-    return new HashMap<String, Cache<?>>();
+  protected CacheArena initialValue() {
+    CacheArena arena = free.poll();
+    return arena == null ? new CacheArena(scope) : arena;
+  }
+
+  /**
+   * Remove the arena from the current thread, keeping it for reuse if the pool has room.
+   *
+   * @param arena
+   *          the arena bound to the current thread, already reset.
+   */
+  public void release(CacheArena arena) {
+    remove();
+    free.offer(arena);
+  }
+
+  /**
+   * Drop the pooled arenas.
+   */
+  public void clear() {
+    free.clear();
   }
 }
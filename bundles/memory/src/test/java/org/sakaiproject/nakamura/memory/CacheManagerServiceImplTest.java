@@ -1,6 +1,11 @@
 package org.sakaiproject.nakamura.memory;
 
+import net.sf.ehcache.CacheManager;
+
 import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -8,8 +13,16 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class CacheManagerServiceImplTest {
 
@@ -23,4 +36,136 @@ public class CacheManagerServiceImplTest {
     BufferedReader reader = new BufferedReader(new InputStreamReader(finishedConfig));
     assertEquals(reader.readLine(), "Howdy, kind Globe!");
   }
+
+  @Test
+  public void concurrentGetCacheReturnsOneInstance() throws Exception {
+    final CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      Future<?>[] results = new Future<?>[8];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = executor.submit(new Callable<Cache<String>>() {
+          public Cache<String> call() throws Exception {
+            start.await();
+            return cacheManagerService.getCache("concurrent", CacheScope.INSTANCE);
+          }
+        });
+      }
+      start.countDown();
+      for (Future<?> result : results) {
+        assertSame(results[0].get(), result.get());
+      }
+      int n = 0;
+      for (CacheStatistics statistics : cacheManagerService.getCacheStatistics()) {
+        if ("concurrent".equals(statistics.getName())) {
+          n++;
+        }
+      }
+      assertEquals(1, n);
+    } finally {
+      executor.shutdown();
+      cacheManagerService.stop();
+    }
+  }
+
+  @Test
+  public void statisticsCountHitsAndMisses() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      Cache<String> cache = cacheManagerService.getCache("stats", CacheScope.INSTANCE);
+      cache.put("a", "1");
+      cache.get("a");
+      cache.get("b");
+      cache.remove("a");
+      CacheStatistics statistics = ((CacheImpl<String>) cache).getStatistics();
+      assertEquals(1, statistics.getHits());
+      assertEquals(1, statistics.getMisses());
+      assertEquals(1, statistics.getPuts());
+      assertEquals(1, statistics.getRemovals());
+      assertEquals(0.5, statistics.getHitRatio(), 0.001);
+      assertTrue(statistics.getGetLatency99() >= statistics.getGetLatency50());
+      statistics.reset();
+      assertEquals(0, statistics.getHits());
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  @Test
+  public void requestCachesAreReusedAcrossRequests() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      Cache<String> first = cacheManagerService.getCache("request", CacheScope.REQUEST);
+      first.put("a", "1");
+      for (int i = 0; i < 100; i++) {
+        cacheManagerService.getCache("other" + i, CacheScope.REQUEST);
+      }
+      assertSame(first, cacheManagerService.getCache(new String("request"), CacheScope.REQUEST));
+      cacheManagerService.unbind(CacheScope.REQUEST);
+      assertEquals(101, cacheManagerService.getScopedCacheAllocations());
+
+      Cache<String> second = cacheManagerService.getCache("request", CacheScope.REQUEST);
+      assertSame(first, second);
+      assertNull(second.get("a"));
+      cacheManagerService.unbind(CacheScope.REQUEST);
+      assertEquals(101, cacheManagerService.getScopedCacheAllocations());
+      assertEquals(2, cacheManagerService.getScopedCacheResets());
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  @Test
+  public void scopedCachesAcceptANullName() throws Exception {
+    CacheManagerServiceImpl cacheManagerService = new CacheManagerServiceImpl();
+    try {
+      Cache<String> cache = cacheManagerService.getCache(null, CacheScope.REQUEST);
+      cache.put("a", "1");
+      assertSame(cache, cacheManagerService.getCache(null, CacheScope.REQUEST));
+      assertNull(cacheManagerService.getCache("null", CacheScope.REQUEST).get("a"));
+      cacheManagerService.unbind(CacheScope.REQUEST);
+      assertNull(cacheManagerService.getCache(null, CacheScope.REQUEST).get("a"));
+    } finally {
+      cacheManagerService.stop();
+    }
+  }
+
+  @Test
+  public void releasedArenasLeaveTheThread() throws Exception {
+    final ThreadLocalCacheMap holder = new ThreadLocalCacheMap(CacheScope.THREAD);
+    CacheArena arena = holder.get();
+    holder.release(arena);
+    // no longer bound to this thread, so another thread picks it up from the pool.
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      assertSame(arena, executor.submit(new Callable<CacheArena>() {
+        public CacheArena call() {
+          return holder.get();
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+    assertTrue(arena != holder.get());
+  }
+
+  @Test
+  public void unnamedCachesDoNotListenToTheDefaultCache() throws Exception {
+    CacheManager cacheManager = new CacheManager();
+    try {
+      new CacheImpl<String>(cacheManager, null, CacheScope.INSTANCE);
+      int listeners = cacheManager.getCache("default").getCacheEventNotificationService()
+          .getCacheEventListeners().size();
+      for (int i = 0; i < 10; i++) {
+        Cache<String> cache = new CacheImpl<String>(cacheManager, null, CacheScope.INSTANCE);
+        cache.put("a", "1");
+        cache.get("a");
+      }
+      assertEquals(listeners, cacheManager.getCache("default")
+          .getCacheEventNotificationService().getCacheEventListeners().size());
+    } finally {
+      cacheManager.shutdown();
+    }
+  }
 }
@@ -0,0 +1,88 @@
+package org.sakaiproject.nakamura.memory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+
+public class NearCacheTest {
+
+  private CacheManagerServiceImpl cacheManagerService;
+  private CacheImpl<String> backing;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheManagerService = new CacheManagerServiceImpl();
+    backing = (CacheImpl<String>) cacheManagerService.<String> getCache(
+        "nearCacheTest" + System.nanoTime(), CacheScope.CLUSTERINVALIDATED);
+  }
+
+  @After
+  public void tearDown() {
+    cacheManagerService.stop();
+  }
+
+  @Test
+  public void testHitsAreServedFromHeap() {
+    NearCache<String> near = new NearCache<String>(backing, "test.near", 100, 0);
+    near.put("a", "1");
+    assertEquals("1", near.get("a"));
+    assertEquals("1", near.get("a"));
+    assertEquals(2, near.getStatistics().getHits());
+    // reads of the near cache don't reach ehcache.
+    assertEquals(0, backing.getStatistics().getHits());
+    assertNull(near.get("missing"));
+    assertEquals(1, near.getStatistics().getMisses());
+    near.dispose();
+  }
+
+  @Test
+  public void testBackingChangesInvalidate() {
+    NearCache<String> near = new NearCache<String>(backing, "test.near", 100, 0);
+    near.put("a", "1");
+    near.put("b/c", "2");
+    assertEquals("1", near.get("a"));
+    // as a cluster invalidation or another writer would.
+    backing.put("a", "changed");
+    assertEquals("changed", near.get("a"));
+    backing.remove("a");
+    assertNull(near.get("a"));
+    near.removeChildren("b");
+    assertNull(near.get("b/c"));
+    near.put("d", "3");
+    backing.clear();
+    assertFalse(near.containsKey("d"));
+    near.dispose();
+  }
+
+  @Test
+  public void testBoundedAndScanResistant() {
+    NearCache<String> near = new NearCache<String>(backing, "test.near", 160, 0);
+    near.put("hot", "h");
+    near.get("hot");
+    near.get("hot");
+    for (int i = 0; i < 10000; i++) {
+      near.put("scan" + i, "s");
+    }
+    assertTrue(near.size() <= 160);
+    long hits = near.getStatistics().getHits();
+    assertEquals("h", near.get("hot"));
+    assertEquals(hits + 1, near.getStatistics().getHits());
+    near.dispose();
+  }
+
+  @Test
+  public void testTtl() throws Exception {
+    NearCache<String> near = new NearCache<String>(backing, "test.near", 100, 1);
+    near.put("a", "1");
+    Thread.sleep(5);
+    assertEquals("1", near.get("a"));
+    assertEquals(1, near.getStatistics().getMisses());
+    near.dispose();
+  }
+}
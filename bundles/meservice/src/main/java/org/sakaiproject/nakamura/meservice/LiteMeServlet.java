@@ -195,6 +195,10 @@ public class LiteMeServlet extends SlingSafeMethodsServlet {
       if ( requestedUserId != null && requestedUserId.length() > 0) {
         userId = requestedUserId;
       }
+      // the response is built from the user and the content in their home.
+      dynamicContentResponseCache.addAuthorizableDependency(request, userId);
+      dynamicContentResponseCache.addContentDependency(request,
+          LitePersonalUtils.getHomePath(userId));
       Authorizable au = um.findAuthorizable(userId);
       if ( au == null ) {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
@@ -49,6 +49,7 @@ import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.api.util.LocaleUtils;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.util.LitePersonalUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -181,6 +182,10 @@ public class LiteRevisedMeServlet extends SlingSafeMethodsServlet {
       if ( requestedUserId != null && requestedUserId.length() > 0) {
         userId = requestedUserId;
       }
+      // the response is built from the user and the content in their home.
+      dynamicContentResponseCache.addAuthorizableDependency(request, userId);
+      dynamicContentResponseCache.addContentDependency(request,
+          LitePersonalUtils.getHomePath(userId));
       Authorizable au = um.findAuthorizable(userId);
       if ( au == null ) {
         response.sendError(HttpServletResponse.SC_BAD_REQUEST,"User "+userId+" not found.");
@@ -18,43 +18,123 @@
 package org.sakaiproject.nakamura.message.search;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.util.ISO9075;
 import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.api.message.search.MessageCountService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
+import org.sakaiproject.nakamura.api.search.solr.Result;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 
-@Component
-@Service
-public class MessageCountServiceImpl implements MessageCountService {
+/**
+ * Counts the unread messages in the inbox of a user. The unread messages of each store
+ * are materialized from Solr on the first request and then maintained from the message
+ * events, see {@link UnreadMessageCounts}. The counts are kept per server, so changes
+ * made on other cluster members are only picked up when a store is reloaded after the
+ * TTL.
+ */
+@Component(metatype = true)
+@Service(value = { MessageCountService.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }),
+    @Property(name = "service.description", value = "Counts the unread messages of users")
+})
+public class MessageCountServiceImpl implements MessageCountService, EventHandler {
 
   protected static final Logger LOGGER = LoggerFactory.getLogger(MessageCountServiceImpl.class);
 
+  @Property(intValue = MessageCountServiceImpl.DEFAULT_MAX_STORES)
+  static final String MAX_STORES = "sakai.messages.unread.maxStores";
+  static final int DEFAULT_MAX_STORES = 10000;
+
+  @Property(intValue = MessageCountServiceImpl.DEFAULT_MAX_UNREAD)
+  static final String MAX_UNREAD = "sakai.messages.unread.maxUnread";
+  /**
+   * Stores with more unread messages than this are counted with a query every time, until
+   * the TTL has passed and loading them is tried again.
+   */
+  static final int DEFAULT_MAX_UNREAD = 500;
+
+  @Property(longValue = MessageCountServiceImpl.DEFAULT_TTL)
+  static final String TTL = "sakai.messages.unread.ttl";
+  /**
+   * Default time in ms before a store is reconciled against Solr.
+   */
+  static final long DEFAULT_TTL = 300000L;
+
+  @Property(longValue = MessageCountServiceImpl.DEFAULT_SETTLE)
+  static final String SETTLE = "sakai.messages.unread.settle";
+  /**
+   * Default time in ms for a message change to become visible to Solr queries.
+   */
+  static final long DEFAULT_SETTLE = 10000L;
+
   @Reference
   protected SolrSearchServiceFactory searchServiceFactory;
 
   @Reference
   protected transient LiteMessagingService messagingService;
 
+  @Reference
+  protected Repository repository;
+
+  private int maxUnread = DEFAULT_MAX_UNREAD;
+  private UnreadMessageCounts unreadCounts = new UnreadMessageCounts(DEFAULT_MAX_STORES,
+      DEFAULT_TTL, DEFAULT_SETTLE);
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxUnread = PropertiesUtil.toInteger(properties.get(MAX_UNREAD), DEFAULT_MAX_UNREAD);
+    unreadCounts = new UnreadMessageCounts(PropertiesUtil.toInteger(
+        properties.get(MAX_STORES), DEFAULT_MAX_STORES), PropertiesUtil.toLong(
+        properties.get(TTL), DEFAULT_TTL), PropertiesUtil.toLong(properties.get(SETTLE),
+        DEFAULT_SETTLE));
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    unreadCounts.clear();
+  }
+
   @Override
   public long getUnreadMessageCount(SlingHttpServletRequest request) {
     final javax.jcr.Session jcrSession = request.getResourceResolver().adaptTo(javax.jcr.Session.class);
@@ -79,25 +159,104 @@ public class MessageCountServiceImpl implements MessageCountService {
     }
 
     String store = messagingService.getFullPathToStore(au.getId(), session);
-    store = ISO9075.encodePath(store);
-    String queryString = "messagestore:" + ClientUtils.escapeQueryChars(store) + " AND type:internal AND messagebox:inbox AND read:false";
-    final Map<String, Object> queryOptions = ImmutableMap.of(
-       PARAMS_ITEMS_PER_PAGE, (Object) "0",
-       CommonParams.START, "0"
-    );
-    Query query = new Query(queryString, queryOptions);
-    LOGGER.debug("Submitting Query {} ", query);
-
-    SolrSearchResultSet resultSet = null;
+    int count = unreadCounts.getCount(store);
+    if (count >= 0) {
+      return count;
+    }
+
+    boolean load = !unreadCounts.isCountOnly(store) && unreadCounts.startLoading(store);
     try {
-      resultSet = searchServiceFactory.getSearchResultSet(
-          request, query, false);
-    } catch (SolrSearchException e) {
-      LOGGER.error("error executing query", e);
-      return 0;
+      String queryString = "messagestore:" + ClientUtils.escapeQueryChars(ISO9075.encodePath(store)) + " AND type:internal AND messagebox:inbox AND read:false";
+      final Map<String, Object> queryOptions = ImmutableMap.of(
+         PARAMS_ITEMS_PER_PAGE, (Object) String.valueOf(load ? maxUnread : 0),
+         CommonParams.START, "0"
+      );
+      Query query = new Query(queryString, queryOptions);
+      LOGGER.debug("Submitting Query {} ", query);
+
+      SolrSearchResultSet resultSet = null;
+      try {
+        resultSet = searchServiceFactory.getSearchResultSet(
+            request, query, false);
+      } catch (SolrSearchException e) {
+        LOGGER.error("error executing query", e);
+        return 0;
+      }
+
+      long size = resultSet.getSize();
+      if (load) {
+        if (size <= maxUnread) {
+          List<String> unread = Lists.newArrayList();
+          for (Iterator<Result> results = resultSet.getResultSetIterator(); results.hasNext();) {
+            unread.add(results.next().getPath());
+          }
+          unreadCounts.loaded(store, unread);
+        } else {
+          // too many to keep, so go back to counting without fetching the rows.
+          unreadCounts.countOnly(store);
+        }
+        load = false;
+      }
+      return size;
+    } finally {
+      if (load) {
+        unreadCounts.cancelLoading(store);
+      }
     }
+  }
 
-    return resultSet.getSize();
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String path = (String) event.getProperty("path");
+    if (path == null
+        || !MessageConstants.SAKAI_MESSAGE_RT.equals(event.getProperty("resourceType"))) {
+      return;
+    }
+    // messages live at <store><box>/<id>
+    String store = PathUtils.getParentReference(PathUtils.getParentReference(path)) + "/";
+    if (!unreadCounts.isTracked(store)) {
+      return;
+    }
+    if (event.getTopic().endsWith("DELETE")) {
+      unreadCounts.update(store, path, false);
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = repository.loginAdministrative();
+      Content message = adminSession.getContentManager().get(path);
+      unreadCounts.update(store, path, message != null
+          && isUnreadInboxMessage(message.getProperties()));
+    } catch (ClientPoolException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+      unreadCounts.invalidate(store);
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+      unreadCounts.invalidate(store);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(e.getLocalizedMessage(), e);
+      unreadCounts.invalidate(store);
+    } finally {
+      if (adminSession != null) {
+        try {
+          adminSession.logout();
+        } catch (ClientPoolException e) {
+          LOGGER.error(e.getLocalizedMessage(), e);
+        }
+      }
+    }
   }
 
+  /**
+   * @param properties
+   * @return true if the message matches the query that counts unread messages.
+   */
+  static boolean isUnreadInboxMessage(Map<String, Object> properties) {
+    return MessageConstants.TYPE_INTERNAL.equals(properties.get(MessageConstants.PROP_SAKAI_TYPE))
+        && MessageConstants.BOX_INBOX.equals(properties.get(MessageConstants.PROP_SAKAI_MESSAGEBOX))
+        && "false".equals(String.valueOf(properties.get(MessageConstants.PROP_SAKAI_READ)));
+  }
 }
@@ -0,0 +1,254 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.search;
+
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The unread messages in the inbox of each message store, materialized from a Solr query
+ * the first time the count is asked for and then kept up to date from message events, so
+ * the unread count is a lookup rather than a search.
+ * <p>
+ * A store is reloaded from Solr once its entry is older than the TTL, which reconciles
+ * any events that were missed. The entries are local to this server and only see the
+ * events of messages changed here, so a message read or delivered on another cluster
+ * member shows up in the count here at the latest after the TTL.
+ * <p>
+ * Solr is only near real time, so a query misses messages that changed within the last
+ * few seconds. The first load of a store therefore only lives until Solr has caught up,
+ * and every reload keeps the state of the messages that changed locally within that
+ * window rather than trusting the query for them.
+ */
+class UnreadMessageCounts {
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  /**
+   * Stores being loaded from Solr, flagged if a message in them changed while they were.
+   */
+  private final ConcurrentMap<String, AtomicBoolean> loading = new ConcurrentHashMap<String, AtomicBoolean>();
+  /**
+   * Stores with more unread messages than are kept, and the time until which they are
+   * only counted.
+   */
+  private final ConcurrentMap<String, Long> countOnly = new ConcurrentHashMap<String, Long>();
+  private final int maxEntries;
+  private final long ttl;
+  private final long settle;
+
+  private static final class Entry {
+    private final Set<String> unread;
+    private final long expires;
+    /**
+     * The last recorded state of each message that changed since the entry was loaded.
+     */
+    private final ConcurrentMap<String, Change> changes = new ConcurrentHashMap<String, Change>();
+
+    private Entry(Collection<String> unread, long expires) {
+      this.unread = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      this.unread.addAll(unread);
+      this.expires = expires;
+    }
+  }
+
+  private static final class Change {
+    private final boolean unread;
+    private final long time;
+
+    private Change(boolean unread, long time) {
+      this.unread = unread;
+      this.time = time;
+    }
+  }
+
+  /**
+   * @param maxEntries
+   * @param ttl
+   *          time in ms after which a store is reloaded.
+   * @param settle
+   *          time in ms within which a change may not be visible to a Solr query yet.
+   */
+  UnreadMessageCounts(int maxEntries, long ttl, long settle) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    this.settle = settle;
+  }
+
+  /**
+   * @param store
+   * @return the number of unread messages in the store, or -1 if it has to be loaded.
+   */
+  int getCount(String store) {
+    Entry entry = entries.get(store);
+    if (entry == null || entry.expires <= System.currentTimeMillis()) {
+      return -1;
+    }
+    return entry.unread.size();
+  }
+
+  /**
+   * Start loading a store, changes to the store are tracked from this point.
+   *
+   * @param store
+   * @return false if the store is already being loaded by another thread, in which case
+   *         the caller should not call {@link #loaded(String, Collection)}.
+   */
+  boolean startLoading(String store) {
+    return loading.putIfAbsent(store, new AtomicBoolean()) == null;
+  }
+
+  /**
+   * @param store
+   * @param unread
+   *          the paths of the unread messages in the store, as found by the query started
+   *          after {@link #startLoading(String)}.
+   */
+  void loaded(String store, Collection<String> unread) {
+    Entry previous = entries.get(store);
+    if (entries.size() >= maxEntries) {
+      // crude, but the entries of active users are reloaded on their next request.
+      entries.clear();
+    }
+    long now = System.currentTimeMillis();
+    Entry entry;
+    if (previous == null) {
+      // nothing was tracked before the query, so anything that changed just before it
+      // may be missing; reconcile with another query once Solr has caught up.
+      entry = new Entry(unread, now + Math.min(settle, ttl));
+    } else {
+      entry = new Entry(unread, now + ttl);
+      for (Map.Entry<String, Change> e : previous.changes.entrySet()) {
+        Change change = e.getValue();
+        if (change.time > now - settle) {
+          // the query may not have seen this change yet.
+          entry.changes.put(e.getKey(), change);
+          if (change.unread) {
+            entry.unread.add(e.getKey());
+          } else {
+            entry.unread.remove(e.getKey());
+          }
+        }
+      }
+    }
+    entries.put(store, entry);
+    AtomicBoolean changed = loading.remove(store);
+    if (changed == null || changed.get()) {
+      // a message changed while we were querying, so the result may be stale.
+      entries.remove(store);
+    }
+  }
+
+  /**
+   * Abandon loading a store.
+   *
+   * @param store
+   */
+  void cancelLoading(String store) {
+    loading.remove(store);
+  }
+
+  /**
+   * Stop loading a store that has more unread messages than are kept. It is only counted
+   * until the TTL has passed, then loading it is tried again.
+   *
+   * @param store
+   */
+  void countOnly(String store) {
+    if (countOnly.size() >= maxEntries) {
+      countOnly.clear();
+    }
+    countOnly.put(store, System.currentTimeMillis() + ttl);
+    loading.remove(store);
+  }
+
+  /**
+   * @param store
+   * @return true if the store should be counted rather than loaded.
+   */
+  boolean isCountOnly(String store) {
+    Long until = countOnly.get(store);
+    if (until == null) {
+      return false;
+    }
+    if (until <= System.currentTimeMillis()) {
+      countOnly.remove(store, until);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param store
+   * @return true if changes to the messages in the store need to be recorded.
+   */
+  boolean isTracked(String store) {
+    return entries.containsKey(store) || loading.containsKey(store);
+  }
+
+  /**
+   * Record the state of a message.
+   *
+   * @param store
+   * @param messagePath
+   * @param unread
+   *          true if the message is an unread message in the inbox.
+   */
+  void update(String store, String messagePath, boolean unread) {
+    AtomicBoolean changed = loading.get(store);
+    if (changed != null) {
+      changed.set(true);
+    }
+    Entry entry = entries.get(store);
+    if (entry != null) {
+      entry.changes.put(messagePath, new Change(unread, System.currentTimeMillis()));
+      if (unread) {
+        entry.unread.add(messagePath);
+      } else {
+        entry.unread.remove(messagePath);
+      }
+    }
+  }
+
+  /**
+   * Forget a store, it is reloaded from Solr on the next request.
+   *
+   * @param store
+   */
+  void invalidate(String store) {
+    AtomicBoolean changed = loading.get(store);
+    if (changed != null) {
+      changed.set(true);
+    }
+    entries.remove(store);
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  void clear() {
+    entries.clear();
+    countOnly.clear();
+  }
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+
+public class UnreadMessageCountsTest {
+
+  private static final String STORE = "a:alice/messages/";
+
+  @Test
+  public void testMaintainedFromUpdates() {
+    UnreadMessageCounts counts = new UnreadMessageCounts(10, 60000L, 60000L);
+    assertEquals(-1, counts.getCount(STORE));
+    assertFalse(counts.isTracked(STORE));
+
+    assertTrue(counts.startLoading(STORE));
+    assertTrue(counts.isTracked(STORE));
+    counts.loaded(STORE, ImmutableList.of(STORE + "inbox/1", STORE + "inbox/2"));
+    assertEquals(2, counts.getCount(STORE));
+
+    counts.update(STORE, STORE + "inbox/3", true);
+    assertEquals(3, counts.getCount(STORE));
+    // the same message again doesn't count twice
+    counts.update(STORE, STORE + "inbox/3", true);
+    assertEquals(3, counts.getCount(STORE));
+    counts.update(STORE, STORE + "inbox/1", false);
+    assertEquals(2, counts.getCount(STORE));
+    counts.update(STORE, STORE + "inbox/9", false);
+    assertEquals(2, counts.getCount(STORE));
+  }
+
+  @Test
+  public void testChangeWhileLoadingIsNotCached() {
+    UnreadMessageCounts counts = new UnreadMessageCounts(10, 60000L, 60000L);
+    assertTrue(counts.startLoading(STORE));
+    assertFalse(counts.startLoading(STORE));
+    counts.update(STORE, STORE + "inbox/3", true);
+    counts.loaded(STORE, ImmutableList.of(STORE + "inbox/1"));
+    assertEquals(-1, counts.getCount(STORE));
+    assertFalse(counts.isTracked(STORE));
+
+    assertTrue(counts.startLoading(STORE));
+    counts.cancelLoading(STORE);
+    assertFalse(counts.isTracked(STORE));
+  }
+
+  @Test
+  public void testExpiresAndInvalidates() throws Exception {
+    UnreadMessageCounts counts = new UnreadMessageCounts(10, 0L, 0L);
+    counts.startLoading(STORE);
+    counts.loaded(STORE, ImmutableList.of(STORE + "inbox/1"));
+    assertEquals(-1, counts.getCount(STORE));
+
+    counts = new UnreadMessageCounts(10, 60000L, 60000L);
+    counts.startLoading(STORE);
+    counts.loaded(STORE, ImmutableList.of(STORE + "inbox/1"));
+    counts.invalidate(STORE);
+    assertEquals(-1, counts.getCount(STORE));
+  }
+
+  @Test
+  public void testFirstLoadIsReconciledWithRecentChanges() throws Exception {
+    UnreadMessageCounts counts = new UnreadMessageCounts(10, 60000L, 200L);
+    counts.startLoading(STORE);
+    counts.loaded(STORE, ImmutableList.of(STORE + "inbox/1", STORE + "inbox/2"));
+    assertEquals(2, counts.getCount(STORE));
+
+    // the first load only lives until Solr has caught up
+    Thread.sleep(300L);
+    assertEquals(-1, counts.getCount(STORE));
+    assertTrue(counts.isTracked(STORE));
+
+    counts.update(STORE, STORE + "inbox/3", true);
+    counts.update(STORE, STORE + "inbox/1", false);
+    // a query that hasn't seen the last two changes yet, but has seen inbox/4
+    assertTrue(counts.startLoading(STORE));
+    counts.loaded(STORE,
+        ImmutableList.of(STORE + "inbox/1", STORE + "inbox/2", STORE + "inbox/4"));
+    assertEquals(3, counts.getCount(STORE));
+    counts.update(STORE, STORE + "inbox/2", false);
+    assertEquals(2, counts.getCount(STORE));
+  }
+
+  @Test
+  public void testCountOnlyUntilTtl() throws Exception {
+    UnreadMessageCounts counts = new UnreadMessageCounts(10, 200L, 0L);
+    assertTrue(counts.startLoading(STORE));
+    counts.countOnly(STORE);
+    assertTrue(counts.isCountOnly(STORE));
+    assertFalse(counts.isTracked(STORE));
+    assertEquals(-1, counts.getCount(STORE));
+
+    // loading is tried again once the TTL has passed
+    Thread.sleep(300L);
+    assertFalse(counts.isCountOnly(STORE));
+    assertTrue(counts.startLoading(STORE));
+  }
+
+  @Test
+  public void testUnreadInboxMessage() {
+    assertTrue(MessageCountServiceImpl.isUnreadInboxMessage(ImmutableMap.<String, Object> of(
+        MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL,
+        MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX,
+        MessageConstants.PROP_SAKAI_READ, false)));
+    assertFalse(MessageCountServiceImpl.isUnreadInboxMessage(ImmutableMap.<String, Object> of(
+        MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL,
+        MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX,
+        MessageConstants.PROP_SAKAI_READ, "true")));
+    assertFalse(MessageCountServiceImpl.isUnreadInboxMessage(ImmutableMap.<String, Object> of(
+        MessageConstants.PROP_SAKAI_TYPE, MessageConstants.TYPE_INTERNAL,
+        MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX,
+        MessageConstants.PROP_SAKAI_READ, false)));
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.presence;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * The presence of one user. Immutable, an update replaces the record.
+ * <p>
+ * Records are replicated in the form <code>:uuid:timestamp:location:status</code>,
+ * which is the form the presence status cache has always used.
+ */
+final class PresenceRecord {
+
+  final String uuid;
+  /**
+   * In units of the presence timestamp resolution.
+   */
+  final long timestamp;
+  final String location;
+  final String status;
+  /**
+   * The replicated form this record was decoded from, null for local records.
+   */
+  final String source;
+
+  PresenceRecord(String uuid, long timestamp, String location, String status) {
+    this(uuid, timestamp, location, status, null);
+  }
+
+  private PresenceRecord(String uuid, long timestamp, String location, String status,
+      String source) {
+    this.uuid = uuid;
+    this.timestamp = timestamp;
+    this.location = location;
+    this.status = status;
+    this.source = source;
+  }
+
+  /**
+   * @param encoded
+   * @return the record, or null if the encoded form is not valid.
+   */
+  static PresenceRecord decode(String encoded) {
+    String[] parts = StringUtils.split(encoded, ":", 4);
+    if (parts.length < 2) {
+      return null;
+    }
+    try {
+      return new PresenceRecord(parts[0], Long.parseLong(parts[1]),
+          parts.length > 2 ? parts[2] : "none", parts.length > 3 ? parts[3] : "online",
+          encoded);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  String encode() {
+    return ":" + uuid + ":" + timestamp + ":" + location + ":" + status;
+  }
+
+  String[] toArray() {
+    return new String[] { uuid, String.valueOf(timestamp), location, status };
+  }
+
+  /**
+   * @return the more recent of two records, either of which may be null.
+   */
+  static PresenceRecord newest(PresenceRecord a, PresenceRecord b) {
+    if (a == null) {
+      return b;
+    }
+    if (b == null) {
+      return a;
+    }
+    return b.timestamp > a.timestamp ? b : a;
+  }
+}
@@ -17,7 +17,6 @@
  */
 package org.sakaiproject.nakamura.presence;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
@@ -25,7 +24,12 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.ReferenceCardinality;
+import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.sakaiproject.nakamura.api.cluster.ClusterServer;
+import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
@@ -34,35 +38,78 @@ import org.sakaiproject.nakamura.api.presence.PresenceStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Keeps the presence of users connected to this server in memory and replicates it to
+ * the rest of the cluster in batches.
+ * <p>
+ * Pings and status changes only update a local, lock free record and mark the user and
+ * any locations involved as dirty. Every scheduler period the dirty users are written to
+ * the replicated status cache and the members of each dirty location on this server are
+ * written to the replicated location cache under <code>location@serverId</code>, so a
+ * location is a single value per server rather than a map that every ping rewrites.
+ * Expired records are swept at the same time.
+ * <p>
+ * Reads use the newer of the local record and the replicated record, so a user who
+ * has moved to another server is reported where they are now.
+ */
 @Component(label = "Sakai Presence Service", description = "Service for getting info about the presence status and locations of current users", name = "org.sakaiproject.nakamura.api.presence.PresenceService")
-@Service(value = PresenceService.class)
+@Service(value = { PresenceService.class, Runnable.class })
 @Properties(value = {
     @Property(name = "service.description", value = { "Gets the presence status and locations for users." }),
-    @Property(name = "service.vendor", value = { "The Sakai Foundation" }) })
-public class PresenceServiceImpl implements PresenceService {
+    @Property(name = "service.vendor", value = { "The Sakai Foundation" }),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false),
+    @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 5L) })
+public class PresenceServiceImpl implements PresenceService, Runnable {
 
   private Logger LOGGER = LoggerFactory.getLogger(PresenceServiceImpl.class);
 
   private static final String LOCATION_CACHE = "presence.location";
   private static final String USER_STATUS_CACHE = "presence.status";
   private static final long PRESENCE_TTL = 5L * 60L * 1000L; // 5 minutes
-  // private static final int USER_ELEMENT = 0;
-  private static final int TIMESTAMP_ELEMENT = 1;
-  private static final int LOCATION_ELEMENT = 2;
-  private static final int STATUS_ELEMENT = 3;
-  private static final int STATUS_SIZE = 4;
+  /**
+   * Timestamps are slow changing, 20s resolution.
+   */
+  private static final long TIMESTAMP_RESOLUTION = 20000L;
+  private static final long PRESENCE_TTL_TICKS = PRESENCE_TTL / TIMESTAMP_RESOLUTION;
+  private static final String NONE = "none";
+  private static final String LOCAL_SERVER = "local";
 
   private Cache<String> userStatusCache;
-  private Cache<Map<String, String>> locationCache;
+  private Cache<String> locationCache;
+
+  /**
+   * Records of users who have pinged or changed status on this server.
+   */
+  private final ConcurrentMap<String, PresenceRecord> records = new ConcurrentHashMap<String, PresenceRecord>();
+  /**
+   * Members of each location on this server.
+   */
+  private final ConcurrentMap<String, Set<String>> locations = new ConcurrentHashMap<String, Set<String>>();
+  /**
+   * Decoded replicated records, reused while the replicated value is unchanged.
+   */
+  private final ConcurrentMap<String, PresenceRecord> replicated = new ConcurrentHashMap<String, PresenceRecord>();
+  /**
+   * Decoded replicated location members, keyed by the replicated value.
+   */
+  private final ConcurrentMap<String, Set<String>> replicatedMembers = new ConcurrentHashMap<String, Set<String>>();
+  private final Set<String> dirtyUsers = newConcurrentSet();
+  private final Set<String> dirtyLocations = newConcurrentSet();
 
   @Reference
   protected transient CacheManagerService cacheManagerService;
 
+  @Reference(cardinality = ReferenceCardinality.OPTIONAL_UNARY, policy = ReferencePolicy.DYNAMIC)
+  protected volatile ClusterTrackingService clusterTrackingService;
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
     // the caches must be replicating in the cluster.
@@ -81,13 +128,24 @@ public class PresenceServiceImpl implements PresenceService {
     }
   }
 
+  protected void bindClusterTrackingService(ClusterTrackingService clusterTrackingService) {
+    this.clusterTrackingService = clusterTrackingService;
+  }
+
+  protected void unbindClusterTrackingService(
+      ClusterTrackingService clusterTrackingService) {
+    if (this.clusterTrackingService == clusterTrackingService) {
+      this.clusterTrackingService = null;
+    }
+  }
+
   /**
    * {@inheritDoc}
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#setStatus(java.lang.String,
    *      java.lang.String)
    */
   public void setStatus(String uuid, String status) {
-    updateLocationCache(uuid, getTimeStamp(), null, status);
+    update(uuid, getTimeStamp(), null, status);
   }
 
   /**
@@ -95,30 +153,17 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#clear(java.lang.String)
    */
   public void clear(String uuid) {
-    // see if there is a current status to clear
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (userStatusCache != null) {
-        // clear the user from the status cache
-        if (userStatusCache.containsKey(uuid)) {
-          userStatusCache.remove(uuid);
-        }
-      }
-      // try to find the location and clear the user from that
-      String location = null;
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
-      if (location != null && locationCache != null) {
-        // found the location so clear the user from within this cache
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache != null) {
-          if (locationInstanceCache.containsKey(uuid)) {
-            locationInstanceCache.remove(uuid);
-            locationCache.put(location, locationInstanceCache);
-          }
-        }
-      }
+    PresenceRecord record = records.remove(uuid);
+    if (record != null) {
+      leave(uuid, record.location);
+    }
+    dirtyUsers.remove(uuid);
+    replicated.remove(uuid);
+    if (userStatusCache != null) {
+      // clearing is not batched, the user has gone.
+      userStatusCache.remove(uuid);
+    } else {
+      LOGGER.warn("User status cache is null, check the cacheManager");
     }
   }
 
@@ -128,16 +173,11 @@ public class PresenceServiceImpl implements PresenceService {
    */
   public String getStatus(String uuid) {
     // TODO should the default status really be offline if not set? -AZ
-    String result = PresenceStatus.offline.name();
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > STATUS_ELEMENT) {
-        result = currentStatus[STATUS_ELEMENT];
-      } else {
-        result = PresenceStatus.online.name();
-      }
+    PresenceRecord record = getCurrentRecord(uuid, getTimeStamp());
+    if (record == null) {
+      return PresenceStatus.offline.name();
     }
-    return result;
+    return record.status;
   }
 
   /**
@@ -145,127 +185,201 @@ public class PresenceServiceImpl implements PresenceService {
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#getLocation(java.lang.String)
    */
   public String getLocation(String uuid) {
-    String location = "none";
-    String[] currentStatus = getCurrentStatus(uuid);
-    if (currentStatus != null) {
-      if (currentStatus.length > LOCATION_ELEMENT) {
-        location = currentStatus[LOCATION_ELEMENT];
-      }
+    PresenceRecord record = getCurrentRecord(uuid, getTimeStamp());
+    if (record == null) {
+      return NONE;
     }
-    return location;
+    return record.location;
   }
-  
 
   public String[] getCurrentStatus(String uuid) {
-    String[] result = null;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      long timeout = getTimeStamp() - PRESENCE_TTL;
-      // load the current status or the defaults.
-      if (currentStatus != null) {
-        String[] locationStatus = StringUtils.split(currentStatus, ":",
-            STATUS_SIZE);
-        if (locationStatus.length > TIMESTAMP_ELEMENT) {
-          // timed out ?
-          long lastTs = Long.parseLong(locationStatus[TIMESTAMP_ELEMENT]);
-          if (lastTs > timeout) {
-            result = locationStatus;
-          }
-        }
-      }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+    PresenceRecord record = getCurrentRecord(uuid, getTimeStamp());
+    if (record == null) {
+      return null;
     }
-    return result;
+    return record.toArray();
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String,
    *      java.util.List)
    */
   public Map<String, String> online(List<String> connections) {
+    long now = getTimeStamp();
     Map<String, String> online = Maps.newHashMap();
     for (String uuid : connections) {
-      online.put(uuid, getStatus(uuid));
+      PresenceRecord record = getCurrentRecord(uuid, now);
+      online.put(uuid, record == null ? PresenceStatus.offline.name() : record.status);
     }
     return online;
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#online(java.lang.String)
    */
   public Map<String, String> online(String location) {
+    long now = getTimeStamp();
+    Map<String, String> onlineMap = Maps.newHashMap();
+    Set<String> members = locations.get(location);
+    if (members != null) {
+      addOnline(onlineMap, members, location, now);
+    }
     if (locationCache != null) {
-      Map<String, String> locationInstanceCache = locationCache.get(location);
-      if (locationInstanceCache != null) {
-        Map<String, String> onlineMap = Maps.newHashMap();
-        for (Entry<String, String> e : locationInstanceCache.entrySet()) {
-          String[] currentStatus = getCurrentStatus(e.getKey());
-          if (currentStatus != null
-              && location.equals(currentStatus[LOCATION_ELEMENT])) {
-            onlineMap.put(e.getKey(), currentStatus[STATUS_ELEMENT]);
+      ClusterTrackingService cluster = clusterTrackingService;
+      if (cluster != null) {
+        String serverId = cluster.getCurrentServerId();
+        for (ClusterServer server : cluster.getAllServers()) {
+          if (!server.getServerId().equals(serverId)) {
+            addOnline(onlineMap, getReplicatedMembers(location, server.getServerId()),
+                location, now);
           }
         }
-        return onlineMap;
       }
     } else {
       LOGGER.warn("Location cache is null, check the cacheManager");
     }
-    return ImmutableMap.of();
+    return onlineMap;
   }
 
   /**
    * {@inheritDoc}
-   * 
+   *
    * @see org.sakaiproject.nakamura.api.presence.PresenceService#ping(java.lang.String,
    *      java.lang.String)
    */
   public void ping(String uuid, String location) {
-    long now = getTimeStamp();
     if (StringUtils.isEmpty(location)) {
-      location = "none";
+      location = NONE;
     }
     if (StringUtils.isEmpty(uuid)) {
-      uuid = "none";
+      uuid = NONE;
     }
-    if (updateLocationCache(uuid, now, location, null)) {
-      // need to update
-      if (!"none".equals(location) && locationCache != null) {
-        Map<String, String> locationInstanceCache = locationCache.get(location);
-        if (locationInstanceCache == null) {
-          synchronized (locationCache) {
-            locationInstanceCache = locationCache.get(location);
-            if (locationInstanceCache == null) {
-              locationInstanceCache = new ConcurrentHashMap<String, String>();
-              locationCache.put(location, locationInstanceCache);
-            }
-          }
-        }
+    update(uuid, getTimeStamp(), location, null);
+  }
 
-        String userKey = getLocationKey(uuid, location);
-        if (!locationInstanceCache.containsKey(uuid)) {
-          locationInstanceCache.put(uuid, userKey);
+  /**
+   * Flush the batched updates to the replicated caches and sweep expired records.
+   * {@inheritDoc}
+   *
+   * @see java.lang.Runnable#run()
+   */
+  public void run() {
+    try {
+      flush();
+    } catch (Exception e) {
+      LOGGER.warn("Failed to flush presence updates: {} ", e.getMessage(), e);
+    }
+  }
+
+  void flush() {
+    long timeout = getTimeStamp() - PRESENCE_TTL_TICKS;
+    for (PresenceRecord record : records.values()) {
+      if (record.timestamp <= timeout && records.remove(record.uuid, record)) {
+        dirtyUsers.remove(record.uuid);
+        leave(record.uuid, record.location);
+      }
+    }
+    for (Iterator<PresenceRecord> i = replicated.values().iterator(); i.hasNext();) {
+      if (i.next().timestamp <= timeout) {
+        i.remove();
+      }
+    }
+    Cache<String> statusCache = userStatusCache;
+    if (statusCache != null) {
+      for (Iterator<String> i = dirtyUsers.iterator(); i.hasNext();) {
+        String uuid = i.next();
+        i.remove();
+        PresenceRecord record = records.get(uuid);
+        if (record != null) {
+          statusCache.put(uuid, record.encode());
         }
       }
     }
+    Cache<String> membersCache = locationCache;
+    if (membersCache != null) {
+      String serverId = getServerId();
+      for (Iterator<String> i = dirtyLocations.iterator(); i.hasNext();) {
+        String location = i.next();
+        i.remove();
+        String key = location + "@" + serverId;
+        Set<String> members = locations.get(location);
+        if (members == null || members.isEmpty()) {
+          if (members != null) {
+            locations.remove(location, members);
+          }
+          membersCache.remove(key);
+        } else {
+          membersCache.put(key, StringUtils.join(members, '\n'));
+        }
+      }
+      // members of locations that are no longer replicated
+      replicatedMembers.clear();
+    }
   }
 
   /**
-   * @return
+   * @return the current record for the user or null if they have no current presence.
    */
-  private long getTimeStamp() {
-    long now = System.currentTimeMillis();
-    // make now slow changing, 20s resolution
-    return now / 20000;
+  private PresenceRecord getCurrentRecord(String uuid, long now) {
+    PresenceRecord record = PresenceRecord.newest(records.get(uuid),
+        getReplicatedRecord(uuid));
+    if (record == null || record.timestamp <= now - PRESENCE_TTL_TICKS) {
+      return null;
+    }
+    return record;
+  }
+
+  private PresenceRecord getReplicatedRecord(String uuid) {
+    Cache<String> statusCache = userStatusCache;
+    if (statusCache == null) {
+      LOGGER.warn("User status cache is null, check the cacheManager");
+      return null;
+    }
+    String encoded = statusCache.get(uuid);
+    if (encoded == null) {
+      return null;
+    }
+    PresenceRecord record = replicated.get(uuid);
+    if (record == null || !encoded.equals(record.source)) {
+      record = PresenceRecord.decode(encoded);
+      if (record != null) {
+        replicated.put(uuid, record);
+      }
+    }
+    return record;
+  }
+
+  private Set<String> getReplicatedMembers(String location, String serverId) {
+    String encoded = locationCache.get(location + "@" + serverId);
+    if (encoded == null) {
+      return Collections.emptySet();
+    }
+    Set<String> members = replicatedMembers.get(encoded);
+    if (members == null) {
+      members = newConcurrentSet();
+      Collections.addAll(members, StringUtils.split(encoded, '\n'));
+      replicatedMembers.put(encoded, members);
+    }
+    return members;
+  }
+
+  private void addOnline(Map<String, String> onlineMap, Set<String> members,
+      String location, long now) {
+    for (String uuid : members) {
+      PresenceRecord record = getCurrentRecord(uuid, now);
+      if (record != null && location.equals(record.location)) {
+        onlineMap.put(uuid, record.status);
+      }
+    }
   }
 
   /**
-   * Update the users location cache.
-   * 
+   * Update the users record.
+   *
    * @param uuid
    *          the user id
    * @param now
@@ -274,58 +388,86 @@ public class PresenceServiceImpl implements PresenceService {
    *          the location, null if not provided in this update
    * @param status
    *          the status, null if not provided in this update
-   * @return true if an update was performed.
    */
-  private boolean updateLocationCache(String uuid, long now, String location,
-      String status) {
-    boolean update = false;
-    if (userStatusCache != null) {
-      String currentStatus = userStatusCache.get(uuid);
-      // load the current status or the defaults.
-      String[] locationStatus = new String[] { uuid, String.valueOf(now - 1),
-          "none", "online" };
-      if (currentStatus != null) {
-        locationStatus = StringUtils.split(currentStatus, ":", STATUS_SIZE);
-
+  private void update(String uuid, long now, String location, String status) {
+    for (;;) {
+      PresenceRecord local = records.get(uuid);
+      PresenceRecord current = PresenceRecord.newest(local, getReplicatedRecord(uuid));
+      String newLocation = location != null ? location : current != null ? current.location
+          : NONE;
+      String newStatus = status != null ? status : current != null ? current.status
+          : PresenceStatus.online.name();
+      if (current != null && current == local && current.timestamp == now
+          && current.location.equals(newLocation) && current.status.equals(newStatus)) {
+        // nothing has changed within the timestamp resolution.
+        return;
       }
-      // compare with non null current versions.
-      String[] ls = new String[] { uuid, String.valueOf(now), location, status };
-
-      for (int i = 0; i < locationStatus.length; i++) {
-        if (ls[i] != null) {
-          if (!locationStatus[i].equals(ls[i])) {
-            update = true;
+      PresenceRecord record = new PresenceRecord(uuid, now, newLocation, newStatus);
+      boolean replaced = local == null ? records.putIfAbsent(uuid, record) == null
+          : records.replace(uuid, local, record);
+      if (replaced) {
+        dirtyUsers.add(uuid);
+        String previous = local != null ? local.location : null;
+        if (!newLocation.equals(previous)) {
+          if (previous != null) {
+            leave(uuid, previous);
           }
+          join(uuid, newLocation);
         }
+        return;
       }
+    }
+  }
 
-      if (update) {
-        // set any null values to what they were previously
-        for (int i = 0; i < locationStatus.length; i++) {
-          if (ls[i] == null) {
-            ls[i] = locationStatus[i];
-          }
-        }
-        String newStatus = ':' + StringUtils.join(ls, ':');
-        if (!newStatus.equals(currentStatus)) {
-          userStatusCache.put(uuid, newStatus);
-        } else {
-          update = false;
+  private void join(String uuid, String location) {
+    if (NONE.equals(location)) {
+      return;
+    }
+    for (;;) {
+      Set<String> members = locations.get(location);
+      if (members == null) {
+        Set<String> newMembers = newConcurrentSet();
+        members = locations.putIfAbsent(location, newMembers);
+        if (members == null) {
+          members = newMembers;
         }
       }
-    } else {
-      LOGGER.warn("User status cache is null, check the cacheManager");
+      if (members.add(uuid)) {
+        dirtyLocations.add(location);
+      }
+      // an empty location may have been removed by a flush while joining.
+      if (locations.get(location) == members) {
+        return;
+      }
     }
-    return update;
+  }
+
+  private void leave(String uuid, String location) {
+    Set<String> members = locations.get(location);
+    if (members != null && members.remove(uuid)) {
+      dirtyLocations.add(location);
+    }
+  }
+
+  private String getServerId() {
+    ClusterTrackingService cluster = clusterTrackingService;
+    if (cluster == null) {
+      return LOCAL_SERVER;
+    }
+    return cluster.getCurrentServerId();
+  }
+
+  private static Set<String> newConcurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
   }
 
   /**
-   * @param uuid
-   * @param location
    * @return
    */
-  private String getLocationKey(String uuid, String location) {
-    return uuid + ":" + location;
+  private long getTimeStamp() {
+    long now = System.currentTimeMillis();
+    // make now slow changing, 20s resolution
+    return now / TIMESTAMP_RESOLUTION;
   }
 
 }
@@ -168,6 +168,37 @@ public class PresenceServiceImplTest {
     }
   }
   
+  @Test
+  public void testFlush() {
+    for (int i = 0; i < 10; i++) {
+      presenceService.ping("jack", "locationA");
+      presenceService.setStatus("jack", "busy");
+    }
+    // updates are batched until the next flush
+    Assert.assertFalse(presenceStatusCache.containsKey("jack"));
+    Assert.assertFalse(presenceLocationCache.containsKey("locationA@local"));
+    presenceService.flush();
+    Assert.assertTrue(((String) presenceStatusCache.get("jack")).endsWith(":locationA:busy"));
+    assertEquals("jack", presenceLocationCache.get("locationA@local"));
+
+    // another instance sharing the replicated caches sees the status
+    PresenceServiceImpl other = new PresenceServiceImpl();
+    other.bindCacheManagerService(cacheManagerService);
+    assertEquals("busy", other.getStatus("jack"));
+    assertEquals("locationA", other.getLocation("jack"));
+
+    presenceService.ping("jack", "locationB");
+    presenceService.flush();
+    Assert.assertFalse(presenceLocationCache.containsKey("locationA@local"));
+    assertEquals("jack", presenceLocationCache.get("locationB@local"));
+    assertEquals("locationB", other.getLocation("jack"));
+    assertEquals(0, presenceService.online("locationA").size());
+
+    presenceService.clear("jack");
+    Assert.assertFalse(presenceStatusCache.containsKey("jack"));
+    assertEquals("offline", other.getStatus("jack"));
+  }
+
   public PresenceService getPresenceService() {
     return this.presenceService;
   }
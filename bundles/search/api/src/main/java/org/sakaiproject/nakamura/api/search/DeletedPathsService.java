@@ -22,4 +22,13 @@ public interface DeletedPathsService {
    * @return {@link List} of escaped path strings. 
    */
   List<String> getEscapedDeletedPaths(String queryLanguage);
+
+  /**
+   * Get a Solr filter query that excludes the paths that were deleted since the last
+   * Solr commit across all nodes in the cluster. The filter is only rebuilt when the
+   * deleted paths change, so it is cheap to call for every query.
+   *
+   * @return the filter query, or null if no paths have been deleted.
+   */
+  String getDeletedPathsFilterQuery();
 }
\ No newline at end of file
@@ -87,6 +87,11 @@ public interface SolrSearchConstants {
    * Property that defines whether the results should have a limit on it.
    */
   public static final String SAKAI_LIMIT_RESULTS = "sakai:limit-results";
+  /**
+   * Property that says the stored fields in the index are enough to render each result,
+   * so the default result processor writes them without loading the content.
+   */
+  public static final String SAKAI_INDEX_ONLY = "sakai:index-only";
   /**
    *
    */
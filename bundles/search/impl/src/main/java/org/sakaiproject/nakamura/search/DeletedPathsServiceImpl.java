@@ -18,13 +18,22 @@
 package org.sakaiproject.nakamura.search;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.ObjectName;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.cluster.ClusterServer;
@@ -34,6 +43,9 @@ import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.SearchUtil;
+import org.sakaiproject.nakamura.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Manage a cache of deleted paths as signaled by content deletion events. The cache is
@@ -43,23 +55,76 @@ import org.sakaiproject.nakamura.api.search.SearchUtil;
  * overwriting a centrally managed but unsynchronized cache. Each machine should have only
  * one version of this service actively managing that machines cache so it should always
  * work with the authoritative state.
+ * <p>
+ * Each machine holds its deleted paths as {@link PathTombstones} and replicates them as a
+ * single value with a generation number that changes whenever the tombstones do. Readers
+ * keep the paths and the Solr filter built from them until the generation of one of the
+ * machines changes, so the filter is not rebuilt on every query.
+ * <p>
+ * Tombstones are only cleared by an index commit. The filter groups the paths so that no
+ * boolean query in it has more than {@link #MAX_CLAUSES} clauses, which keeps it within
+ * Solr's <code>maxBooleanClauses</code> however many paths have been deleted.
  */
-@Component
-@Service
+@Component(metatype = true)
+@Service(value = { EventHandler.class, DeletedPathsService.class })
 @Property(name = "event.topics", value = {
     "org/sakaiproject/nakamura/lite/content/DELETE",
     "org/sakaiproject/nakamura/solr/COMMIT",
     "org/sakaiproject/nakamura/solr/SOFT_COMMIT"
 })
-public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService {
+public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsService,
+    DeletedPathsMBean {
   public static final String DELETED_PATH_CACHE = "deletedPathQueue";
 
+  public static final String JMX_NAME = "org.sakaiproject.nakamura:type=DeletedPaths";
+
+  /**
+   * The most paths in one boolean query of the filter, below Solr's default
+   * <code>maxBooleanClauses</code> of 1024.
+   */
+  static final int MAX_CLAUSES = 1000;
+
+  private static final String TOMBSTONES_KEY = "tombstones@";
+  private static final String UNESCAPED = "";
+  private static final Logger LOGGER = LoggerFactory.getLogger(DeletedPathsServiceImpl.class);
+
   @Reference
   private CacheManagerService cacheManagerService;
 
   @Reference
   private ClusterTrackingService clusterTrackingService;
 
+  private final PathTombstones tombstones = new PathTombstones();
+
+  /**
+   * Starts from the clock so a restarted server never reuses a generation that other
+   * servers may have cached.
+   */
+  private long generation = System.currentTimeMillis();
+
+  /**
+   * The paths and filter last built for each query language.
+   */
+  private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<String, Snapshot>();
+
+  private final AtomicLong filterBuilds = new AtomicLong();
+  private final AtomicLong filterBuildTime = new AtomicLong();
+  private volatile int clusterTombstoneCount;
+
+  private ObjectName registeredName;
+
+  private static final class Snapshot {
+    private final String key;
+    private final List<String> paths;
+    private final String filterQuery;
+
+    private Snapshot(String key, List<String> paths, String filterQuery) {
+      this.key = key;
+      this.paths = paths;
+      this.filterQuery = filterQuery;
+    }
+  }
+
   public DeletedPathsServiceImpl() {
   }
 
@@ -69,6 +134,17 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
     this.clusterTrackingService = clusterTrackingService;
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    registeredName = JmxUtils.register(JMX_NAME, this, DeletedPathsMBean.class);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+  }
+
   /**
    * Get an instance of the cache used to track paths that have been marked as
    * deleted since the last Solr commit.  This cache is shared by all nodes in a
@@ -84,23 +160,8 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * @param path the path that was deleted
    */
   private synchronized void storeDeletedPath(String path) {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
-
-    // add the new path to the last position
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    cache.put("path[" + pathCount + "]@" + myId, path);
-    cache.put("pathCount@" + myId, String.valueOf(pathCount + 1));
-
-    // clean out any paths that start with the path we've just added
-    for (int idx = 0; idx < pathCount; idx++) {
-      String key = "path[" + idx + "]@" + myId;
-      String cachedPath = cache.get(key);
-      // check for null in case a previous pass deleted the element. we don't do garbage
-      // collection because the list is expected to be too short lived.
-      if (cachedPath != null && !cachedPath.equals(path) && cachedPath.startsWith(path)) {
-        cache.remove(key);
-      }
+    if (tombstones.add(path)) {
+      publish();
     }
   }
 
@@ -108,15 +169,80 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
    * Clear the list of deleted nodes for this node.
    */
   private synchronized void clearDeletedPaths() {
-    Cache<String> cache = getDeletedPathCache();
-    String myId = clusterTrackingService.getCurrentServerId();
+    tombstones.clear();
+    publish();
+  }
 
-    int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + myId), 0);
-    for (int idx = 0; idx < pathCount; idx++) {
-      cache.remove("path[" + idx + "]@" + myId);
+  /**
+   * Replicate the tombstones of this node as a single value, the generation on the
+   * first line followed by one path per line.
+   */
+  private void publish() {
+    generation++;
+    StringBuilder value = new StringBuilder();
+    value.append(generation);
+    for (String path : tombstones.getPaths()) {
+      value.append('\n').append(path);
     }
+    getDeletedPathCache().put(TOMBSTONES_KEY + clusterTrackingService.getCurrentServerId(),
+        value.toString());
+  }
 
-    cache.put("pathCount@" + myId, Integer.toString(0));
+  /**
+   * Get the paths and filter for a query language, rebuilding them only if the
+   * tombstones of a server have changed since they were last built.
+   */
+  private Snapshot getSnapshot(String queryLanguage) {
+    Cache<String> cache = getDeletedPathCache();
+    List<String> values = new ArrayList<String>();
+    StringBuilder key = new StringBuilder();
+    for (ClusterServer server : clusterTrackingService.getAllServers()) {
+      String serverId = server.getServerId();
+      String value = cache.get(TOMBSTONES_KEY + serverId);
+      if (value != null) {
+        int eol = value.indexOf('\n');
+        if (eol > 0) {
+          values.add(value.substring(eol + 1));
+        }
+        key.append(serverId).append('@').append(eol < 0 ? value : value.substring(0, eol))
+            .append(';');
+      }
+    }
+    String language = queryLanguage == null ? UNESCAPED : queryLanguage;
+    Snapshot snapshot = snapshots.get(language);
+    if (snapshot != null && snapshot.key.equals(key.toString())) {
+      return snapshot;
+    }
+
+    long start = System.nanoTime();
+    List<String> deletedPaths = new ArrayList<String>();
+    for (String value : values) {
+      for (String path : StringUtils.split(value, '\n')) {
+        if (queryLanguage != null) {
+          deletedPaths.add(SearchUtil.escapeString(path, queryLanguage));
+        } else {
+          deletedPaths.add(path);
+        }
+      }
+    }
+    String filterQuery = null;
+    if (deletedPaths.size() > MAX_CLAUSES) {
+      List<String> groups = new ArrayList<String>();
+      for (int i = 0; i < deletedPaths.size(); i += MAX_CLAUSES) {
+        groups.add("path:(" + StringUtils.join(deletedPaths.subList(i,
+            Math.min(i + MAX_CLAUSES, deletedPaths.size())), " OR ") + ")");
+      }
+      filterQuery = "-(" + StringUtils.join(groups, " OR ") + ")";
+    } else if (!deletedPaths.isEmpty()) {
+      filterQuery = "-path:(" + StringUtils.join(deletedPaths, " OR ") + ")";
+    }
+    snapshot = new Snapshot(key.toString(), Collections.unmodifiableList(deletedPaths),
+        filterQuery);
+    snapshots.put(language, snapshot);
+    clusterTombstoneCount = deletedPaths.size();
+    filterBuilds.incrementAndGet();
+    filterBuildTime.addAndGet((System.nanoTime() - start) / 1000L);
+    return snapshot;
   }
 
   // ---------- DeletedPathsService interface ----------------------------------
@@ -131,27 +257,16 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
   }
 
   public List<String> getEscapedDeletedPaths(String queryLanguage) {
-    List<String> deletedPaths = new ArrayList<String>();
-    Cache<String> cache = getDeletedPathCache();
-
-    for (ClusterServer server : clusterTrackingService.getAllServers()) {
-      String serverId = server.getServerId();
-      int pathCount = PropertiesUtil.toInteger(cache.get("pathCount@" + serverId), 0);
-
-      for (int idx = 0; idx < pathCount; idx++) {
-        String path = (String)cache.get("path[" + idx + "]@" + serverId);
-
-        if (path != null) {
-          if (queryLanguage != null) {
-            deletedPaths.add(SearchUtil.escapeString(path, queryLanguage));
-          } else {
-            deletedPaths.add(path);
-          }
-        }
-      }
-    }
+    return getSnapshot(queryLanguage).paths;
+  }
 
-    return deletedPaths;
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.search.DeletedPathsService#getDeletedPathsFilterQuery()
+   */
+  public String getDeletedPathsFilterQuery() {
+    return getSnapshot(org.sakaiproject.nakamura.api.search.solr.Query.SOLR).filterQuery;
   }
 
   // ---------- EventHandler interface -----------------------------------------
@@ -169,4 +284,21 @@ public class DeletedPathsServiceImpl implements EventHandler, DeletedPathsServic
       clearDeletedPaths();
     }
   }
+
+  // ---------- DeletedPathsMBean interface ------------------------------------
+  public synchronized int getTombstoneCount() {
+    return tombstones.size();
+  }
+
+  public int getClusterTombstoneCount() {
+    return clusterTombstoneCount;
+  }
+
+  public long getFilterBuilds() {
+    return filterBuilds.get();
+  }
+
+  public long getFilterBuildTime() {
+    return filterBuildTime.get();
+  }
 }
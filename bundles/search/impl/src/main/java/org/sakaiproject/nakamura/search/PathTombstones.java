@@ -0,0 +1,151 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of deleted paths of one server, held as a trie of path segments so
+ * that adding a path is proportional to its depth and to the tombstones it
+ * replaces, rather than to the number of tombstones.
+ * <p>
+ * A tombstone covers everything below it: adding a path removes any tombstones
+ * of its children and adding a path that is already covered by a parent is a
+ * no-op. Paths are reported in the order they were added. Tombstones are kept
+ * until they are cleared by an index commit, so none is lost however many paths
+ * are deleted in between.
+ * <p>
+ * Paths are compared by their segments, so <code>/a</code>, <code>a</code> and
+ * <code>/a/</code> are the same tombstone. The path is reported as first added,
+ * without repeated or trailing slashes, as that is how it is indexed.
+ * <p>
+ * Not thread safe.
+ */
+class PathTombstones {
+
+  private final Node root = new Node();
+  private final LinkedHashSet<String> paths = new LinkedHashSet<String>();
+
+  private static final class Node {
+    private Map<String, Node> children;
+    private boolean tombstone;
+    /**
+     * The normalized path, set while this node is a tombstone.
+     */
+    private String path;
+  }
+
+  /**
+   * @param path
+   * @return true if the set of tombstones changed.
+   */
+  boolean add(String path) {
+    List<String> segments = segments(path);
+    Node node = root;
+    for (String segment : segments) {
+      if (node.tombstone) {
+        // a parent has already been deleted.
+        return false;
+      }
+      if (node.children == null) {
+        node.children = new HashMap<String, Node>();
+      }
+      Node child = node.children.get(segment);
+      if (child == null) {
+        child = new Node();
+        node.children.put(segment, child);
+      }
+      node = child;
+    }
+    if (node.tombstone) {
+      return false;
+    }
+    if (node.children != null) {
+      removeDescendants(node);
+      node.children = null;
+    }
+    node.tombstone = true;
+    node.path = normalize(path, segments);
+    paths.add(node.path);
+    return true;
+  }
+
+  /**
+   * @return the tombstones in the order they were added.
+   */
+  List<String> getPaths() {
+    return new ArrayList<String>(paths);
+  }
+
+  int size() {
+    return paths.size();
+  }
+
+  void clear() {
+    root.children = null;
+    root.tombstone = false;
+    root.path = null;
+    paths.clear();
+  }
+
+  private void removeDescendants(Node node) {
+    for (Node child : node.children.values()) {
+      if (child.tombstone) {
+        paths.remove(child.path);
+      }
+      if (child.children != null) {
+        removeDescendants(child);
+      }
+    }
+  }
+
+  /**
+   * @return the path without repeated or trailing slashes, keeping a leading slash.
+   */
+  private static String normalize(String path, List<String> segments) {
+    StringBuilder normalized = new StringBuilder(path.length());
+    for (String segment : segments) {
+      if (normalized.length() > 0 || path.startsWith("/")) {
+        normalized.append('/');
+      }
+      normalized.append(segment);
+    }
+    return normalized.length() == 0 ? "/" : normalized.toString();
+  }
+
+  private static List<String> segments(String path) {
+    List<String> segments = new ArrayList<String>();
+    int start = 0;
+    int len = path.length();
+    while (start <= len) {
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = len;
+      }
+      if (end > start) {
+        segments.add(path.substring(start, end));
+      }
+      start = end + 1;
+    }
+    return segments;
+  }
+}
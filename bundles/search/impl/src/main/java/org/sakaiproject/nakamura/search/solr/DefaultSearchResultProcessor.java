@@ -36,6 +36,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchException;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
+import org.sakaiproject.nakamura.search.solr.PrefetchingResultIterator.PrefetchedResult;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
 import org.slf4j.Logger;
@@ -79,10 +80,15 @@ public class DefaultSearchResultProcessor implements SolrSearchResultProcessor {
   public void writeResult(SlingHttpServletRequest request, JSONWriter write, Result result)
       throws JSONException {
     String contentPath = result.getPath();
-    Session session =
-      StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
     try {
-      Content contentResult = session.getContentManager().get(contentPath);
+      Content contentResult;
+      if (result instanceof PrefetchedResult) {
+        contentResult = ((PrefetchedResult) result).getContent();
+      } else {
+        Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+            .adaptTo(javax.jcr.Session.class));
+        contentResult = session.getContentManager().get(contentPath);
+      }
       if (contentResult != null) {
         int traversalDepth = SearchUtil.getTraversalDepth(request, -1);
         ExtendedJSONWriter.writeContentTreeToWriter(write, contentResult, traversalDepth);
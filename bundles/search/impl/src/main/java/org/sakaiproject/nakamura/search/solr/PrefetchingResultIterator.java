@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.UnmodifiableIterator;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Wraps the results of a search and loads the sparse content of the next few hits
+ * before they are written, so the content for a window of hits is fetched in one pass
+ * through the content manager rather than one lookup per hit in between writing JSON.
+ * Only one window of content is held at a time, never the whole page.
+ * <p>
+ * The results returned are {@link PrefetchedResult}s.
+ */
+final class PrefetchingResultIterator extends UnmodifiableIterator<Result> {
+
+  static final int DEFAULT_WINDOW = 20;
+
+  private final Iterator<Result> results;
+  private final ContentManager contentManager;
+  private final int window;
+  private final ArrayDeque<PrefetchedResult> prefetched;
+  private long remaining;
+
+  /**
+   * @param results
+   *          the search results.
+   * @param contentManager
+   *          used to load the content of each hit.
+   * @param window
+   *          the number of hits to load ahead.
+   * @param limit
+   *          the maximum number of results that will be read, so content is not loaded
+   *          for hits past the end of the page.
+   */
+  PrefetchingResultIterator(Iterator<Result> results, ContentManager contentManager,
+      int window, long limit) {
+    this.results = results;
+    this.contentManager = contentManager;
+    this.window = Math.max(1, window);
+    this.prefetched = new ArrayDeque<PrefetchedResult>(this.window);
+    this.remaining = limit;
+  }
+
+  public boolean hasNext() {
+    return !prefetched.isEmpty() || (remaining > 0 && results.hasNext());
+  }
+
+  public Result next() {
+    if (prefetched.isEmpty()) {
+      prefetch();
+    }
+    return prefetched.remove();
+  }
+
+  private void prefetch() {
+    for (int i = 0; i < window && remaining > 0 && results.hasNext(); i++) {
+      remaining--;
+      Result result = results.next();
+      PrefetchedResult p = new PrefetchedResult(result);
+      try {
+        p.content = contentManager.get(result.getPath());
+      } catch (StorageClientException e) {
+        p.storageException = e;
+      } catch (AccessDeniedException e) {
+        p.accessDeniedException = e;
+      }
+      prefetched.add(p);
+    }
+  }
+
+  /**
+   * A search result with its content already loaded. Any exception from loading the
+   * content is thrown when the content is asked for, so a failure to load one hit
+   * behaves the same as it would without prefetching.
+   */
+  static final class PrefetchedResult implements Result {
+
+    private final Result result;
+    private Content content;
+    private StorageClientException storageException;
+    private AccessDeniedException accessDeniedException;
+
+    private PrefetchedResult(Result result) {
+      this.result = result;
+    }
+
+    /**
+     * @return the content at the path of the result, or null if there is none.
+     * @throws StorageClientException
+     * @throws AccessDeniedException
+     */
+    Content getContent() throws StorageClientException, AccessDeniedException {
+      if (storageException != null) {
+        throw storageException;
+      }
+      if (accessDeniedException != null) {
+        throw accessDeniedException;
+      }
+      return content;
+    }
+
+    public String getPath() {
+      return result.getPath();
+    }
+
+    public Map<String, Collection<Object>> getProperties() {
+      return result.getProperties();
+    }
+
+    public Object getFirstValue(String name) {
+      return result.getFirstValue(name);
+    }
+  }
+}
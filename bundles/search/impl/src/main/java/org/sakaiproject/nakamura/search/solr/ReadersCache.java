@@ -0,0 +1,237 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Caches the <code>readers</code> parameter used to restrict Solr searches, which
+ * is the user id and every group the user is a member of, directly or
+ * indirectly. Resolving the groups takes several sparse lookups, so repeat
+ * searches by the same user use the cached value.
+ * <p>
+ * The readers are sorted so a user always sends the same string, which keeps the
+ * principal filter cache in the Solr query component effective.
+ * <p>
+ * An entry is dropped when any authorizable in it is added, updated or deleted,
+ * using a reverse index from principal to the users that depend on it, so
+ * changes to nested groups invalidate every user below them. Entries also
+ * expire after a TTL to bound staleness from changes made on other cluster
+ * members.
+ */
+@Component(metatype = true)
+@Service(value = { ReadersCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/authorizables/*"),
+    @Property(name = "service.description", value = "Caches the Solr readers for each user")
+})
+public class ReadersCache implements EventHandler, ReadersCacheMBean {
+
+  public static final String JMX_NAME = "org.sakaiproject.nakamura:type=ReadersCache";
+
+  @Property(intValue = ReadersCache.DEFAULT_MAX_ENTRIES)
+  static final String MAX_ENTRIES = "maxEntries";
+  static final int DEFAULT_MAX_ENTRIES = 10000;
+
+  @Property(longValue = ReadersCache.DEFAULT_TTL)
+  static final String TTL = "ttl";
+  /**
+   * Default time to live of an entry in ms.
+   */
+  static final long DEFAULT_TTL = 60000L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReadersCache.class);
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  /**
+   * principal id to the ids of the users whose entries contain it.
+   */
+  private final ConcurrentMap<String, Set<String>> dependents = new ConcurrentHashMap<String, Set<String>>();
+  /**
+   * Incremented on every invalidation, so a reader set resolved while an
+   * invalidation happened is not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private long ttl = DEFAULT_TTL;
+  private ObjectName registeredName;
+
+  private static final class Entry {
+    private final String readers;
+    private final long expires;
+
+    private Entry(String readers, long expires) {
+      this.readers = readers;
+      this.expires = expires;
+    }
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    maxEntries = PropertiesUtil.toInteger(properties.get(MAX_ENTRIES), DEFAULT_MAX_ENTRIES);
+    ttl = PropertiesUtil.toLong(properties.get(TTL), DEFAULT_TTL);
+    registeredName = JmxUtils.register(JMX_NAME, this, ReadersCacheMBean.class);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+    clear();
+  }
+
+  /**
+   * @param authorizable
+   *          the user searching.
+   * @param am
+   *          used to resolve the groups of the user if they are not cached.
+   * @return the comma separated ids of the user and all of the groups they are a
+   *         member of.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public String getReaders(Authorizable authorizable, AuthorizableManager am)
+      throws StorageClientException, AccessDeniedException {
+    String userId = authorizable.getId();
+    long now = System.currentTimeMillis();
+    Entry entry = entries.get(userId);
+    if (entry != null && entry.expires > now) {
+      hits.incrementAndGet();
+      return entry.readers;
+    }
+    misses.incrementAndGet();
+    long startGeneration = generation.get();
+    Set<String> readers = new TreeSet<String>();
+    for (Iterator<Group> gi = authorizable.memberOf(am); gi.hasNext();) {
+      readers.add(gi.next().getId());
+    }
+    readers.add(userId);
+    String joined = StringUtils.join(readers, ",");
+
+    if (entries.size() >= maxEntries) {
+      // crude, but the cache refills from active users in a few requests.
+      LOGGER.debug("Readers cache is full at {} entries, clearing ", maxEntries);
+      clear();
+    }
+    for (String principal : readers) {
+      Set<String> users = dependents.get(principal);
+      if (users == null) {
+        Set<String> created = Sets.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        users = dependents.putIfAbsent(principal, created);
+        if (users == null) {
+          users = created;
+        }
+      }
+      users.add(userId);
+    }
+    entries.put(userId, new Entry(joined, now + ttl));
+    if (generation.get() != startGeneration) {
+      // something changed while we were resolving, don't trust what we cached.
+      entries.remove(userId);
+    }
+    return joined;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Object path = event.getProperty("path");
+    if (path != null) {
+      invalidate(String.valueOf(path));
+    }
+  }
+
+  /**
+   * Drop the cached readers of the principal and of every user that depends on
+   * it.
+   *
+   * @param principal
+   */
+  void invalidate(String principal) {
+    generation.incrementAndGet();
+    if (entries.remove(principal) != null) {
+      invalidations.incrementAndGet();
+    }
+    Set<String> users = dependents.remove(principal);
+    if (users != null) {
+      for (String userId : users) {
+        if (entries.remove(userId) != null) {
+          invalidations.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public int getSize() {
+    return entries.size();
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+    dependents.clear();
+  }
+}
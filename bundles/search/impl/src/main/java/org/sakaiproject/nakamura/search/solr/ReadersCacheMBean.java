@@ -0,0 +1,39 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+/**
+ * JMX view of the readers cache, registered as
+ * <code>org.sakaiproject.nakamura:type=ReadersCache</code>.
+ */
+public interface ReadersCacheMBean {
+
+  long getHits();
+
+  long getMisses();
+
+  /**
+   * @return the number of cached reader sets dropped because an authorizable
+   *         they depend on changed.
+   */
+  long getInvalidations();
+
+  int getSize();
+
+  void clear();
+}
@@ -0,0 +1,312 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Caches Solr responses for searches whose results are shared by many users, which
+ * are anonymous searches and searches through the public search templates. Every
+ * anonymous search is restricted to <code>readers=anonymous</code>, so the same
+ * template with the same parameters always sends the same Solr query.
+ * <p>
+ * Entries are keyed by the template path and the normalized Solr parameters, which
+ * include the readers restriction, the page and the deleted paths filter. The cached
+ * response holds the page of documents and the facets. The whole cache is emptied
+ * when the indexer commits to Solr, since any commit may change any result, and
+ * entries also expire after a TTL to bound staleness from commits made on other
+ * cluster members.
+ */
+@Component(metatype = true)
+@Service(value = { SearchResultCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "event.topics", value = {
+        SearchResultCache.COMMIT_TOPIC, SearchResultCache.SOFT_COMMIT_TOPIC }),
+    @Property(name = "service.description", value = "Caches shared Solr search results")
+})
+public class SearchResultCache implements EventHandler, SearchResultCacheMBean {
+
+  public static final String JMX_NAME = "org.sakaiproject.nakamura:type=SearchResultCache";
+
+  static final String COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/COMMIT";
+  static final String SOFT_COMMIT_TOPIC = "org/sakaiproject/nakamura/solr/SOFT_COMMIT";
+
+  @Property(boolValue = true)
+  static final String ENABLED = "enabled";
+
+  @Property(intValue = SearchResultCache.DEFAULT_MAX_ENTRIES)
+  static final String MAX_ENTRIES = "maxEntries";
+  static final int DEFAULT_MAX_ENTRIES = 1000;
+
+  @Property(longValue = SearchResultCache.DEFAULT_TTL)
+  static final String TTL = "ttl";
+  /**
+   * Default time to live of an entry in ms.
+   */
+  static final long DEFAULT_TTL = 300000L;
+
+  @Property(value = { "/var/search/public/" })
+  static final String SHARED_TEMPLATES = "sharedTemplates";
+  static final String[] DEFAULT_SHARED_TEMPLATES = { "/var/search/public/" };
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SearchResultCache.class);
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private final ConcurrentMap<String, TemplateStatistics> templates = new ConcurrentHashMap<String, TemplateStatistics>();
+  /**
+   * Incremented on every commit, so a response fetched while a commit happened is
+   * not cached.
+   */
+  private final AtomicLong generation = new AtomicLong();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  private volatile boolean enabled = true;
+  private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+  private volatile long ttl = DEFAULT_TTL;
+  private volatile String[] sharedTemplates = DEFAULT_SHARED_TEMPLATES;
+  private ObjectName registeredName;
+
+  private static final class Entry {
+    private final QueryResponse response;
+    private final long expires;
+
+    private Entry(QueryResponse response, long expires) {
+      this.response = response;
+      this.expires = expires;
+    }
+  }
+
+  private static final class TemplateStatistics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+  }
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    modified(properties);
+    registeredName = JmxUtils.register(JMX_NAME, this, SearchResultCacheMBean.class);
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    enabled = PropertiesUtil.toBoolean(properties.get(ENABLED), true);
+    maxEntries = PropertiesUtil.toInteger(properties.get(MAX_ENTRIES), DEFAULT_MAX_ENTRIES);
+    ttl = PropertiesUtil.toLong(properties.get(TTL), DEFAULT_TTL);
+    sharedTemplates = PropertiesUtil.toStringArray(properties.get(SHARED_TEMPLATES),
+        DEFAULT_SHARED_TEMPLATES);
+    clear();
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    JmxUtils.unregister(registeredName);
+    registeredName = null;
+    clear();
+  }
+
+  /**
+   * @param template
+   *          the path of the search template, may be null.
+   * @param asAnon
+   *          true if the search is restricted to anonymous readers.
+   * @return true if results of the search may be cached.
+   */
+  public boolean isCacheable(String template, boolean asAnon) {
+    if (!enabled || template == null) {
+      return false;
+    }
+    if (asAnon) {
+      return true;
+    }
+    for (String shared : sharedTemplates) {
+      if (template.startsWith(shared)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the current generation, to be passed to
+   *         {@link #put(String, String, QueryResponse, long)} once the query has been
+   *         performed.
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param template
+   *          the path of the search template.
+   * @param key
+   *          the key from {@link #key(String, SolrParams)}.
+   * @return the cached response, or null.
+   */
+  public QueryResponse get(String template, String key) {
+    Entry entry = entries.get(key);
+    TemplateStatistics statistics = getTemplateStatistics(template);
+    if (entry != null && entry.expires > System.currentTimeMillis()) {
+      hits.incrementAndGet();
+      statistics.hits.incrementAndGet();
+      return entry.response;
+    }
+    misses.incrementAndGet();
+    statistics.misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Cache a response, unless Solr has committed since the query was started.
+   *
+   * @param template
+   *          the path of the search template.
+   * @param key
+   *          the key from {@link #key(String, SolrParams)}.
+   * @param response
+   * @param startGeneration
+   *          the value of {@link #getGeneration()} before the query was performed.
+   */
+  public void put(String template, String key, QueryResponse response, long startGeneration) {
+    if (entries.size() >= maxEntries) {
+      // crude, but the popular searches come straight back.
+      LOGGER.debug("Search result cache is full at {} entries, clearing ", maxEntries);
+      entries.clear();
+    }
+    entries.put(key, new Entry(response, System.currentTimeMillis() + ttl));
+    if (generation.get() != startGeneration) {
+      // the index changed while we were searching, don't trust what we cached.
+      entries.remove(key);
+    }
+  }
+
+  /**
+   * Build a cache key from the template path and the Solr parameters. Parameter names
+   * are sorted and filter queries, which are unordered, are sorted too, so the same
+   * search always gives the same key.
+   *
+   * @param template
+   * @param params
+   * @return the key.
+   */
+  public static String key(String template, SolrParams params) {
+    StringBuilder sb = new StringBuilder(template);
+    TreeSet<String> names = new TreeSet<String>();
+    for (Iterator<String> i = params.getParameterNamesIterator(); i.hasNext();) {
+      names.add(i.next());
+    }
+    for (String name : names) {
+      String[] values = params.getParams(name);
+      if (values == null) {
+        continue;
+      }
+      if (CommonParams.FQ.equals(name)) {
+        values = values.clone();
+        Arrays.sort(values);
+      }
+      for (String value : values) {
+        sb.append('&').append(name).append('=').append(value);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (!entries.isEmpty()) {
+      invalidations.incrementAndGet();
+    }
+    clear();
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getInvalidations() {
+    return invalidations.get();
+  }
+
+  public int getSize() {
+    return entries.size();
+  }
+
+  public String[] getTemplateStatistics() {
+    List<String> lines = new ArrayList<String>();
+    for (Map.Entry<String, TemplateStatistics> e : templates.entrySet()) {
+      lines.add(e.getKey() + " hits=" + e.getValue().hits.get() + " misses="
+          + e.getValue().misses.get());
+    }
+    String[] sorted = lines.toArray(new String[lines.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+  }
+
+  private TemplateStatistics getTemplateStatistics(String template) {
+    TemplateStatistics statistics = templates.get(template);
+    if (statistics == null) {
+      TemplateStatistics created = new TemplateStatistics();
+      statistics = templates.putIfAbsent(template, created);
+      if (statistics == null) {
+        statistics = created;
+      }
+    }
+    return statistics;
+  }
+}
@@ -44,7 +44,6 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
-import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.lite.authorizable.User;
 import org.sakaiproject.nakamura.api.search.DeletedPathsService;
 import org.sakaiproject.nakamura.api.search.solr.Query;
@@ -59,8 +58,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -94,6 +91,12 @@ public class SolrResultSetFactory implements ResultSetFactory {
   @Reference
   private DeletedPathsService deletedPathsService;
 
+  @Reference
+  private ReadersCache readersCache;
+
+  @Reference
+  private SearchResultCache searchResultCache;
+
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
@@ -186,10 +189,9 @@ public class SolrResultSetFactory implements ResultSetFactory {
       filterQueries.add("-exclude:true");
 
       // filter out deleted items
-      List<String> deletedPaths = deletedPathsService.getEscapedDeletedPaths(Query.SOLR);
-      if (!deletedPaths.isEmpty()) {
-        // these are escaped as they are collected
-        filterQueries.add("-path:(" + StringUtils.join(deletedPaths, " OR ") + ")");
+      String deletedPathsFilter = deletedPathsService.getDeletedPathsFilterQuery();
+      if (deletedPathsFilter != null) {
+        filterQueries.add(deletedPathsFilter);
       }
       // save filterQuery changes
       queryOptions.put(CommonParams.FQ, filterQueries);
@@ -209,16 +211,29 @@ public class SolrResultSetFactory implements ResultSetFactory {
         } catch (UnsupportedEncodingException e) {
         }
       }
-      long tquery = System.currentTimeMillis();
-      QueryResponse response = doSolrQuery(params.getPath(), solrServer, solrQuery);
-      tquery = System.currentTimeMillis() - tquery;
-      try {
-        if ( tquery > verySlowQueryThreshold ) {
-          logVerySlow(params.getPath(), solrQuery, tquery);
-        } else if ( tquery > slowQueryThreshold ) {
-          logSlow(params.getPath(), solrQuery, tquery);
+      // anonymous and public searches give the same results to everyone, so share them.
+      String cacheKey = null;
+      QueryResponse response = null;
+      if (searchResultCache.isCacheable(params.getPath(), asAnon)) {
+        cacheKey = SearchResultCache.key(params.getPath(), solrQuery);
+        response = searchResultCache.get(params.getPath(), cacheKey);
+      }
+      if (response == null) {
+        long generation = (cacheKey == null) ? 0 : searchResultCache.getGeneration();
+        long tquery = System.currentTimeMillis();
+        response = doSolrQuery(params.getPath(), solrServer, solrQuery);
+        tquery = System.currentTimeMillis() - tquery;
+        try {
+          if ( tquery > verySlowQueryThreshold ) {
+            logVerySlow(params.getPath(), solrQuery, tquery);
+          } else if ( tquery > slowQueryThreshold ) {
+            logSlow(params.getPath(), solrQuery, tquery);
+          }
+        } catch (UnsupportedEncodingException e) {
+        }
+        if (cacheKey != null) {
+          searchResultCache.put(params.getPath(), cacheKey, response, generation);
         }
-      } catch (UnsupportedEncodingException e) {
       }
       SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response);
       if ( LOGGER.isDebugEnabled()) {
@@ -243,12 +258,7 @@ public class SolrResultSetFactory implements ResultSetFactory {
     } else {
       if (!User.ADMIN_USER.equals(userId)) {
         AuthorizableManager am = session.getAuthorizableManager();
-        Set<String> readers = Sets.newHashSet();
-        for (Iterator<Group> gi = authorizable.memberOf(am); gi.hasNext();) {
-          readers.add(gi.next().getId());
-        }
-        readers.add(userId);
-        queryOptions.put("readers", StringUtils.join(readers,","));
+        queryOptions.put("readers", readersCache.getReaders(authorizable, am));
       }
     }
   }
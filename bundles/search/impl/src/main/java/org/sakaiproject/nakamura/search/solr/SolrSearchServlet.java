@@ -23,6 +23,7 @@ import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.JSON
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_BATCHRESULTPROCESSOR;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_INDEX_ONLY;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_PROPERTY_PROVIDER;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE;
 import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.SAKAI_QUERY_TEMPLATE_DEFAULTS;
@@ -74,6 +75,7 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultProcessor;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchServiceFactory;
 import org.sakaiproject.nakamura.api.search.solr.SolrSearchUtil;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.sakaiproject.nakamura.util.JcrUtils;
@@ -316,7 +318,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
 
-        ExtendedJSONWriter write = new ExtendedJSONWriter(response.getWriter());
+        // encode straight to the output stream, most of what we write is ASCII.
+        Utf8Writer out = new Utf8Writer(response.getOutputStream());
+        ExtendedJSONWriter write = new ExtendedJSONWriter(out);
         write.setTidy(ServletUtils.isTidy(request));
 
         write.object();
@@ -330,8 +334,23 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         if (useBatch) {
           LOGGER.info("Using batch processor for results");
           searchBatchProcessor.writeResults(request, write, iterator);
+        } else if (searchProcessor instanceof DefaultSearchResultProcessor
+            && node.hasProperty(SAKAI_INDEX_ONLY)
+            && node.getProperty(SAKAI_INDEX_ONLY).getBoolean()) {
+          LOGGER.info("Writing stored fields for results");
+          for (long i = 0; i < nitems && iterator.hasNext(); i++) {
+            ExtendedJSONWriter.writeValueMap(write, iterator.next().getProperties());
+          }
         } else {
           LOGGER.info("Using regular processor for results");
+          if (searchProcessor instanceof DefaultSearchResultProcessor) {
+            // load the content for the next few hits together, rather than between
+            // writing each one.
+            Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+                .adaptTo(javax.jcr.Session.class));
+            iterator = new PrefetchingResultIterator(iterator, session.getContentManager(),
+                PrefetchingResultIterator.DEFAULT_WINDOW, nitems);
+          }
           // We don't skip any rows ourselves here.
           // We expect a rowIterator coming from a resultset to be at the right place.
           for (long i = 0; i < nitems && iterator.hasNext(); i++) {
@@ -363,7 +382,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         }
 
         write.endObject();
+        out.flush();
       }
+    } catch (StorageClientException e) {
+      LOGGER.error(e.getMessage(), e);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
     } catch (RepositoryException e) {
       LOGGER.error(e.getMessage(), e);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e.getMessage());
@@ -409,10 +432,12 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
         defaultValues, queryType);
 
     String queryTemplate = queryNode.getProperty(SAKAI_QUERY_TEMPLATE).getString();
+    CompiledTemplate compiledQuery = templateService.getCompiledTemplate(
+        queryNode.getPath() + "/" + SAKAI_QUERY_TEMPLATE, queryTemplate);
 
     // process the query string before checking for missing terms to a) give processors a
     // chance to set things and b) catch any missing terms added by the processors.
-    String queryString = templateService.evaluateTemplate(propertiesMap, queryTemplate);
+    String queryString = compiledQuery.evaluate(propertiesMap);
 
     // expand home directory references to full path; eg. ~user => a:user
     queryString = SearchUtil.expandHomeDirectory(queryString);
@@ -459,9 +484,9 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
           if (prop.isMultiple()) {
             Set<String> processedVals = Sets.newHashSet();
             Value[] vals = prop.getValues();
-            for (Value val : vals) {
-              String processedVal = processValue(key, val.getString(), propertiesMap,
-                  queryType, missingTerms);
+            for (int i = 0; i < vals.length; i++) {
+              String processedVal = processValue(prop.getPath() + "[" + i + "]", key,
+                  vals[i].getString(), propertiesMap, queryType, missingTerms);
               processedVals.add(processedVal);
             }
             if (!processedVals.isEmpty()) {
@@ -469,8 +494,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
             }
           } else {
             String val = prop.getString();
-            String processedVal = processValue(key, val, propertiesMap, queryType,
-                missingTerms);
+            String processedVal = processValue(prop.getPath(), key, val, propertiesMap,
+                queryType, missingTerms);
             options.put(key, processedVal);
           }
         }
@@ -489,6 +514,8 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
   /**
    * Process a value through the template service and check for missing fields.
    *
+   * @param templateKey
+   *          where the value came from, the key of its compiled template.
    * @param key
    * @param val
    * @param propertiesMap
@@ -496,10 +523,11 @@ public class SolrSearchServlet extends SlingSafeMethodsServlet {
    * @param missingTerms
    * @return
    */
-  private String processValue(String key, String val, Map<String, String> propertiesMap,
-      String queryType, Set<String> missingTerms) {
-    missingTerms.addAll(templateService.missingTerms(propertiesMap, val));
-    String processedVal = templateService.evaluateTemplate(propertiesMap, val);
+  private String processValue(String templateKey, String key, String val,
+      Map<String, String> propertiesMap, String queryType, Set<String> missingTerms) {
+    CompiledTemplate template = templateService.getCompiledTemplate(templateKey, val);
+    missingTerms.addAll(template.missingTerms(propertiesMap));
+    String processedVal = template.evaluate(propertiesMap);
     if ("sort".equals(key)) {
       processedVal = SearchUtil.escapeString(processedVal, queryType);
     }
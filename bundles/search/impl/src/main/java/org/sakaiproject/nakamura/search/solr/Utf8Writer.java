@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A writer that encodes UTF-8 straight into a byte buffer and writes the buffer to the
+ * underlying stream when it is full. The JSON written for search results is mostly
+ * ASCII, so this avoids the char buffers and charset encoder behind the servlet
+ * writer. Not thread safe.
+ */
+final class Utf8Writer extends Writer {
+
+  static final int DEFAULT_BUFFER_SIZE = 8192;
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private int count;
+  /**
+   * A high surrogate from the end of the last write, waiting for its low surrogate.
+   */
+  private char highSurrogate;
+
+  Utf8Writer(OutputStream out) {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  Utf8Writer(OutputStream out, int bufferSize) {
+    this.out = out;
+    // room for at least one 4 byte sequence.
+    this.buffer = new byte[Math.max(16, bufferSize)];
+  }
+
+  @Override
+  public void write(int c) throws IOException {
+    writeChar((char) c);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      writeChar(cbuf[i]);
+    }
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    for (int i = off; i < off + len; i++) {
+      writeChar(str.charAt(i));
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  /**
+   * Flushes the buffer but leaves the underlying stream open, it belongs to the
+   * response.
+   */
+  @Override
+  public void close() throws IOException {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      writeCodePoint('?');
+    }
+    flush();
+  }
+
+  private void writeChar(char c) throws IOException {
+    if (c < 0x80 && highSurrogate == 0) {
+      if (count == buffer.length) {
+        flushBuffer();
+      }
+      buffer[count++] = (byte) c;
+    } else if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        writeCodePoint(Character.toCodePoint(high, c));
+      } else {
+        // unpaired surrogate, replace it the way the JDK encoder does.
+        writeCodePoint('?');
+        writeChar(c);
+      }
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      writeCodePoint('?');
+    } else {
+      writeCodePoint(c);
+    }
+  }
+
+  private void writeCodePoint(int cp) throws IOException {
+    if (buffer.length - count < 4) {
+      flushBuffer();
+    }
+    if (cp < 0x80) {
+      buffer[count++] = (byte) cp;
+    } else if (cp < 0x800) {
+      buffer[count++] = (byte) (0xc0 | (cp >> 6));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    } else if (cp < 0x10000) {
+      buffer[count++] = (byte) (0xe0 | (cp >> 12));
+      buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    } else {
+      buffer[count++] = (byte) (0xf0 | (cp >> 18));
+      buffer[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+      buffer[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+      buffer[count++] = (byte) (0x80 | (cp & 0x3f));
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buffer, 0, count);
+      count = 0;
+    }
+  }
+}
@@ -18,6 +18,9 @@
 package org.sakaiproject.nakamura.search;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
@@ -160,4 +163,40 @@ public class DeletedPathsServiceImplTest {
     }
     return escapedPaths;
   }
+
+  @Test
+  public void testFilterQueryOnlyRebuiltOnChange() throws Exception {
+    assertNull(service.getDeletedPathsFilterQuery());
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/a:b")));
+    service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+        ImmutableMap.of("path", "/c")));
+    String filter = service.getDeletedPathsFilterQuery();
+    assertEquals("-path:(\\/a\\:b OR \\/c)", filter);
+    long builds = service.getFilterBuilds();
+    assertSame(filter, service.getDeletedPathsFilterQuery());
+    assertEquals(builds, service.getFilterBuilds());
+    assertEquals(2, service.getTombstoneCount());
+
+    service.handleEvent(new Event("org/sakaiproject/nakamura/solr/COMMIT",
+        ImmutableMap.of()));
+    assertNull(service.getDeletedPathsFilterQuery());
+    assertEquals(builds + 1, service.getFilterBuilds());
+  }
+
+  @Test
+  public void testLargeFilterIsGrouped() throws Exception {
+    int n = DeletedPathsServiceImpl.MAX_CLAUSES * 2 + 1;
+    for (int i = 0; i < n; i++) {
+      service.handleEvent(new Event("org/sakaiproject/nakamura/lite/content/DELETE",
+          ImmutableMap.of("path", "p" + i)));
+    }
+    // every path is kept until the commit.
+    assertEquals(n, service.getTombstoneCount());
+    assertEquals(n, service.getDeletedPaths().size());
+    String filter = service.getDeletedPathsFilterQuery();
+    assertTrue(filter.startsWith("-(path:(p0 OR "));
+    assertEquals(3, filter.split("path:\\(").length - 1);
+    assertTrue(filter.endsWith(" OR path:(p" + (n - 1) + "))"));
+  }
 }
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+public class PathTombstonesTest {
+
+  @Test
+  public void testParentReplacesChildren() {
+    PathTombstones tombstones = new PathTombstones();
+    assertTrue(tombstones.add("/a/b"));
+    assertTrue(tombstones.add("/c"));
+    assertTrue(tombstones.add("/a/d/e"));
+    assertTrue(tombstones.add("/ab"));
+    assertTrue(tombstones.add("/a"));
+    assertEquals(Lists.newArrayList("/c", "/ab", "/a"), tombstones.getPaths());
+  }
+
+  @Test
+  public void testCoveredPathsAreIgnored() {
+    PathTombstones tombstones = new PathTombstones();
+    assertTrue(tombstones.add("/a"));
+    assertFalse(tombstones.add("/a"));
+    assertFalse(tombstones.add("/a/b/c"));
+    assertEquals(1, tombstones.size());
+  }
+
+  @Test
+  public void testTombstonesAreKeptUntilCleared() {
+    PathTombstones tombstones = new PathTombstones();
+    for (int i = 0; i < 5000; i++) {
+      assertTrue(tombstones.add("/p/" + i));
+    }
+    assertEquals(5000, tombstones.size());
+    assertFalse(tombstones.add("/p/0/x"));
+    tombstones.clear();
+    assertEquals(0, tombstones.size());
+    assertTrue(tombstones.add("/p/0/x"));
+  }
+
+  @Test
+  public void testPathsAreNormalized() {
+    PathTombstones tombstones = new PathTombstones();
+    assertTrue(tombstones.add("/a//b/"));
+    assertFalse(tombstones.add("a/b"));
+    assertFalse(tombstones.add("/a/b"));
+    assertEquals(Lists.newArrayList("/a/b"), tombstones.getPaths());
+    assertTrue(tombstones.add("c"));
+    assertFalse(tombstones.add("/c/"));
+    // reported as first added, which is how the path is indexed.
+    assertTrue(tombstones.add("a"));
+    assertEquals(Lists.newArrayList("c", "a"), tombstones.getPaths());
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.search.solr.PrefetchingResultIterator.PrefetchedResult;
+
+import java.util.Iterator;
+import java.util.List;
+
+public class PrefetchingResultIteratorTest {
+
+  @Test
+  public void testLoadsContentAheadWithinTheLimit() throws Exception {
+    List<Result> results = Lists.newArrayList();
+    ContentManager contentManager = mock(ContentManager.class);
+    for (int i = 0; i < 10; i++) {
+      results.add(result("/p" + i));
+      when(contentManager.get("/p" + i)).thenReturn(new Content("/p" + i, null));
+    }
+    Iterator<Result> iterator = new PrefetchingResultIterator(results.iterator(),
+        contentManager, 3, 5);
+
+    PrefetchedResult first = (PrefetchedResult) iterator.next();
+    assertEquals("/p0", first.getContent().getPath());
+    // the rest of the window has been loaded, nothing after it.
+    verify(contentManager).get("/p2");
+    verify(contentManager, never()).get("/p3");
+
+    int n = 1;
+    while (iterator.hasNext()) {
+      PrefetchedResult r = (PrefetchedResult) iterator.next();
+      assertEquals("/p" + n, r.getPath());
+      assertEquals("/p" + n, r.getContent().getPath());
+      n++;
+    }
+    assertEquals(5, n);
+    verify(contentManager, never()).get("/p5");
+  }
+
+  @Test
+  public void testFailuresAreThrownForTheirOwnResult() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    AccessDeniedException denied = new AccessDeniedException("n", "/denied", "", "");
+    when(contentManager.get("/denied")).thenThrow(denied);
+    Iterator<Result> iterator = new PrefetchingResultIterator(Lists.newArrayList(
+        result("/denied"), result("/missing")).iterator(), contentManager, 10, 10);
+
+    PrefetchedResult r = (PrefetchedResult) iterator.next();
+    try {
+      r.getContent();
+      fail();
+    } catch (AccessDeniedException e) {
+      assertSame(denied, e);
+    }
+    assertTrue(iterator.hasNext());
+    assertNull(((PrefetchedResult) iterator.next()).getContent());
+    assertFalse(iterator.hasNext());
+  }
+
+  private Result result(String path) {
+    Result result = mock(Result.class);
+    when(result.getPath()).thenReturn(path);
+    return result;
+  }
+}
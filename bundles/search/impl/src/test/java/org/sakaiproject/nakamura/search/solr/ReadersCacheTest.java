@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+
+import java.util.Map;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ReadersCacheTest {
+
+  @Mock
+  private Authorizable user;
+  @Mock
+  private AuthorizableManager authorizableManager;
+  @Mock
+  private Group groupB;
+  @Mock
+  private Group groupA;
+
+  private ReadersCache readersCache;
+
+  @Before
+  public void setUp() throws Exception {
+    when(user.getId()).thenReturn("alice");
+    when(groupA.getId()).thenReturn("group-a");
+    when(groupB.getId()).thenReturn("group-b");
+    when(user.memberOf(authorizableManager)).thenReturn(
+        Lists.newArrayList(groupB, groupA).iterator(),
+        Lists.newArrayList(groupA).iterator());
+    readersCache = new ReadersCache();
+    readersCache.activate(ImmutableMap.<String, Object> of());
+  }
+
+  @After
+  public void tearDown() {
+    readersCache.deactivate(ImmutableMap.<String, Object> of());
+  }
+
+  @Test
+  public void testRepeatSearchesUseCachedReaders() throws Exception {
+    assertEquals("alice,group-a,group-b", readersCache.getReaders(user, authorizableManager));
+    assertEquals("alice,group-a,group-b", readersCache.getReaders(user, authorizableManager));
+    verify(user, times(1)).memberOf(authorizableManager);
+    assertEquals(1, readersCache.getHits());
+    assertEquals(1, readersCache.getMisses());
+  }
+
+  @Test
+  public void testGroupUpdateInvalidatesMembers() throws Exception {
+    readersCache.getReaders(user, authorizableManager);
+    readersCache.handleEvent(authorizableEvent("UPDATED", "group-b"));
+    assertEquals(1, readersCache.getInvalidations());
+    assertEquals("alice,group-a", readersCache.getReaders(user, authorizableManager));
+    verify(user, times(2)).memberOf(authorizableManager);
+  }
+
+  @Test
+  public void testUnrelatedUpdateKeepsEntry() throws Exception {
+    readersCache.getReaders(user, authorizableManager);
+    readersCache.handleEvent(authorizableEvent("UPDATED", "bob"));
+    readersCache.getReaders(user, authorizableManager);
+    verify(user, times(1)).memberOf(authorizableManager);
+  }
+
+  private Event authorizableEvent(String type, String id) {
+    Map<String, Object> props = ImmutableMap.<String, Object> of("path", id);
+    return new Event("org/sakaiproject/nakamura/lite/authorizables/" + type, props);
+  }
+}
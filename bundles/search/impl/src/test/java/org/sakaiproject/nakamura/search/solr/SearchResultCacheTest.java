@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.util.Map;
+
+public class SearchResultCacheTest {
+
+  private static final String TEMPLATE = "/var/search/public/all";
+
+  private SearchResultCache searchResultCache;
+
+  @Before
+  public void setUp() {
+    searchResultCache = new SearchResultCache();
+    searchResultCache.activate(ImmutableMap.<String, Object> of());
+  }
+
+  @After
+  public void tearDown() {
+    searchResultCache.deactivate(ImmutableMap.<String, Object> of());
+  }
+
+  @Test
+  public void testCacheable() {
+    assertTrue(searchResultCache.isCacheable("/var/search/pool/all", true));
+    assertTrue(searchResultCache.isCacheable(TEMPLATE, false));
+    assertFalse(searchResultCache.isCacheable("/var/search/pool/me", false));
+    assertFalse(searchResultCache.isCacheable(null, true));
+  }
+
+  @Test
+  public void testKeyIgnoresFilterQueryOrder() {
+    SolrQuery a = query("x");
+    a.add("fq", "-exclude:true");
+    a.add("fq", "-path:/deleted");
+    SolrQuery b = query("x");
+    b.add("fq", "-path:/deleted");
+    b.add("fq", "-exclude:true");
+    assertEquals(SearchResultCache.key(TEMPLATE, a), SearchResultCache.key(TEMPLATE, b));
+
+    SolrQuery c = query("x");
+    c.setStart(10);
+    assertFalse(SearchResultCache.key(TEMPLATE, a).equals(SearchResultCache.key(TEMPLATE, c)));
+  }
+
+  @Test
+  public void testHitsAreCountedPerTemplate() {
+    String key = SearchResultCache.key(TEMPLATE, query("x"));
+    QueryResponse response = new QueryResponse();
+    assertNull(searchResultCache.get(TEMPLATE, key));
+    searchResultCache.put(TEMPLATE, key, response, searchResultCache.getGeneration());
+    assertSame(response, searchResultCache.get(TEMPLATE, key));
+    assertSame(response, searchResultCache.get(TEMPLATE, key));
+
+    assertEquals(2, searchResultCache.getHits());
+    assertEquals(1, searchResultCache.getMisses());
+    String[] statistics = searchResultCache.getTemplateStatistics();
+    assertEquals(1, statistics.length);
+    assertEquals(TEMPLATE + " hits=2 misses=1", statistics[0]);
+  }
+
+  @Test
+  public void testCommitInvalidates() {
+    String key = SearchResultCache.key(TEMPLATE, query("x"));
+    searchResultCache.put(TEMPLATE, key, new QueryResponse(), searchResultCache.getGeneration());
+    searchResultCache.handleEvent(commitEvent(SearchResultCache.SOFT_COMMIT_TOPIC));
+    assertNull(searchResultCache.get(TEMPLATE, key));
+    assertEquals(1, searchResultCache.getInvalidations());
+  }
+
+  @Test
+  public void testResponseFromBeforeCommitIsNotCached() {
+    String key = SearchResultCache.key(TEMPLATE, query("x"));
+    long generation = searchResultCache.getGeneration();
+    // the indexer commits while the query is running.
+    searchResultCache.handleEvent(commitEvent(SearchResultCache.COMMIT_TOPIC));
+    searchResultCache.put(TEMPLATE, key, new QueryResponse(), generation);
+    assertNull(searchResultCache.get(TEMPLATE, key));
+    assertEquals(0, searchResultCache.getSize());
+  }
+
+  private SolrQuery query(String q) {
+    SolrQuery query = new SolrQuery(q);
+    query.add("readers", "anonymous");
+    return query;
+  }
+
+  private Event commitEvent(String topic) {
+    Map<String, Object> props = ImmutableMap.<String, Object> of();
+    return new Event(topic, props);
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class Utf8WriterTest {
+
+  @Test
+  public void testEncodesLikeTheJdk() throws Exception {
+    String s = "{\"a\":\"caf\u00e9 \u20ac \ud83d\ude00 \u0000\"}";
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append(s);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    // a small buffer so multi byte sequences land on buffer boundaries.
+    Utf8Writer writer = new Utf8Writer(baos, 17);
+    String text = sb.toString();
+    // split the text so surrogate pairs are split across writes.
+    for (int i = 0; i < text.length(); i += 7) {
+      writer.write(text, i, Math.min(7, text.length() - i));
+    }
+    writer.close();
+    assertArrayEquals(text.getBytes("UTF-8"), baos.toByteArray());
+  }
+
+  @Test
+  public void testUnpairedSurrogates() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Utf8Writer writer = new Utf8Writer(baos);
+    writer.write("a\ud83db\ude00c\ud83d");
+    writer.close();
+    assertEquals("a?b?c?", new String(baos.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testBuffersUntilFull() throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    Utf8Writer writer = new Utf8Writer(baos, 16);
+    writer.write("0123456789");
+    assertEquals(0, baos.size());
+    writer.write("0123456789");
+    assertEquals(16, baos.size());
+    writer.flush();
+    assertEquals(20, baos.size());
+  }
+}
@@ -1,71 +1,63 @@
 package org.apache.jackrabbit.core.security.principal;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A reasonably dumb LRU map, but its concurrent.
+ * A bounded concurrent map that approximates LRU with the clock (second chance)
+ * algorithm. Reads only set a referenced flag on the entry, and every entry is queued
+ * once when it is inserted. When the map is over its maximum size entries are taken
+ * from the head of the queue, entries that have been read since they were last looked
+ * at are given a second chance at the tail and the first unreferenced entry is evicted,
+ * so eviction is amortized O(1) and never sorts or locks the whole map.
+ * <p>
+ * Null values are allowed and are stored, so the map can hold negative entries.
+ *
  * @param <K>
  * @param <V>
  */
 public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
-  public class Holder<T> {
+  private static final class Holder<K, V> {
+    private final K key;
+    private volatile V value;
+    private volatile boolean referenced;
 
-    protected long last;
-    protected V value;
-    private K key;
-
-    public Holder(K key, V value) {
+    private Holder(K key, V value) {
       this.key = key;
       this.value = value;
-      this.last = System.currentTimeMillis();
-    }
-
-    public int compareTo(Holder<T> o) {
-      return (int) (this.last - o.last);
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      boolean eq = false;
-      if (obj != null) {
-        try {
-          @SuppressWarnings("unchecked")
-          Holder<T> t = (Holder<T>) obj;
-          eq = value.equals(t.value);
-        } catch (ClassCastException e) {
-          eq = false;
-        }
-      }
-      return eq;
-    }
-
-    @Override
-    public int hashCode() {
-      return value.hashCode();
     }
-
   }
 
+  private final ConcurrentHashMap<K, Holder<K, V>> delegate = new ConcurrentHashMap<K, Holder<K, V>>();
   /**
-   * 
+   * Entries in insertion order. Removed entries stay in the queue until they reach the
+   * head or the queue is purged.
    */
-  private Map<K, Holder<V>> delegate = new ConcurrentHashMap<K, Holder<V>>();
-  private int maxSize = 100;
+  private final ConcurrentLinkedQueue<Holder<K, V>> clock = new ConcurrentLinkedQueue<Holder<K, V>>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int maxSize;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
 
   public ConcurrentLRUMap() {
+    this(100);
   }
 
   public ConcurrentLRUMap(int size) {
-    maxSize = size;
+    maxSize = Math.max(1, size);
   }
 
   public int size() {
@@ -81,42 +73,61 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
   }
 
   public boolean containsValue(Object value) {
-    @SuppressWarnings("unchecked")
-    Holder<V> v = new Holder<V>(null, (V) value);
-    return delegate.containsValue(v);
+    for (Holder<K, V> h : delegate.values()) {
+      V v = h.value;
+      if (value == null ? v == null : value.equals(v)) {
+        return true;
+      }
+    }
+    return false;
   }
 
-  public V put(K key, V value) {
-    if ( delegate.size() > maxSize ) {
-      List<Holder<V>> l = new ArrayList<Holder<V>>(delegate.values());
-      Collections.sort(l,new Comparator<Holder<V>>() {
+  public V get(Object key) {
+    Holder<K, V> h = delegate.get(key);
+    if (h == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    if (!h.referenced) {
+      h.referenced = true;
+    }
+    return h.value;
+  }
 
-        public int compare(Holder<V> o1, Holder<V> o2) {
-          return (int) (o1.last - o2.last);
-        }
-      });
-      int i = 0;
-      while ( delegate.size() > maxSize && i < l.size() ) {
-        delegate.remove(l.get(i++).key);
+  public V put(K key, V value) {
+    Holder<K, V> h = new Holder<K, V>(key, value);
+    Holder<K, V> existing;
+    while ((existing = delegate.putIfAbsent(key, h)) != null) {
+      // replace in place, the entry keeps its place in the clock.
+      V old = existing.value;
+      existing.value = value;
+      existing.referenced = true;
+      if (delegate.get(key) == existing) {
+        return old;
       }
+      // evicted or removed while it was being replaced, try again.
     }
-    Holder<V> v = delegate.put(key, new Holder<V>(key, value));
-    if (v == null) {
-      return null;
+    clock.offer(h);
+    if (queued.incrementAndGet() > 2 * maxSize) {
+      purge();
     }
-    return v.value;
+    if (delegate.size() > maxSize) {
+      evict();
+    }
+    return null;
   }
 
   public V remove(Object key) {
-    Holder<V> v = delegate.remove(key);
-    if (v == null) {
+    Holder<K, V> h = delegate.remove(key);
+    if (h == null) {
       return null;
     }
-    return v.value;
+    return h.value;
   }
 
   public void putAll(Map<? extends K, ? extends V> t) {
-    for ( java.util.Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
+    for (Map.Entry<? extends K, ? extends V> e : t.entrySet()) {
       put(e.getKey(), e.getValue());
     }
   }
@@ -131,43 +142,130 @@ public class ConcurrentLRUMap<K, V> implements Map<K, V> {
 
   public Collection<V> values() {
     List<V> values = new ArrayList<V>();
-    for (Holder<V> v : delegate.values()) {
-      values.add(v.value);
+    for (Holder<K, V> h : delegate.values()) {
+      values.add(h.value);
     }
     return values;
   }
 
   public Set<Entry<K, V>> entrySet() {
-    Set<Entry<K, V>> set = new HashSet<Map.Entry<K, V>>();
-    for (final Entry<K, Holder<V>> e : delegate.entrySet()) {
-      set.add(new Entry<K, V>() {
+    return new AbstractSet<Entry<K, V>>() {
 
-        public K getKey() {
-          return e.getKey();
-        }
+      @Override
+      public Iterator<Entry<K, V>> iterator() {
+        final Iterator<Holder<K, V>> i = delegate.values().iterator();
+        return new Iterator<Entry<K, V>>() {
 
-        public V getValue() {
-          return ((Holder<V>) e.getValue()).value;
-        }
+          public boolean hasNext() {
+            return i.hasNext();
+          }
 
-        public V setValue(V value) {
-          Holder<V> h = e.setValue((Holder<V>) new Holder<V>(e.getKey(), value));
-          if (h == null) {
-            return null;
+          public Entry<K, V> next() {
+            final Holder<K, V> h = i.next();
+            return new AbstractMap.SimpleEntry<K, V>(h.key, h.value) {
+              private static final long serialVersionUID = 1L;
+
+              @Override
+              public V setValue(V value) {
+                h.value = value;
+                return super.setValue(value);
+              }
+            };
           }
-          return h.value;
+
+          public void remove() {
+            i.remove();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return delegate.size();
+      }
+    };
+  }
+
+  /**
+   * @return the number of gets that found an entry, including negative entries.
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of gets that did not find an entry.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries that have been evicted to keep the map within its
+   *         maximum size.
+   */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  @Override
+  public String toString() {
+    return "size=" + delegate.size() + " maxSize=" + maxSize + " hits=" + hits.get()
+        + " misses=" + misses.get() + " evictions=" + evictions.get();
+  }
+
+  /**
+   * Evict entries until the map is within its maximum size. Each entry in the queue is
+   * either dropped, evicted or has its referenced flag cleared, so a pass can never
+   * look at more than twice the number of queued entries.
+   */
+  private void evict() {
+    int budget = 2 * queued.get() + 1;
+    while (delegate.size() > maxSize && budget-- > 0) {
+      Holder<K, V> h = clock.poll();
+      if (h == null) {
+        return;
+      }
+      if (delegate.get(h.key) != h) {
+        // removed, or removed and put again as a new entry.
+        queued.decrementAndGet();
+      } else if (h.referenced) {
+        h.referenced = false;
+        clock.offer(h);
+      } else {
+        queued.decrementAndGet();
+        if (delegate.remove(h.key, h)) {
+          evictions.incrementAndGet();
         }
-      });
+      }
     }
-    return set;
   }
 
-  public V get(Object key) {
-    Holder<V> v = delegate.get(key);
-    if (v == null) {
-      return null;
+  /**
+   * Drop entries that are no longer in the map from the queue, which only happens when
+   * lots of entries have been removed rather than evicted. At least maxSize entries
+   * must have been queued since the last purge, so the cost is amortized over those
+   * puts.
+   */
+  private synchronized void purge() {
+    int n = queued.get();
+    if (n <= 2 * maxSize) {
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      Holder<K, V> h = clock.poll();
+      if (h == null) {
+        return;
+      }
+      if (delegate.get(h.key) == h) {
+        clock.offer(h);
+      } else {
+        queued.decrementAndGet();
+      }
     }
-    v.last = System.currentTimeMillis();
-    return v.value;
   }
 }
@@ -61,6 +61,9 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   /** flag indicating if the instance has not been {@link #close() closed} */
   private boolean initialized;
 
+  /** flag indicating if principals that were not found should be cached */
+  private boolean includeNegative;
+
   /** the principal cache */
   private ConcurrentLRUMap<String, Principal> cache = new ConcurrentLRUMap<String, Principal>();
   private Repository sparseRepository;
@@ -178,17 +181,15 @@ public class SparsePrincipalProvider implements PrincipalProvider {
                     memberIds.add(pid);
                   }
                 }
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
                 return true;
               } else if (a instanceof org.sakaiproject.nakamura.api.lite.authorizable.User) {
-                if (cache.containsKey(id)) {
-                  prin = cache.get(id);
-                } else {
+                prin = cache.get(id);
+                if (prin == null) {
                   prin = new SparsePrincipal(a, this.getClass().getName());
                   addToCache(prin);
                 }
@@ -259,6 +260,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
   }
 
   public void close() {
+    LOGGER.debug("Principal cache {} ", cache);
     try {
       session.logout();
     } catch (ClientPoolException e) {
@@ -277,16 +279,19 @@ public class SparsePrincipalProvider implements PrincipalProvider {
    */
   public Principal getPrincipal(String principalName) {
     checkInitialized();
-    if (cache.containsKey(principalName)) {
-      return (Principal) cache.get(principalName);
+    // a single lookup, the entry may be evicted between containsKey and get.
+    Principal principal = cache.get(principalName);
+    if (principal != null || (includeNegative && cache.containsKey(principalName))) {
+      return principal;
     }
-    Principal principal = null;
     try {
       principal = providePrincipal(principalName);
     } catch (RepositoryException e) {
       LOGGER.debug(e.getMessage(), e);
+      // don't cache a failure as a negative entry.
+      return null;
     }
-    if (principal != null) {
+    if (principal != null || includeNegative) {
       cache.put(principalName, principal);
     }
     return principal;
@@ -331,6 +336,7 @@ public class SparsePrincipalProvider implements PrincipalProvider {
 
     int maxSize = Integer.parseInt(options.getProperty(MAXSIZE_KEY, "1000"));
     cache = new ConcurrentLRUMap<String, Principal>(maxSize);
+    includeNegative = Boolean.parseBoolean(options.getProperty(NEGATIVE_ENTRY_KEY, "false"));
 
     initialized = true;
   }
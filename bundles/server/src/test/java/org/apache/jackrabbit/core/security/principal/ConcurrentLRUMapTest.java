@@ -0,0 +1,140 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.apache.jackrabbit.core.security.principal;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ */
+public class ConcurrentLRUMapTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrentLRUMapTest.class);
+
+  @Test
+  public void testBounded() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(100);
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, "v" + i);
+      Assert.assertTrue(map.size() <= 100);
+    }
+    Assert.assertEquals(100, map.size());
+    Assert.assertEquals(900, map.getEvictions());
+    // the most recent entries survive
+    Assert.assertEquals("v999", map.get("k999"));
+  }
+
+  @Test
+  public void testSecondChance() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    for (int i = 0; i < 10; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    // k0 is the oldest entry, but it has been read so k1 goes first.
+    Assert.assertEquals("v0", map.get("k0"));
+    map.put("k10", "v10");
+    Assert.assertTrue(map.containsKey("k0"));
+    Assert.assertFalse(map.containsKey("k1"));
+    Assert.assertEquals(1, map.getEvictions());
+  }
+
+  @Test
+  public void testReplaceAndRemove() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    Assert.assertNull(map.put("a", "1"));
+    Assert.assertEquals("1", map.put("a", "2"));
+    Assert.assertEquals(1, map.size());
+    Assert.assertEquals("2", map.remove("a"));
+    Assert.assertNull(map.get("a"));
+    // removing lots of entries must not grow the queue without bound.
+    for (int i = 0; i < 10000; i++) {
+      map.put("r" + i, "x");
+      map.remove("r" + i);
+    }
+    Assert.assertTrue(map.isEmpty());
+    for (int i = 0; i < 20; i++) {
+      map.put("k" + i, "v" + i);
+    }
+    Assert.assertEquals(10, map.size());
+    Assert.assertEquals("v19", map.get("k19"));
+    for (Map.Entry<String, String> e : map.entrySet()) {
+      Assert.assertEquals("v" + e.getKey().substring(1), e.getValue());
+    }
+  }
+
+  @Test
+  public void testNegativeEntries() {
+    ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(10);
+    map.put("missing", null);
+    Assert.assertTrue(map.containsKey("missing"));
+    Assert.assertNull(map.get("missing"));
+    Assert.assertNull(map.get("other"));
+    Assert.assertTrue(map.containsValue(null));
+    Assert.assertEquals(1, map.getHits());
+    Assert.assertEquals(1, map.getMisses());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    final int size = 1000;
+    final ConcurrentLRUMap<String, String> map = new ConcurrentLRUMap<String, String>(size);
+    final int threads = 8;
+    final int perThread = 50000;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < perThread; i++) {
+            // a working set a little bigger than the map, so there is some eviction.
+            String key = "p" + ((i * 31 + id * 7) % (size + size / 4));
+            if (map.get(key) == null) {
+              map.put(key, key);
+            }
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long startTime = System.currentTimeMillis();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    LOGGER.info("{} lookups on {} threads took {} ms, {}", new Object[] {
+        threads * perThread, threads, System.currentTimeMillis() - startTime, map });
+    Assert.assertTrue(map.size() <= size + threads);
+    Assert.assertEquals(threads * perThread, map.getHits() + map.getMisses());
+    Assert.assertTrue(map.getEvictions() > 0);
+  }
+}
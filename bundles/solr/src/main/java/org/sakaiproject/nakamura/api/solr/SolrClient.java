@@ -26,6 +26,10 @@ public interface SolrClient {
 	 * Remove master, LB Query slaves.
 	 */
 	public static final String MULTIREMOTE = "multiremote";
+	/**
+	 * Remote master, queries routed to the best of several replicas.
+	 */
+	public static final String REPLICATED = "replicated";
 	/**
 	 * The client name property.
 	 */
@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Reads segments written by {@link RedoLogWriter}. The segment is pre-allocated
+ * so reaching a zero length means no more records have been written yet, the
+ * reader stays where it is and picks up the record once the writer has
+ * appended it.
+ */
+class BinaryRedoLogReader extends RedoLogReader {
+
+  private FileInputStream in;
+  private FileChannel channel;
+  private long position;
+  private ByteBuffer lengthBuffer = ByteBuffer.allocate(RedoLogWriter.HEADER_SIZE);
+
+  BinaryRedoLogReader(File segment) throws IOException {
+    in = new FileInputStream(segment);
+    channel = in.getChannel();
+    position = 0;
+  }
+
+  @Override
+  Event next() throws IOException {
+    if (position == 0 && !readHeader()) {
+      return null;
+    }
+    lengthBuffer.clear();
+    lengthBuffer.limit(4);
+    if (!readFully(lengthBuffer, position)) {
+      return null;
+    }
+    int length = lengthBuffer.getInt(0);
+    if (length == 0) {
+      return null;
+    }
+    if (length == RedoLogWriter.END_RECORD) {
+      return END;
+    }
+    if (length < 0) {
+      throw new IOException("Corrupt record length " + length + " at " + position);
+    }
+    ByteBuffer payload = ByteBuffer.allocate(length);
+    if (!readFully(payload, position + 4)) {
+      throw new IOException("Truncated record at " + position);
+    }
+    position = position + 4 + length;
+    return decode(payload.array());
+  }
+
+  private boolean readHeader() throws IOException {
+    lengthBuffer.clear();
+    if (!readFully(lengthBuffer, 0)) {
+      return false;
+    }
+    int magic = lengthBuffer.getInt(0);
+    if (magic == 0) {
+      // the writer has not finished initialising the segment.
+      return false;
+    }
+    if (magic != RedoLogWriter.MAGIC) {
+      throw new IOException("Not a redo log segment, magic " + Integer.toHexString(magic));
+    }
+    int version = lengthBuffer.getInt(4);
+    if (version != RedoLogWriter.VERSION) {
+      throw new IOException("Unsupported redo log version " + version);
+    }
+    position = RedoLogWriter.HEADER_SIZE;
+    return true;
+  }
+
+  private boolean readFully(ByteBuffer buffer, long offset) throws IOException {
+    long p = offset;
+    while (buffer.hasRemaining()) {
+      int n = channel.read(buffer, p);
+      if (n < 0) {
+        return false;
+      }
+      p += n;
+    }
+    return true;
+  }
+
+  static Event decode(byte[] payload) throws IOException {
+    DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+    String topic = readString(data);
+    int n = data.readInt();
+    Dictionary<String, Object> dict = new Hashtable<String, Object>();
+    for (int i = 0; i < n; i++) {
+      String name = readString(data);
+      dict.put(name, readString(data));
+    }
+    return new Event(topic, dict);
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    byte[] b = new byte[data.readInt()];
+    data.readFully(b);
+    return new String(b, "UTF-8");
+  }
+
+  @Override
+  void close() throws IOException {
+    channel.close();
+    in.close();
+  }
+}
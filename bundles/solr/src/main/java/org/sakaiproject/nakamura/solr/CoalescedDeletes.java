@@ -0,0 +1,236 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Coalesces the delete queries of a batch. Queries that only select documents
+ * by id, eg <code>id:a\/b</code> or <code>id:(a OR b)</code>, become a single
+ * list of ids to delete, dropping any id delete that comes before the batch
+ * adds the same id again since the add replaces the document anyway. A delete
+ * that comes after the last add of its id is kept. The remaining queries are
+ * ORed together into as few queries as possible.
+ */
+class CoalescedDeletes {
+
+  /**
+   * The maximum number of delete queries ORed into a single query, well below
+   * the default maxBooleanClauses of 1024 since each query may have several
+   * clauses of its own.
+   */
+  static final int MAX_QUERIES_PER_DELETE = 256;
+
+  private static final String ID_PREFIX = "id:";
+  private static final String SPECIAL_CHARS = "+-!():^[]\"{}~*?|&;/";
+
+  private final Map<String, Integer> lastAdded;
+  private final Set<String> ids = Sets.newLinkedHashSet();
+  private final List<String> queries = Lists.newArrayList();
+  private final Set<String> seenQueries = Sets.newHashSet();
+  private int redundant;
+
+  /**
+   * @param lastAdded
+   *          the position of the last event in the batch that adds each
+   *          document id.
+   */
+  CoalescedDeletes(Map<String, Integer> lastAdded) {
+    this.lastAdded = lastAdded;
+  }
+
+  /**
+   * Add the delete queries of an event. An event's deletes come before its
+   * own adds.
+   *
+   * @param deleteQueries
+   * @param position
+   *          the position of the event in the batch.
+   */
+  void add(Collection<String> deleteQueries, int position) {
+    for (String q : deleteQueries) {
+      List<String> queryIds = parseIds(q);
+      if (queryIds == null) {
+        if (seenQueries.add(q)) {
+          queries.add(q);
+        } else {
+          redundant++;
+        }
+      } else {
+        for (String id : queryIds) {
+          Integer added = lastAdded.get(id);
+          if ((added != null && added >= position) || !ids.add(id)) {
+            redundant++;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return ids that must be deleted, none of which are added again later in
+   *         the batch.
+   */
+  List<String> getIds() {
+    return Lists.newArrayList(ids);
+  }
+
+  /**
+   * @return the delete queries that could not be turned into ids.
+   */
+  List<String> getQueries() {
+    return queries;
+  }
+
+  /**
+   * @return the non id queries ORed together. Purely negative queries can't be
+   *         ORed with others without changing their meaning so they are left
+   *         on their own.
+   */
+  List<String> getCombinedQueries() {
+    List<String> combined = Lists.newArrayList();
+    StringBuilder sb = new StringBuilder();
+    int n = 0;
+    for (String q : queries) {
+      String trimmed = q.trim();
+      if (trimmed.startsWith("-") || trimmed.startsWith("NOT ")) {
+        combined.add(q);
+        continue;
+      }
+      if (n > 0) {
+        sb.append(" OR ");
+      }
+      sb.append('(').append(q).append(')');
+      n++;
+      if (n == MAX_QUERIES_PER_DELETE) {
+        combined.add(sb.toString());
+        sb.setLength(0);
+        n = 0;
+      }
+    }
+    if (n > 0) {
+      combined.add(sb.toString());
+    }
+    return combined;
+  }
+
+  /**
+   * @return the number of deletes dropped because they were repeated or the
+   *         batch adds the document again after them.
+   */
+  int getRedundant() {
+    return redundant;
+  }
+
+  /**
+   * Parse a query of the form <code>id:term</code> or
+   * <code>id:(term OR term ...)</code> where the terms are escaped as
+   * ClientUtils.escapeQueryChars does.
+   *
+   * @param query
+   * @return the unescaped ids, or null if the query is anything else.
+   */
+  static List<String> parseIds(String query) {
+    if (query == null || !query.startsWith(ID_PREFIX)) {
+      return null;
+    }
+    String terms = query.substring(ID_PREFIX.length());
+    if (terms.startsWith("(") && terms.endsWith(")")) {
+      List<String> tokens = splitTerms(terms.substring(1, terms.length() - 1));
+      if (tokens == null || tokens.size() % 2 == 0) {
+        return null;
+      }
+      List<String> ids = Lists.newArrayList();
+      for (int i = 0; i < tokens.size(); i++) {
+        String t = tokens.get(i);
+        if (i % 2 == 1) {
+          if (!"OR".equals(t)) {
+            return null;
+          }
+        } else {
+          String id = unescape(t);
+          if (id == null) {
+            return null;
+          }
+          ids.add(id);
+        }
+      }
+      return ids;
+    }
+    String id = unescape(terms);
+    if (id == null) {
+      return null;
+    }
+    List<String> ids = Lists.newArrayList();
+    ids.add(id);
+    return ids;
+  }
+
+  private static List<String> splitTerms(String s) {
+    List<String> tokens = Lists.newArrayList();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\\' && i + 1 < s.length()) {
+        sb.append(c).append(s.charAt(++i));
+      } else if (c == ' ') {
+        if (sb.length() > 0) {
+          tokens.add(sb.toString());
+          sb.setLength(0);
+        }
+      } else {
+        sb.append(c);
+      }
+    }
+    if (sb.length() > 0) {
+      tokens.add(sb.toString());
+    }
+    return tokens;
+  }
+
+  /**
+   * @param term
+   * @return the unescaped term, or null if it contains unescaped query syntax.
+   */
+  private static String unescape(String term) {
+    if (term.length() == 0) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(term.length());
+    for (int i = 0; i < term.length(); i++) {
+      char c = term.charAt(i);
+      if (c == '\\') {
+        if (i + 1 == term.length()) {
+          return null;
+        }
+        sb.append(term.charAt(++i));
+      } else if (Character.isWhitespace(c) || SPECIAL_CHARS.indexOf(c) >= 0) {
+        return null;
+      } else {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+}
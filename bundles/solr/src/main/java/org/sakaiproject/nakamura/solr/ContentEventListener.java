@@ -102,6 +102,16 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 
 	private static final String BATCH_DELAY = "batch-delay";
 
+	/**
+	 * The number of threads that build documents for each batch taken from a
+	 * queue. Events are sharded over the workers by path so all the work for
+	 * one path happens on one worker, the documents from all workers are then
+	 * sent to Solr as a single add and commit per batch.
+	 */
+	private static final String WORKERS = "workers";
+
+	private static final int DEFAULT_WORKERS = 1;
+
 	@Property(value={
 			"name=;batch-delay=5000;batched-index-size=100;near-real-time=false",
 			"name=high;batch-delay=50;batched-index-size=10;near-real-time=true"
@@ -168,10 +178,11 @@ public class ContentEventListener implements EventHandler, TopicIndexer,
 
 			long batchDelay = Utils.toLong(config.get(BATCH_DELAY),
 					DEFAULT_BATCH_DELAY);
+			int workers = Utils.toInt(config.get(WORKERS), DEFAULT_WORKERS);
 			String name = Utils.toString(config.get(QUEUE_NAME), DEFAULT_QUEUE_NAME);
 			qm.put(name, new QueueManager(this,
 					solrServerService.getSolrHome(), name, nearRealTime,
-					batchedIndexSize, batchDelay));
+					batchedIndexSize, batchDelay, workers));
 
 		}
 		List<QueueManager> qmlist = Lists.newArrayList(qm.values());
@@ -0,0 +1,234 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.common.SolrInputDocument;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The delete queries and documents the indexing handlers produced for a batch
+ * of events, kept per event path in the order the events were read from the
+ * redo log. Workers each fill an IndexBatch for their shard of the events, the
+ * shards are then merged back into event order before being sent to Solr.
+ */
+class IndexBatch {
+
+  /**
+   * A run of consecutive events whose deletes and documents can be sent to Solr
+   * in one update request without changing the outcome. Solr applies the adds
+   * of a request before its deletes, so a segment ends where an event adds a
+   * document after a delete query that might match it.
+   */
+  static final class Segment {
+    private final Map<String, List<SolrInputDocument>> documents = Maps.newLinkedHashMap();
+    private final CoalescedDeletes deletes;
+
+    private Segment(Map<String, Integer> lastAdded) {
+      deletes = new CoalescedDeletes(lastAdded);
+    }
+
+    /**
+     * @return the documents of each event in the segment, in event order.
+     */
+    Collection<Entry<String, List<SolrInputDocument>>> getDocumentsByPath() {
+      return documents.entrySet();
+    }
+
+    List<SolrInputDocument> getDocuments() {
+      List<SolrInputDocument> all = Lists.newArrayList();
+      for (List<SolrInputDocument> l : documents.values()) {
+        all.addAll(l);
+      }
+      return all;
+    }
+
+    CoalescedDeletes getDeletes() {
+      return deletes;
+    }
+  }
+
+  private Map<String, List<String>> deleteQueries = Maps.newLinkedHashMap();
+  private Map<String, List<SolrInputDocument>> documents = Maps.newLinkedHashMap();
+  private Set<String> paths = Sets.newLinkedHashSet();
+  private SolrServerException failure;
+
+  void addDeleteQueries(String path, Collection<String> queries) {
+    if (queries != null && queries.size() > 0) {
+      List<String> l = deleteQueries.get(path);
+      if (l == null) {
+        l = Lists.newArrayList();
+        deleteQueries.put(path, l);
+        paths.add(path);
+      }
+      l.addAll(queries);
+    }
+  }
+
+  void addDocuments(String path, Collection<SolrInputDocument> docs) {
+    if (docs != null && docs.size() > 0) {
+      List<SolrInputDocument> l = documents.get(path);
+      if (l == null) {
+        l = Lists.newArrayList();
+        documents.put(path, l);
+        paths.add(path);
+      }
+      l.addAll(docs);
+    }
+  }
+
+  /**
+   * Record a failure that must abort the batch, eg the Solr master being
+   * unreachable while a handler was talking to it.
+   *
+   * @param e
+   */
+  void setFailure(SolrServerException e) {
+    if (failure == null) {
+      failure = e;
+    }
+  }
+
+  SolrServerException getFailure() {
+    return failure;
+  }
+
+  /**
+   * Merge the results of a number of shards back into a single batch, in the
+   * order of the paths supplied.
+   *
+   * @param paths
+   *          the event paths in redo log order.
+   * @param shards
+   * @return the merged batch.
+   */
+  static IndexBatch merge(Collection<String> paths, Collection<IndexBatch> shards) {
+    IndexBatch merged = new IndexBatch();
+    for (IndexBatch shard : shards) {
+      if (shard.failure != null) {
+        merged.setFailure(shard.failure);
+      }
+    }
+    for (String path : paths) {
+      for (IndexBatch shard : shards) {
+        merged.addDeleteQueries(path, shard.deleteQueries.get(path));
+        merged.addDocuments(path, shard.documents.get(path));
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * @return the paths of the events that produced deletes or documents, in
+   *         event order.
+   */
+  Collection<String> getPaths() {
+    return paths;
+  }
+
+  /**
+   * @param path
+   * @return the delete queries of the event at the path, never null.
+   */
+  List<String> getDeleteQueries(String path) {
+    List<String> l = deleteQueries.get(path);
+    return l == null ? Collections.<String> emptyList() : l;
+  }
+
+  /**
+   * @param path
+   * @return the documents of the event at the path, never null.
+   */
+  List<SolrInputDocument> getDocuments(String path) {
+    List<SolrInputDocument> l = documents.get(path);
+    return l == null ? Collections.<SolrInputDocument> emptyList() : l;
+  }
+
+  /**
+   * Split the batch into segments that keep the effect of applying the events
+   * one after the other. An id delete never ends a segment: it is either
+   * dropped because the id is added again later, or nothing later in the
+   * batch adds that id. So only a delete query followed by documents does,
+   * which is rare since most indexing handlers delete by id.
+   *
+   * @return the segments in event order.
+   */
+  List<Segment> getSegments() {
+    // the position of the last event adding each id, an id delete is only
+    // redundant if it comes before that.
+    Map<String, Integer> lastAdded = Maps.newHashMap();
+    int position = 0;
+    for (String path : paths) {
+      for (SolrInputDocument doc : getDocuments(path)) {
+        Object id = doc.getFieldValue("id");
+        if (id != null) {
+          lastAdded.put(String.valueOf(id), position);
+        }
+      }
+      position++;
+    }
+    List<Segment> segments = Lists.newArrayList();
+    Segment segment = new Segment(lastAdded);
+    position = 0;
+    for (String path : paths) {
+      segment.deletes.add(getDeleteQueries(path), position++);
+      List<SolrInputDocument> docs = documents.get(path);
+      if (docs != null) {
+        if (segment.deletes.getQueries().size() > 0) {
+          segments.add(segment);
+          segment = new Segment(lastAdded);
+        }
+        segment.documents.put(path, docs);
+      }
+    }
+    segments.add(segment);
+    return segments;
+  }
+
+  /**
+   * @return all delete queries in event order.
+   */
+  List<String> getDeleteQueries() {
+    List<String> all = Lists.newArrayList();
+    for (List<String> l : deleteQueries.values()) {
+      all.addAll(l);
+    }
+    return all;
+  }
+
+  /**
+   * @return the documents for each event path.
+   */
+  Collection<Entry<String, List<SolrInputDocument>>> getDocumentsByPath() {
+    return documents.entrySet();
+  }
+
+  boolean isEmpty() {
+    return paths.isEmpty();
+  }
+}
@@ -18,6 +18,14 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.solr.client.solrj.SolrServer;
@@ -42,9 +50,21 @@ import com.google.common.collect.Sets;
 
 public class QueueManager implements Runnable {
 
-	private static final String END = "--end--";
   private static final String UTF8 = "UTF8";
 
+  /**
+   * Orders redo log segments by the timestamp they are named with, falling back
+   * to last modified for anything else. Memory mapped segments do not reliably
+   * update their last modified time as they are written.
+   */
+  private static final Comparator<File> SEGMENT_ORDER = new Comparator<File>() {
+    public int compare(File o1, File o2) {
+      long s1 = segmentId(o1);
+      long s2 = segmentId(o2);
+      return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+    }
+  };
+
 	private static final Logger LOGGER = LoggerFactory
 			.getLogger(QueueManager.class);
 	private File logDirectory;
@@ -55,16 +75,23 @@ public class QueueManager implements Runnable {
 	private long batchStart;
 	private boolean nearRealTime;
 	private long nread;
-	private long nwrite;
-	private BufferedReader eventReader;
+	private AtomicLong nwrite = new AtomicLong();
+	private RedoLogReader eventReader;
 	private File currentInFile;
 	private Object waitingForFileLock = new Object();
 	private boolean running = false;
 	private int lineNo;
-	private File currentFile;
-	private FileWriter eventWriter;
+	private volatile RedoLogWriter eventWriter;
 	protected int batchedIndexSize;
 	protected long batchDelay;
+	protected int workers;
+
+	private volatile ExecutorService workerPool;
+
+	private AtomicLong deleteQueryCount = new AtomicLong();
+	private AtomicLong redundantDeleteCount = new AtomicLong();
+	private AtomicLong updateRequestCount = new AtomicLong();
+	private AtomicLong roundTripsSaved = new AtomicLong();
 
 	private Thread queueDispatcher;
 
@@ -77,6 +104,19 @@ public class QueueManager implements Runnable {
 	public QueueManager(QueueManagerDriver queueManagerDriver,
 			String queueHome, String queueName, boolean nearRealTime,
 			int batchedIndexSize, long batchDelay) throws IOException {
+		this(queueManagerDriver, queueHome, queueName, nearRealTime,
+				batchedIndexSize, batchDelay, 1);
+	}
+
+	/**
+	 * @param workers
+	 *            the number of threads building documents for each batch. With
+	 *            1 the documents are built on the dispatcher thread.
+	 */
+	public QueueManager(QueueManagerDriver queueManagerDriver,
+			String queueHome, String queueName, boolean nearRealTime,
+			int batchedIndexSize, long batchDelay, int workers)
+			throws IOException {
 		if (queueName == null || queueName.equals("")) {
 			this.queueName = "";
 		} else {
@@ -93,6 +133,7 @@ public class QueueManager implements Runnable {
 		this.nearRealTime = nearRealTime;
 		this.batchDelay = batchDelay;
 		this.batchedIndexSize = batchedIndexSize;
+		this.workers = Math.max(1, workers);
 		this.queueManagerDriver = queueManagerDriver;
 		loadPosition();
 		running = false;
@@ -101,6 +142,20 @@ public class QueueManager implements Runnable {
 	public synchronized void start() {
 		if (!running) {
 			running = true;
+			if (workers > 1) {
+				final String poolName = "IndexQueueWorker" + queueName + "-";
+				workerPool = Executors.newFixedThreadPool(workers,
+						new ThreadFactory() {
+							private AtomicInteger n = new AtomicInteger();
+
+							public Thread newThread(Runnable r) {
+								Thread t = new Thread(r, poolName
+										+ n.incrementAndGet());
+								t.setDaemon(true);
+								return t;
+							}
+						});
+			}
 			queueDispatcher = new Thread(this);
 			queueDispatcher.setName("IndexQueueManager" + queueName);
 			queueDispatcher.start();
@@ -114,6 +169,10 @@ public class QueueManager implements Runnable {
 			closeWriter();
 			running = false;
 			notifyReader();
+			if (workerPool != null) {
+				workerPool.shutdown();
+				workerPool = null;
+			}
 		}
 
 	}
@@ -135,15 +194,10 @@ public class QueueManager implements Runnable {
 		boolean notify = false;
 		synchronized (eventWriterSync) {
 			if (eventWriter != null) {
-        if (currentFile != null) {
-				  LOGGER.debug("Writer closing {} ", currentFile.getName());
-        }
-				nwrite++;
-				eventWriter.append(END);
-				eventWriter.flush();
+				LOGGER.debug("Writer closing {} ", eventWriter.getCurrentSegment());
+				nwrite.incrementAndGet();
 				eventWriter.close();
 				eventWriter = null;
-				currentFile = null;
 				notify = true;
 			}
 		}
@@ -152,42 +206,51 @@ public class QueueManager implements Runnable {
 		}
 	}
 
+	/**
+	 * Save an event to the redo log. The event is encoded before any lock is
+	 * taken, appended to the shared segment and then committed along with any
+	 * other events appended concurrently by a single flush.
+	 * 
+	 * @param event
+	 * @throws IOException
+	 */
 	public void saveEvent(Event event) throws IOException {
-		synchronized (eventWriterSync) {
-			LOGGER.debug("Save Event {} ", event);
-			if (currentFile != null && currentFile.length() > 1024 * 1024) {
-				LOGGER.info("Closed Event Redo Log {} ", currentFile);
-				nwrite++;
-				eventWriter.append(END);
-				eventWriter.close();
-				eventWriter = null;
-				currentFile = null;
-			}
-			if (currentFile == null) {
-				currentFile = new File(logDirectory, String.valueOf(System
-						.currentTimeMillis()));
-			}
-			if (eventWriter == null) {
-				eventWriter = new FileWriter(currentFile);
-				LOGGER.info("Opened Event Redo Log {} ", currentFile);
-			}
-			String[] properties = event.getPropertyNames();
-			String[] op = new String[properties.length * 2 + 1];
-			op[0] = URLEncoder.encode(event.getTopic(), UTF8);
-			int i = 1;
-			for (String p : properties) {
-				op[i] = URLEncoder.encode(p, UTF8);
-				i++;
-				op[i] = URLEncoder.encode(String.valueOf(event.getProperty(p)), UTF8);
-				i++;
-			}
-			eventWriter.append(StringUtils.join(op, ',')).append('\n');
-			nwrite++;
-			eventWriter.flush();
+		LOGGER.debug("Save Event {} ", event);
+		byte[] record = RedoLogWriter.encode(event);
+		RedoLogWriter writer = null;
+		long sequence = -1;
+		while (sequence < 0) {
+			writer = getWriter();
+			// -1 means the writer was closed under us, open another.
+			sequence = writer.append(record);
 		}
+		nwrite.incrementAndGet();
+		writer.commit(sequence);
 		notifyReader();
 	}
 
+	private RedoLogWriter getWriter() {
+		RedoLogWriter writer = eventWriter;
+		if (writer == null) {
+			synchronized (eventWriterSync) {
+				writer = eventWriter;
+				if (writer == null) {
+					writer = new RedoLogWriter(logDirectory);
+					eventWriter = writer;
+				}
+			}
+		}
+		return writer;
+	}
+
+	private static long segmentId(File f) {
+		try {
+			return Long.parseLong(f.getName());
+		} catch (NumberFormatException e) {
+			return f.lastModified();
+		}
+	}
+
 
 	private void fireCommitEvent(String topic) {
 		Dictionary<String, Object> props = new Hashtable<String, Object>();
@@ -201,7 +264,6 @@ public class QueueManager implements Runnable {
 	private void batchedEventRun() {
 		int backoff = 0;
 		while (running) {
-			RepositorySession repositorySession = null;
 			try {
 				begin();
 				Event loadEvent = null;
@@ -263,89 +325,21 @@ public class QueueManager implements Runnable {
 						.getUpdateServer();
 				try {
 					boolean needsCommit = false;
-					for (Entry<String, Event> ev : events.entrySet()) {
-						Event event = ev.getValue();
-						String topic = event.getTopic();
-						Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
-								.getTopicHandler(topic);
-						if (contentIndexHandlers != null) {
-							for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
-								/**
-								 * getDeleteQueries and getDocuments must be
-								 * called for all registered indexing handlers.
-								 * There is the chance that updating a document
-								 * will cause another document to be deleted and
-								 * this is the only way the indexing handler has
-								 * to interact in that. e.g. sakai:excludeSearch
-								 * gets set to true; that doc needs to be
-								 * deleted.
-								 */
-								String path = "undefined";
-								Collection<SolrInputDocument> docs = null;
-								try {
-									path = (String) event.getProperty("path");
-									LOGGER.debug(
-											"Got Handler {} for event {} {}",
-											new Object[] { contentIndexHandler,
-													event, path });
-									if ( repositorySession == null ) {
-										repositorySession = getRepositorySession();
-									}
-									Collection<String> deleteQueries = contentIndexHandler
-									.getDeleteQueries(
-											repositorySession, event); 
-									if ( deleteQueries != null ) {
-										for (String deleteQuery : deleteQueries ) {
-											if (service != null) {
-												LOGGER.debug(
-														"Added delete Query {} ",
-														deleteQuery);
-												try {
-													service.deleteByQuery(deleteQuery);
-													needsCommit = true;
-												} catch (SolrServerException e) {
-													LOGGER.info(
-															" Failed to delete {}  cause :{}",
-															deleteQuery,
-															e.getMessage());
-												}
-											}
-										}
-									}
-									docs = contentIndexHandler.getDocuments(
-											repositorySession, event);
-
-									if (service != null && docs != null && docs.size() > 0) {
-                    LOGGER.debug("Adding Docs {} ",
-                        docs);
-                    service.add(docs);
-                    needsCommit = true;
-									}
-								} catch (Exception e) {
-									 if ( e instanceof SolrServerException && e.getCause() instanceof ConnectException ) {
-										throw (SolrServerException)e;
-								     }
-									 LOGGER.error(
-											"{} Failed to process event {}, {} cause follows, event ignored for "
-													+ "this processor, please fix issue to remove this message (dont delete "
-													+ "this log message from the code) ",
-											new Object[] { contentIndexHandler,
-													event, path });
-									LOGGER.error(e.getMessage(), e);
-									if (docs != null) {
-										for (SolrInputDocument d : docs) {
-											LOGGER.error("Failed Doc {} ", d);
-										}
-									}
-								}
-							}
+					if (events.size() > 0) {
+						IndexBatch batch = buildBatch(events);
+						if (batch.getFailure() != null) {
+							throw batch.getFailure();
+						}
+						if (service != null) {
+							needsCommit = applyBatch(service, batch);
 						}
 					}
 					if (needsCommit) {
 						LOGGER.info(
-								"Processed {} events in a batch, max {}, TTL {}, queue at {}:{}  ",
+								"Processed {} events in a batch, max {}, TTL {}, queue at {}:{}, round trips saved {}  ",
 								new Object[] { events.size(), batchedIndexSize,
-										getBatchTTL(), currentFile, lineNo});
+										getBatchTTL(), currentInFile, lineNo,
+										roundTripsSaved.get() });
 						if (nearRealTime) {
 							UpdateRequest updateRequest = new UpdateRequest();
 							updateRequest.setAction(
@@ -409,17 +403,321 @@ public class QueueManager implements Runnable {
 				} else {
 					LOGGER.debug("Closing Down Indexer Event Queue");
 				}
-			} finally {
-				try {
-					if ( repositorySession != null ) {
-						repositorySession.logout();
+			}
+		}
+		LOGGER.info("QueueManager {} shutting down ",queueName);
+	}
+
+	/**
+	 * Run the indexing handlers over a batch of events. With more than one
+	 * worker the events are sharded by the hash of their path, so all the work
+	 * for a path is done by one worker, and the shards are processed in
+	 * parallel, each with its own repository session.
+	 * 
+	 * @param events
+	 *            the events keyed by path in redo log order.
+	 * @return the merged results in redo log order.
+	 * @throws InterruptedException
+	 */
+	private IndexBatch buildBatch(Map<String, Event> events)
+			throws InterruptedException {
+		ExecutorService pool = workerPool;
+		if (pool == null || events.size() < 2) {
+			return processShard(events.values());
+		}
+		List<List<Event>> shards = Lists.newArrayListWithCapacity(workers);
+		for (int i = 0; i < workers; i++) {
+			shards.add(Lists.<Event> newArrayList());
+		}
+		for (Entry<String, Event> e : events.entrySet()) {
+			shards.get((e.getKey().hashCode() & Integer.MAX_VALUE) % workers)
+					.add(e.getValue());
+		}
+		List<Future<IndexBatch>> futures = Lists.newArrayList();
+		for (final List<Event> shard : shards) {
+			if (shard.size() > 0) {
+				futures.add(pool.submit(new Callable<IndexBatch>() {
+					public IndexBatch call() throws Exception {
+						return processShard(shard);
 					}
-				} catch (Exception e) {
-					LOGGER.warn(e.getMessage(), e);
+				}));
+			}
+		}
+		List<IndexBatch> results = Lists.newArrayList();
+		for (Future<IndexBatch> f : futures) {
+			try {
+				results.add(f.get());
+			} catch (ExecutionException e) {
+				// processShard handles its own exceptions, so this is unexpected
+				// and the batch should be retried.
+				throw new IllegalStateException(e.getCause().getMessage(),
+						e.getCause());
+			}
+		}
+		return IndexBatch.merge(events.keySet(), results);
+	}
+
+	/**
+	 * Call every registered indexing handler for each event in the shard.
+	 * 
+	 * @param events
+	 * @return the delete queries and documents for the events.
+	 */
+	private IndexBatch processShard(Collection<Event> events) {
+		IndexBatch batch = new IndexBatch();
+		RepositorySession repositorySession = null;
+		try {
+			for (Event event : events) {
+				String topic = event.getTopic();
+				Collection<IndexingHandler> contentIndexHandlers = queueManagerDriver
+						.getTopicHandler(topic);
+				if (contentIndexHandlers != null) {
+					for (IndexingHandler contentIndexHandler : contentIndexHandlers) {
+						/**
+						 * getDeleteQueries and getDocuments must be called for
+						 * all registered indexing handlers. There is the chance
+						 * that updating a document will cause another document
+						 * to be deleted and this is the only way the indexing
+						 * handler has to interact in that. e.g.
+						 * sakai:excludeSearch gets set to true; that doc needs
+						 * to be deleted.
+						 */
+						String path = "undefined";
+						Collection<SolrInputDocument> docs = null;
+						try {
+							path = (String) event.getProperty("path");
+							LOGGER.debug("Got Handler {} for event {} {}",
+									new Object[] { contentIndexHandler, event,
+											path });
+							if (repositorySession == null) {
+								repositorySession = getRepositorySession();
+							}
+							Collection<String> deleteQueries = contentIndexHandler
+									.getDeleteQueries(repositorySession, event);
+							docs = contentIndexHandler.getDocuments(
+									repositorySession, event);
+							batch.addDeleteQueries(path, deleteQueries);
+							batch.addDocuments(path, docs);
+						} catch (Exception e) {
+							if (e instanceof SolrServerException
+									&& e.getCause() instanceof ConnectException) {
+								batch.setFailure((SolrServerException) e);
+								return batch;
+							}
+							LOGGER.error(
+									"{} Failed to process event {}, {} cause follows, event ignored for "
+											+ "this processor, please fix issue to remove this message (dont delete "
+											+ "this log message from the code) ",
+									new Object[] { contentIndexHandler, event,
+											path });
+							LOGGER.error(e.getMessage(), e);
+							if (docs != null) {
+								for (SolrInputDocument d : docs) {
+									LOGGER.error("Failed Doc {} ", d);
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			try {
+				if (repositorySession != null) {
+					repositorySession.logout();
 				}
+			} catch (Exception e) {
+				LOGGER.warn(e.getMessage(), e);
 			}
 		}
-		LOGGER.info("QueueManager {} shutting down ",queueName);
+		return batch;
+	}
+
+	/**
+	 * Send a batch to Solr, keeping the outcome of applying its events one
+	 * after the other. The batch is split into segments, see
+	 * {@link IndexBatch#getSegments()}, normally just one, and each segment
+	 * goes out as a single update request holding its documents, its id
+	 * deletes and its delete queries ORed together. If Solr rejects a segment
+	 * for a reason other than being unavailable, its documents are added event
+	 * by event and its deletes sent one by one, so one bad document only loses
+	 * the event it came from, as it did before batching.
+	 * 
+	 * @param service
+	 * @param batch
+	 * @return true if the index was modified and needs a commit.
+	 * @throws SolrServerException
+	 *             if Solr could not be reached and the batch must be retried.
+	 * @throws IOException
+	 */
+	private boolean applyBatch(SolrServer service, IndexBatch batch)
+			throws SolrServerException, IOException {
+		boolean needsCommit = false;
+		int requests = 0;
+		int redundant = 0;
+		for (IndexBatch.Segment segment : batch.getSegments()) {
+			CoalescedDeletes deletes = segment.getDeletes();
+			redundant += deletes.getRedundant();
+			List<SolrInputDocument> docs = segment.getDocuments();
+			List<String> ids = deletes.getIds();
+			List<String> combined = deletes.getCombinedQueries();
+			if (docs.isEmpty() && ids.isEmpty() && combined.isEmpty()) {
+				continue;
+			}
+			LOGGER.debug("Adding Docs {} deleting ids {} and queries {} ",
+					new Object[] { docs, ids, combined });
+			// the adds are applied before the deletes.
+			UpdateRequest updateRequest = new UpdateRequest();
+			if (docs.size() > 0) {
+				updateRequest.add(docs);
+			}
+			if (ids.size() > 0) {
+				updateRequest.deleteById(ids);
+			}
+			for (String q : combined) {
+				updateRequest.deleteByQuery(q);
+			}
+			requests++;
+			try {
+				updateRequest.process(service);
+				needsCommit = true;
+			} catch (SolrServerException e) {
+				if (e.getCause() instanceof ConnectException
+						|| String.valueOf(e.getMessage()).contains("try again")) {
+					throw e;
+				}
+				LOGGER.warn("Batch update of {} documents failed, updating per event: {}",
+						docs.size(), e.getMessage());
+				requests += applyPerEvent(service, segment);
+				needsCommit = true;
+			} catch (SolrException e) {
+				LOGGER.warn("Batch update of {} documents failed, updating per event: {}",
+						docs.size(), e.getMessage());
+				requests += applyPerEvent(service, segment);
+				needsCommit = true;
+			}
+		}
+		// one round trip per delete query and one add per event with documents
+		// is what sending every operation on its own would cost.
+		int deleteQueries = batch.getDeleteQueries().size();
+		long unbatched = deleteQueries + batch.getDocumentsByPath().size();
+		deleteQueryCount.addAndGet(deleteQueries);
+		redundantDeleteCount.addAndGet(redundant);
+		updateRequestCount.addAndGet(requests);
+		roundTripsSaved.addAndGet(Math.max(0, unbatched - requests));
+		return needsCommit;
+	}
+
+	/**
+	 * Apply a segment that Solr rejected one operation at a time, in the order
+	 * the combined request would have applied them.
+	 */
+	private int applyPerEvent(SolrServer service, IndexBatch.Segment segment)
+			throws SolrServerException, IOException {
+		int requests = addPerEvent(service, segment);
+		requests += deletePerId(service, segment.getDeletes().getIds());
+		requests += deletePerQuery(service, segment.getDeletes().getQueries());
+		return requests;
+	}
+
+	private int deletePerQuery(SolrServer service, List<String> queries)
+			throws SolrServerException, IOException {
+		for (String deleteQuery : queries) {
+			try {
+				service.deleteByQuery(deleteQuery);
+			} catch (SolrServerException e) {
+				if (e.getCause() instanceof ConnectException) {
+					throw e;
+				}
+				LOGGER.info(" Failed to delete {}  cause :{}", deleteQuery,
+						e.getMessage());
+			} catch (SolrException e) {
+				LOGGER.info(" Failed to delete {}  cause :{}", deleteQuery,
+						e.getMessage());
+			}
+		}
+		return queries.size();
+	}
+
+	private int deletePerId(SolrServer service, List<String> ids)
+			throws SolrServerException, IOException {
+		if (ids.size() > 0) {
+			try {
+				service.deleteById(ids);
+			} catch (SolrServerException e) {
+				if (e.getCause() instanceof ConnectException) {
+					throw e;
+				}
+				LOGGER.info(" Failed to delete {}  cause :{}", ids,
+						e.getMessage());
+			} catch (SolrException e) {
+				LOGGER.info(" Failed to delete {}  cause :{}", ids,
+						e.getMessage());
+			}
+			return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the number of delete queries the indexing handlers produced.
+	 */
+	public long getDeleteQueryCount() {
+		return deleteQueryCount.get();
+	}
+
+	/**
+	 * @return the number of deletes dropped because they were repeated in a
+	 *         batch or the batch added the same document again.
+	 */
+	public long getRedundantDeleteCount() {
+		return redundantDeleteCount.get();
+	}
+
+	/**
+	 * @return the number of update requests sent to Solr, excluding commits.
+	 */
+	public long getUpdateRequestCount() {
+		return updateRequestCount.get();
+	}
+
+	/**
+	 * @return the number of round trips to Solr saved by coalescing deletes and
+	 *         adds, compared with sending every delete query and every event's
+	 *         documents on their own.
+	 */
+	public long getRoundTripsSaved() {
+		return roundTripsSaved.get();
+	}
+
+	private int addPerEvent(SolrServer service, IndexBatch.Segment segment)
+			throws SolrServerException, IOException {
+		int requests = 0;
+		for (Entry<String, List<SolrInputDocument>> e : segment
+				.getDocumentsByPath()) {
+			requests++;
+			try {
+				service.add(e.getValue());
+			} catch (SolrServerException ex) {
+				if (ex.getCause() instanceof ConnectException) {
+					throw ex;
+				}
+				logFailedDocs(e.getKey(), e.getValue(), ex);
+			} catch (SolrException ex) {
+				logFailedDocs(e.getKey(), e.getValue(), ex);
+			}
+		}
+		return requests;
+	}
+
+	private void logFailedDocs(String path, List<SolrInputDocument> docs,
+			Exception e) {
+		LOGGER.error(
+				"Failed to index event {}, cause follows, event ignored, please fix issue to remove this message (dont delete "
+						+ "this log message from the code) ", path);
+		LOGGER.error(e.getMessage(), e);
+		for (SolrInputDocument d : docs) {
+			LOGGER.error("Failed Doc {} ", d);
+		}
 	}
 
 	private RepositorySession getRepositorySession()
@@ -487,7 +785,7 @@ public class QueueManager implements Runnable {
 			eventReader = null;
 		}
 		loadPosition(); // reopen the event reader to reset its position.
-		LOGGER.info("Rolled back queue to {}:{} ",currentFile,lineNo);
+		LOGGER.info("Rolled back queue to {}:{} ",currentInFile,lineNo);
 	}
 
 	private void savePosition() throws IOException {
@@ -540,40 +838,28 @@ public class QueueManager implements Runnable {
 			}
 		}
 		currentInFile = null;
-		currentFile = null;
 		lineNo = 0;
 	}
 
 	private Event readEvent() throws IOException {
 		if (getBatchTTL() > 0) {
-			String line = nextEvent();
-			if (line != null) {
-				String[] parts = StringUtils.split(line, ',');
-				if (parts.length > 0) {
-					Dictionary<String, Object> dict = new Hashtable<String, Object>();
-					for (int i = 1; i < parts.length; i += 2) {
-						dict.put(URLDecoder.decode(parts[i], UTF8),
-								URLDecoder.decode(parts[i + 1], UTF8));
-					}
-					return new Event(URLDecoder.decode(parts[0], UTF8), dict);
-				}
-			}
+			return nextEvent();
 		}
 		return null;
 	}
 
-	private String nextEvent() throws IOException {
-		String line = null;
+	private Event nextEvent() throws IOException {
+		Event line = null;
 		int possibleEnd = 0;
 		if (checkReaderOpen()) {
-			while (line == null || END.equals(line)) {
-				if (END.equals(line)) {
+			while (line == null || RedoLogReader.END == line) {
+				if (RedoLogReader.END == line) {
 					LOGGER.debug("At End of file {}", currentInFile);
 					if (!nextReader()) {
 						return null;
 					}
 				}
-				line = eventReader.readLine();
+				line = eventReader.next();
 
 				if (line != null) {
 					possibleEnd = 0;
@@ -584,7 +870,7 @@ public class QueueManager implements Runnable {
 								nread);
 					}
 				} else {
-					// if we get null from a buffered reader that means end of
+					// if we get null from the reader that means end of
 					// file, but there was
 					// no end statement
 					// so we need to check if this really is the end of file
@@ -617,12 +903,10 @@ public class QueueManager implements Runnable {
 							File nextFile = null;
 
 							for (File f : files) {
-								if (f.lastModified() > currentInFile
-										.lastModified()) {
+								if (SEGMENT_ORDER.compare(f, currentInFile) > 0) {
 									if (nextFile == null) {
 										nextFile = f;
-									} else if (f.lastModified() < nextFile
-											.lastModified()) {
+									} else if (SEGMENT_ORDER.compare(f, nextFile) < 0) {
 										nextFile = f;
 									}
 								}
@@ -694,10 +978,8 @@ public class QueueManager implements Runnable {
 			if (eventReader != null) {
 				eventReader.close();
 			}
-			eventReader = new BufferedReader(new FileReader(file));
-			for (int i = 0; i < line; i++) {
-				eventReader.readLine();
-			}
+			eventReader = RedoLogReader.open(file);
+			eventReader.skip(line);
 		}
 	}
 
@@ -709,12 +991,7 @@ public class QueueManager implements Runnable {
 		    throw new IOException("listFiles returned null. See log for details.");
 		  }
 			List<File> files = Lists.newArrayList(logDirFiles);
-			Collections.sort(files, new Comparator<File>() {
-
-				public int compare(File o1, File o2) {
-					return (int) (o1.lastModified() - o2.lastModified());
-				}
-			});
+			Collections.sort(files, SEGMENT_ORDER);
 			if (deleteQueue != null) {
 				files.removeAll(deleteQueue);
 			}
@@ -738,7 +1015,7 @@ public class QueueManager implements Runnable {
 		}
 		if (eventReader == null) {
 			LOGGER.info("Opening New Reader {} ", currentInFile);
-			eventReader = new BufferedReader(new FileReader(currentInFile));
+			eventReader = RedoLogReader.open(currentInFile);
 			lineNo = 0;
 		}
 		return true;
@@ -753,17 +1030,17 @@ public class QueueManager implements Runnable {
         try {
           LOGGER.debug(
               "Waiting for more data read:{} written:{} ",
-              nread, nwrite);
-          if (nread > nwrite) {
+              nread, nwrite.get());
+          if (nread > nwrite.get()) {
             // reset counters if were catching up
-            nread = nwrite;
+            nread = nwrite.get();
             // +1 because an event was written which makes
             // nwrite nread+1 when there are
             // none left
-          } else if (nread + 1 < nwrite) {
+          } else if (nread + 1 < nwrite.get()) {
             LOGGER.debug(
                 "Possible event loss, waiting to read when there are more events written read:{} written:{}",
-                nread, nwrite);
+                nread, nwrite.get());
           }
           long wait = getBatchTTL();
           if (wait > 0) {
@@ -0,0 +1,88 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.osgi.service.event.Event;
+
+/**
+ * Reads events back from a redo log segment. Segments written by
+ * {@link RedoLogWriter} are read by {@link BinaryRedoLogReader}, segments left
+ * over from the old URL encoded text format are read by
+ * {@link TextRedoLogReader} so that existing queues drain after an upgrade.
+ */
+abstract class RedoLogReader {
+
+  /**
+   * Returned by {@link #next()} when the end of the segment has been reached.
+   */
+  static final Event END = new Event("org/sakaiproject/nakamura/solr/REDO_LOG_END",
+      (Dictionary<String, Object>) new Hashtable<String, Object>());
+
+  /**
+   * @return the next event, {@link #END} if the segment has been closed by the
+   *         writer, or null if there are no more events available yet.
+   * @throws IOException
+   */
+  abstract Event next() throws IOException;
+
+  abstract void close() throws IOException;
+
+  /**
+   * Skip over a number of records, used to restore a saved position.
+   *
+   * @param records
+   * @throws IOException
+   */
+  void skip(int records) throws IOException {
+    for (int i = 0; i < records; i++) {
+      if (next() == null) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Open a reader on a segment, detecting the format. A segment that is empty
+   * or starts with a zero byte is one the writer is still initialising, and is
+   * treated as binary since only the binary format is written now.
+   *
+   * @param segment
+   * @return a reader positioned at the start of the segment.
+   * @throws IOException
+   */
+  static RedoLogReader open(File segment) throws IOException {
+    InputStream in = new FileInputStream(segment);
+    int first;
+    try {
+      first = in.read();
+    } finally {
+      in.close();
+    }
+    if (first <= 0 || first == (RedoLogWriter.MAGIC >>> 24)) {
+      return new BinaryRedoLogReader(segment);
+    }
+    return new TextRedoLogReader(segment);
+  }
+}
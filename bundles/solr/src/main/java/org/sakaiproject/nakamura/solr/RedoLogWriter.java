@@ -0,0 +1,277 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the indexing redo log as length prefixed binary records into
+ * pre-allocated, memory mapped segment files.
+ * <p>
+ * Each segment starts with {@link #MAGIC} and {@link #VERSION}, followed by
+ * records of the form <code>int length, byte[length] payload</code>. A length
+ * of 0 marks space that has not been written yet and a length of
+ * {@link #END_RECORD} marks the end of the segment. The payload is written
+ * before its length so a reader never sees a partial record.
+ * <p>
+ * Appends only hold the append lock long enough to copy the record into the
+ * mapped buffer. Durability is provided by group commit: the first thread to
+ * call {@link #commit(long)} becomes the flusher and forces everything appended
+ * so far, the other callers wait for that flush rather than each forcing the
+ * segment themselves.
+ */
+class RedoLogWriter {
+
+  /**
+   * Segment header, "NKRL".
+   */
+  static final int MAGIC = 0x4e4b524c;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 8;
+  static final int END_RECORD = -1;
+  /**
+   * Default segment size, the same size the text redo log was rolled over at.
+   */
+  static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RedoLogWriter.class);
+
+  private final File logDirectory;
+  private final int segmentSize;
+
+  private final Object appendLock = new Object();
+  private final Object flushLock = new Object();
+
+  // guarded by appendLock
+  private File segment;
+  private RandomAccessFile segmentFile;
+  private MappedByteBuffer buffer;
+  private long lastSegmentId;
+  private long appended;
+  private boolean closed;
+
+  // guarded by flushLock
+  private long flushed;
+  private boolean flushing;
+  private long groupCommits;
+
+  RedoLogWriter(File logDirectory) {
+    this(logDirectory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  RedoLogWriter(File logDirectory, int segmentSize) {
+    this.logDirectory = logDirectory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Encode an event into a record payload. Property values are stored as
+   * strings, which is what the text redo log did.
+   *
+   * @param event
+   * @return the payload of the record.
+   * @throws IOException
+   */
+  static byte[] encode(Event event) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+    DataOutputStream out = new DataOutputStream(baos);
+    String[] properties = event.getPropertyNames();
+    writeString(out, event.getTopic());
+    out.writeInt(properties.length);
+    for (String p : properties) {
+      writeString(out, p);
+      writeString(out, String.valueOf(event.getProperty(p)));
+    }
+    out.flush();
+    return baos.toByteArray();
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes("UTF-8");
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  /**
+   * Append a record to the log. The record is visible to readers of the log
+   * once this method returns, but it is only durable once {@link #commit(long)}
+   * has returned for the sequence number returned here.
+   *
+   * @param record
+   *          the encoded record.
+   * @return the sequence number of the record, or -1 if the writer has been
+   *         closed.
+   * @throws IOException
+   */
+  long append(byte[] record) throws IOException {
+    synchronized (appendLock) {
+      if (closed) {
+        return -1;
+      }
+      // leave space for the record length and for the end record.
+      int required = record.length + 8;
+      if (buffer == null || buffer.remaining() < required) {
+        nextSegment(required);
+      }
+      int position = buffer.position();
+      buffer.position(position + 4);
+      buffer.put(record);
+      buffer.putInt(position, record.length);
+      appended++;
+      return appended;
+    }
+  }
+
+  /**
+   * Make all records up to and including sequence durable. If another thread is
+   * already flushing, wait for it, otherwise become the flusher for every
+   * record appended so far.
+   *
+   * @param sequence
+   * @throws IOException
+   */
+  void commit(long sequence) throws IOException {
+    synchronized (flushLock) {
+      while (flushed < sequence) {
+        if (!flushing) {
+          flushing = true;
+          break;
+        }
+        try {
+          flushLock.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting for redo log flush");
+        }
+      }
+      if (flushed >= sequence) {
+        return;
+      }
+    }
+    long target = 0;
+    try {
+      MappedByteBuffer toForce;
+      synchronized (appendLock) {
+        target = appended;
+        toForce = buffer;
+      }
+      if (toForce != null) {
+        // segments that were rolled over have already been forced.
+        toForce.force();
+      }
+    } finally {
+      synchronized (flushLock) {
+        if (target > flushed) {
+          flushed = target;
+        }
+        groupCommits++;
+        flushing = false;
+        flushLock.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Close the current segment, marking its end so readers move on to the next
+   * segment. Any further appends return -1.
+   *
+   * @throws IOException
+   */
+  void close() throws IOException {
+    synchronized (appendLock) {
+      if (!closed) {
+        closed = true;
+        closeSegment();
+      }
+    }
+    synchronized (flushLock) {
+      flushed = appended;
+      flushLock.notifyAll();
+    }
+  }
+
+  File getCurrentSegment() {
+    synchronized (appendLock) {
+      return segment;
+    }
+  }
+
+  long getAppended() {
+    synchronized (appendLock) {
+      return appended;
+    }
+  }
+
+  /**
+   * @return the number of flushes that have been performed, each one of which
+   *         may have covered several appends.
+   */
+  long getGroupCommits() {
+    synchronized (flushLock) {
+      return groupCommits;
+    }
+  }
+
+  private void nextSegment(int required) throws IOException {
+    closeSegment();
+    long segmentId = Math.max(System.currentTimeMillis(), lastSegmentId + 1);
+    File f = new File(logDirectory, String.valueOf(segmentId));
+    while (f.exists()) {
+      segmentId++;
+      f = new File(logDirectory, String.valueOf(segmentId));
+    }
+    lastSegmentId = segmentId;
+    int size = Math.max(segmentSize, required + HEADER_SIZE);
+    segmentFile = new RandomAccessFile(f, "rw");
+    segmentFile.setLength(size);
+    buffer = segmentFile.getChannel().map(MapMode.READ_WRITE, 0, size);
+    buffer.putInt(4, VERSION);
+    buffer.putInt(0, MAGIC);
+    buffer.position(HEADER_SIZE);
+    segment = f;
+    LOGGER.info("Opened Event Redo Log {} ", segment);
+  }
+
+  private void closeSegment() throws IOException {
+    if (buffer != null) {
+      if (buffer.remaining() >= 4) {
+        buffer.putInt(buffer.position(), END_RECORD);
+      }
+      buffer.force();
+      FileChannel channel = segmentFile.getChannel();
+      channel.close();
+      segmentFile.close();
+      LOGGER.info("Closed Event Redo Log {} ", segment);
+      buffer = null;
+      segmentFile = null;
+      segment = null;
+    }
+  }
+}
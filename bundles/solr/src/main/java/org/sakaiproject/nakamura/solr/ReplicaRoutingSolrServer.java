@@ -0,0 +1,536 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.nakamura.util.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A SolrServer that sends each query to one of several replicas.
+ * <p>
+ * A replica is chosen by the fewest outstanding requests, or by the lowest latency
+ * average weighted by its outstanding requests. If the replica has not answered by the
+ * configured percentile of its latency, the query is also sent to the next best
+ * replica and whichever answers first is used, unless every query thread is busy, in
+ * which case the hedge is skipped. A replica that fails is retried
+ * elsewhere, and after several consecutive failures it is ejected until a periodic
+ * ping succeeds. If every replica has been ejected they are all used anyway.
+ * <p>
+ * Only queries are routed. Updates and other requests go to the primary server, or to
+ * a single replica without hedging or retries if there is no primary.
+ */
+class ReplicaRoutingSolrServer extends SolrServer implements ReplicaRoutingSolrServerMBean {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaRoutingSolrServer.class);
+
+  private static final Executor CALLER_RUNS = new Executor() {
+    public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  /**
+   * How a replica is chosen.
+   */
+  enum Strategy {
+    LEAST_OUTSTANDING, EWMA;
+
+    static Strategy parse(String value) {
+      if (value != null && "ewma".equalsIgnoreCase(value.trim())) {
+        return EWMA;
+      }
+      return LEAST_OUTSTANDING;
+    }
+  }
+
+  /**
+   * The weight of the latest sample in the latency average.
+   */
+  private static final double EWMA_ALPHA = 0.2;
+  /**
+   * Below this number of samples the default hedge delay is used rather than a
+   * percentile.
+   */
+  static final int MIN_SAMPLES = 20;
+
+  /**
+   * A replica and what is known about it.
+   */
+  static final class Replica {
+    final String name;
+    final SolrServer server;
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicInteger consecutiveFailures = new AtomicInteger();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final LatencyHistogram histogram = new LatencyHistogram();
+    volatile double ewma = -1;
+    volatile boolean healthy = true;
+
+    Replica(String name, SolrServer server) {
+      this.name = name;
+      this.server = server;
+    }
+
+    void recordSuccess(long ms) {
+      histogram.record(ms);
+      double e = ewma;
+      // racing updates lose a sample, which does not matter for an average.
+      ewma = e < 0 ? ms : e + EWMA_ALPHA * (ms - e);
+      consecutiveFailures.set(0);
+    }
+
+    /**
+     * @return true if this failure ejected the replica.
+     */
+    boolean recordFailure(int ejectAfter) {
+      errors.incrementAndGet();
+      if (consecutiveFailures.incrementAndGet() >= ejectAfter && healthy) {
+        healthy = false;
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public String toString() {
+      return name + " healthy=" + healthy + " outstanding=" + outstanding.get()
+          + " requests=" + requests.get() + " errors=" + errors.get() + " ewma="
+          + Math.round(Math.max(0, ewma)) + "ms p50=" + histogram.getPercentile(50)
+          + "ms p95=" + histogram.getPercentile(95) + "ms p99="
+          + histogram.getPercentile(99) + "ms";
+    }
+  }
+
+  /**
+   * The outcome of sending a query to one replica.
+   */
+  private static final class Attempt {
+    private final Replica replica;
+    private final NamedList<Object> response;
+    private final Exception error;
+
+    private Attempt(Replica replica, NamedList<Object> response, Exception error) {
+      this.replica = replica;
+      this.response = response;
+      this.error = error;
+    }
+  }
+
+  private final Replica[] replicas;
+  private final SolrServer primary;
+  private final Strategy strategy;
+  private final boolean hedge;
+  private final double hedgePercentile;
+  private final long minHedgeDelay;
+  private final long defaultHedgeDelay;
+  private final int ejectAfterFailures;
+  private final ThreadPoolExecutor executor;
+  private final ScheduledExecutorService prober;
+  private final AtomicInteger next = new AtomicInteger();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong hedgedRequests = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong hedgesSkipped = new AtomicLong();
+  private final AtomicLong failovers = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param replicas
+   *          the replicas to send queries to.
+   * @param primary
+   *          the server for requests other than queries, may be null.
+   * @param strategy
+   * @param hedge
+   *          true to send slow queries to a second replica.
+   * @param hedgePercentile
+   *          the percentile of a replica's latency after which a query is hedged.
+   * @param minHedgeDelay
+   *          the shortest time, in ms, to wait before hedging.
+   * @param defaultHedgeDelay
+   *          the time, in ms, to wait before hedging until a replica has enough samples.
+   * @param ejectAfterFailures
+   *          the number of consecutive failures after which a replica is ejected.
+   * @param probeInterval
+   *          the time, in ms, between pings of ejected replicas.
+   * @param maxThreads
+   *          the most queries in flight to replicas at once, beyond this queries are
+   *          sent from the calling thread without hedging.
+   */
+  ReplicaRoutingSolrServer(List<Replica> replicas, SolrServer primary, Strategy strategy,
+      boolean hedge, double hedgePercentile, long minHedgeDelay, long defaultHedgeDelay,
+      int ejectAfterFailures, long probeInterval, int maxThreads) {
+    if (replicas.isEmpty()) {
+      throw new IllegalArgumentException("At least one Solr replica is required");
+    }
+    this.replicas = replicas.toArray(new Replica[replicas.size()]);
+    this.primary = primary;
+    this.strategy = strategy;
+    this.hedge = hedge;
+    this.hedgePercentile = hedgePercentile;
+    this.minHedgeDelay = Math.max(1, minHedgeDelay);
+    this.defaultHedgeDelay = Math.max(this.minHedgeDelay, defaultHedgeDelay);
+    this.ejectAfterFailures = Math.max(1, ejectAfterFailures);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger n = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "solr-replica-query-" + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    executor = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), threadFactory);
+    prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "solr-replica-probe");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    prober.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        probe();
+      }
+    }, probeInterval, probeInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public NamedList<Object> request(SolrRequest request) throws SolrServerException,
+      IOException {
+    if (!(request instanceof QueryRequest)) {
+      if (primary != null) {
+        return primary.request(request);
+      }
+      Replica replica = choose(new ArrayList<Replica>(1));
+      Attempt attempt = attempt(replica, request);
+      if (attempt.error != null) {
+        throw rethrow(attempt.error);
+      }
+      return attempt.response;
+    }
+    requests.incrementAndGet();
+    return route(request);
+  }
+
+  private NamedList<Object> route(final SolrRequest request) throws SolrServerException,
+      IOException {
+    List<Replica> tried = new ArrayList<Replica>(replicas.length);
+    List<Future<Attempt>> futures = new ArrayList<Future<Attempt>>(2);
+    LinkedBlockingQueue<Future<Attempt>> results = new LinkedBlockingQueue<Future<Attempt>>();
+    CompletionService<Attempt> completion = new ExecutorCompletionService<Attempt>(executor,
+        results);
+    // runs attempts that must be made when every query thread is busy in this thread.
+    CompletionService<Attempt> inline = new ExecutorCompletionService<Attempt>(
+        CALLER_RUNS, results);
+    Replica first = choose(tried);
+    futures.add(submit(completion, inline, first, request));
+    int inFlight = 1;
+    boolean hedged = !hedge || replicas.length < 2;
+    Exception lastError = null;
+    try {
+      while (inFlight > 0) {
+        Future<Attempt> done;
+        if (!hedged) {
+          done = completion.poll(hedgeDelay(first), TimeUnit.MILLISECONDS);
+          if (done == null) {
+            hedged = true;
+            Replica second = choose(tried);
+            if (second != null) {
+              try {
+                futures.add(submit(completion, second, request));
+                hedgedRequests.incrementAndGet();
+                inFlight++;
+              } catch (RejectedExecutionException e) {
+                // a hedge is only worth sending if there is a spare thread for it.
+                hedgesSkipped.incrementAndGet();
+              }
+            }
+            continue;
+          }
+        } else {
+          done = completion.take();
+        }
+        inFlight--;
+        Attempt attempt = done.get();
+        if (attempt.error == null) {
+          if (attempt.replica != first) {
+            hedgeWins.incrementAndGet();
+          }
+          return attempt.response;
+        }
+        if (isClientError(attempt.error)) {
+          // the query is bad, it will fail on every replica.
+          throw rethrow(attempt.error);
+        }
+        lastError = attempt.error;
+        if (inFlight == 0) {
+          Replica other = choose(tried);
+          if (other != null) {
+            failovers.incrementAndGet();
+            LOGGER.debug("Query failed on {}, trying {} ", attempt.replica.name, other.name);
+            futures.add(submit(completion, inline, other, request));
+            inFlight++;
+            // a retry is not hedged, the replicas are already in trouble.
+            hedged = true;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SolrServerException("Interrupted waiting for a Solr replica", e);
+    } catch (ExecutionException e) {
+      // attempts catch their own exceptions, so this is unexpected.
+      throw new SolrServerException(e.getCause());
+    } finally {
+      for (Future<Attempt> f : futures) {
+        // don't interrupt, an interrupted request would count against the replica.
+        f.cancel(false);
+      }
+    }
+    failures.incrementAndGet();
+    throw rethrow(lastError);
+  }
+
+  /**
+   * Submit an attempt that has to be made, in this thread if every query thread is busy.
+   */
+  private Future<Attempt> submit(CompletionService<Attempt> completion,
+      CompletionService<Attempt> inline, Replica replica, SolrRequest request) {
+    try {
+      return submit(completion, replica, request);
+    } catch (RejectedExecutionException e) {
+      return submit(inline, replica, request);
+    }
+  }
+
+  private Future<Attempt> submit(CompletionService<Attempt> completion,
+      final Replica replica, final SolrRequest request) {
+    return completion.submit(new Callable<Attempt>() {
+      public Attempt call() {
+        return attempt(replica, request);
+      }
+    });
+  }
+
+  private Attempt attempt(Replica replica, SolrRequest request) {
+    replica.outstanding.incrementAndGet();
+    replica.requests.incrementAndGet();
+    long start = System.currentTimeMillis();
+    try {
+      NamedList<Object> response = replica.server.request(request);
+      replica.recordSuccess(System.currentTimeMillis() - start);
+      return new Attempt(replica, response, null);
+    } catch (Exception e) {
+      if (isClientError(e)) {
+        replica.recordSuccess(System.currentTimeMillis() - start);
+      } else if (replica.recordFailure(ejectAfterFailures)) {
+        LOGGER.warn("Ejected Solr replica {} after {} consecutive failures, last was {} ",
+            new Object[] { replica.name, ejectAfterFailures, e.getMessage() });
+      }
+      return new Attempt(replica, null, e);
+    } finally {
+      replica.outstanding.decrementAndGet();
+    }
+  }
+
+  /**
+   * Choose the best healthy replica that has not been tried, or if there are none the
+   * untried replica with the fewest consecutive failures.
+   *
+   * @param tried
+   *          the replicas already tried, the chosen replica is added.
+   * @return the replica, or null if all have been tried.
+   */
+  Replica choose(List<Replica> tried) {
+    Replica best = null;
+    double bestScore = Double.MAX_VALUE;
+    Replica fallback = null;
+    // start at a different replica each time, so equal scores share the load.
+    int offset = (next.getAndIncrement() & 0x7fffffff) % replicas.length;
+    for (int i = 0; i < replicas.length; i++) {
+      Replica r = replicas[(offset + i) % replicas.length];
+      if (tried.contains(r)) {
+        continue;
+      }
+      if (!r.healthy) {
+        if (fallback == null
+            || r.consecutiveFailures.get() < fallback.consecutiveFailures.get()) {
+          fallback = r;
+        }
+        continue;
+      }
+      double score = r.outstanding.get();
+      if (strategy == Strategy.EWMA) {
+        score = (Math.max(0, r.ewma) + 1) * (score + 1);
+      }
+      if (score < bestScore) {
+        best = r;
+        bestScore = score;
+      }
+    }
+    if (best == null) {
+      best = fallback;
+    }
+    if (best != null) {
+      tried.add(best);
+    }
+    return best;
+  }
+
+  long hedgeDelay(Replica replica) {
+    long delay = defaultHedgeDelay;
+    if (replica.histogram.getCount() >= MIN_SAMPLES) {
+      delay = replica.histogram.getPercentile(hedgePercentile);
+    }
+    return Math.max(minHedgeDelay, delay);
+  }
+
+  /**
+   * Ping the ejected replicas and restore those that answer.
+   */
+  void probe() {
+    for (Replica r : replicas) {
+      if (!r.healthy) {
+        try {
+          r.server.ping();
+          r.consecutiveFailures.set(0);
+          r.healthy = true;
+          LOGGER.info("Solr replica {} is back in service ", r.name);
+        } catch (Exception e) {
+          LOGGER.debug("Solr replica {} is still failing {} ", r.name, e.getMessage());
+        }
+      }
+    }
+  }
+
+  private static boolean isClientError(Exception e) {
+    return (e instanceof SolrException) && ((SolrException) e).code() >= 400
+        && ((SolrException) e).code() < 500;
+  }
+
+  private static SolrServerException rethrow(Exception e) throws IOException {
+    if (e instanceof RuntimeException) {
+      throw (RuntimeException) e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e instanceof SolrServerException) {
+      return (SolrServerException) e;
+    }
+    return new SolrServerException(e);
+  }
+
+  /**
+   * Stop the threads used to hedge queries and probe replicas.
+   */
+  public void shutdown() {
+    prober.shutdownNow();
+    executor.shutdown();
+  }
+
+  Replica[] getReplicas() {
+    return replicas;
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getHedgedRequests() {
+    return hedgedRequests.get();
+  }
+
+  public long getHedgeWins() {
+    return hedgeWins.get();
+  }
+
+  public long getHedgesSkipped() {
+    return hedgesSkipped.get();
+  }
+
+  public long getFailovers() {
+    return failovers.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  public String[] getReplicaStatus() {
+    String[] status = new String[replicas.length];
+    for (int i = 0; i < replicas.length; i++) {
+      status[i] = replicas[i].toString();
+    }
+    return status;
+  }
+
+  public String[] getLatencyHistograms() {
+    String[] histograms = new String[replicas.length];
+    for (int i = 0; i < replicas.length; i++) {
+      histograms[i] = replicas[i].name + " " + replicas[i].histogram;
+    }
+    return histograms;
+  }
+
+  public void reset() {
+    requests.set(0);
+    hedgedRequests.set(0);
+    hedgeWins.set(0);
+    hedgesSkipped.set(0);
+    failovers.set(0);
+    failures.set(0);
+    for (Replica r : replicas) {
+      r.requests.set(0);
+      r.errors.set(0);
+      r.histogram.reset();
+    }
+  }
+}
@@ -0,0 +1,70 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+/**
+ * Statistics of queries routed to Solr replicas.
+ */
+public interface ReplicaRoutingSolrServerMBean {
+
+  /**
+   * @return the number of queries routed.
+   */
+  long getRequests();
+
+  /**
+   * @return the number of queries sent to a second replica because the first was slow.
+   */
+  long getHedgedRequests();
+
+  /**
+   * @return the number of hedged queries answered first by the second replica.
+   */
+  long getHedgeWins();
+
+  /**
+   * @return the number of hedges not sent because every query thread was busy.
+   */
+  long getHedgesSkipped();
+
+  /**
+   * @return the number of times a query was retried on another replica after a failure.
+   */
+  long getFailovers();
+
+  /**
+   * @return the number of queries that failed on every replica tried.
+   */
+  long getFailures();
+
+  /**
+   * @return one line per replica with its health, outstanding requests, latency average
+   *         and percentiles.
+   */
+  String[] getReplicaStatus();
+
+  /**
+   * @return one line per replica with the counts in each latency bucket.
+   */
+  String[] getLatencyHistograms();
+
+  /**
+   * Reset the counters and histograms.
+   */
+  void reset();
+}
@@ -0,0 +1,244 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.List;
+
+import javax.management.ObjectName;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.PropertyOption;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.BinaryResponseParser;
+import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.solr.SolrClient;
+import org.sakaiproject.nakamura.solr.ReplicaRoutingSolrServer.Replica;
+import org.sakaiproject.nakamura.solr.ReplicaRoutingSolrServer.Strategy;
+import org.sakaiproject.nakamura.util.JmxUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import com.google.common.collect.Lists;
+
+/**
+ * A remote Solr client that sends updates to one master and routes queries to the best
+ * of several replicas, see {@link ReplicaRoutingSolrServer}.
+ */
+@Component(metatype = true)
+@Service(value = SolrClient.class)
+public class ReplicatedSolrClient implements SolrClient {
+
+	private static final String DEFAULT_SOLR_URLS = "http://localhost:8983/solr";
+
+	@Property(value = SolrClient.REPLICATED)
+	public static final String CLIENT_NAME = SolrClient.CLIENT_NAME;
+
+	@Property(value = DEFAULT_SOLR_URLS)
+	static final String PROP_SOLR_URL = "remoteurl";
+
+	@Property(value = { DEFAULT_SOLR_URLS })
+	static final String PROP_QUERY_SOLR_URLS = "query-urls";
+
+	@Property(value = "least-outstanding", options = {
+			@PropertyOption(name = "least-outstanding", value = "Fewest outstanding requests"),
+			@PropertyOption(name = "ewma", value = "Lowest average latency, weighted by outstanding requests") })
+	static final String PROP_STRATEGY = "routing.strategy";
+
+	@Property(boolValue = true)
+	static final String PROP_HEDGE = "hedge.enabled";
+
+	@Property(intValue = 95)
+	static final String PROP_HEDGE_PERCENTILE = "hedge.percentile";
+
+	@Property(intValue = 10)
+	static final String PROP_HEDGE_MIN_DELAY = "hedge.min.delay";
+
+	@Property(intValue = 100)
+	static final String PROP_HEDGE_DEFAULT_DELAY = "hedge.default.delay";
+
+	@Property(intValue = 3)
+	static final String PROP_EJECT_FAILURES = "eject.failures";
+
+	@Property(intValue = 5000)
+	static final String PROP_PROBE_INTERVAL = "probe.interval";
+
+	@Property(intValue = 50)
+	static final String PROP_QUERY_THREADS = "query.threads";
+
+	@Property(intValue = 1000)
+	static final String PROP_QUERY_SO_TIMEOUT = "query-so-timeout";
+
+	@Property(intValue = 100)
+	static final String PROP_QUERY_CONNECTION_TIMEOUT = "query-connection-timeout";
+
+	@Property(boolValue = true)
+	private static final String PROP_ALLOW_COMPRESSION = "allow.compression";
+
+	@Property(intValue = 100)
+	private static final String PROP_MAX_TOTAL_CONNECTONS = "max.total.connections";
+
+	@Property(intValue = 100)
+	private static final String PROP_MAX_CONNECTONS_PER_HOST = "max.connections.per.host";
+
+	@Property(intValue = 100)
+	private static final String PROP_CONNECTION_TIMEOUT = "connection.timeout";
+
+	@Property(intValue = 1000)
+	private static final String PROP_SO_TIMEOUT = "socket.timeout";
+
+	static final String JMX_NAME = "org.sakaiproject.nakamura:type=SolrReplicas";
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ReplicatedSolrClient.class);
+
+	private String solrHome;
+
+	private Dictionary<String, Object> properties;
+
+	private boolean enabled;
+
+	private SolrClientListener listener;
+
+	private SolrServer updateServer;
+
+	private ReplicaRoutingSolrServer queryServer;
+
+	private ObjectName registeredName;
+
+	@SuppressWarnings("unchecked")
+	@Activate
+	public void activate(ComponentContext componentContext) throws IOException {
+		BundleContext bundleContext = componentContext.getBundleContext();
+		properties = componentContext.getProperties();
+		solrHome = Utils.getSolrHome(bundleContext);
+	}
+
+	public void enable(SolrClientListener listener) throws IOException,
+			ParserConfigurationException, SAXException {
+		if (enabled) {
+			return;
+		}
+		updateServer = createServer(
+				Utils.toString(properties.get(PROP_SOLR_URL), DEFAULT_SOLR_URLS),
+				Utils.toInt(properties.get(PROP_SO_TIMEOUT), 1000),
+				Utils.toInt(properties.get(PROP_CONNECTION_TIMEOUT), 100), 1);
+		queryServer = createQueryServer(updateServer);
+		registerStatistics();
+		enabled = true;
+		this.listener = listener;
+	}
+
+	private ReplicaRoutingSolrServer createQueryServer(SolrServer primary) {
+		String[] urls = Utils.toStringArray(properties.get(PROP_QUERY_SOLR_URLS),
+				new String[] { DEFAULT_SOLR_URLS });
+		int soTimeout = Utils.toInt(properties.get(PROP_QUERY_SO_TIMEOUT), 1000);
+		int connectionTimeout = Utils.toInt(
+				properties.get(PROP_QUERY_CONNECTION_TIMEOUT), 100);
+		List<Replica> replicas = Lists.newArrayList();
+		for (String url : urls) {
+			url = url.trim();
+			if (url.length() > 0) {
+				// no retries, a failed query is retried on another replica.
+				replicas.add(new Replica(url, createServer(url, soTimeout,
+						connectionTimeout, 0)));
+			}
+		}
+		LOGGER.info("Routing Solr queries to {} ", replicas);
+		return new ReplicaRoutingSolrServer(replicas, primary,
+				Strategy.parse(Utils.toString(properties.get(PROP_STRATEGY), null)),
+				Utils.toBoolean(properties.get(PROP_HEDGE), true),
+				Utils.toInt(properties.get(PROP_HEDGE_PERCENTILE), 95),
+				Utils.toInt(properties.get(PROP_HEDGE_MIN_DELAY), 10),
+				Utils.toInt(properties.get(PROP_HEDGE_DEFAULT_DELAY), 100),
+				Utils.toInt(properties.get(PROP_EJECT_FAILURES), 3),
+				Utils.toInt(properties.get(PROP_PROBE_INTERVAL), 5000),
+				Utils.toInt(properties.get(PROP_QUERY_THREADS), 50));
+	}
+
+	private SolrServer createServer(String url, int soTimeout, int connectionTimeout,
+			int maxRetries) {
+		HttpSolrServer server = new HttpSolrServer(url);
+		server.setSoTimeout(soTimeout);
+		server.setConnectionTimeout(connectionTimeout);
+		server.setDefaultMaxConnectionsPerHost(Utils.toInt(
+				properties.get(PROP_MAX_CONNECTONS_PER_HOST), 100));
+		server.setMaxTotalConnections(Utils.toInt(
+				properties.get(PROP_MAX_TOTAL_CONNECTONS), 100));
+		server.setFollowRedirects(false);
+		server.setAllowCompression(Utils.toBoolean(
+				properties.get(PROP_ALLOW_COMPRESSION), true));
+		server.setMaxRetries(maxRetries);
+		server.setParser(new BinaryResponseParser());
+		return server;
+	}
+
+	@Deactivate
+	public void deactivate(ComponentContext componentContext) {
+		disable();
+	}
+
+	public void disable() {
+		if (!enabled) {
+			return;
+		}
+		enabled = false;
+		unregisterStatistics();
+		if (queryServer != null) {
+			queryServer.shutdown();
+		}
+		if (listener != null) {
+			listener.disabled();
+		}
+	}
+
+	private void registerStatistics() {
+		registeredName = JmxUtils.register(JMX_NAME, queryServer,
+				ReplicaRoutingSolrServerMBean.class);
+	}
+
+	private void unregisterStatistics() {
+		JmxUtils.unregister(registeredName);
+		registeredName = null;
+	}
+
+	public SolrServer getServer() {
+		return queryServer;
+	}
+
+	public SolrServer getUpdateServer() {
+		return updateServer;
+	}
+
+	public String getSolrHome() {
+		return solrHome;
+	}
+
+	public String getName() {
+		return REPLICATED;
+	}
+
+}
@@ -31,6 +31,7 @@ import com.google.common.collect.Maps;
 				@Reference(target="(client-name=remote)",name="remoteClient", cardinality=ReferenceCardinality.MANDATORY_UNARY,policy=ReferencePolicy.STATIC,strategy=ReferenceStrategy.EVENT,bind=SolrServerServiceImpl.BIND,unbind=SolrServerServiceImpl.UNBIND,referenceInterface=SolrClient.class),
 				@Reference(target="(client-name=multi)",name="splitClient", cardinality=ReferenceCardinality.MANDATORY_UNARY,policy=ReferencePolicy.STATIC,strategy=ReferenceStrategy.EVENT,bind=SolrServerServiceImpl.BIND,unbind=SolrServerServiceImpl.UNBIND,referenceInterface=SolrClient.class),
 				@Reference(target="(client-name=multiremote)",name="multiRemoteClient", cardinality=ReferenceCardinality.MANDATORY_UNARY,policy=ReferencePolicy.STATIC,strategy=ReferenceStrategy.EVENT,bind=SolrServerServiceImpl.BIND,unbind=SolrServerServiceImpl.UNBIND,referenceInterface=SolrClient.class),
+				@Reference(target="(client-name=replicated)",name="replicatedClient", cardinality=ReferenceCardinality.MANDATORY_UNARY,policy=ReferencePolicy.STATIC,strategy=ReferenceStrategy.EVENT,bind=SolrServerServiceImpl.BIND,unbind=SolrServerServiceImpl.UNBIND,referenceInterface=SolrClient.class),
 				@Reference(name="optionalClient", cardinality=ReferenceCardinality.OPTIONAL_MULTIPLE,policy=ReferencePolicy.DYNAMIC,strategy=ReferenceStrategy.EVENT,bind=SolrServerServiceImpl.BIND,unbind=SolrServerServiceImpl.UNBIND,referenceInterface=SolrClient.class)
 		})
 public class SolrServerServiceImpl implements SolrServerService, SolrClientListener {
@@ -40,7 +41,8 @@ public class SolrServerServiceImpl implements SolrServerService, SolrClientListe
 	    @PropertyOption(name = SolrClient.REMOTE, value = SolrClient.REMOTE),
 	    @PropertyOption(name = SolrClient.EMBEDDED, value = SolrClient.EMBEDDED),
 	    @PropertyOption(name = SolrClient.MULTI, value = SolrClient.MULTI),
-	    @PropertyOption(name = SolrClient.MULTIREMOTE, value = SolrClient.MULTIREMOTE)
+	    @PropertyOption(name = SolrClient.MULTIREMOTE, value = SolrClient.MULTIREMOTE),
+	    @PropertyOption(name = SolrClient.REPLICATED, value = SolrClient.REPLICATED)
 	})
 	private static final String SOLR_IMPL = "solr-impl";
 
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Dictionary;
+import java.util.Hashtable;
+
+import org.apache.commons.lang.StringUtils;
+import org.osgi.service.event.Event;
+
+/**
+ * Reads the original redo log format, one line per event with the topic and
+ * the property names and values URL encoded and separated by commas. Kept so
+ * queues written before the binary format was introduced can be drained.
+ */
+class TextRedoLogReader extends RedoLogReader {
+
+  private static final String END_LINE = "--end--";
+  private static final String UTF8 = "UTF8";
+
+  private BufferedReader reader;
+
+  TextRedoLogReader(File segment) throws IOException {
+    reader = new BufferedReader(new FileReader(segment));
+  }
+
+  @Override
+  Event next() throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      return null;
+    }
+    if (END_LINE.equals(line)) {
+      return END;
+    }
+    String[] parts = StringUtils.split(line, ',');
+    if (parts.length == 0) {
+      throw new IOException("Empty event in redo log");
+    }
+    Dictionary<String, Object> dict = new Hashtable<String, Object>();
+    for (int i = 1; i < parts.length; i += 2) {
+      dict.put(URLDecoder.decode(parts[i], UTF8), URLDecoder.decode(parts[i + 1], UTF8));
+    }
+    return new Event(URLDecoder.decode(parts[0], UTF8), dict);
+  }
+
+  @Override
+  void close() throws IOException {
+    reader.close();
+  }
+}
@@ -0,0 +1,67 @@
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+public class CoalescedDeletesTest {
+
+  @Test
+  public void testParseIds() {
+    assertEquals(Lists.newArrayList("/a/b c"), CoalescedDeletes.parseIds("id:\\/a\\/b\\ c"));
+    assertEquals(Lists.newArrayList("/m", "/m/auth"),
+        CoalescedDeletes.parseIds("id:(\\/m OR \\/m\\/auth)"));
+    assertNull(CoalescedDeletes.parseIds("path:\\/a"));
+    assertNull(CoalescedDeletes.parseIds("id:a*"));
+    assertNull(CoalescedDeletes.parseIds("id:(a AND b)"));
+    assertNull(CoalescedDeletes.parseIds("id:a AND type:b"));
+  }
+
+  @Test
+  public void testCoalesce() {
+    List<String> queries = Lists.newArrayList("id:a", "id:b", "id:(c OR d)", "id:a",
+        "path:x", "resourceType:y", "path:x", "-path:z");
+    // b and c are added after all the deletes
+    Map<String, Integer> lastAdded = ImmutableMap.of("b", queries.size(), "c", queries.size());
+    CoalescedDeletes deletes = new CoalescedDeletes(lastAdded);
+    for (int i = 0; i < queries.size(); i++) {
+      deletes.add(Lists.newArrayList(queries.get(i)), i);
+    }
+    assertEquals(Lists.newArrayList("a", "d"), deletes.getIds());
+    assertEquals(Lists.newArrayList("path:x", "resourceType:y", "-path:z"), deletes.getQueries());
+    assertEquals(Lists.newArrayList("-path:z", "(path:x) OR (resourceType:y)"),
+        deletes.getCombinedQueries());
+    // b and c are added again, a and path:x are repeated
+    assertEquals(4, deletes.getRedundant());
+  }
+
+  @Test
+  public void testCombinedQueriesAreBounded() {
+    List<String> queries = Lists.newArrayList();
+    for (int i = 0; i < CoalescedDeletes.MAX_QUERIES_PER_DELETE + 1; i++) {
+      queries.add("path:p" + i);
+    }
+    CoalescedDeletes deletes = new CoalescedDeletes(ImmutableMap.<String, Integer> of());
+    deletes.add(queries, 0);
+    assertEquals(2, deletes.getCombinedQueries().size());
+  }
+
+  @Test
+  public void testOnlyDeletesBeforeTheLastAddAreDropped() {
+    // a is added by the first event and deleted by the second, b is deleted by
+    // the second and added again by the third, c is deleted and added by the
+    // same event, which deletes before it adds.
+    CoalescedDeletes deletes = new CoalescedDeletes(ImmutableMap.of("a", 0, "b", 2, "c", 3));
+    deletes.add(Lists.newArrayList("id:a", "id:b"), 1);
+    deletes.add(Lists.newArrayList("id:c"), 3);
+    assertEquals(Lists.newArrayList("a"), deletes.getIds());
+    assertEquals(2, deletes.getRedundant());
+  }
+}
@@ -4,6 +4,7 @@ import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.request.UpdateRequest;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.ModifiableSolrParams;
@@ -133,6 +134,14 @@ public class QueueManagerTest {
 
   }
 
+  /**
+   * @return true if the intercepted SolrServer.request(...) is an update adding documents.
+   */
+  private static boolean isAdd(InvocationOnMock invocationOnMock) {
+    Object request = invocationOnMock.getArguments()[0];
+    return request instanceof UpdateRequest && ((UpdateRequest) request).getDocuments() != null;
+  }
+
   /**
    * generate a number of events for indexing
    * @param num
@@ -158,9 +167,9 @@ public class QueueManagerTest {
     final QueueManager qm = qMgr;
 
     /*
-      implements a callback object for handling calls to add(Collection<SolrInputDoc>)
-      it will count the number of times add(...) has been called and will throw a ConnectException once
-        during the batch
+      implements a callback object for handling update requests that add documents
+      it will count the number of times add(...) has been called and will throw a ConnectException on
+        the first add of the batch, which must roll the batch back and retry it
      */
     final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
       int count = 0;
@@ -172,30 +181,32 @@ public class QueueManagerTest {
 
       @Override
       public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-        ++count;
+        if (isAdd(invocationOnMock)) {
+          ++count;
 
-        if (count == 6) {
-          throw new SolrServerException(new ConnectException("try again"));
+          if (count == 1) {
+            throw new SolrServerException(new ConnectException("try again"));
+          }
         }
 
         return invocationOnMock.callRealMethod();
       }
     };
 
-    // register the addDocsAnswer callback to handle any SolrServer.add(...) calls
-    doAnswer(addDocsAnswer).when(serverSpy).add(any(Collection.class));
+    // register the addDocsAnswer callback to handle any update requests that add documents
+    doAnswer(addDocsAnswer).when(serverSpy).request(any(SolrRequest.class));
 
     // load up 10 events
     fireEvents(10);
 
-    // create a thread that will stop QueueManager after SolrServer.add(...) has been called 10 times
+    // create a thread that will stop QueueManager after the batch has been retried
     (new Thread (new Runnable () {
 
       @Override
       public void run() {
         int internalCount = 0;
 
-        while (addDocsAnswer.getCallCount() < 11 && internalCount < 20) {
+        while (addDocsAnswer.getCallCount() < 2 && internalCount < 20) {
           try {
             Thread.sleep(500);
           } catch (InterruptedException e) {
@@ -229,4 +240,127 @@ public class QueueManagerTest {
     int size = response.getResults().size();
     assertEquals (10, size);
   }
+
+  @Test
+  public void testParallelWorkers() throws Exception {
+    final QueueManager qm = new QueueManager(qMgrDrvr, "target/queueManagerTest/indexQueues",
+        "testWorkersQueue", true, 50, 5000, 4);
+
+    final CallCountingAnswer addDocsAnswer = new CallCountingAnswer() {
+      int count = 0;
+
+      @Override
+      public int getCallCount() {
+        return count;
+      }
+
+      @Override
+      public Object answer(InvocationOnMock invocationOnMock) throws Throwable {
+        if (isAdd(invocationOnMock)) {
+          ++count;
+        }
+        return invocationOnMock.callRealMethod();
+      }
+    };
+    doAnswer(addDocsAnswer).when(serverSpy).request(any(SolrRequest.class));
+
+    qMgr = qm;
+    fireEvents(50);
+
+    qm.start();
+    int internalCount = 0;
+    while (addDocsAnswer.getCallCount() < 1 && internalCount < 20) {
+      Thread.sleep(500);
+      internalCount++;
+    }
+    qm.stop();
+    qm.getQueueDispatcher().join();
+
+    // documents built by all the workers are sent in a single add
+    assertEquals(1, addDocsAnswer.getCallCount());
+
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q","*:*");
+    params.set("rows", "100");
+    QueryResponse response = server.query(params, SolrRequest.METHOD.POST);
+    assertEquals(50, response.getResults().size());
+  }
+
+  /**
+   * Indexes or deletes the document named by the event's doc property, by id
+   * or by query depending on the topic.
+   */
+  class OrderedIndexingHandler implements IndexingHandler {
+
+    @Override
+    public Collection<SolrInputDocument> getDocuments(RepositorySession repositorySession, Event event) {
+      ArrayList<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+      if ("add".equals(event.getTopic())) {
+        SolrInputDocument doc = new SolrInputDocument();
+        doc.setField("id", event.getProperty("doc"));
+        doc.setField("event", event.getTopic());
+        docs.add(doc);
+      }
+      return docs;
+    }
+
+    @Override
+    public Collection<String> getDeleteQueries(RepositorySession respositorySession, Event event) {
+      ArrayList<String> queries = new ArrayList<String>();
+      if ("delete".equals(event.getTopic())) {
+        queries.add("id:" + event.getProperty("doc"));
+      } else if ("deleteQuery".equals(event.getTopic())) {
+        queries.add("id:" + event.getProperty("doc") + "*");
+      }
+      return queries;
+    }
+  }
+
+  private void fireEvent(QueueManager qm, String path, String topic, String doc)
+      throws IOException {
+    Properties props = new Properties();
+    props.setProperty("path", path);
+    props.setProperty("doc", doc);
+    qm.saveEvent(new Event(topic, (Dictionary) props));
+  }
+
+  private long count(String query) throws Exception {
+    ModifiableSolrParams params = new ModifiableSolrParams();
+    params.set("q", query);
+    return server.query(params, SolrRequest.METHOD.POST).getResults().getNumFound();
+  }
+
+  @Test
+  public void testBatchKeepsEventOrder() throws Exception {
+    HashSet<IndexingHandler> handlers = new HashSet<IndexingHandler>();
+    handlers.add(new OrderedIndexingHandler());
+    when(qMgrDrvr.getTopicHandler(anyString())).thenReturn(handlers);
+    QueueManager qm = new QueueManager(qMgrDrvr, "target/queueManagerTest/indexQueues",
+        "testOrderQueue", true, 10, 1000);
+
+    // deleted then added again, by id and by query
+    fireEvent(qm, "e1", "delete", "orderedA");
+    fireEvent(qm, "e2", "add", "orderedA");
+    fireEvent(qm, "e3", "deleteQuery", "orderedD");
+    fireEvent(qm, "e4", "add", "orderedD");
+    // added then deleted, by id and by query
+    fireEvent(qm, "e5", "add", "orderedB");
+    fireEvent(qm, "e6", "delete", "orderedB");
+    fireEvent(qm, "e7", "add", "orderedC");
+    fireEvent(qm, "e8", "deleteQuery", "orderedC");
+
+    qm.start();
+    int internalCount = 0;
+    while (count("id:orderedA") == 0 && internalCount < 20) {
+      Thread.sleep(500);
+      internalCount++;
+    }
+    qm.stop();
+    qm.getQueueDispatcher().join();
+
+    assertEquals(1, count("id:orderedA"));
+    assertEquals(1, count("id:orderedD"));
+    assertEquals(0, count("id:orderedB"));
+    assertEquals(0, count("id:orderedC"));
+  }
 }
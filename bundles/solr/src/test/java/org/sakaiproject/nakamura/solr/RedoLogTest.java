@@ -0,0 +1,152 @@
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class RedoLogTest {
+
+  private File logDirectory;
+
+  @Before
+  public void setup() {
+    logDirectory = new File("target/redoLogTest/" + System.nanoTime());
+    logDirectory.mkdirs();
+  }
+
+  private Event event(String path) {
+    Dictionary<String, Object> props = new Hashtable<String, Object>();
+    props.put("path", path);
+    props.put("value", "a,b=c d\u00e9");
+    return new Event("org/sakaiproject/nakamura/lite/content/UPDATED", props);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    RedoLogWriter writer = new RedoLogWriter(logDirectory);
+    for (int i = 0; i < 10; i++) {
+      writer.commit(writer.append(RedoLogWriter.encode(event("/p" + i))));
+    }
+    File segment = writer.getCurrentSegment();
+    RedoLogReader reader = RedoLogReader.open(segment);
+    for (int i = 0; i < 10; i++) {
+      Event e = reader.next();
+      assertEquals("/p" + i, e.getProperty("path"));
+      assertEquals("a,b=c d\u00e9", e.getProperty("value"));
+    }
+    // nothing more written yet
+    assertNull(reader.next());
+    writer.commit(writer.append(RedoLogWriter.encode(event("/late"))));
+    assertEquals("/late", reader.next().getProperty("path"));
+    writer.close();
+    assertSame(RedoLogReader.END, reader.next());
+    reader.close();
+
+    // restoring a position skips records
+    reader = RedoLogReader.open(segment);
+    reader.skip(10);
+    assertEquals("/late", reader.next().getProperty("path"));
+    reader.close();
+  }
+
+  @Test
+  public void testRollsOverSegments() throws IOException {
+    RedoLogWriter writer = new RedoLogWriter(logDirectory, 1024);
+    File first = null;
+    for (int i = 0; i < 100; i++) {
+      writer.append(RedoLogWriter.encode(event("/p" + i)));
+      if (first == null) {
+        first = writer.getCurrentSegment();
+      }
+    }
+    writer.close();
+    assertTrue(logDirectory.listFiles().length > 1);
+    RedoLogReader reader = RedoLogReader.open(first);
+    Event e = reader.next();
+    int n = 0;
+    while (e != RedoLogReader.END) {
+      assertNotNull(e);
+      n++;
+      e = reader.next();
+    }
+    reader.close();
+    assertTrue(n > 0 && n < 100);
+  }
+
+  @Test
+  public void testReadsTextFormat() throws IOException {
+    File segment = new File(logDirectory, "1");
+    FileWriter fw = new FileWriter(segment);
+    fw.append("topic%2Fone,path,%2Fa%2Cb,other,x+y\n");
+    fw.append("--end--");
+    fw.close();
+    RedoLogReader reader = RedoLogReader.open(segment);
+    Event e = reader.next();
+    assertEquals("topic/one", e.getTopic());
+    assertEquals("/a,b", e.getProperty("path"));
+    assertEquals("x y", e.getProperty("other"));
+    assertSame(RedoLogReader.END, reader.next());
+    reader.close();
+  }
+
+  @Test
+  public void testGroupCommit() throws Exception {
+    final RedoLogWriter writer = new RedoLogWriter(logDirectory);
+    final int threads = 8;
+    final int perThread = 200;
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> workers = Lists.newArrayList();
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < perThread; i++) {
+              writer.commit(writer.append(RedoLogWriter.encode(event("/" + id + "/" + i))));
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    File segment = writer.getCurrentSegment();
+    writer.close();
+    assertEquals(threads * perThread, writer.getAppended());
+    assertTrue(writer.getGroupCommits() <= writer.getAppended());
+
+    Set<Object> paths = Sets.newHashSet();
+    RedoLogReader reader = RedoLogReader.open(segment);
+    for (Event e = reader.next(); e != RedoLogReader.END; e = reader.next()) {
+      assertNotNull(e);
+      paths.add(e.getProperty("path"));
+    }
+    reader.close();
+    assertEquals(threads * perThread, paths.size());
+  }
+}
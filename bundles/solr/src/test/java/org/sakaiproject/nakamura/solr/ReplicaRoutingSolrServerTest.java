@@ -0,0 +1,217 @@
+package org.sakaiproject.nakamura.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.nakamura.solr.ReplicaRoutingSolrServer.Replica;
+import org.sakaiproject.nakamura.solr.ReplicaRoutingSolrServer.Strategy;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+public class ReplicaRoutingSolrServerTest {
+
+  /**
+   * Stands in for a remote Solr, answering every request after a delay or failing.
+   */
+  private static class StandInSolrServer extends SolrServer {
+    private static final long serialVersionUID = 1L;
+    private final String name;
+    private volatile long delay;
+    private volatile boolean failing;
+    private volatile boolean badRequest;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    StandInSolrServer(String name, long delay) {
+      this.name = name;
+      this.delay = delay;
+    }
+
+    @Override
+    public NamedList<Object> request(SolrRequest request) throws SolrServerException,
+        IOException {
+      requests.incrementAndGet();
+      if (delay > 0) {
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e) {
+          throw new SolrServerException(e);
+        }
+      }
+      if (badRequest) {
+        throw new SolrException(ErrorCode.BAD_REQUEST, "bad query");
+      }
+      if (failing) {
+        throw new SolrServerException(name + " is down");
+      }
+      NamedList<Object> response = new NamedList<Object>();
+      response.add("replica", name);
+      return response;
+    }
+
+    public void shutdown() {
+    }
+  }
+
+  private ReplicaRoutingSolrServer server;
+
+  @After
+  public void after() {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  private ReplicaRoutingSolrServer newServer(SolrServer primary, boolean hedge,
+      StandInSolrServer... standIns) {
+    return newServer(primary, hedge, 10, standIns);
+  }
+
+  private ReplicaRoutingSolrServer newServer(SolrServer primary, boolean hedge,
+      int maxThreads, StandInSolrServer... standIns) {
+    List<Replica> replicas = Lists.newArrayList();
+    for (StandInSolrServer s : standIns) {
+      replicas.add(new Replica(s.name, s));
+    }
+    // probes are run by the tests.
+    server = new ReplicaRoutingSolrServer(replicas, primary, Strategy.LEAST_OUTSTANDING,
+        hedge, 95, 10, 30, 3, 3600000L, maxThreads);
+    return server;
+  }
+
+  private String query() throws SolrServerException {
+    QueryResponse response = server.query(new SolrQuery("*:*"));
+    return (String) response.getResponse().get("replica");
+  }
+
+  @Test
+  public void testSpreadsLoad() throws Exception {
+    StandInSolrServer a = new StandInSolrServer("a", 0);
+    StandInSolrServer b = new StandInSolrServer("b", 0);
+    StandInSolrServer c = new StandInSolrServer("c", 0);
+    newServer(null, false, a, b, c);
+    for (int i = 0; i < 30; i++) {
+      query();
+    }
+    assertEquals(30, server.getRequests());
+    assertTrue(a.requests.get() > 0 && b.requests.get() > 0 && c.requests.get() > 0);
+    assertEquals(30, a.requests.get() + b.requests.get() + c.requests.get());
+  }
+
+  @Test
+  public void testHedgesSlowReplica() throws Exception {
+    StandInSolrServer slow = new StandInSolrServer("slow", 2000);
+    StandInSolrServer fast = new StandInSolrServer("fast", 0);
+    newServer(null, true, slow, fast);
+    for (int i = 0; i < 4; i++) {
+      long start = System.currentTimeMillis();
+      assertEquals("fast", query());
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+    assertTrue(server.getHedgedRequests() > 0);
+    assertEquals(server.getHedgedRequests(), server.getHedgeWins());
+  }
+
+  @Test
+  public void testFailoverAndEjection() throws Exception {
+    StandInSolrServer down = new StandInSolrServer("down", 0);
+    StandInSolrServer up = new StandInSolrServer("up", 0);
+    down.failing = true;
+    newServer(null, false, down, up);
+    for (int i = 0; i < 20; i++) {
+      assertEquals("up", query());
+    }
+    // ejected after 3 consecutive failures and not used again.
+    assertEquals(3, down.requests.get());
+    assertEquals(3, server.getFailovers());
+    assertFalse(server.getReplicas()[0].healthy);
+
+    // the probe brings it back once it answers.
+    server.probe();
+    assertFalse(server.getReplicas()[0].healthy);
+    down.failing = false;
+    server.probe();
+    assertTrue(server.getReplicas()[0].healthy);
+  }
+
+  @Test
+  public void testAllReplicasDown() throws Exception {
+    StandInSolrServer a = new StandInSolrServer("a", 0);
+    StandInSolrServer b = new StandInSolrServer("b", 0);
+    a.failing = true;
+    b.failing = true;
+    newServer(null, false, a, b);
+    for (int i = 0; i < 5; i++) {
+      try {
+        query();
+        fail();
+      } catch (SolrServerException e) {
+        // expected
+      }
+    }
+    assertEquals(5, server.getFailures());
+    // ejected replicas are still tried when there is nothing else.
+    b.failing = false;
+    assertEquals("b", query());
+  }
+
+  @Test
+  public void testBadRequestIsNotRetried() throws Exception {
+    StandInSolrServer a = new StandInSolrServer("a", 0);
+    StandInSolrServer b = new StandInSolrServer("b", 0);
+    a.badRequest = true;
+    b.badRequest = true;
+    newServer(null, false, a, b);
+    for (int i = 0; i < 5; i++) {
+      try {
+        query();
+        fail();
+      } catch (SolrException e) {
+        assertEquals(ErrorCode.BAD_REQUEST.code, e.code());
+      }
+    }
+    assertEquals(5, a.requests.get() + b.requests.get());
+    assertEquals(0, server.getFailovers());
+    assertTrue(server.getReplicas()[0].healthy && server.getReplicas()[1].healthy);
+  }
+
+  @Test
+  public void testUpdatesGoToPrimary() throws Exception {
+    StandInSolrServer primary = new StandInSolrServer("primary", 0);
+    StandInSolrServer a = new StandInSolrServer("a", 0);
+    newServer(primary, true, a);
+    new UpdateRequest().process(server);
+    query();
+    assertEquals(1, primary.requests.get());
+    assertEquals(1, a.requests.get());
+  }
+
+  @Test
+  public void testHedgeSkippedWhenThreadsAreBusy() throws Exception {
+    StandInSolrServer a = new StandInSolrServer("a", 300);
+    StandInSolrServer b = new StandInSolrServer("b", 300);
+    newServer(null, true, 1, a, b);
+    assertNotNull(query());
+    // the only query thread was busy with the first attempt.
+    assertEquals(0, server.getHedgedRequests());
+    assertEquals(1, server.getHedgesSkipped());
+    assertEquals(1, a.requests.get() + b.requests.get());
+  }
+}
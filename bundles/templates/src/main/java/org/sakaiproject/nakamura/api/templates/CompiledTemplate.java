@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.templates;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A template that has been parsed once so it can be evaluated many times.
+ * Implementations are safe to use from several threads.
+ */
+public interface CompiledTemplate {
+
+  /**
+   * @return the text the template was compiled from.
+   */
+  String getTemplate();
+
+  /**
+   * @return the keys of the ${param} variable markers in the template, in the order they
+   *         appear.
+   */
+  Collection<String> getVariables();
+
+  /**
+   * The same check as {@link TemplateService#missingTerms(Map, String)}, using the
+   * variables found when the template was compiled.
+   *
+   * @param parameters Parameters to verify with
+   * @return Collection of keys that were not resolvable.
+   */
+  Collection<String> missingTerms(Map<String, ? extends Object> parameters);
+
+  /**
+   * @param parameters
+   * @return the template evaluated with the parameters.
+   */
+  String evaluate(Map<String, ? extends Object> parameters);
+}
@@ -55,4 +55,15 @@ public interface TemplateService {
    */
   Collection<String> missingTerms(Map<String, ? extends Object> parameters,
       String template);
+
+  /**
+   * Get the compiled form of a template. Compiled templates are cached under the key and
+   * recompiled when the template text for the key changes, so the key should identify
+   * where the template came from, eg the path of the node and the name of the property.
+   *
+   * @param key Where the template came from
+   * @param template The template text
+   * @return the compiled template.
+   */
+  CompiledTemplate getCompiledTemplate(String key, String template);
 }
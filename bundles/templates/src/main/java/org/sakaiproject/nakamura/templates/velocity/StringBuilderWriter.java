@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import java.io.Writer;
+
+/**
+ * An unsynchronized Writer onto a StringBuilder, so a thread can evaluate templates into
+ * the same buffer over and over.
+ */
+class StringBuilderWriter extends Writer {
+
+  private final StringBuilder builder;
+
+  StringBuilderWriter(int capacity) {
+    builder = new StringBuilder(capacity);
+  }
+
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    builder.append(cbuf, off, len);
+  }
+
+  @Override
+  public void write(int c) {
+    builder.append((char) c);
+  }
+
+  @Override
+  public void write(String str) {
+    builder.append(str);
+  }
+
+  @Override
+  public void write(String str, int off, int len) {
+    builder.append(str, off, off + len);
+  }
+
+  @Override
+  public Writer append(CharSequence csq) {
+    builder.append(csq);
+    return this;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  void reset() {
+    builder.setLength(0);
+  }
+
+  int capacity() {
+    return builder.capacity();
+  }
+
+  @Override
+  public String toString() {
+    return builder.toString();
+  }
+}
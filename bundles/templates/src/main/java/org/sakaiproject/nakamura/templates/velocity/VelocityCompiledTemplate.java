@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import org.apache.velocity.Template;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A template parsed by {@link VelocityTemplateService}. Templates without any Velocity
+ * markup are not parsed at all and evaluate to their text.
+ */
+class VelocityCompiledTemplate implements CompiledTemplate {
+
+  private final String template;
+  private final List<String> variables;
+  /**
+   * null if the template is plain text.
+   */
+  private final Template velocityTemplate;
+  private final VelocityTemplateService templateService;
+
+  VelocityCompiledTemplate(String template, Template velocityTemplate,
+      VelocityTemplateService templateService) {
+    this.template = template;
+    this.variables = Collections.unmodifiableList(VelocityTemplateService
+        .findVariables(template));
+    this.velocityTemplate = velocityTemplate;
+    this.templateService = templateService;
+  }
+
+  public String getTemplate() {
+    return template;
+  }
+
+  public Collection<String> getVariables() {
+    return variables;
+  }
+
+  public Collection<String> missingTerms(Map<String, ? extends Object> parameters) {
+    if (variables.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Collection<String> missingTerms = new ArrayList<String>();
+    for (String key : variables) {
+      if (parameters.get(key) == null) {
+        missingTerms.add(key);
+      }
+    }
+    return missingTerms;
+  }
+
+  public String evaluate(Map<String, ? extends Object> parameters) {
+    if (velocityTemplate == null) {
+      return template;
+    }
+    return templateService.merge(velocityTemplate, parameters);
+  }
+}
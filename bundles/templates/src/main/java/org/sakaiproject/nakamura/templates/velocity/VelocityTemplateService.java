@@ -19,19 +19,25 @@ package org.sakaiproject.nakamura.templates.velocity;
 
 import org.apache.commons.collections.ExtendedProperties;
 import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.VelocityEngine;
-import org.osgi.service.component.ComponentContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
 import org.sakaiproject.nakamura.api.templates.TemplateNodeSource;
 import org.sakaiproject.nakamura.api.templates.TemplateService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -39,24 +45,44 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jcr.Node;
 import javax.jcr.Repository;
 
 @Service
-@Component
+@Component(metatype = true, label = "Sakai Nakamura :: Velocity Template Service",
+    description = "Evaluates templates, keeping compiled copies of those that are used repeatedly")
 public class VelocityTemplateService implements TemplateService, TemplateNodeSource {
 
   private static final Logger LOGGER = LoggerFactory
       .getLogger(VelocityTemplateService.class);
 
-  private VelocityEngine velocityEngine;
+  @Property(intValue = VelocityTemplateService.DEFAULT_MAX_COMPILED, label = "Maximum Compiled Templates",
+      description = "The number of compiled templates to keep")
+  static final String MAX_COMPILED = "sakai.templates.maxCompiled";
+  static final int DEFAULT_MAX_COMPILED = 1000;
+
+  /**
+   * Writers that have grown bigger than this are not kept for reuse.
+   */
+  private static final int MAX_REUSED_CAPACITY = 64 * 1024;
+
+  private RuntimeInstance velocityEngine;
 
   @Reference
   protected Repository repository;
 
+  private int maxCompiled = DEFAULT_MAX_COMPILED;
+
+  private final ConcurrentMap<String, VelocityCompiledTemplate> compiledTemplates = new ConcurrentHashMap<String, VelocityCompiledTemplate>();
+
+  private final ThreadLocal<StringBuilderWriter> writers = new ThreadLocal<StringBuilderWriter>();
+
   public String evaluateTemplate(Map<String, ? extends Object> parameters, String template) {
     return evaluateTemplate(parameters, new StringReader(template));
   }
@@ -71,6 +97,66 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     return templateWriter.toString();
   }
 
+  public CompiledTemplate getCompiledTemplate(String key, String template) {
+    VelocityCompiledTemplate compiled = compiledTemplates.get(key);
+    if (compiled != null && compiled.getTemplate().equals(template)) {
+      return compiled;
+    }
+    compiled = compile(key, template);
+    if (compiledTemplates.size() >= maxCompiled) {
+      // crude, but the templates in use are recompiled on their next request.
+      LOGGER.debug("Compiled template cache is full at {} entries, clearing ", maxCompiled);
+      compiledTemplates.clear();
+    }
+    compiledTemplates.put(key, compiled);
+    return compiled;
+  }
+
+  /**
+   * Parse a template, falling back to evaluating it on every use if it can't be parsed,
+   * so it fails in the same way it always has.
+   */
+  private VelocityCompiledTemplate compile(String key, String template) {
+    if (template.indexOf('$') < 0 && template.indexOf('#') < 0) {
+      return new VelocityCompiledTemplate(template, null, this);
+    }
+    try {
+      SimpleNode document = velocityEngine.parse(new StringReader(template), key);
+      Template velocityTemplate = new Template();
+      velocityTemplate.setName(key);
+      velocityTemplate.setRuntimeServices(velocityEngine);
+      velocityTemplate.setData(document);
+      velocityTemplate.initDocument();
+      return new VelocityCompiledTemplate(template, velocityTemplate, this);
+    } catch (ParseException e) {
+      LOGGER.warn("Unable to parse template {}: {} ", key, e.getMessage());
+      return new UncompiledTemplate(template, this);
+    }
+  }
+
+  /**
+   * Evaluate a compiled template into this thread's writer.
+   */
+  String merge(Template velocityTemplate, Map<String, ? extends Object> parameters) {
+    VelocityContext context = new VelocityContext(sanitize(parameters));
+    StringBuilderWriter writer = writers.get();
+    if (writer == null) {
+      writer = new StringBuilderWriter(256);
+    } else {
+      // taken off the thread while in use, in case a template evaluates another.
+      writers.remove();
+    }
+    try {
+      writer.reset();
+      velocityTemplate.merge(context, writer);
+      return writer.toString();
+    } finally {
+      if (writer.capacity() <= MAX_REUSED_CAPACITY) {
+        writers.set(writer);
+      }
+    }
+  }
+
   private Map<String,String> sanitize(Map<String, ? extends Object> parameters) {
     Map<String,String> rv = new HashMap<String,String>();
     for (Entry<String, ? extends Object> param : parameters.entrySet()) {
@@ -92,21 +178,7 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     if (template == null || StringUtils.isBlank(template)) {
       return Collections.emptyList();
     }
-
-    Collection<String> missingTerms = new ArrayList<String>();
-    int startPosition = template.indexOf("${");
-    while (startPosition > -1) {
-      int endPosition = template.indexOf("}", startPosition);
-      if (endPosition > -1) {
-        String key = template.substring(startPosition + 2, endPosition);
-        missingTerms.add(key);
-        // look for the next velocity replacement variable
-        startPosition = template.indexOf("${", endPosition);
-      } else {
-        break;
-      }
-    }
-    return missingTerms;
+    return findVariables(template);
   }
 
   public Collection<String> missingTerms(Map<String, ? extends Object> parameters,
@@ -116,40 +188,73 @@ public class VelocityTemplateService implements TemplateService, TemplateNodeSou
     }
 
     Collection<String> missingTerms = new ArrayList<String>();
+    for (String key : findVariables(template)) {
+      Object value = parameters.get(key);
+      if (value == null) {
+        missingTerms.add(key);
+      }
+    }
+    return missingTerms;
+  }
+
+  /**
+   * @param template
+   * @return the keys of the ${param} markers in the template.
+   */
+  static List<String> findVariables(String template) {
+    List<String> variables = new ArrayList<String>();
     int startPosition = template.indexOf("${");
     while (startPosition > -1) {
       int endPosition = template.indexOf("}", startPosition);
       if (endPosition > -1) {
         String key = template.substring(startPosition + 2, endPosition);
-        Object value = parameters.get(key);
-        if (value == null) {
-          missingTerms.add(key);
-        }
+        variables.add(key);
         // look for the next velocity replacement variable
         startPosition = template.indexOf("${", endPosition);
       } else {
         break;
       }
     }
-    return missingTerms;
+    return variables;
   }
 
-  protected void activate(ComponentContext ctx) throws Exception {
-    velocityEngine = new VelocityEngine();
-    velocityEngine.setProperty(VelocityEngine.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
+  @Activate
+  protected void activate(Map<String, Object> properties) throws Exception {
+    maxCompiled = PropertiesUtil.toInteger(properties.get(MAX_COMPILED),
+        DEFAULT_MAX_COMPILED);
+    velocityEngine = new RuntimeInstance();
+    velocityEngine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, new VelocityLogger(
         this.getClass()));
 
-    velocityEngine.setProperty(VelocityEngine.RESOURCE_LOADER, "jcr");
+    velocityEngine.setProperty(RuntimeConstants.RESOURCE_LOADER, "jcr");
     velocityEngine.setProperty("jcr.resource.loader.class",
         JcrResourceLoader.class.getName());
     ExtendedProperties configuration = new ExtendedProperties();
     configuration.addProperty("jcr.resource.loader.resourceSource", this);
-    velocityEngine.setExtendedProperties(configuration);
+    velocityEngine.setConfiguration(configuration);
     velocityEngine.init();
+    compiledTemplates.clear();
   }
 
   public Node getNode() {
     // Velocity calls this, but it doesn't seem to make a difference in practice
     return null;
   }
+
+  /**
+   * A template that could not be parsed, evaluated from its text every time.
+   */
+  private static final class UncompiledTemplate extends VelocityCompiledTemplate {
+    private final VelocityTemplateService templateService;
+
+    private UncompiledTemplate(String template, VelocityTemplateService templateService) {
+      super(template, null, templateService);
+      this.templateService = templateService;
+    }
+
+    @Override
+    public String evaluate(Map<String, ? extends Object> parameters) {
+      return templateService.evaluateTemplate(parameters, getTemplate());
+    }
+  }
 }
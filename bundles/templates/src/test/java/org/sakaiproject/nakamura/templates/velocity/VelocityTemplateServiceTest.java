@@ -0,0 +1,125 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.templates.velocity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.templates.CompiledTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class VelocityTemplateServiceTest {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(VelocityTemplateServiceTest.class);
+
+  private static final String QUERY = "resourceType:authorizable AND (name:(${q}) OR title:(${q}))"
+      + " AND -readers:${_userId} #if($group)AND group:${group}#end";
+
+  private VelocityTemplateService templateService;
+  private Map<String, Object> parameters;
+
+  @Before
+  public void setUp() throws Exception {
+    templateService = new VelocityTemplateService();
+    templateService.activate(new HashMap<String, Object>());
+    parameters = new HashMap<String, Object>();
+    parameters.put("q", "alice");
+    parameters.put("_userId", "bob");
+  }
+
+  @Test
+  public void testCompiledMatchesEvaluate() {
+    CompiledTemplate compiled = templateService.getCompiledTemplate(
+        "/var/search/users/sakai:query-template", QUERY);
+    assertEquals(templateService.evaluateTemplate(parameters, QUERY),
+        compiled.evaluate(parameters));
+    parameters.put("group", "g-course");
+    assertEquals(templateService.evaluateTemplate(parameters, QUERY),
+        compiled.evaluate(parameters));
+    assertTrue(compiled.evaluate(parameters).endsWith("AND group:g-course"));
+  }
+
+  @Test
+  public void testVariables() {
+    CompiledTemplate compiled = templateService.getCompiledTemplate("/q", QUERY);
+    assertEquals(Arrays.asList("q", "q", "_userId", "group"), compiled.getVariables());
+    assertEquals(Arrays.asList("group"), compiled.missingTerms(parameters));
+    assertEquals(templateService.missingTerms(parameters, QUERY),
+        compiled.missingTerms(parameters));
+  }
+
+  @Test
+  public void testCachedUntilChanged() {
+    CompiledTemplate compiled = templateService.getCompiledTemplate("/q", QUERY);
+    assertSame(compiled, templateService.getCompiledTemplate("/q", QUERY));
+    CompiledTemplate changed = templateService.getCompiledTemplate("/q", "name:${q}");
+    assertNotSame(compiled, changed);
+    assertEquals("name:alice", changed.evaluate(parameters));
+  }
+
+  @Test
+  public void testPlainText() {
+    CompiledTemplate compiled = templateService.getCompiledTemplate("/sort", "score desc");
+    assertEquals("score desc", compiled.evaluate(Collections.<String, Object> emptyMap()));
+    assertTrue(compiled.getVariables().isEmpty());
+  }
+
+  @Test
+  public void testUnparseable() {
+    String broken = "name:${q} #if(";
+    CompiledTemplate compiled = templateService.getCompiledTemplate("/broken", broken);
+    assertEquals(Arrays.asList("q"), compiled.getVariables());
+  }
+
+  /**
+   * Compares parsing the template on every evaluation with evaluating the compiled
+   * template.
+   */
+  @Ignore("Long running benchmark, enable it to measure template throughput")
+  @Test
+  public void testParseVersusCompiledThroughput() {
+    CompiledTemplate compiled = templateService.getCompiledTemplate("/q", QUERY);
+    int n = 200000;
+    for (int round = 0; round < 5; round++) {
+      long s = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        templateService.evaluateTemplate(parameters, QUERY);
+      }
+      long parsed = System.nanoTime() - s;
+      s = System.nanoTime();
+      for (int i = 0; i < n; i++) {
+        compiled.evaluate(parameters);
+      }
+      long cached = System.nanoTime() - s;
+      LOGGER.info("parse {} ops/s, compiled {} ops/s", 1000000000L * n / parsed,
+          1000000000L * n / cached);
+    }
+  }
+}
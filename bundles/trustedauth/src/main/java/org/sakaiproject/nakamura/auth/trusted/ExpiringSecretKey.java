@@ -19,6 +19,10 @@ package org.sakaiproject.nakamura.auth.trusted;
 
 import org.sakaiproject.nakamura.api.auth.trusted.ExpiringSecretKeyData;
 
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -30,6 +34,11 @@ public class ExpiringSecretKey {
   private long expires;
   private SecretKey secretKey;
   private ExpiringSecretKeyData secretKeyData;
+  /**
+   * Macs are not thread safe and expensive to get and initialise, so each thread keeps
+   * one initialised with this key.
+   */
+  private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
 
   /**
    * @param b a byte array defining the secret key
@@ -76,4 +85,21 @@ public class ExpiringSecretKey {
   public String getServerId() {
     return secretKeyData.getServerId();
   }
+
+  /**
+   * @param data
+   * @return the MAC of data using this key.
+   * @throws NoSuchAlgorithmException
+   * @throws InvalidKeyException
+   */
+  public byte[] mac(byte[] data) throws NoSuchAlgorithmException, InvalidKeyException {
+    Mac m = macs.get();
+    if (m == null) {
+      m = Mac.getInstance(secretKey.getAlgorithm());
+      m.init(secretKey);
+      macs.set(m);
+    }
+    // doFinal leaves the Mac reset and ready for the next call.
+    return m.doFinal(data);
+  }
 }
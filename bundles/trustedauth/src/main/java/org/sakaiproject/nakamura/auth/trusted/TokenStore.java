@@ -39,6 +39,14 @@ import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
@@ -47,6 +55,10 @@ import javax.crypto.spec.SecretKeySpec;
 /**
  * A Token Storage class that maintains a local ring buffer of keys for encoding and uses
  * a cluster replicated cache for keys to be shared with other servers in the cluster.
+ * <p>
+ * The ring buffer is an immutable snapshot that is replaced as a whole when a key is
+ * added, so encoding and decoding never lock. Only adding a key is serialized, and the
+ * keys are saved to the token file in the background.
  */
 public class TokenStore {
 
@@ -125,15 +137,12 @@ public class TokenStore {
         SecureCookieException {
       String cookiePayload = String.valueOf(secretKeyId) + String.valueOf(expires) + "@"
           + encodeField(userId) + "@" + tokenType+ "@" + serverId;
-      Mac m = Mac.getInstance(HMAC_SHA1);
       ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
           secretKeyId);
       if (expiringSecretKey == null) {
         throw new SecureCookieException("Key serverId=["+serverId+"]: KeyId=["+secretKeyId+"] not found ", false);
       }
-      m.init(TokenStore.this.getSecretKey(serverId, secretKeyId).getSecretKey());
-      m.update(cookiePayload.getBytes(UTF_8));
-      String cookieValue = encodeField(m.doFinal());
+      String cookieValue = encodeField(expiringSecretKey.mac(cookiePayload.getBytes(UTF_8)));
       return cookieValue + "@" + cookiePayload;
     }
 
@@ -150,8 +159,13 @@ public class TokenStore {
         this.serverId = parts[4];
         long cookieTime = Long.parseLong(parts[1].substring(1));
         if (System.currentTimeMillis() < cookieTime) {
+          // the whole cookie value is the key, so a hit was validated byte for byte.
+          String[] validated = validatedCookies.get(value);
+          if (validated != null) {
+            return validated.clone();
+          }
           try {
-            
+
             ExpiringSecretKey expiringSecretKey = TokenStore.this.getSecretKey(serverId,
                 secretKeyId);
             if (expiringSecretKey == null) {
@@ -166,6 +180,11 @@ public class TokenStore {
             }
             String hmac = encode(cookieTime, userId, this.tokenType);
             if (value.equals(hmac)) {
+              if (validatedCookies.size() >= MAX_VALIDATED_COOKIES) {
+                // crude, but cheaper than tracking use and it refills quickly.
+                validatedCookies.clear();
+              }
+              validatedCookies.put(value, new String[]{userId, tokenType});
               return new String[]{userId, tokenType};
             }
           } catch (ArrayIndexOutOfBoundsException e) {
@@ -210,23 +229,58 @@ public class TokenStore {
   private static final String UTF_8 = "UTF-8";
 
   private static final String DEFAULT_TOKEN_FILE = "sling/cookie-tokens.bin";
+
+  /**
+   * The maximum number of validated cookies remembered by {@link SecureCookie#decode(String)}.
+   */
+  static final int MAX_VALIDATED_COOKIES = 10000;
+
+  /**
+   * An immutable snapshot of the local keys.
+   */
+  private static final class KeyRing {
+    /**
+     * A ring of tokens used to encypt, never modified once the ring is published.
+     */
+    private final ExpiringSecretKey[] keys;
+    /**
+     * The location of the current token.
+     */
+    private final int activeId;
+    /**
+     * The time when a new token should be created.
+     */
+    private final long nextUpdate;
+
+    private KeyRing(ExpiringSecretKey[] keys, int activeId, long nextUpdate) {
+      this.keys = keys;
+      this.activeId = activeId;
+      this.nextUpdate = nextUpdate;
+    }
+  }
   /**
    * The ttl of the cookie before it becomes invalid (in ms)
    */
   private long ttl = 20L * 60000L; // 20 minutes
 
   /**
-   * The time when a new token should be created.
+   * The current keys, replaced under the lock on this store when a key is added.
    */
-  private long nextUpdate = System.currentTimeMillis();
+  private volatile KeyRing keyRing;
   /**
-   * The location of the current token.
+   * Keys of other servers, kept so their Macs are reused.
    */
-  private int secretKeyId = 0;
+  private final ConcurrentMap<String, ExpiringSecretKey> remoteKeys = new ConcurrentHashMap<String, ExpiringSecretKey>();
   /**
-   * A ring of tokens used to encypt.
+   * Cookies that have been validated, with the user and token type they decoded to.
    */
-  private ExpiringSecretKey[] secretKeyRingBuffer;
+  private final ConcurrentMap<String, String[]> validatedCookies = new ConcurrentHashMap<String, String[]>();
+  /**
+   * Saves the keys off the request thread. A single thread, which times out when idle.
+   */
+  private final ThreadPoolExecutor keySaver;
+  private final AtomicBoolean savePending = new AtomicBoolean();
+  private final Object saveLock = new Object();
   /**
    * A secure random used for generating new tokens.
    */
@@ -274,7 +328,15 @@ public class TokenStore {
     m.doFinal();
     this.tokenFile = new File(DEFAULT_TOKEN_FILE);
     tmpTokenFile = new File(DEFAULT_TOKEN_FILE + ".tmp");
-   
+    keySaver = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "TokenStore key saver");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    keySaver.allowCoreThreadTimeOut(true);
   }
   
   public void setDebugCookies(boolean debugCookies) {
@@ -309,14 +371,34 @@ public class TokenStore {
    *
    * @return the current token.
    */
-  synchronized SecureCookie getActiveToken() {
-    if (secretKeyRingBuffer == null) {
-      loadLocalSecretKeys();
+  SecureCookie getActiveToken() {
+    KeyRing ring = keyRing;
+    if (ring == null || needsNewKey(ring)) {
+      ring = addKey();
     }
-    if (System.currentTimeMillis() > nextUpdate
-        || hasExpired(secretKeyRingBuffer[secretKeyId]) ) {
+    return new SecureCookie(serverId, ring.activeId);
+  }
+
+  private boolean needsNewKey(KeyRing ring) {
+    return System.currentTimeMillis() > ring.nextUpdate
+        || hasExpired(ring.keys[ring.activeId]);
+  }
+
+  /**
+   * Add a key to the ring if it still needs one once we hold the lock, publishing a new
+   * snapshot.
+   *
+   * @return the current ring.
+   */
+  private synchronized KeyRing addKey() {
+    KeyRing ring = keyRing;
+    if (ring == null) {
+      ring = loadLocalSecretKeys();
+      keyRing = ring;
+    }
+    if (needsNewKey(ring)) {
       // cycle so that during a typical ttl the tokens get completely refreshed.
-      nextUpdate = System.currentTimeMillis() + ttl / 2;
+      long nextUpdate = System.currentTimeMillis() + ttl / 2;
       byte[] b = new byte[20];
       random.nextBytes(b);
 
@@ -326,27 +408,55 @@ public class TokenStore {
       ExpiringSecretKey expiringSecretKey = new ExpiringSecretKey(b, HMAC_SHA1, System
           .currentTimeMillis()
           + (ttl * 2), serverId);
-      int nextToken = secretKeyId + 1;
-      if (nextToken == secretKeyRingBuffer.length) {
+      int nextToken = ring.activeId + 1;
+      if (nextToken == ring.keys.length) {
         nextToken = 0;
       }
-      secretKeyRingBuffer[nextToken] = expiringSecretKey;
+      ExpiringSecretKey[] keys = ring.keys.clone();
+      keys[nextToken] = expiringSecretKey;
       LOG.debug("Added SecretKey {} at {} ", encodeField(expiringSecretKey.getSecretKey().getEncoded()), nextToken);
-      if ( debugCookies ) {
-        dumpSecretKeyRingBuffer(secretKeyRingBuffer);
-      }
+      // share the key before any cookie can be encoded with it.
       getServerKeyCache().put(getCacheKey(serverId, nextToken),
           expiringSecretKey.getSecretKeyData());
-      secretKeyId = nextToken;
-      saveLocalSecretKeys();
+      ring = new KeyRing(keys, nextToken, nextUpdate);
+      keyRing = ring;
+      if ( debugCookies ) {
+        dumpSecretKeyRingBuffer(ring);
+      }
+      scheduleSave();
     }
-    return new SecureCookie(serverId, secretKeyId);
+    return ring;
   }
 
-  private void dumpSecretKeyRingBuffer(ExpiringSecretKey[] secretKeyRingBuffer) {
+  /**
+   * Save the keys in the background, a save that has not started yet will pick up the
+   * latest ring so bursts of new keys are only written once.
+   */
+  private void scheduleSave() {
+    if (savePending.compareAndSet(false, true)) {
+      keySaver.execute(new Runnable() {
+        public void run() {
+          savePending.set(false);
+          saveLocalSecretKeys(keyRing);
+        }
+      });
+    }
+  }
+
+  /**
+   * Write the current keys to the token file now, for use when shutting down.
+   */
+  public void flush() {
+    KeyRing ring = keyRing;
+    if (ring != null) {
+      saveLocalSecretKeys(ring);
+    }
+  }
+
+  private void dumpSecretKeyRingBuffer(KeyRing ring) {
     StringBuilder sb  = new StringBuilder();
     int i = 0;
-    for ( ExpiringSecretKey e : secretKeyRingBuffer ) {
+    for ( ExpiringSecretKey e : ring.keys ) {
       if ( e == null ) {
         sb.append(i).append(", Expires in:").append(-1).append(", Key:").append("empty").append("\n");        
       } else {
@@ -355,7 +465,7 @@ public class TokenStore {
         sb.append(", Server:").append(e.getServerId()).append("\n");
       }
     }
-    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",secretKeyId,sb.toString());
+    LOG.info("Secret Key Ring Buffer, Active ID is {}\n{}",ring.activeId,sb.toString());
   }
 
   /**
@@ -379,7 +489,14 @@ public class TokenStore {
    * Save all the secureKeys to file
    */
   @edu.umd.cs.findbugs.annotations.SuppressWarnings(value="RV_RETURN_VALUE_IGNORED_BAD_PRACTICE",justification="Could be injected from annother bundle")
-  private void saveLocalSecretKeys() {
+  private void saveLocalSecretKeys(KeyRing ring) {
+    synchronized (saveLock) {
+      writeLocalSecretKeys(ring);
+    }
+  }
+
+  private void writeLocalSecretKeys(KeyRing ring) {
+    ExpiringSecretKey[] secretKeyRingBuffer = ring.keys;
     FileOutputStream fout = null;
     DataOutputStream keyOutputStream = null;
     try {
@@ -390,8 +507,8 @@ public class TokenStore {
       }
       fout = new FileOutputStream(tmpTokenFile);
       keyOutputStream = new DataOutputStream(fout);
-      keyOutputStream.writeInt(secretKeyId);
-      keyOutputStream.writeLong(nextUpdate);
+      keyOutputStream.writeInt(ring.activeId);
+      keyOutputStream.writeLong(ring.nextUpdate);
       for (int i = 0; i < secretKeyRingBuffer.length; i++) {
         if (secretKeyRingBuffer[i] == null) {
           keyOutputStream.writeInt(0);
@@ -424,9 +541,10 @@ public class TokenStore {
   }
 
   /**
-   *
+   * @return the keys from the token file, or an empty ring if they can't be read.
    */
-  private void loadLocalSecretKeys() {
+  private KeyRing loadLocalSecretKeys() {
+    KeyRing ring = null;
     FileInputStream fin = null;
     DataInputStream keyInputStream = null;
     try {
@@ -454,10 +572,8 @@ public class TokenStore {
         }
       }
       keyInputStream.close();
-      nextUpdate = newNextUpdate;
-      secretKeyId = newCurrentToken;
-      secretKeyRingBuffer = newKeys;
-      
+      ring = new KeyRing(newKeys, newCurrentToken, newNextUpdate);
+
     } catch (IOException e) {
       LOG.error("Failed to load cookie keys " + e.getMessage());
     } finally {
@@ -470,14 +586,13 @@ public class TokenStore {
       } catch (Exception e) {
       }
     }
-    if (secretKeyRingBuffer == null) {
-      secretKeyRingBuffer = new ExpiringSecretKey[5];
-      nextUpdate = System.currentTimeMillis();
-      secretKeyId = 0;
+    if (ring == null) {
+      ring = new KeyRing(new ExpiringSecretKey[5], 0, System.currentTimeMillis());
     }
     if ( debugCookies ) {
-      dumpSecretKeyRingBuffer(secretKeyRingBuffer);
+      dumpSecretKeyRingBuffer(ring);
     }
+    return ring;
   }
 
   /**
@@ -502,10 +617,15 @@ public class TokenStore {
    */
   private ExpiringSecretKey getSecretKey(String serverId, int keyNumber) {
     LOG.debug("Looking key {} in {} ", serverId, keyNumber);
-    if ( secretKeyRingBuffer[keyNumber] != null ) {
-      if ( serverId.equals(secretKeyRingBuffer[keyNumber].getServerId())) {
-        LOG.debug("Found Key {} will expire at {}", keyNumber, secretKeyRingBuffer[keyNumber].getExpires());
-        return secretKeyRingBuffer[keyNumber];
+    KeyRing ring = keyRing;
+    if (ring == null || keyNumber < 0 || keyNumber >= ring.keys.length) {
+      return null;
+    }
+    ExpiringSecretKey localKey = ring.keys[keyNumber];
+    if ( localKey != null ) {
+      if ( serverId.equals(localKey.getServerId())) {
+        LOG.debug("Found Key {} will expire at {}", keyNumber, localKey.getExpires());
+        return localKey;
       }
     }
     String cacheKey = getCacheKey(serverId, keyNumber);
@@ -518,7 +638,12 @@ public class TokenStore {
       LOG.debug("Got Cache Key {} as  {} ", cacheKey, cachedServerKeyData);
       if ( System.currentTimeMillis() < cachedServerKeyData.getExpires()) {
           LOG.debug("Got Key is valid using {} as  {} ", cacheKey, cachedServerKeyData);
-         return new ExpiringSecretKey(cachedServerKeyData);
+         ExpiringSecretKey remoteKey = remoteKeys.get(cacheKey);
+         if (remoteKey == null || !isSameKey(remoteKey.getSecretKeyData(), cachedServerKeyData)) {
+           remoteKey = new ExpiringSecretKey(cachedServerKeyData);
+           remoteKeys.put(cacheKey, remoteKey);
+         }
+         return remoteKey;
       } else if ( System.currentTimeMillis() < cachedServerKeyData.getExpires() + 600000L  ){
           LOG.debug("Got Key is Not valid {}, ", cacheKey, cachedServerKeyData);
       } else {
@@ -532,6 +657,11 @@ public class TokenStore {
     return null;
   }
 
+  private boolean isSameKey(ExpiringSecretKeyData a, ExpiringSecretKeyData b) {
+    return a == b
+        || (a.getExpires() == b.getExpires() && Arrays.equals(a.getEncoded(), b.getEncoded()));
+  }
+
   /**
    * @return
    */
@@ -252,6 +252,11 @@ public final class TrustedTokenServiceImpl implements TrustedTokenService {
     trustedParameterName = PropertiesUtil.toString(props.get(TRUSTED_PARAMETER_NAME), "");
   }
 
+  protected void deactivate(ComponentContext context) {
+    // keys are saved in the background, make sure the latest ones are on disk.
+    tokenStore.flush();
+  }
+
   public void activateForTesting() {
     testing = true;
     calls = new ArrayList<Object[]>();
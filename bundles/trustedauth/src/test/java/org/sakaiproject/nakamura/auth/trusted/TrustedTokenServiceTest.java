@@ -38,6 +38,7 @@ import org.sakaiproject.nakamura.auth.trusted.TrustedTokenServiceImpl.TrustedUse
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
@@ -45,6 +46,8 @@ import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Credentials;
 import javax.jcr.SimpleCredentials;
@@ -250,6 +253,55 @@ public class TrustedTokenServiceTest {
     verify();
   }
 
+  @Test
+  public void testCookieEncodingContention() throws InterruptedException {
+    ComponentContext context = configureForCookie();
+    replay();
+    trustedTokenService.activate(context);
+    final int threads = 8;
+    final int perThread = 500;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger failures = new AtomicInteger();
+    List<Thread> workers = new ArrayList<Thread>();
+    for (int t = 0; t < threads; t++) {
+      final String user = "user" + t;
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < perThread; i++) {
+              String cookie = trustedTokenService.encodeCookie(user,
+                  TrustedTokenTypes.AUTHENTICATED_TRUST);
+              String[] token = trustedTokenService.decodeCookie(cookie);
+              if (token == null || !user.equals(token[0])) {
+                failures.incrementAndGet();
+              }
+            }
+          } catch (InterruptedException e) {
+            failures.incrementAndGet();
+          }
+        }
+      });
+      worker.start();
+      workers.add(worker);
+    }
+    long startTime = System.currentTimeMillis();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    LOGGER.info("Encode and decode of " + (threads * perThread) + " cookies on " + threads
+        + " threads " + (System.currentTimeMillis() - startTime) + " ms");
+    Assert.assertEquals(0, failures.get());
+
+    File tokenFile = new File("target/cookie-token.bin");
+    tokenFile.delete();
+    // the key file is written in the background, deactivate must flush it.
+    trustedTokenService.deactivate(context);
+    Assert.assertTrue(tokenFile.exists());
+    verify();
+  }
+
   @Test
   public void testCookieRefresh() throws InterruptedException {
     ComponentContext context = configureForCookieFast();
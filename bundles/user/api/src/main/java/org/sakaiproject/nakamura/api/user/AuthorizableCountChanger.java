@@ -26,4 +26,15 @@ public interface AuthorizableCountChanger {
 
   public void notify(String propertyName, Collection<String> ... authorizableIDs);
 
+  /**
+   * Add a delta to a count property of each authorizable that already has it. An
+   * authorizable without the property is left alone, its count is computed the next
+   * time it is read.
+   *
+   * @param propertyName
+   * @param delta
+   * @param authorizableIDs
+   */
+  public void adjust(String propertyName, int delta, Collection<String> authorizableIDs);
+
 }
@@ -15,12 +15,23 @@
  * KIND, either express or implied. See the License for the
  * specific language governing permissions and limitations under the License.
  */
-
 package org.sakaiproject.nakamura.user.counts;
 
+import static org.sakaiproject.nakamura.api.lite.StoreListener.ADDED_TOPIC;
+import static org.sakaiproject.nakamura.api.lite.StoreListener.DELETE_TOPIC;
+
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
 import org.sakaiproject.nakamura.api.http.cache.DynamicContentResponseCache;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -29,6 +40,9 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.user.AuthorizableCountChanger;
 import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.api.user.counts.CountProvider;
@@ -37,19 +51,82 @@ import org.slf4j.LoggerFactory;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 
-@Component
-@Service
-public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
+/**
+ * Keeps the count properties of authorizables up to date.
+ * <p>
+ * Most counts are cheap to recompute from the authorizables themselves, so changes to
+ * them are handled by removing the property in {@link #notify(String, Collection...)},
+ * and the count is recomputed when it is next read. The content count needs a Solr
+ * query, so when content counts are materialized it is instead maintained from the
+ * pooled content events: the members of each content item are recorded in a snapshot
+ * under {@link #SNAPSHOT_ROOT} and the difference between the snapshot and the item is
+ * applied as +1/-1 to the members' counts. When they are not materialized the
+ * members whose access changed have the property removed instead. The
+ * {@link CountsRefreshScheduler} job reconciles the materialized counts against Solr.
+ * <p>
+ * Notifications still remove the property, so the members the pool servlets notify, and
+ * changes the content events can't see such as a group joining a collection, recount as
+ * before. A member without the property is not adjusted, so a change that is both
+ * notified and seen in an event is not counted twice.
+ */
+@Component(metatype = true)
+@Service(value = { AuthorizableCountChanger.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/content/ADDED",
+        "org/sakaiproject/nakamura/lite/content/UPDATED",
+        "org/sakaiproject/nakamura/lite/content/DELETE" }),
+    @Property(name = "service.description", value = "Maintains the count properties of authorizables")
+})
+public class AuthorizableCountChangerImpl implements AuthorizableCountChanger, EventHandler {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AuthorizableCountChangerImpl.class);
 
+  @Property(boolValue = AuthorizableCountChangerImpl.DEFAULT_MATERIALIZE_CONTENT_COUNTS)
+  static final String MATERIALIZE_CONTENT_COUNTS = "sakai.counts.content.materialize";
+  static final boolean DEFAULT_MATERIALIZE_CONTENT_COUNTS = true;
+
+  /**
+   * Where the snapshots of the members of each pooled content item are kept.
+   */
+  static final String SNAPSHOT_ROOT = "/var/counts/content/";
+
+  private static final int LOCK_STRIPES = 64;
+
   @Reference
   private Repository repository;
 
   @Reference
   private DynamicContentResponseCache responseCache;
 
+  private boolean materializeContentCounts = DEFAULT_MATERIALIZE_CONTENT_COUNTS;
+
+  /**
+   * Serializes read-modify-write of the counts of an authorizable, striped by id.
+   */
+  private final Object[] locks = newLocks();
+
+  /**
+   * Serializes the read, diff and write of the snapshot of a content item, striped by
+   * path, so two events for the same item can't both apply the change from the same
+   * snapshot. Taken before the authorizable locks, never while holding one.
+   */
+  private final Object[] snapshotLocks = newLocks();
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    modified(properties);
+  }
+
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    materializeContentCounts = PropertiesUtil.toBoolean(
+        properties.get(MATERIALIZE_CONTENT_COUNTS), DEFAULT_MATERIALIZE_CONTENT_COUNTS);
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public void notify(String propertyName, String authorizableID) {
@@ -63,20 +140,7 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
       adminSession = this.repository.loginAdministrative();
       AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
       for (Collection<String> list : authorizableIDs) {
-        for (String id : list) {
-          Authorizable authz = authorizableManager.findAuthorizable(id);
-          if (authz == null || CountProvider.IGNORE_AUTHIDS.contains(authz.getId())) {
-            continue; // skip the immutable system authzs
-          }
-          if (authz.hasProperty(propertyName)) {
-            authz.removeProperty(propertyName);
-            authorizableManager.updateAuthorizable(authz, false);
-            responseCache.invalidate(UserConstants.USER_RESPONSE_CACHE, id);
-            if (LOGGER.isDebugEnabled()) {
-              LOGGER.debug("Removed {} prop from authorizable {}", new String[]{propertyName, id});
-            }
-          }
-        }
+        invalidate(propertyName, list, authorizableManager);
       }
     } catch (AccessDeniedException e) {
       LOGGER.error("Error removing count property from authorizable", e);
@@ -85,12 +149,216 @@ public class AuthorizableCountChangerImpl implements AuthorizableCountChanger {
     } catch (StorageClientException e) {
       LOGGER.error("Error removing count property from authorizable", e);
     } finally {
-      if (adminSession != null) {
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.error("Error logging out of admin session", e);
+      logout(adminSession);
+    }
+  }
+
+  @Override
+  public void adjust(String propertyName, int delta, Collection<String> authorizableIDs) {
+    Session adminSession = null;
+    try {
+      adminSession = this.repository.loginAdministrative();
+      adjust(propertyName, delta, authorizableIDs, adminSession.getAuthorizableManager());
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Error adjusting count property of authorizable", e);
+    } catch (ClientPoolException e) {
+      LOGGER.error("Error adjusting count property of authorizable", e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Error adjusting count property of authorizable", e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    if (!ContentMembers.POOLED_CONTENT_RT.equals(event.getProperty("resourceType"))) {
+      return;
+    }
+    String path = (String) event.getProperty("path");
+    if (path == null) {
+      return;
+    }
+    Session adminSession = null;
+    try {
+      adminSession = this.repository.loginAdministrative();
+      synchronized (lockFor(snapshotLocks, path)) {
+        updateContentCounts(path, event.getTopic(), adminSession);
+      }
+    } catch (AccessDeniedException e) {
+      LOGGER.error("Error updating content counts for " + path, e);
+    } catch (ClientPoolException e) {
+      LOGGER.error("Error updating content counts for " + path, e);
+    } catch (StorageClientException e) {
+      LOGGER.error("Error updating content counts for " + path, e);
+    } finally {
+      logout(adminSession);
+    }
+  }
+
+  private void updateContentCounts(String path, String topic, Session adminSession)
+      throws StorageClientException, AccessDeniedException {
+    ContentManager contentManager = adminSession.getContentManager();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    String snapshotPath = SNAPSHOT_ROOT + path;
+
+    Content snapshot = contentManager.get(snapshotPath);
+    ContentMembers previous = null;
+    if (snapshot != null) {
+      previous = ContentMembers.fromSnapshot(snapshot.getProperties());
+    }
+    ContentMembers current = ContentMembers.NONE;
+    if (!topic.endsWith(DELETE_TOPIC)) {
+      Content content = contentManager.get(path);
+      if (content != null) {
+        current = ContentMembers.of(content.getProperties());
+      }
+    }
+
+    if (previous == null) {
+      if (current == ContentMembers.NONE) {
+        // deleted before we ever saw it, the refresh job will correct the counts.
+        return;
+      }
+      if (topic.endsWith(ADDED_TOPIC)) {
+        previous = ContentMembers.NONE;
+      } else {
+        // counted before snapshots were kept, we can't tell what changed so have the
+        // current members recount once.
+        LOGGER.debug("No count snapshot for {}, recounting its members", path);
+        invalidate(UserConstants.CONTENT_ITEMS_PROP, current.getMembers(), authorizableManager);
+        if (current.isShowAlways()) {
+          invalidate(UserConstants.CONTENT_ITEMS_PROP,
+              groupMembers(current.getMembers(), authorizableManager), authorizableManager);
+        }
+      }
+    }
+
+    if (previous != null && !previous.equals(current)) {
+      if (materializeContentCounts) {
+        adjust(UserConstants.CONTENT_ITEMS_PROP, 1, current.added(previous), authorizableManager);
+        adjust(UserConstants.CONTENT_ITEMS_PROP, -1, current.removed(previous), authorizableManager);
+      } else {
+        invalidate(UserConstants.CONTENT_ITEMS_PROP,
+            Sets.union(current.added(previous), current.removed(previous)), authorizableManager);
+      }
+      if (previous.isShowAlways() || current.isShowAlways()) {
+        // the members of groups see showalways content too, but may also see it
+        // directly, so they recount rather than being adjusted.
+        Set<String> changedGroups;
+        if (previous.isShowAlways() != current.isShowAlways()) {
+          changedGroups = Sets.union(previous.getMembers(), current.getMembers());
+        } else {
+          changedGroups = Sets.symmetricDifference(previous.getMembers(), current.getMembers());
+        }
+        invalidate(UserConstants.CONTENT_ITEMS_PROP,
+            groupMembers(changedGroups, authorizableManager), authorizableManager);
+      }
+    }
+
+    if (current == ContentMembers.NONE && topic.endsWith(DELETE_TOPIC)) {
+      contentManager.delete(snapshotPath);
+    } else if (!current.equals(previous)) {
+      contentManager.update(new Content(snapshotPath, current.toSnapshot()));
+    }
+  }
+
+  private void adjust(String propertyName, int delta, Collection<String> authorizableIDs,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    for (String id : authorizableIDs) {
+      if (CountProvider.IGNORE_AUTHIDS.contains(id)) {
+        continue; // skip the immutable system authzs
+      }
+      synchronized (lockFor(locks, id)) {
+        Authorizable authz = authorizableManager.findAuthorizable(id);
+        if (authz == null || !authz.hasProperty(propertyName)) {
+          continue;
         }
+        int count = PropertiesUtil.toInteger(authz.getProperty(propertyName), 0) + delta;
+        authz.setProperty(propertyName, Math.max(0, count));
+        authorizableManager.updateAuthorizable(authz, false);
+      }
+      responseCache.invalidate(UserConstants.USER_RESPONSE_CACHE, id);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Adjusted {} of authorizable {} by {}", new Object[] { propertyName,
+            id, delta });
+      }
+    }
+  }
+
+  private void invalidate(String propertyName, Collection<String> authorizableIDs,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    for (String id : authorizableIDs) {
+      if (CountProvider.IGNORE_AUTHIDS.contains(id)) {
+        continue; // skip the immutable system authzs
+      }
+      synchronized (lockFor(locks, id)) {
+        Authorizable authz = authorizableManager.findAuthorizable(id);
+        if (authz == null || !authz.hasProperty(propertyName)) {
+          continue;
+        }
+        authz.removeProperty(propertyName);
+        authorizableManager.updateAuthorizable(authz, false);
+      }
+      responseCache.invalidate(UserConstants.USER_RESPONSE_CACHE, id);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Removed {} prop from authorizable {}", new String[]{propertyName, id});
+      }
+    }
+  }
+
+  /**
+   * @return the members of the groups in ids, and of their sub groups.
+   */
+  private Set<String> groupMembers(Collection<String> ids, AuthorizableManager authorizableManager)
+      throws AccessDeniedException, StorageClientException {
+    Set<String> members = Sets.newHashSet();
+    Set<String> seen = Sets.newHashSet();
+    aggregateMembers(ids, authorizableManager, members, seen);
+    return members;
+  }
+
+  private void aggregateMembers(Collection<String> ids, AuthorizableManager authorizableManager,
+      Set<String> members, Set<String> seen) throws AccessDeniedException,
+      StorageClientException {
+    for (String id : ids) {
+      if (CountProvider.IGNORE_AUTHIDS.contains(id) || !seen.add(id)) {
+        continue;
+      }
+      Authorizable authz = authorizableManager.findAuthorizable(id);
+      if (authz instanceof Group) {
+        String[] groupMembers = ((Group) authz).getMembers();
+        if (groupMembers != null) {
+          members.addAll(Arrays.asList(groupMembers));
+          aggregateMembers(Arrays.asList(groupMembers), authorizableManager, members, seen);
+        }
+      }
+    }
+  }
+
+  private static Object[] newLocks() {
+    Object[] stripes = new Object[LOCK_STRIPES];
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
+    return stripes;
+  }
+
+  private static Object lockFor(Object[] stripes, String key) {
+    return stripes[(key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+  }
+
+  private void logout(Session adminSession) {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.error("Error logging out of admin session", e);
       }
     }
   }
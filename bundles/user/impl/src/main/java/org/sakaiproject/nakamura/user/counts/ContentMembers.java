@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.sakaiproject.nakamura.api.user.counts.CountProvider;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The authorizables a pooled content item is counted against in their
+ * {@link org.sakaiproject.nakamura.api.user.UserConstants#CONTENT_ITEMS_PROP} count, ie
+ * its managers, editors and viewers. A snapshot of these is kept for each content item so
+ * the next event for the item can be turned into a delta.
+ */
+final class ContentMembers {
+
+  static final String POOLED_CONTENT_RT = "sakai/pooled-content";
+  static final String MANAGER_PROP = "sakai:pooled-content-manager";
+  static final String EDITOR_PROP = "sakai:pooled-content-editor";
+  static final String VIEWER_PROP = "sakai:pooled-content-viewer";
+  static final String SHOW_ALWAYS_PROP = "sakai:showalways";
+
+  static final String SNAPSHOT_MEMBERS_PROP = "members";
+  static final String SNAPSHOT_SHOW_ALWAYS_PROP = "showalways";
+
+  static final ContentMembers NONE = new ContentMembers(ImmutableSet.<String> of(), false);
+
+  private final Set<String> members;
+  private final boolean showAlways;
+
+  private ContentMembers(Set<String> members, boolean showAlways) {
+    this.members = members;
+    this.showAlways = showAlways;
+  }
+
+  /**
+   * @param properties
+   *          the properties of the pooled content item.
+   * @return the members of the content item.
+   */
+  static ContentMembers of(Map<String, Object> properties) {
+    Set<String> members = Sets.newHashSet();
+    for (String prop : new String[] { MANAGER_PROP, EDITOR_PROP, VIEWER_PROP }) {
+      members.addAll(Arrays.asList(PropertiesUtil.toStringArray(properties.get(prop),
+          new String[0])));
+    }
+    members.removeAll(CountProvider.IGNORE_AUTHIDS);
+    return new ContentMembers(ImmutableSet.copyOf(members),
+        Boolean.parseBoolean(String.valueOf(properties.get(SHOW_ALWAYS_PROP))));
+  }
+
+  /**
+   * @param properties
+   *          the properties of a snapshot written by {@link #toSnapshot()}.
+   * @return the members recorded in the snapshot.
+   */
+  static ContentMembers fromSnapshot(Map<String, Object> properties) {
+    return new ContentMembers(ImmutableSet.copyOf(PropertiesUtil.toStringArray(
+        properties.get(SNAPSHOT_MEMBERS_PROP), new String[0])),
+        Boolean.parseBoolean(String.valueOf(properties.get(SNAPSHOT_SHOW_ALWAYS_PROP))));
+  }
+
+  Map<String, Object> toSnapshot() {
+    return ImmutableMap.<String, Object> of(SNAPSHOT_MEMBERS_PROP,
+        members.toArray(new String[members.size()]), SNAPSHOT_SHOW_ALWAYS_PROP,
+        showAlways);
+  }
+
+  Set<String> getMembers() {
+    return members;
+  }
+
+  boolean isShowAlways() {
+    return showAlways;
+  }
+
+  /**
+   * @param previous
+   * @return the members that are not in previous.
+   */
+  Set<String> added(ContentMembers previous) {
+    return Sets.difference(members, previous.members);
+  }
+
+  /**
+   * @param previous
+   * @return the members of previous that are no longer members.
+   */
+  Set<String> removed(ContentMembers previous) {
+    return Sets.difference(previous.members, members);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ContentMembers)) {
+      return false;
+    }
+    ContentMembers other = (ContentMembers) obj;
+    return showAlways == other.showAlways && members.equals(other.members);
+  }
+
+  @Override
+  public int hashCode() {
+    return members.hashCode() * 31 + (showAlways ? 1 : 0);
+  }
+}
@@ -72,10 +72,12 @@ public class CountProviderImpl implements CountProvider {
       return;
     }
 
+    // the refresh job reconciles the materialized counts through this, so users have
+    // to be saved as well as groups.
     internalUpdateCountProperty(authorizable, CONTENT_ITEMS_PROP, session, false);
     if (authorizable instanceof User) {
       internalUpdateCountProperty(authorizable, CONTACTS_PROP, session, false);
-      internalUpdateCountProperty(authorizable, GROUP_MEMBERSHIPS_PROP, session, false);
+      internalUpdateCountProperty(authorizable, GROUP_MEMBERSHIPS_PROP, session, true);
     } else if (authorizable instanceof Group) {
       internalUpdateCountProperty(authorizable, GROUP_MEMBERS_PROP, session, true);
     }
@@ -101,7 +103,13 @@ public class CountProviderImpl implements CountProvider {
     AuthorizableManager authorizableManager = session.getAuthorizableManager();
 
     if (CONTENT_ITEMS_PROP.equals(propertyName)) {
-      authorizable.setProperty(CONTENT_ITEMS_PROP, getContentCount(authorizable, authorizableManager));
+      int count = getContentCount(authorizable, authorizableManager);
+      if (LOG.isDebugEnabled() && authorizable.hasProperty(CONTENT_ITEMS_PROP)
+          && !String.valueOf(count).equals(String.valueOf(authorizable.getProperty(CONTENT_ITEMS_PROP)))) {
+        LOG.debug("Reconciled {} of {} from {} to {}", new Object[] { CONTENT_ITEMS_PROP,
+            authorizable.getId(), authorizable.getProperty(CONTENT_ITEMS_PROP), count });
+      }
+      authorizable.setProperty(CONTENT_ITEMS_PROP, count);
     } else {
       if (authorizable instanceof User) {
         if (CONTACTS_PROP.equals(propertyName)) {
@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+public class ContentMembersTest {
+
+  @Test
+  public void testMembers() {
+    ContentMembers members = ContentMembers.of(ImmutableMap.<String, Object> of(
+        ContentMembers.MANAGER_PROP, new String[] { "alice", "admin" },
+        ContentMembers.VIEWER_PROP, new String[] { "bob", "alice", "everyone" },
+        ContentMembers.EDITOR_PROP, "carol"));
+    assertEquals(ImmutableSet.of("alice", "bob", "carol"), members.getMembers());
+    assertFalse(members.isShowAlways());
+  }
+
+  @Test
+  public void testDelta() {
+    ContentMembers previous = ContentMembers.of(ImmutableMap.<String, Object> of(
+        ContentMembers.MANAGER_PROP, new String[] { "alice" },
+        ContentMembers.VIEWER_PROP, new String[] { "bob" }));
+    ContentMembers current = ContentMembers.of(ImmutableMap.<String, Object> of(
+        ContentMembers.MANAGER_PROP, new String[] { "alice" },
+        ContentMembers.EDITOR_PROP, new String[] { "bob", "carol" }));
+    // bob moving from viewer to editor doesn't change his count
+    assertEquals(ImmutableSet.of("carol"), current.added(previous));
+    assertEquals(ImmutableSet.of(), current.removed(previous));
+    assertEquals(ImmutableSet.of("alice", "bob", "carol"), current.added(ContentMembers.NONE));
+    assertEquals(ImmutableSet.of("alice", "bob", "carol"), ContentMembers.NONE.removed(current));
+  }
+
+  @Test
+  public void testSnapshotRoundTrip() {
+    ContentMembers members = ContentMembers.of(ImmutableMap.<String, Object> of(
+        ContentMembers.MANAGER_PROP, new String[] { "alice", "g-course" },
+        ContentMembers.SHOW_ALWAYS_PROP, "true"));
+    assertTrue(members.isShowAlways());
+    ContentMembers restored = ContentMembers.fromSnapshot(members.toSnapshot());
+    assertEquals(members, restored);
+    assertFalse(members.equals(ContentMembers.NONE));
+  }
+}
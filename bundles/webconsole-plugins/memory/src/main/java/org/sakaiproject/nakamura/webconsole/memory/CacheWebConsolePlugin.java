@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.webconsole.memory;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.felix.webconsole.SimpleWebConsolePlugin;
+import org.apache.felix.webconsole.WebConsoleConstants;
+import org.osgi.framework.BundleContext;
+import org.sakaiproject.nakamura.api.memory.CacheStatistics;
+import org.sakaiproject.nakamura.api.memory.CacheStatisticsService;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the statistics of the named instance and cluster caches so the ehcache
+ * regions can be sized from real usage.
+ */
+@Component
+@Service
+@Properties({
+  @Property(name = WebConsoleConstants.PLUGIN_LABEL, value = "caches")
+})
+public class CacheWebConsolePlugin extends SimpleWebConsolePlugin {
+  private static final long serialVersionUID = 1L;
+
+  private static final String[] COLUMNS = { "name", "scope", "size", "heap", "hits",
+      "misses", "hit_ratio", "puts", "removals", "evictions", "get_latency",
+      "put_latency" };
+
+  @Reference
+  private CacheStatisticsService cacheStatisticsService;
+
+  public CacheWebConsolePlugin() {
+    super("caches", "%plugin_title", new String[] { "/dev/css/sakai/main.css" });
+  }
+
+  @Override
+  @Activate
+  public void activate(BundleContext bundleContext) {
+    super.activate(bundleContext);
+  }
+
+  @Override
+  @Deactivate
+  public void deactivate() {
+    super.deactivate();
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    if (req.getParameter("reset") != null) {
+      for (CacheStatistics statistics : cacheStatisticsService.getCacheStatistics()) {
+        statistics.reset();
+      }
+    }
+    resp.sendRedirect(req.getRequestURI());
+  }
+
+  @Override
+  protected void renderContent(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    List<CacheStatistics> caches = new ArrayList<CacheStatistics>(
+        cacheStatisticsService.getCacheStatistics());
+    Collections.sort(caches, new Comparator<CacheStatistics>() {
+      public int compare(CacheStatistics o1, CacheStatistics o2) {
+        return o1.getName().compareTo(o2.getName());
+      }
+    });
+    // the heap size walks every cache, only do it when asked for.
+    boolean heap = req.getParameter("heap") != null;
+
+    long resets = cacheStatisticsService.getScopedCacheResets();
+    long allocations = cacheStatisticsService.getScopedCacheAllocations();
+
+    PrintWriter writer = res.getWriter();
+    writer.println("<div class='statline'>${label_scoped_allocations}: " + allocations
+        + ", ${label_scoped_resets}: " + resets + ", ${label_scoped_per_request}: "
+        + String.format("%.3f", resets == 0 ? 0.0 : (double) allocations / resets)
+        + "</div>");
+    writer.println("<div class='ui-widget-header ui-corner-top buttonGroup'>");
+    writer.println("<form action='caches' method='post'>");
+    writer.println("<input type='hidden' name='reset' value='true'/>");
+    writer.println("<input type='submit' class='ui-state-default ui-corner-all' value='${label_reset}'/>");
+    writer.println("<a href='caches?heap=true'>${label_heap}</a>");
+    writer.println("</form></div>");
+    writer.println("<table class='nicetable'><thead><tr>");
+    for (String column : COLUMNS) {
+      writer.print("<th>${label_" + column + "}</th>");
+    }
+    writer.println("</tr></thead><tbody>");
+    for (CacheStatistics cache : caches) {
+      writer.print("<tr>");
+      cell(writer, escape(cache.getName()));
+      cell(writer, cache.getScope());
+      cell(writer, cache.getSize());
+      cell(writer, heap ? String.valueOf(cache.getEstimatedHeapSize()) : "-");
+      cell(writer, cache.getHits());
+      cell(writer, cache.getMisses());
+      cell(writer, String.format("%.3f", cache.getHitRatio()));
+      cell(writer, cache.getPuts());
+      cell(writer, cache.getRemovals());
+      cell(writer, cache.getEvictions());
+      cell(writer, cache.getGetLatency50() + "/" + cache.getGetLatency95() + "/"
+          + cache.getGetLatency99());
+      cell(writer, cache.getPutLatency50() + "/" + cache.getPutLatency95() + "/"
+          + cache.getPutLatency99());
+      writer.println("</tr>");
+    }
+    writer.println("</tbody></table>");
+  }
+
+  private String escape(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private void cell(PrintWriter writer, Object value) {
+    writer.print("<td>");
+    writer.print(value);
+    writer.print("</td>");
+  }
+}
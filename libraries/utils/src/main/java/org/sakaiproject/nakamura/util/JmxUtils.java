@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registers component statistics with the platform MBean server. Failures are logged
+ * rather than thrown, statistics are never worth failing a component over.
+ */
+public class JmxUtils {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JmxUtils.class);
+
+  private JmxUtils() {
+  }
+
+  /**
+   * Register an MBean, replacing any left behind under the same name by a previous
+   * instance of the component.
+   *
+   * @param name
+   *          the object name, e.g. org.sakaiproject.nakamura:type=Locks
+   * @param mbean
+   *          the implementation.
+   * @param mbeanInterface
+   *          the management interface of the implementation.
+   * @return the name it was registered under, to pass to {@link #unregister(ObjectName)},
+   *         or null if it could not be registered.
+   */
+  public static <T> ObjectName register(String name, T mbean, Class<T> mbeanInterface) {
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(name);
+      if (mBeanServer.isRegistered(objectName)) {
+        mBeanServer.unregisterMBean(objectName);
+      }
+      mBeanServer.registerMBean(new StandardMBean(mbean, mbeanInterface), objectName);
+      return objectName;
+    } catch (JMException e) {
+      LOGGER.warn("Unable to register {} with JMX {} ", name, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Unregister an MBean by the name it was registered under, for callers that derive the
+   * name rather than keep the one returned by {@link #register(String, Object, Class)}.
+   */
+  public static void unregister(String name) {
+    try {
+      unregister(new ObjectName(name));
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister {} {} ", name, e.getMessage());
+    }
+  }
+
+  /**
+   * Unregister an MBean if it is registered.
+   *
+   * @param name
+   *          the name returned by {@link #register(String, Object, Class)}, may be null.
+   */
+  public static void unregister(ObjectName name) {
+    if (name == null) {
+      return;
+    }
+    try {
+      MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+      if (mBeanServer.isRegistered(name)) {
+        mBeanServer.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      LOGGER.debug("Unable to unregister {} {} ", name, e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies with power of 2 buckets, in whatever unit the caller
+ * records. Recording is a single atomic increment. Percentiles are the upper bound of the
+ * bucket they fall in, so they are accurate to within a factor of 2, which is enough to
+ * see where a cache sits or to decide when to hedge a request.
+ */
+public class LatencyHistogram {
+
+  private static final int BUCKETS = 64;
+
+  /**
+   * Bucket i holds latencies up to 2^i, bucket 0 also holds anything not positive.
+   */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+  /**
+   * @param latency
+   *          the latency of one operation.
+   */
+  public void record(long latency) {
+    int bucket = latency <= 1 ? 0 : BUCKETS - Long.numberOfLeadingZeros(latency - 1);
+    counts.incrementAndGet(bucket);
+  }
+
+  /**
+   * @return the number of latencies recorded.
+   */
+  public long getCount() {
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      n += counts.get(i);
+    }
+    return n;
+  }
+
+  /**
+   * @param percentile
+   *          between 0 and 100.
+   * @return the upper bound of the bucket holding the percentile, or -1 if nothing has
+   *         been recorded.
+   */
+  public long getPercentile(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return -1;
+    }
+    long target = (long) Math.ceil(n * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= target && snapshot[i] > 0) {
+        return bound(i);
+      }
+    }
+    return bound(BUCKETS - 1);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+  }
+
+  private static long bound(int bucket) {
+    return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+  }
+
+  /**
+   * @return the non empty buckets, as <code>&lt;=bound:count</code>.
+   */
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < BUCKETS; i++) {
+      long count = counts.get(i);
+      if (count > 0) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        sb.append("<=").append(bound(i)).append(':').append(count);
+      }
+    }
+    return sb.toString();
+  }
+}
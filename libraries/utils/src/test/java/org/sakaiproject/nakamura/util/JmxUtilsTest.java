@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class JmxUtilsTest {
+
+  public interface CounterMBean {
+    long getCount();
+  }
+
+  public static class Counter implements CounterMBean {
+    private final long count;
+
+    Counter(long count) {
+      this.count = count;
+    }
+
+    public long getCount() {
+      return count;
+    }
+  }
+
+  @Test
+  public void testRegisterReplacesAndUnregisters() throws Exception {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    String name = "org.sakaiproject.nakamura:type=JmxUtilsTest";
+    ObjectName first = JmxUtils.register(name, new Counter(1), CounterMBean.class);
+    assertNotNull(first);
+    // a second instance of a component takes over the name.
+    ObjectName second = JmxUtils.register(name, new Counter(2), CounterMBean.class);
+    assertEquals(first, second);
+    assertEquals(2L, mBeanServer.getAttribute(second, "Count"));
+
+    JmxUtils.unregister(second);
+    assertFalse(mBeanServer.isRegistered(second));
+    // unregistering again, or a name that was never registered, is harmless.
+    JmxUtils.unregister(second);
+    JmxUtils.unregister((ObjectName) null);
+  }
+
+  @Test
+  public void testUnregisterByName() throws Exception {
+    String name = "org.sakaiproject.nakamura:type=JmxUtilsTest,name=byName";
+    ObjectName objectName = JmxUtils.register(name, new Counter(1), CounterMBean.class);
+    JmxUtils.unregister(name);
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+    JmxUtils.unregister("not a name");
+  }
+
+  @Test
+  public void testInvalidNameIsNotRegistered() {
+    assertNull(JmxUtils.register("not a name", new Counter(1), CounterMBean.class));
+  }
+}
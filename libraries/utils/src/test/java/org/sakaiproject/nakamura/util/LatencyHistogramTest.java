@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(-1, histogram.getPercentile(95));
+    for (int i = 0; i < 90; i++) {
+      histogram.record(3);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(150);
+    }
+    assertEquals(100, histogram.getCount());
+    assertEquals(4, histogram.getPercentile(50));
+    assertEquals(4, histogram.getPercentile(90));
+    assertEquals(256, histogram.getPercentile(95));
+    assertEquals("<=4:90 <=256:10", histogram.toString());
+    histogram.record(60000);
+    assertEquals(65536, histogram.getPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(-1, histogram.getPercentile(99));
+  }
+
+  @Test
+  public void testBucketBounds() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    assertEquals(1, histogram.getPercentile(100));
+    histogram.record(1024);
+    assertEquals(1024, histogram.getPercentile(100));
+    histogram.record(1025);
+    assertEquals(2048, histogram.getPercentile(100));
+    histogram.record(Long.MAX_VALUE);
+    assertTrue(histogram.getPercentile(100) >= Long.MAX_VALUE / 2);
+  }
+}